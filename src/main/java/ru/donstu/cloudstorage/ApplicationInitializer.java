@@ -37,5 +37,6 @@ public class ApplicationInitializer implements WebApplicationInitializer {
         ServletRegistration.Dynamic servletRegistration = servletContext.addServlet(DISPATCHER, dispatcherServlet);
         servletRegistration.addMapping(SERVLET_MAPPING);
         servletRegistration.setLoadOnStartup(1);
+        servletRegistration.setAsyncSupported(true);
     }
 }
@@ -0,0 +1,82 @@
+package ru.donstu.cloudstorage.config;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Конфигурация пулов потоков
+ *
+ * @author v.solomasov
+ */
+@Configuration
+@PropertySource(RESOURCES_PROPERTY)
+public class ExecutorConfiguration {
+
+    @Autowired
+    private Environment environment;
+
+    /**
+     * Ограниченный пул шифрования сегментов. При заполненной очереди задача выполняется
+     * в вызывающем потоке, что притормаживает источник данных вместо роста очереди
+     *
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService cryptoExecutor() {
+        int poolSize = Integer.valueOf(environment.getRequiredProperty("crypto.pool.size"));
+        int queueSize = Integer.valueOf(environment.getRequiredProperty("crypto.pool.queue"));
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory("crypto-"), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Пул обработки принятых порций тел запросов (разбор, шифрование, запись в хранилище) и чтения
+     * источников ответов. Ожидания клиента в нем нет: задачи работают только с уже принятыми данными
+     * и заканчиваются, когда данные кончились или очередь ответа заполнена
+     *
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService transferExecutor() {
+        int poolSize = Integer.valueOf(environment.getRequiredProperty("transfer.pool.size"));
+        int queueSize = Integer.valueOf(environment.getRequiredProperty("transfer.pool.queue"));
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory("transfer-"), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Пул завершения файлов пакетной загрузки (последние сегменты, подтверждение записи в хранилище),
+     * чтобы прием следующего файла пакета не ждал предыдущий. При заполненной очереди файл
+     * завершается в потоке разбора запроса
+     *
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService uploadExecutor() {
+        int poolSize = Integer.valueOf(environment.getRequiredProperty("upload.batch.pool.size"));
+        int queueSize = Integer.valueOf(environment.getRequiredProperty("upload.batch.pool.queue"));
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory("upload-"), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    private ThreadFactory threadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
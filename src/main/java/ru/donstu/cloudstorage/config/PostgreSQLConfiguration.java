@@ -1,10 +1,12 @@
 package ru.donstu.cloudstorage.config;
 
 import org.apache.commons.dbcp2.BasicDataSource;
+import org.flywaydb.core.Flyway;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.env.Environment;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
@@ -13,6 +15,7 @@ import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
+import ru.donstu.cloudstorage.config.migration.SchemaMigrations;
 import ru.donstu.cloudstorage.config.util.HibernateUtil;
 
 import javax.sql.DataSource;
@@ -37,7 +40,26 @@ public class PostgreSQLConfiguration {
     @Autowired
     private HibernateUtil hibernateUtil;
 
+    /**
+     * Миграции схемы до создания EntityManager: при включенном флаге новые миграции применяются
+     * при старте, иначе только проверяются, и запуск со схемой не той версии завершается ошибкой.
+     * Применить миграции отдельно можно через {@link ru.donstu.cloudstorage.config.migration.SchemaMigrationCli}
+     *
+     * @return
+     */
     @Bean
+    public Flyway flyway() {
+        Flyway flyway = SchemaMigrations.create(dataSource());
+        if (Boolean.valueOf(environment.getRequiredProperty("flyway.migrate_on_startup"))) {
+            flyway.migrate();
+        } else {
+            flyway.validate();
+        }
+        return flyway;
+    }
+
+    @Bean
+    @DependsOn("flyway")
     public LocalContainerEntityManagerFactoryBean entityManagerFactory(){
         LocalContainerEntityManagerFactoryBean entityManagerFactory = new LocalContainerEntityManagerFactoryBean();
         entityManagerFactory.setDataSource(dataSource());
@@ -0,0 +1,14 @@
+package ru.donstu.cloudstorage.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Конфигурация фоновых задач по расписанию
+ *
+ * @author v.solomasov
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfiguration {
+}
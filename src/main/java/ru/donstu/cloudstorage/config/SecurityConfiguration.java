@@ -1,7 +1,9 @@
 package ru.donstu.cloudstorage.config;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.builders.WebSecurity;
@@ -10,8 +12,11 @@ import org.springframework.security.config.annotation.web.configuration.WebSecur
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.crypto.password.StandardPasswordEncoder;
+import org.springframework.security.web.context.SecurityContextPersistenceFilter;
 import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 import ru.donstu.cloudstorage.domain.account.enums.Role;
+import ru.donstu.cloudstorage.service.security.SecurityService;
+import ru.donstu.cloudstorage.web.login.CredentialVersionFilter;
 
 /**
  * Конфигурация Security
@@ -22,6 +27,14 @@ import ru.donstu.cloudstorage.domain.account.enums.Role;
 @EnableWebSecurity
 public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
 
+    /**
+     * Сервис безопасности сам зависит от менеджера аутентификации этой конфигурации,
+     * поэтому внедряется лениво
+     */
+    @Autowired
+    @Lazy
+    private SecurityService securityService;
+
     @Bean
     @Override
     public AuthenticationManager authenticationManagerBean() throws Exception {
@@ -39,9 +52,12 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
         //TODO enable CSRF (problem upload file)
         http.csrf().disable();
 
+        http.addFilterAfter(new CredentialVersionFilter(securityService), SecurityContextPersistenceFilter.class);
+
         http
                 .authorizeRequests()
                     .antMatchers("/registration", "/", "/info/**").permitAll()
+                    .antMatchers("/admin/**").hasRole(Role.ROLE_ADMIN.getName())
                     .antMatchers("/**").hasRole(Role.ROLE_USER.getName())
                     .and()
                 .formLogin()
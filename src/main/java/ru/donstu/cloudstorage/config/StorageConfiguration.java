@@ -0,0 +1,81 @@
+package ru.donstu.cloudstorage.config;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import ru.donstu.cloudstorage.service.blob.BlobStore;
+import ru.donstu.cloudstorage.service.blob.local.LocalBlobStore;
+import ru.donstu.cloudstorage.service.blob.local.ShardedLocalBlobStore;
+import ru.donstu.cloudstorage.service.blob.memory.MemoryBlobStore;
+import ru.donstu.cloudstorage.service.blob.s3.S3BlobStore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Конфигурация хранилища содержимого файлов: local - каталог на диске,
+ * sharded - несколько томов с разбиением каталогов по хешу, memory - память процесса,
+ * s3 - S3-совместимый сервис
+ *
+ * @author v.solomasov
+ */
+@Configuration
+@PropertySource(RESOURCES_PROPERTY)
+public class StorageConfiguration {
+
+    private static final String BACKEND_LOCAL = "local";
+
+    private static final String BACKEND_SHARDED = "sharded";
+
+    private static final String BACKEND_MEMORY = "memory";
+
+    private static final String BACKEND_S3 = "s3";
+
+    private static final String VOLUME_SEPARATOR = ",";
+
+    @Autowired
+    private Environment environment;
+
+    @Bean(destroyMethod = "close")
+    public BlobStore blobStore() throws IOException {
+        String backend = environment.getRequiredProperty("storage.backend");
+        switch (backend) {
+            case BACKEND_LOCAL:
+                return new LocalBlobStore(Paths.get(environment.getRequiredProperty("storage.local.path")),
+                        Integer.valueOf(environment.getRequiredProperty("storage.local.buffer_size")));
+            case BACKEND_SHARDED:
+                List<Path> volumes = Arrays.stream(environment.getRequiredProperty("storage.sharded.volumes").split(VOLUME_SEPARATOR))
+                        .map(String::trim)
+                        .filter(volume -> !volume.isEmpty())
+                        .map(Paths::get)
+                        .collect(Collectors.toList());
+                String legacyPath = environment.getProperty("storage.sharded.legacy_path", "");
+                return new ShardedLocalBlobStore(volumes, legacyPath.isEmpty() ? null : Paths.get(legacyPath),
+                        Integer.valueOf(environment.getRequiredProperty("storage.local.buffer_size")),
+                        Integer.valueOf(environment.getRequiredProperty("storage.sharded.candidates")),
+                        Long.valueOf(environment.getRequiredProperty("storage.sharded.min_free_space")));
+            case BACKEND_MEMORY:
+                return new MemoryBlobStore();
+            case BACKEND_S3:
+                return new S3BlobStore(environment.getRequiredProperty("storage.s3.endpoint"),
+                        environment.getRequiredProperty("storage.s3.region"),
+                        environment.getRequiredProperty("storage.s3.bucket"),
+                        environment.getRequiredProperty("storage.s3.access_key"),
+                        environment.getRequiredProperty("storage.s3.secret_key"),
+                        Integer.valueOf(environment.getRequiredProperty("storage.s3.part_size")),
+                        Integer.valueOf(environment.getRequiredProperty("storage.s3.concurrency")),
+                        Integer.valueOf(environment.getRequiredProperty("storage.s3.buffer_size")),
+                        Integer.valueOf(environment.getRequiredProperty("storage.s3.part_buffers")));
+            default:
+                throw new IllegalStateException(String.format("Неизвестное хранилище %s", backend));
+        }
+    }
+}
@@ -40,4 +40,12 @@ public class Constants {
     public static final String IMG_HANDLER = IMG_LOCATION + "**";
 
     public static final Long MAX_UPLOAD_SIZE = 50000000L;
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Шаг последовательностей идентификаторов: одно обращение к последовательности
+     * выделяет диапазон значений (оптимизатор pooled-lo), шаг в базе должен совпадать
+     */
+    public static final int ID_ALLOCATION_SIZE = 50;
 }
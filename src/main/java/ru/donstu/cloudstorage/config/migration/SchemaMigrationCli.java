@@ -0,0 +1,60 @@
+package ru.donstu.cloudstorage.config.migration;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.MigrationInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Запуск миграций схемы без старта приложения, с настройками подключения из application.properties:
+ * migrate - применить новые миграции, info - список миграций и их состояние, validate - сверить
+ * примененные миграции с файлами, repair - исправить таблицу истории после сбоя
+ *
+ * @author v.solomasov
+ */
+public class SchemaMigrationCli {
+
+    private static final String PROPERTIES = "/application.properties";
+
+    public static void main(String[] args) throws IOException {
+        String command = args.length == 0 ? "migrate" : args[0];
+        Properties properties = new Properties();
+        try (InputStream inputStream = SchemaMigrationCli.class.getResourceAsStream(PROPERTIES)) {
+            properties.load(inputStream);
+        }
+        try (BasicDataSource dataSource = new BasicDataSource()) {
+            dataSource.setDriverClassName(properties.getProperty("datasource.postgresql.driver"));
+            dataSource.setUrl(properties.getProperty("datasource.postgresql.url"));
+            dataSource.setUsername(properties.getProperty("datasource.postgresql.username"));
+            dataSource.setPassword(properties.getProperty("datasource.postgresql.password"));
+            Flyway flyway = SchemaMigrations.create(dataSource);
+            switch (command) {
+                case "migrate":
+                    System.out.println(String.format("Применено миграций: %d", flyway.migrate()));
+                    break;
+                case "validate":
+                    flyway.validate();
+                    System.out.println("Примененные миграции совпадают с файлами");
+                    break;
+                case "repair":
+                    flyway.repair();
+                    System.out.println("Таблица истории миграций исправлена");
+                    break;
+                case "info":
+                    for (MigrationInfo info : flyway.info().all()) {
+                        System.out.println(String.format("%-6s %-40s %s", info.getVersion(), info.getDescription(), info.getState()));
+                    }
+                    break;
+                default:
+                    System.err.println(String.format("Неизвестная команда %s, допустимы: migrate, info, validate, repair", command));
+                    System.exit(1);
+            }
+        } catch (Exception e) {
+            System.err.println(String.format("Ошибка миграции схемы: %s", e.getMessage()));
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ru.donstu.cloudstorage.config.migration;
+
+import org.flywaydb.core.Flyway;
+
+import javax.sql.DataSource;
+
+/**
+ * Версионные миграции схемы (Flyway, classpath:db/migration).
+ * База без таблицы истории миграций, но с таблицами, созданными ранее через hbm2ddl,
+ * принимается за версию 1 - исходную схему (V1 совпадает с ней), после чего применяются
+ * все следующие миграции: V1_x добавляют столбцы и таблицы, появившиеся до V2
+ *
+ * @author v.solomasov
+ */
+public final class SchemaMigrations {
+
+    public static final String LOCATION = "classpath:db/migration";
+
+    private static final String BASELINE_VERSION = "1";
+
+    private SchemaMigrations() {
+    }
+
+    public static Flyway create(DataSource dataSource) {
+        Flyway flyway = new Flyway();
+        flyway.setDataSource(dataSource);
+        flyway.setLocations(LOCATION);
+        flyway.setBaselineOnMigrate(true);
+        flyway.setBaselineVersionAsString(BASELINE_VERSION);
+        return flyway;
+    }
+}
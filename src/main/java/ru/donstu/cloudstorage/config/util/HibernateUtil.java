@@ -27,6 +27,40 @@ public class HibernateUtil {
         properties.put("hibernate.format_sql", environment.getRequiredProperty("hibernate.format_sql"));
         properties.put("hibernate.show_sql", environment.getRequiredProperty("hibernate.show_sql"));
         properties.put("hibernate.hbm2ddl.auto", environment.getRequiredProperty("hibernate.hbm2ddl.auto"));
+        addBatchProperties(properties);
+        addCacheProperties(properties);
         return properties;
     }
+
+    /**
+     * Пакетная запись: вставки, обновления и удаления уходят в базу пачками, идентификаторы
+     * выделяются диапазонами, поэтому вставка не требует отдельного обращения к последовательности
+     *
+     * @param properties
+     */
+    private void addBatchProperties(Properties properties) {
+        properties.put("hibernate.id.optimizer.pooled.preferred", "pooled-lo");
+        properties.put("hibernate.jdbc.batch_size", environment.getRequiredProperty("hibernate.jdbc.batch_size"));
+        properties.put("hibernate.order_inserts", "true");
+        properties.put("hibernate.order_updates", "true");
+        properties.put("hibernate.jdbc.batch_versioned_data", "true");
+    }
+
+    /**
+     * Кэш второго уровня и кэш запросов. Кэшируются только сущности с {@link javax.persistence.Cacheable},
+     * при выключенном кэше аннотации и подсказки запросов игнорируются
+     *
+     * @param properties
+     */
+    private void addCacheProperties(Properties properties) {
+        boolean enabled = Boolean.valueOf(environment.getRequiredProperty("hibernate.cache.enabled"));
+        properties.put("hibernate.cache.use_second_level_cache", String.valueOf(enabled));
+        properties.put("hibernate.cache.use_query_cache", String.valueOf(enabled));
+        properties.put("hibernate.generate_statistics", String.valueOf(enabled));
+        if (enabled) {
+            properties.put("javax.persistence.sharedCache.mode", "ENABLE_SELECTIVE");
+            properties.put("hibernate.cache.region.factory_class", "org.hibernate.cache.ehcache.SingletonEhCacheRegionFactory");
+            properties.put("net.sf.ehcache.configurationResourceName", environment.getRequiredProperty("hibernate.cache.config"));
+        }
+    }
 }
@@ -1,14 +1,35 @@
 package ru.donstu.cloudstorage.domain.account;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import ru.donstu.cloudstorage.domain.account.entity.Account;
 
+import javax.persistence.LockModeType;
+import java.util.List;
+
 /**
  * @author v.solomasov
  */
-public interface AccountRepository extends JpaRepository<Account, Long> {
+public interface AccountRepository extends JpaRepository<Account, Long>, AccountRepositoryCustom {
 
     Account findByName(String name);
 
     Account findByEmail(String email);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select a from Account a where a.id = :id")
+    Account findForUpdate(@Param("id") Long id);
+
+    @Lock(LockModeType.PESSIMISTIC_READ)
+    @Query("select a from Account a where a.id = :id")
+    Account findForShare(@Param("id") Long id);
+
+    @Query("select a from Account a where a.dateDelete is not null order by a.dateDelete")
+    List<Account> findDeleted(Pageable pageable);
+
+    @Query("select count(a) from Account a where a.dateDelete is not null")
+    Long countDeleted();
 }
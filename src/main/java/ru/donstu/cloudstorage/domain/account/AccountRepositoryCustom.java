@@ -0,0 +1,29 @@
+package ru.donstu.cloudstorage.domain.account;
+
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+
+/**
+ * Запросы к аккаунтам, которые не выражаются методами Spring Data
+ *
+ * @author v.solomasov
+ */
+public interface AccountRepositoryCustom {
+
+    /**
+     * Поиск аккаунта по имени через естественный идентификатор:
+     * при включенном кэше второго уровня повторный поиск не обращается к базе
+     *
+     * @param name
+     * @return
+     */
+    Account findByNaturalName(String name);
+
+    /**
+     * Новая версия списка файлов аккаунта. Версия меняется у загруженного под блокировкой аккаунта,
+     * а не групповым запросом: групповое изменение сущности очищает весь регион кэша аккаунтов
+     * и их естественных идентификаторов, а изменение одной сущности обновляет только ее запись
+     *
+     * @param id
+     */
+    void incrementFilesVersion(Long id);
+}
@@ -0,0 +1,37 @@
+package ru.donstu.cloudstorage.domain.account;
+
+import org.hibernate.Session;
+import org.springframework.transaction.annotation.Transactional;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Реализация интерфейса {@link AccountRepositoryCustom}
+ *
+ * @author v.solomasov
+ */
+public class AccountRepositoryImpl implements AccountRepositoryCustom {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public Account findByNaturalName(String name) {
+        if (name == null) {
+            return null;
+        }
+        return entityManager.unwrap(Session.class).bySimpleNaturalId(Account.class).load(name);
+    }
+
+    @Override
+    @Transactional
+    public void incrementFilesVersion(Long id) {
+        Account account = entityManager.find(Account.class, id, LockModeType.PESSIMISTIC_WRITE);
+        if (account != null) {
+            account.setFilesVersion(account.getFilesVersion() == null ? 1L : account.getFilesVersion() + 1);
+        }
+    }
+}
@@ -1,28 +1,38 @@
 package ru.donstu.cloudstorage.domain.account.entity;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
 import ru.donstu.cloudstorage.domain.account.enums.Role;
 
 import javax.persistence.*;
 import java.util.Calendar;
 
+import static ru.donstu.cloudstorage.config.constant.Constants.ID_ALLOCATION_SIZE;
+
 /**
  * Аккаунты
  *
  * @author vyacheslafka
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "account")
+@NaturalIdCache(region = "accountByName")
 @Table(name = "account")
 public class Account {
 
     @Id
     @GeneratedValue(strategy = GenerationType.AUTO, generator = "id_gen")
-    @SequenceGenerator(name = "id_gen", allocationSize = 1, sequenceName = "ACCOUNT_SEQ")
+    @SequenceGenerator(name = "id_gen", allocationSize = ID_ALLOCATION_SIZE, sequenceName = "ACCOUNT_SEQ")
     @Column(name = "id", nullable = false, unique = true)
     private Long id;
 
     @Column(name = "email", nullable = false)
     private String email;
 
+    @NaturalId(mutable = true)
     @Column(name = "name")
     private String name;
 
@@ -37,6 +47,20 @@ public class Account {
     @Temporal(value = TemporalType.TIMESTAMP)
     private Calendar dataCreate;
 
+    @Column(name = "credential_version")
+    private Long credentialVersion = 0L;
+
+    @Column(name = "files_version")
+    private Long filesVersion = 0L;
+
+    /**
+     * Отметка удаления: ставится только групповым запросом, поэтому сохранение
+     * устаревшей копии аккаунта ее не сбросит
+     */
+    @Column(name = "date_delete", insertable = false, updatable = false)
+    @Temporal(value = TemporalType.TIMESTAMP)
+    private Calendar dateDelete;
+
     public Account() {
     }
 
@@ -87,4 +111,28 @@ public class Account {
     public void setDataCreate(Calendar dataCreate) {
         this.dataCreate = dataCreate;
     }
+
+    public Long getCredentialVersion() {
+        return credentialVersion;
+    }
+
+    public void setCredentialVersion(Long credentialVersion) {
+        this.credentialVersion = credentialVersion;
+    }
+
+    public Long getFilesVersion() {
+        return filesVersion;
+    }
+
+    public void setFilesVersion(Long filesVersion) {
+        this.filesVersion = filesVersion;
+    }
+
+    public Calendar getDateDelete() {
+        return dateDelete;
+    }
+
+    public void setDateDelete(Calendar dateDelete) {
+        this.dateDelete = dateDelete;
+    }
 }
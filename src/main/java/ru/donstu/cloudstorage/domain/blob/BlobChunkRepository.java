@@ -0,0 +1,49 @@
+package ru.donstu.cloudstorage.domain.blob;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+import ru.donstu.cloudstorage.domain.blob.entity.BlobChunk;
+
+import javax.persistence.LockModeType;
+import java.util.List;
+
+/**
+ * @author v.solomasov
+ */
+public interface BlobChunkRepository extends JpaRepository<BlobChunk, String> {
+
+    @Modifying
+    @Transactional
+    @Query("update BlobChunk b set b.refCount = b.refCount + :count where b.address = :address")
+    int incrementRefCount(@Param("address") String address, @Param("count") Long count);
+
+    @Modifying
+    @Transactional
+    @Query("update BlobChunk b set b.refCount = b.refCount - :count where b.address = :address")
+    int decrementRefCount(@Param("address") String address, @Param("count") Long count);
+
+    @Modifying
+    @Transactional
+    @Query("update BlobChunk b set b.refCount = b.refCount - "
+            + "(select count(c) from FileChunk c where c.address = b.address and c.userFiles.id in :ids) "
+            + "where b.address in (select c.address from FileChunk c where c.userFiles.id in :ids)")
+    int releaseFilesChunks(@Param("ids") List<Long> ids);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select b from BlobChunk b where b.address = :address")
+    BlobChunk findForUpdate(@Param("address") String address);
+
+    @Query("select b.address from BlobChunk b where b.refCount <= 0")
+    List<String> findUnreferenced(Pageable pageable);
+
+    @Query("select count(b) from BlobChunk b where b.refCount > 0")
+    Long countReferenced();
+
+    @Query("select coalesce(sum(b.plainLength), 0) from BlobChunk b where b.refCount > 0")
+    Long sumReferencedLength();
+}
@@ -0,0 +1,29 @@
+package ru.donstu.cloudstorage.domain.blob;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+import ru.donstu.cloudstorage.domain.blob.entity.FileChunk;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+
+import java.util.List;
+
+/**
+ * @author v.solomasov
+ */
+public interface FileChunkRepository extends JpaRepository<FileChunk, Long> {
+
+    List<FileChunk> findByUserFilesOrderByChunkIndex(UserFiles userFiles);
+
+    @Modifying
+    @Transactional
+    @Query("delete from FileChunk c where c.userFiles = :userFiles")
+    int deleteByUserFiles(@Param("userFiles") UserFiles userFiles);
+
+    @Modifying
+    @Transactional
+    @Query("delete from FileChunk c where c.userFiles.id in :ids")
+    int deleteByUserFilesIds(@Param("ids") List<Long> ids);
+}
@@ -0,0 +1,65 @@
+package ru.donstu.cloudstorage.domain.blob.entity;
+
+import javax.persistence.*;
+
+/**
+ * Сегменты общего хранилища с дедупликацией и счетчиком ссылок на них
+ *
+ * @author v.solomasov
+ */
+@Entity
+@Table(name = "blob_chunk")
+public class BlobChunk {
+
+    @Id
+    @Column(name = "address", nullable = false, unique = true, length = 64)
+    private String address;
+
+    @Column(name = "plain_length", nullable = false)
+    private Integer plainLength;
+
+    @Column(name = "ref_count", nullable = false)
+    private Long refCount;
+
+    /**
+     * Версия нужна, чтобы новая запись всегда вставлялась, а не сливалась с уже существующей
+     */
+    @Version
+    @Column(name = "version")
+    private Long version;
+
+    public BlobChunk() {
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public Integer getPlainLength() {
+        return plainLength;
+    }
+
+    public void setPlainLength(Integer plainLength) {
+        this.plainLength = plainLength;
+    }
+
+    public Long getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(Long refCount) {
+        this.refCount = refCount;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,100 @@
+package ru.donstu.cloudstorage.domain.blob.entity;
+
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+
+import javax.persistence.*;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.ID_ALLOCATION_SIZE;
+
+/**
+ * Ссылки файлов пользователей на сегменты общего хранилища
+ *
+ * @author v.solomasov
+ */
+@Entity
+@Table(name = "file_chunk", uniqueConstraints = @UniqueConstraint(columnNames = {"user_file", "chunk_index"}))
+public class FileChunk {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO, generator = "id_gen")
+    @SequenceGenerator(name = "id_gen", allocationSize = ID_ALLOCATION_SIZE, sequenceName = "FILE_CHUNK_SEQ")
+    @Column(name = "id", nullable = false, unique = true)
+    private Long id;
+
+    @ManyToOne(targetEntity = UserFiles.class, fetch = FetchType.LAZY)
+    @JoinColumn(name = "user_file", nullable = false)
+    private UserFiles userFiles;
+
+    @Column(name = "chunk_index", nullable = false)
+    private Long chunkIndex;
+
+    @Column(name = "address", nullable = false, length = 64)
+    private String address;
+
+    @Column(name = "chunk_key", nullable = false)
+    private byte[] chunkKey;
+
+    @Column(name = "compressed", nullable = false)
+    private Boolean compressed;
+
+    public FileChunk() {
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public UserFiles getUserFiles() {
+        return userFiles;
+    }
+
+    public void setUserFiles(UserFiles userFiles) {
+        this.userFiles = userFiles;
+    }
+
+    public Long getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public void setChunkIndex(Long chunkIndex) {
+        this.chunkIndex = chunkIndex;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    /**
+     * Ключ сегмента, обернутый ключом данных файла
+     *
+     * @return
+     */
+    public byte[] getChunkKey() {
+        return chunkKey;
+    }
+
+    public void setChunkKey(byte[] chunkKey) {
+        this.chunkKey = chunkKey;
+    }
+
+    /**
+     * Сжат ли сегмент перед шифрованием. Сжатый и несжатый сегменты одного содержимого имеют разные адреса
+     *
+     * @return
+     */
+    public Boolean getCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(Boolean compressed) {
+        this.compressed = compressed;
+    }
+}
@@ -1,14 +1,24 @@
 package ru.donstu.cloudstorage.domain.news;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.QueryHints;
 import ru.donstu.cloudstorage.domain.news.entity.News;
 
+import javax.persistence.QueryHint;
 import java.util.List;
 
+import static org.hibernate.annotations.QueryHints.CACHEABLE;
+import static org.hibernate.annotations.QueryHints.CACHE_REGION;
+
 /**
  * @author v.solomasov
  */
 public interface NewsRepository extends JpaRepository<News, Long> {
 
+    @Override
+    @QueryHints({@QueryHint(name = CACHEABLE, value = "true"), @QueryHint(name = CACHE_REGION, value = "newsQueries")})
+    List<News> findAll();
+
+    @QueryHints({@QueryHint(name = CACHEABLE, value = "true"), @QueryHint(name = CACHE_REGION, value = "newsQueries")})
     News findById(Long id);
 }
@@ -1,21 +1,27 @@
 package ru.donstu.cloudstorage.domain.news.entity;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.Type;
 
 import javax.persistence.*;
 
+import static ru.donstu.cloudstorage.config.constant.Constants.ID_ALLOCATION_SIZE;
+
 /**
  * Новости для страницы инфо
  *
  * @author v.solomasov
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "news")
 @Table(name = "news")
 public class News {
 
     @Id
     @GeneratedValue(strategy = GenerationType.AUTO, generator = "id_gen")
-    @SequenceGenerator(name = "id_gen", allocationSize = 1, sequenceName = "NEWS_SEQ")
+    @SequenceGenerator(name = "id_gen", allocationSize = ID_ALLOCATION_SIZE, sequenceName = "NEWS_SEQ")
     @Column(name = "id", nullable = false, unique = true)
     private Long id;
 
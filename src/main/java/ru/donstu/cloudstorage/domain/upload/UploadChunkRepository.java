@@ -0,0 +1,35 @@
+package ru.donstu.cloudstorage.domain.upload;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.upload.entity.UploadChunk;
+import ru.donstu.cloudstorage.domain.upload.entity.UploadSession;
+
+import java.util.List;
+
+/**
+ * @author v.solomasov
+ */
+public interface UploadChunkRepository extends JpaRepository<UploadChunk, Long> {
+
+    List<UploadChunk> findBySessionOrderByChunkIndex(UploadSession session);
+
+    UploadChunk findBySessionAndChunkIndex(UploadSession session, Integer chunkIndex);
+
+    @Query("select c.chunkIndex from UploadChunk c where c.session = :session order by c.chunkIndex")
+    List<Integer> findChunkIndexesBySession(@Param("session") UploadSession session);
+
+    @Modifying
+    @Transactional
+    @Query("delete from UploadChunk c where c.session = :session")
+    int deleteBySession(@Param("session") UploadSession session);
+
+    @Modifying
+    @Transactional
+    @Query("delete from UploadChunk c where c.session in (select s from UploadSession s where s.account = :account)")
+    int deleteByAccount(@Param("account") Account account);
+}
@@ -0,0 +1,30 @@
+package ru.donstu.cloudstorage.domain.upload;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.upload.entity.UploadSession;
+
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * @author v.solomasov
+ */
+public interface UploadSessionRepository extends JpaRepository<UploadSession, String> {
+
+    UploadSession findByIdAndAccount(String id, Account account);
+
+    List<UploadSession> findByAccount(Account account);
+
+    @Query("select s from UploadSession s where s.dateCreate < :date")
+    List<UploadSession> findCreatedBefore(@Param("date") Calendar date);
+
+    @Modifying
+    @Transactional
+    @Query("delete from UploadSession s where s.account = :account")
+    int deleteByAccount(@Param("account") Account account);
+}
@@ -0,0 +1,71 @@
+package ru.donstu.cloudstorage.domain.upload.entity;
+
+import javax.persistence.*;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.ID_ALLOCATION_SIZE;
+
+/**
+ * Принятые части сессии загрузки
+ *
+ * @author v.solomasov
+ */
+@Entity
+@Table(name = "upload_chunk", uniqueConstraints = @UniqueConstraint(columnNames = {"upload_session", "chunk_index"}))
+public class UploadChunk {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO, generator = "id_gen")
+    @SequenceGenerator(name = "id_gen", allocationSize = ID_ALLOCATION_SIZE, sequenceName = "UPLOAD_CHUNK_SEQ")
+    @Column(name = "id", nullable = false, unique = true)
+    private Long id;
+
+    @ManyToOne(targetEntity = UploadSession.class, fetch = FetchType.LAZY)
+    @JoinColumn(name = "upload_session", nullable = false)
+    private UploadSession session;
+
+    @Column(name = "chunk_index", nullable = false)
+    private Integer chunkIndex;
+
+    @Column(name = "segment_digests", nullable = false)
+    private byte[] segmentDigests;
+
+    public UploadChunk() {
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public UploadSession getSession() {
+        return session;
+    }
+
+    public void setSession(UploadSession session) {
+        this.session = session;
+    }
+
+    public Integer getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public void setChunkIndex(Integer chunkIndex) {
+        this.chunkIndex = chunkIndex;
+    }
+
+    /**
+     * Дайджесты SHA-256 сегментов части подряд, из них при завершении собирается дайджест файла
+     *
+     * @return
+     */
+    public byte[] getSegmentDigests() {
+        return segmentDigests;
+    }
+
+    public void setSegmentDigests(byte[] segmentDigests) {
+        this.segmentDigests = segmentDigests;
+    }
+}
@@ -0,0 +1,139 @@
+package ru.donstu.cloudstorage.domain.upload.entity;
+
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+
+import javax.persistence.*;
+import java.util.Calendar;
+
+/**
+ * Сессии возобновляемой загрузки файлов
+ *
+ * @author v.solomasov
+ */
+@Entity
+@Table(name = "upload_session")
+public class UploadSession {
+
+    @Id
+    @Column(name = "id", nullable = false, unique = true, length = 36)
+    private String id;
+
+    @ManyToOne(targetEntity = Account.class, fetch = FetchType.LAZY)
+    @JoinColumn(name = "account")
+    private Account account;
+
+    @Column(name = "file_name", nullable = false)
+    private String fileName;
+
+    @Column(name = "file_length", nullable = false)
+    private Long fileLength;
+
+    @Column(name = "chunk_size", nullable = false)
+    private Integer chunkSize;
+
+    @Column(name = "file_path", nullable = false)
+    private String filePath;
+
+    @Column(name = "nonce", nullable = false)
+    private byte[] nonce;
+
+    @Column(name = "data_key", nullable = false)
+    private byte[] dataKey;
+
+    @Column(name = "compression")
+    @Enumerated(EnumType.STRING)
+    private CompressionCodec compression;
+
+    @Column(name = "date_create", nullable = false)
+    @Temporal(value = TemporalType.TIMESTAMP)
+    private Calendar dateCreate;
+
+    public UploadSession() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public void setAccount(Account account) {
+        this.account = account;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public Long getFileLength() {
+        return fileLength;
+    }
+
+    public void setFileLength(Long fileLength) {
+        this.fileLength = fileLength;
+    }
+
+    public Integer getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(Integer chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+
+    public byte[] getNonce() {
+        return nonce;
+    }
+
+    public void setNonce(byte[] nonce) {
+        this.nonce = nonce;
+    }
+
+    public byte[] getDataKey() {
+        return dataKey;
+    }
+
+    public void setDataKey(byte[] dataKey) {
+        this.dataKey = dataKey;
+    }
+
+    /**
+     * Кодек сжатия сегментов, выбранный по имени и длине файла, null - сегменты не сжимаются
+     *
+     * @return
+     */
+    public CompressionCodec getCompression() {
+        return compression;
+    }
+
+    public void setCompression(CompressionCodec compression) {
+        this.compression = compression;
+    }
+
+    public Calendar getDateCreate() {
+        return dateCreate;
+    }
+
+    public void setDateCreate(Calendar dateCreate) {
+        this.dateCreate = dateCreate;
+    }
+}
@@ -0,0 +1,65 @@
+package ru.donstu.cloudstorage.domain.upload.entity;
+
+import java.util.List;
+
+/**
+ * Состояние сессии загрузки для клиента: какие части уже приняты.
+ * Часть i занимает диапазон [i * chunkSize, min((i + 1) * chunkSize, fileLength))
+ *
+ * @author v.solomasov
+ */
+public class UploadStatus {
+
+    private final String id;
+
+    private final String fileName;
+
+    private final long fileLength;
+
+    private final int chunkSize;
+
+    private final int chunkCount;
+
+    private final List<Integer> receivedChunks;
+
+    private final long receivedLength;
+
+    public UploadStatus(String id, String fileName, long fileLength, int chunkSize, int chunkCount,
+                        List<Integer> receivedChunks, long receivedLength) {
+        this.id = id;
+        this.fileName = fileName;
+        this.fileLength = fileLength;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.receivedChunks = receivedChunks;
+        this.receivedLength = receivedLength;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public List<Integer> getReceivedChunks() {
+        return receivedChunks;
+    }
+
+    public long getReceivedLength() {
+        return receivedLength;
+    }
+}
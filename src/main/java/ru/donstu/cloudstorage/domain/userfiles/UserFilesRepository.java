@@ -1,20 +1,81 @@
 package ru.donstu.cloudstorage.domain.userfiles;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 import ru.donstu.cloudstorage.domain.account.entity.Account;
 import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.domain.userfiles.enums.StorageFormat;
 
+import javax.persistence.LockModeType;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.List;
 
 /**
  * @author v.solomasov
  */
-public interface UserFilesRepository extends JpaRepository<UserFiles, Long> {
+public interface UserFilesRepository extends JpaRepository<UserFiles, Long>, UserFilesRepositoryCustom {
 
     List<UserFiles> findByAccount(Account account);
 
     UserFiles findByAccountAndFileName(Account account, String fileName);
 
     UserFiles findByIdAndAccount(Long id, Account account);
+
+    UserFiles findByIdAndAccountAndDateTrashIsNull(Long id, Account account);
+
+    List<UserFiles> findByIdInAndAccountAndDateTrashIsNullOrderByFileName(Collection<Long> ids, Account account);
+
+    @Modifying
+    @Transactional
+    @Query("update UserFiles f set f.dateTrash = null where f.id = :id and f.account = :account and f.dateTrash >= :date")
+    int restoreTrashedAfter(@Param("id") Long id, @Param("account") Account account, @Param("date") Calendar date);
+
+    @Query("select f from UserFiles f where f.dateTrash < :date order by f.filePath, f.id")
+    List<UserFiles> findTrashedBefore(@Param("date") Calendar date, Pageable pageable);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select f from UserFiles f where f.id in :ids and f.dateTrash < :date")
+    List<UserFiles> findTrashedBeforeForUpdate(@Param("ids") List<Long> ids, @Param("date") Calendar date);
+
+    @Query("select count(f) from UserFiles f where f.dateTrash is not null")
+    Long countTrashed();
+
+    @Query("select f from UserFiles f where f.account = :account order by f.id")
+    List<UserFiles> findByAccountOrderById(@Param("account") Account account, Pageable pageable);
+
+    @Modifying
+    @Transactional
+    @Query("delete from UserFiles f where f.id in :ids")
+    int deleteByIds(@Param("ids") List<Long> ids);
+
+    @Query("select f from UserFiles f join fetch f.account where f.id = :id")
+    UserFiles findWithAccountById(@Param("id") Long id);
+
+    @Query("select f.id from UserFiles f where f.storageFormat is null or f.storageFormat = :format order by f.id")
+    List<Long> findIdsByStorageFormat(@Param("format") StorageFormat format);
+
+    @Query("select coalesce(sum(f.fileLength), 0) from UserFiles f where f.storageFormat = :format")
+    Long sumFileLengthByStorageFormat(@Param("format") StorageFormat format);
+
+    @Modifying
+    @Transactional
+    @Query("update UserFiles f set f.storageKey = :newKey, f.storageFormat = :format, f.contentDigest = :digest "
+            + "where f.id = :id and f.storageKey = :oldKey")
+    int updateStorage(@Param("id") Long id, @Param("oldKey") String oldKey, @Param("newKey") String newKey,
+                      @Param("format") StorageFormat format, @Param("digest") String digest);
+
+    @Query("select f.fileName, f.fileLength from UserFiles f where f.account = :account")
+    List<Object[]> findNamesAndLengths(@Param("account") Account account);
+
+    @Query("select f.fileName from UserFiles f where f.account = :account and f.fileName in :fileNames")
+    List<String> findExistingFileNames(@Param("account") Account account, @Param("fileNames") Collection<String> fileNames);
+
+    @Query("select distinct f.storageKey from UserFiles f where f.storageKey in :keys")
+    List<String> findReferencedStorageKeys(@Param("keys") Collection<String> keys);
 }
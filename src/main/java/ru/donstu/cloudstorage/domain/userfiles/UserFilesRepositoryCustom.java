@@ -0,0 +1,41 @@
+package ru.donstu.cloudstorage.domain.userfiles;
+
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFileItem;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.domain.userfiles.enums.FileSort;
+
+import java.util.List;
+
+/**
+ * Запросы к файлам пользователей, которые не выражаются методами Spring Data
+ *
+ * @author v.solomasov
+ */
+public interface UserFilesRepositoryCustom {
+
+    /**
+     * Страница списка файлов аккаунта с продолжением после заданного файла (keyset).
+     * Смещение не используется, поэтому стоимость запроса не зависит от номера страницы
+     *
+     * @param account
+     * @param trashed   true - файлы в корзине, false - остальные
+     * @param sort
+     * @param prefix    начало имени файла, null - без фильтра
+     * @param afterValue значение поля сортировки последнего файла предыдущей страницы, null - первая страница
+     * @param afterId   идентификатор последнего файла предыдущей страницы
+     * @param limit
+     * @return
+     */
+    List<UserFileItem> findItemsPage(Account account, boolean trashed, FileSort sort, String prefix, Object afterValue, Long afterId, int limit);
+
+    /**
+     * Файлы папки со всеми вложенными папками, кроме файлов в корзине, по имени
+     *
+     * @param account
+     * @param folder имя папки без завершающего "/"
+     * @param limit
+     * @return
+     */
+    List<UserFiles> findFolderFiles(Account account, String folder, int limit);
+}
@@ -0,0 +1,84 @@
+package ru.donstu.cloudstorage.domain.userfiles;
+
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFileItem;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.domain.userfiles.enums.FileSort;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import java.util.List;
+
+import static org.hibernate.annotations.QueryHints.CACHEABLE;
+import static org.hibernate.annotations.QueryHints.CACHE_REGION;
+
+/**
+ * Реализация интерфейса {@link UserFilesRepositoryCustom}.
+ * Условие продолжения (value, id) > (afterValue, afterId) раскрыто в сравнения по полям,
+ * порядок совпадает с индексами (account, date_upload, id) и (account, file_name, id).
+ * Страницы попадают в кэш запросов и сбрасываются Hibernate при любой записи в user_files
+ *
+ * @author v.solomasov
+ */
+public class UserFilesRepositoryImpl implements UserFilesRepositoryCustom {
+
+    private static final char ESCAPE = '\\';
+
+    private static final String PAGES_REGION = "userFilesPages";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<UserFileItem> findItemsPage(Account account, boolean trashed, FileSort sort, String prefix, Object afterValue, Long afterId, int limit) {
+        String property = "f." + sort.getProperty();
+        String compare = sort.isDescending() ? " < " : " > ";
+        String direction = sort.isDescending() ? " desc" : " asc";
+        StringBuilder jpql = new StringBuilder("select new ru.donstu.cloudstorage.domain.userfiles.entity.UserFileItem(")
+                .append("f.id, f.fileName, f.fileLength, f.fileLengthShow, f.dateUpload) ")
+                .append("from UserFiles f where f.account = :account and f.dateTrash is ").append(trashed ? "not null" : "null");
+        if (prefix != null) {
+            jpql.append(" and f.fileName like :prefix escape '").append(ESCAPE).append("'");
+        }
+        if (afterValue != null) {
+            jpql.append(" and (").append(property).append(compare).append(":afterValue")
+                    .append(" or (").append(property).append(" = :afterValue and f.id").append(compare).append(":afterId))");
+        }
+        jpql.append(" order by ").append(property).append(direction).append(", f.id").append(direction);
+        TypedQuery<UserFileItem> query = entityManager.createQuery(jpql.toString(), UserFileItem.class)
+                .setParameter("account", account)
+                .setMaxResults(limit)
+                .setHint(CACHEABLE, true)
+                .setHint(CACHE_REGION, PAGES_REGION);
+        if (prefix != null) {
+            query.setParameter("prefix", escapeLike(prefix) + "%");
+        }
+        if (afterValue != null) {
+            query.setParameter("afterValue", afterValue);
+            query.setParameter("afterId", afterId);
+        }
+        return query.getResultList();
+    }
+
+    @Override
+    public List<UserFiles> findFolderFiles(Account account, String folder, int limit) {
+        return entityManager.createQuery("select f from UserFiles f where f.account = :account and f.dateTrash is null "
+                + "and f.fileName like :prefix escape '" + ESCAPE + "' order by f.fileName", UserFiles.class)
+                .setParameter("account", account)
+                .setParameter("prefix", escapeLike(folder + "/") + "%")
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    private String escapeLike(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == '%' || c == '_' || c == ESCAPE) {
+                escaped.append(ESCAPE);
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package ru.donstu.cloudstorage.domain.userfiles.entity;
+
+import ru.donstu.cloudstorage.domain.userfiles.enums.BatchItemStatus;
+
+/**
+ * Результат загрузки файла из пакета для клиента, в порядке файлов в запросе
+ *
+ * @author v.solomasov
+ */
+public class BatchUploadItem {
+
+    private final String fileName;
+
+    private final BatchItemStatus status;
+
+    private final Long id;
+
+    private final Long fileLength;
+
+    public BatchUploadItem(String fileName, BatchItemStatus status, Long id, Long fileLength) {
+        this.fileName = fileName;
+        this.status = status;
+        this.id = id;
+        this.fileLength = fileLength;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public BatchItemStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Идентификатор сохраненного файла, для остальных статусов null
+     *
+     * @return
+     */
+    public Long getId() {
+        return id;
+    }
+
+    public Long getFileLength() {
+        return fileLength;
+    }
+}
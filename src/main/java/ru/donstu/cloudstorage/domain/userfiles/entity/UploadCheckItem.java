@@ -0,0 +1,35 @@
+package ru.donstu.cloudstorage.domain.userfiles.entity;
+
+import ru.donstu.cloudstorage.domain.userfiles.enums.UploadCheckStatus;
+
+/**
+ * Результат предварительной проверки загрузки файла для клиента
+ *
+ * @author v.solomasov
+ */
+public class UploadCheckItem {
+
+    private final String fileName;
+
+    private final long fileLength;
+
+    private final UploadCheckStatus status;
+
+    public UploadCheckItem(String fileName, long fileLength, UploadCheckStatus status) {
+        this.fileName = fileName;
+        this.fileLength = fileLength;
+        this.status = status;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public UploadCheckStatus getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,50 @@
+package ru.donstu.cloudstorage.domain.userfiles.entity;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+
+/**
+ * Строка списка файлов: только поля, нужные для отображения, без ключей и путей
+ *
+ * @author v.solomasov
+ */
+public class UserFileItem {
+
+    private final Long id;
+
+    private final String fileName;
+
+    private final Long fileLength;
+
+    private final BigDecimal fileLengthShow;
+
+    private final Calendar dateUpload;
+
+    public UserFileItem(Long id, String fileName, Long fileLength, BigDecimal fileLengthShow, Calendar dateUpload) {
+        this.id = id;
+        this.fileName = fileName;
+        this.fileLength = fileLength;
+        this.fileLengthShow = fileLengthShow;
+        this.dateUpload = dateUpload;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public Long getFileLength() {
+        return fileLength;
+    }
+
+    public BigDecimal getFileLengthShow() {
+        return fileLengthShow;
+    }
+
+    public Calendar getDateUpload() {
+        return dateUpload;
+    }
+}
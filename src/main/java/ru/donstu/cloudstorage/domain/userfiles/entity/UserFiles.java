@@ -1,23 +1,35 @@
 package ru.donstu.cloudstorage.domain.userfiles.entity;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+import ru.donstu.cloudstorage.domain.userfiles.enums.StorageFormat;
 
 import javax.persistence.*;
 import java.math.BigDecimal;
 import java.util.Calendar;
 
+import static ru.donstu.cloudstorage.config.constant.Constants.ID_ALLOCATION_SIZE;
+
 /**
  * Файлы пользователей
  *
  * @author v.solomasov
  */
 @Entity
-@Table(name = "user_files")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "userFiles")
+@Table(name = "user_files", indexes = {
+        @Index(name = "user_files_account_date_idx", columnList = "account, date_upload, id"),
+        @Index(name = "user_files_account_name_idx", columnList = "account, file_name, id"),
+        @Index(name = "user_files_account_name_key", columnList = "account, file_name", unique = true)
+})
 public class UserFiles {
 
     @Id
     @GeneratedValue(strategy = GenerationType.AUTO, generator = "id_gen")
-    @SequenceGenerator(name = "id_gen", allocationSize = 1, sequenceName = "FILES_SEQ")
+    @SequenceGenerator(name = "id_gen", allocationSize = ID_ALLOCATION_SIZE, sequenceName = "FILES_SEQ")
     @Column(name = "id", nullable = false, unique = true)
     private Long id;
 
@@ -37,10 +49,31 @@ public class UserFiles {
     @Column(name = "file_path", nullable = false)
     private String filePath;
 
+    @Column(name = "storage_key")
+    private String storageKey;
+
     @Column(name = "date_upload", nullable = false)
     @Temporal(value = TemporalType.TIMESTAMP)
     private Calendar dateUpload;
 
+    @Column(name = "data_key")
+    private byte[] dataKey;
+
+    @Column(name = "storage_format")
+    @Enumerated(EnumType.STRING)
+    private StorageFormat storageFormat;
+
+    @Column(name = "content_digest")
+    private String contentDigest;
+
+    @Column(name = "compression")
+    @Enumerated(EnumType.STRING)
+    private CompressionCodec compression;
+
+    @Column(name = "date_trash")
+    @Temporal(value = TemporalType.TIMESTAMP)
+    private Calendar dateTrash;
+
     public UserFiles() {
     }
 
@@ -92,6 +125,14 @@ public class UserFiles {
         this.filePath = filePath;
     }
 
+    public String getStorageKey() {
+        return storageKey;
+    }
+
+    public void setStorageKey(String storageKey) {
+        this.storageKey = storageKey;
+    }
+
     public Calendar getDateUpload() {
         return dateUpload;
     }
@@ -99,4 +140,50 @@ public class UserFiles {
     public void setDateUpload(Calendar dateUpload) {
         this.dateUpload = dateUpload;
     }
+
+    public byte[] getDataKey() {
+        return dataKey;
+    }
+
+    public void setDataKey(byte[] dataKey) {
+        this.dataKey = dataKey;
+    }
+
+    public StorageFormat getStorageFormat() {
+        return storageFormat;
+    }
+
+    public void setStorageFormat(StorageFormat storageFormat) {
+        this.storageFormat = storageFormat;
+    }
+
+    public String getContentDigest() {
+        return contentDigest;
+    }
+
+    public void setContentDigest(String contentDigest) {
+        this.contentDigest = contentDigest;
+    }
+
+    /**
+     * Кодек, которым сегменты содержимого сжимались перед шифрованием (сегменты без выигрыша
+     * хранятся несжатыми), null - содержимое не сжималось
+     *
+     * @return
+     */
+    public CompressionCodec getCompression() {
+        return compression;
+    }
+
+    public void setCompression(CompressionCodec compression) {
+        this.compression = compression;
+    }
+
+    public Calendar getDateTrash() {
+        return dateTrash;
+    }
+
+    public void setDateTrash(Calendar dateTrash) {
+        this.dateTrash = dateTrash;
+    }
 }
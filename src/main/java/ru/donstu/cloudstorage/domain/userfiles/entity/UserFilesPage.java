@@ -0,0 +1,29 @@
+package ru.donstu.cloudstorage.domain.userfiles.entity;
+
+import java.util.List;
+
+/**
+ * Страница списка файлов. nextCursor передается в следующий запрос,
+ * null - страница последняя
+ *
+ * @author v.solomasov
+ */
+public class UserFilesPage {
+
+    private final List<UserFileItem> items;
+
+    private final String nextCursor;
+
+    public UserFilesPage(List<UserFileItem> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<UserFileItem> getItems() {
+        return items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,44 @@
+package ru.donstu.cloudstorage.domain.userfiles.enums;
+
+/**
+ * Результат загрузки одного файла из пакета
+ *
+ * @author v.solomasov
+ */
+public enum BatchItemStatus {
+
+    /**
+     * Файл сохранен
+     */
+    CREATED,
+
+    /**
+     * Файл с таким именем уже есть у пользователя
+     */
+    EXISTS,
+
+    /**
+     * Имя повторяется в пакете, сохраняется только первый файл
+     */
+    DUPLICATE,
+
+    /**
+     * Недопустимое имя файла
+     */
+    INVALID_NAME,
+
+    /**
+     * Пустой файл
+     */
+    EMPTY,
+
+    /**
+     * Превышено количество файлов в пакете
+     */
+    LIMIT_EXCEEDED,
+
+    /**
+     * Ошибка записи содержимого или строки файла
+     */
+    FAILED
+}
@@ -0,0 +1,32 @@
+package ru.donstu.cloudstorage.domain.userfiles.enums;
+
+import java.util.zip.Deflater;
+
+/**
+ * Кодек сжатия содержимого файла перед шифрованием. Все кодеки - deflate без заголовка,
+ * отличаются уровнем сжатия
+ *
+ * @author v.solomasov
+ */
+public enum CompressionCodec {
+
+    /**
+     * Быстрое сжатие для двоичных данных
+     */
+    DEFLATE_FAST(Deflater.BEST_SPEED),
+
+    /**
+     * Сжатие со стандартным уровнем для текста: текст сжимается заметно лучше ценой большего времени
+     */
+    DEFLATE(Deflater.DEFAULT_COMPRESSION);
+
+    private final int level;
+
+    CompressionCodec(int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+}
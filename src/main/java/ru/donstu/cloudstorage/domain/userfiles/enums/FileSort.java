@@ -0,0 +1,47 @@
+package ru.donstu.cloudstorage.domain.userfiles.enums;
+
+/**
+ * Порядок списка файлов. Каждый порядок дополняется идентификатором файла,
+ * чтобы позиция в списке однозначно задавалась последним показанным файлом
+ *
+ * @author v.solomasov
+ */
+public enum FileSort {
+
+    /**
+     * Сначала новые
+     */
+    DATE_DESC("dateUpload", true),
+
+    /**
+     * Сначала старые
+     */
+    DATE_ASC("dateUpload", false),
+
+    /**
+     * По имени от А до Я
+     */
+    NAME_ASC("fileName", false),
+
+    /**
+     * По имени от Я до А
+     */
+    NAME_DESC("fileName", true);
+
+    private final String property;
+
+    private final boolean descending;
+
+    FileSort(String property, boolean descending) {
+        this.property = property;
+        this.descending = descending;
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+}
@@ -0,0 +1,24 @@
+package ru.donstu.cloudstorage.domain.userfiles.enums;
+
+/**
+ * Формат хранения зашифрованного файла на диске
+ *
+ * @author v.solomasov
+ */
+public enum StorageFormat {
+
+    /**
+     * Весь файл одним потоком AES/ECB/PKCS5Padding
+     */
+    LEGACY,
+
+    /**
+     * Независимые сегменты AES/GCM с завершающим блоком описания
+     */
+    SEGMENTED,
+
+    /**
+     * Сегменты сходящегося шифрования в общем хранилище с дедупликацией, файл - список ссылок на сегменты
+     */
+    DEDUP
+}
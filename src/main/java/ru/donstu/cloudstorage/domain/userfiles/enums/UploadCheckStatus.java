@@ -0,0 +1,39 @@
+package ru.donstu.cloudstorage.domain.userfiles.enums;
+
+/**
+ * Результат предварительной проверки загрузки файла
+ *
+ * @author v.solomasov
+ */
+public enum UploadCheckStatus {
+
+    /**
+     * Файл можно загружать
+     */
+    ACCEPTED,
+
+    /**
+     * Недопустимое имя файла
+     */
+    INVALID_NAME,
+
+    /**
+     * Файл с таким именем уже есть у пользователя
+     */
+    EXISTS,
+
+    /**
+     * Имя повторяется в списке проверки
+     */
+    DUPLICATE,
+
+    /**
+     * Файл больше допустимого размера загрузки
+     */
+    TOO_LARGE,
+
+    /**
+     * Файл не помещается в квоту пользователя
+     */
+    QUOTA_EXCEEDED
+}
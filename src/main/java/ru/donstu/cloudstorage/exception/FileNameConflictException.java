@@ -0,0 +1,15 @@
+package ru.donstu.cloudstorage.exception;
+
+/**
+ * Имя файла уже занято другим файлом аккаунта: строку с тем же именем успел создать параллельный запрос
+ *
+ * @author v.solomasov
+ */
+public class FileNameConflictException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public FileNameConflictException(String message) {
+        super(message);
+    }
+}
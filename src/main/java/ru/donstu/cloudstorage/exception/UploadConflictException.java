@@ -0,0 +1,15 @@
+package ru.donstu.cloudstorage.exception;
+
+/**
+ * Конфликт загрузки по частям: часть уже принята или передается другим запросом
+ *
+ * @author v.solomasov
+ */
+public class UploadConflictException extends UploadException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UploadConflictException(String message) {
+        super(message);
+    }
+}
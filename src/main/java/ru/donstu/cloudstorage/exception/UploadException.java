@@ -0,0 +1,15 @@
+package ru.donstu.cloudstorage.exception;
+
+/**
+ * Исключение протокола загрузки по частям: неверные параметры сессии или части
+ *
+ * @author v.solomasov
+ */
+public class UploadException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UploadException(String message) {
+        super(message);
+    }
+}
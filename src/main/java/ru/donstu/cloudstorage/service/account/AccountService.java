@@ -43,7 +43,9 @@ public interface AccountService {
     void updateAccountPassword(Account account, String newPassword, String confirmPassword);
 
     /**
-     * Удаление аккаунта
+     * Удаление аккаунта: аккаунт помечается удаленным под блокировкой, вход в него закрывается,
+     * остальные сессии аккаунта завершаются по смене версии учетных данных,
+     * файлы и сам аккаунт удаляются в фоне {@link ru.donstu.cloudstorage.service.reclaim.AccountReclaimService}
      *
      * @param account
      */
@@ -57,6 +59,14 @@ public interface AccountService {
      */
     Account findAccountByName(String name);
 
+    /**
+     * Поиск аккаунта по идентификатору
+     *
+     * @param id
+     * @return
+     */
+    Account findAccountById(Long id);
+
     /**
      * Проверка на совпадение имени
      *
@@ -4,18 +4,24 @@ import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.donstu.cloudstorage.domain.account.AccountRepository;
 import ru.donstu.cloudstorage.domain.account.entity.Account;
 import ru.donstu.cloudstorage.domain.account.enums.Role;
-import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.service.cache.CacheService;
 import ru.donstu.cloudstorage.service.security.SecurityService;
+import ru.donstu.cloudstorage.service.security.cache.AccountCache;
+import ru.donstu.cloudstorage.service.upload.UploadService;
 import ru.donstu.cloudstorage.service.userfiles.UserFilesService;
 
+import javax.annotation.PostConstruct;
 import java.util.Calendar;
-import java.util.List;
 
 /**
- * Реализация интерфейса {@link AccountService}
+ * Реализация интерфейса {@link AccountService}.
+ * Аккаунт из сессии - отсоединенная копия снимка, поэтому изменения применяются к аккаунту,
+ * загруженному под блокировкой: сохранение копии перезаписало бы поля, измененные после снимка
  *
  * @author v.solomasov
  */
@@ -30,12 +36,31 @@ public class AccountServiceImpl implements AccountService {
     @Autowired
     private UserFilesService userFilesService;
 
+    @Autowired
+    private UploadService uploadService;
+
     @Autowired
     private SecurityService securityService;
 
     @Autowired
     private PasswordEncoder passwordEncoder;
 
+    @Autowired
+    private AccountCache accountCache;
+
+    @Autowired
+    private CacheService cacheService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
     @Override
     public void saveAccount(Account account) {
         account.setPassword(passwordEncoder.encode(account.getPassword()));
@@ -47,43 +72,77 @@ public class AccountServiceImpl implements AccountService {
 
     @Override
     public void updateAccountName(Account account, String name, String password) {
-        account.setName(name);
-        accountRepository.save(account);
-        securityService.autoLogin(account.getName(), password);
+        transactionTemplate.execute(status -> {
+            accountRepository.findForUpdate(account.getId()).setName(name);
+            return null;
+        });
+        evictAccount(account);
+        securityService.autoLogin(name, password);
     }
 
     @Override
     public void updateAccountEmail(Account account, String email) {
-        account.setEmail(email);
-        accountRepository.save(account);
+        transactionTemplate.execute(status -> {
+            accountRepository.findForUpdate(account.getId()).setEmail(email);
+            return null;
+        });
+        evictAccount(account);
     }
 
+    /**
+     * Смена пароля увеличивает версию учетных данных: сессии, выданные до смены, перестают действовать.
+     * Текущий пользователь входит заново уже с новой версией
+     *
+     * @param account
+     * @param newPassword
+     * @param confirmPassword
+     */
     @Override
     public void updateAccountPassword(Account account, String newPassword, String confirmPassword) {
-        String oldPassword = account.getPassword();
-        account.setPassword(passwordEncoder.encode(newPassword));
-        accountRepository.save(account);
-        userFilesService.changeFiles(account, oldPassword);
+        transactionTemplate.execute(status -> {
+            Account lockedAccount = accountRepository.findForUpdate(account.getId());
+            String oldPassword = lockedAccount.getPassword();
+            lockedAccount.setPassword(passwordEncoder.encode(newPassword));
+            lockedAccount.setCredentialVersion(lockedAccount.getCredentialVersion() == null ? 1L : lockedAccount.getCredentialVersion() + 1);
+            evictAccount(lockedAccount);
+            securityService.evictSecretKey(lockedAccount);
+            userFilesService.changeFiles(lockedAccount, oldPassword);
+            uploadService.changeSessions(lockedAccount, oldPassword);
+            return null;
+        });
+        securityService.autoLogin(account.getName(), newPassword);
     }
 
     @Override
     public void deleteAccount(Account account) {
-        List<UserFiles> files = userFilesService.findUserFilesByAccount(account);
-        files.stream().forEach(file -> userFilesService.deleteFile(file.getId(), account));
-        userFilesService.deleteFolder(account.getId());
-        accountRepository.delete(account);
-        logger.info(String.format("Пользователь id=%s удален", account.getId()));
+        transactionTemplate.execute(status -> {
+            Account lockedAccount = accountRepository.findForUpdate(account.getId());
+            if (lockedAccount == null || lockedAccount.getDateDelete() != null) {
+                return null;
+            }
+            lockedAccount.setDateDelete(Calendar.getInstance());
+            lockedAccount.setCredentialVersion(lockedAccount.getCredentialVersion() == null ? 1L : lockedAccount.getCredentialVersion() + 1);
+            evictAccount(lockedAccount);
+            securityService.evictSecretKey(lockedAccount);
+            return null;
+        });
+        logger.info(String.format("Пользователь id=%s помечен удаленным", account.getId()));
     }
 
     @Override
     public Account findAccountByName(String name) {
-        Account account = accountRepository.findByName(name);
+        Account account = accountRepository.findByNaturalName(name);
         return account;
     }
 
+    @Override
+    public Account findAccountById(Long id) {
+        return accountRepository.findOne(id);
+    }
+
     @Override
     public boolean checkAccountName(String name) {
-        Account account = accountRepository.findByName(name);
+        Account account = accountRepository.findByNaturalName(name);
         if (account == null) {
             logger.info(String.format("Пользователь с именем %s - не найден", name));
             return false;
@@ -102,4 +161,14 @@ public class AccountServiceImpl implements AccountService {
         logger.info(String.format("Пользователь с почтой %s - найден (id = %d)", email, account.getId()));
         return true;
     }
+
+    /**
+     * Вытеснение аккаунта из кэша снимков и кэша второго уровня
+     *
+     * @param account
+     */
+    private void evictAccount(Account account) {
+        accountCache.evict(account.getId());
+        cacheService.evictAccount(account);
+    }
 }
@@ -0,0 +1,41 @@
+package ru.donstu.cloudstorage.service.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Файл архива. Содержимое открывается, только когда до файла дойдет передача архива
+ *
+ * @author v.solomasov
+ */
+public interface ArchiveEntry {
+
+    /**
+     * Имя файла в архиве, папки разделяются "/"
+     *
+     * @return
+     */
+    String getName();
+
+    /**
+     * Длина открытого текста
+     *
+     * @return
+     */
+    long getLength();
+
+    /**
+     * Время изменения файла в миллисекундах
+     *
+     * @return
+     */
+    long getLastModified();
+
+    /**
+     * Поток открытого текста файла
+     *
+     * @return
+     * @throws IOException
+     */
+    InputStream open() throws IOException;
+}
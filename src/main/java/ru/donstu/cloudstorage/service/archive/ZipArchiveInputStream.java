@@ -0,0 +1,397 @@
+package ru.donstu.cloudstorage.service.archive;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.BUFFER_SIZE;
+
+/**
+ * Архив ZIP, который формируется по мере чтения: файлы открываются по очереди, когда до них
+ * дойдет передача, размеры и CRC пишутся в дескриптор данных после содержимого, поэтому
+ * ни архив, ни отдельный файл не буферизуются. В памяти копится только центральный каталог,
+ * около сотни байт на файл. Файлы больше 4 ГБ, смещения больше 4 ГБ и больше 65535 файлов
+ * записываются в формате ZIP64. Уже сжатые форматы сохраняются без сжатия
+ *
+ * @author v.solomasov
+ */
+public class ZipArchiveInputStream extends InputStream {
+
+    private static final Logger logger = Logger.getLogger(ZipArchiveInputStream.class);
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION = 20;
+
+    private static final int VERSION_ZIP64 = 45;
+
+    private static final int FLAGS = 0x0808;
+
+    private static final int METHOD_STORED = 0;
+
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final int ZIP64_EXTRA = 0x0001;
+
+    private static final int ZIP64_LOCAL_EXTRA_LENGTH = 16;
+
+    private static final int ZIP64_END_LENGTH = 44;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    /**
+     * Порог длины файла для ZIP64 с запасом на возможное увеличение размера при сжатии
+     */
+    private static final long ZIP64_THRESHOLD = 0xF0000000L;
+
+    private static final int DEFLATE_LEVEL = Deflater.BEST_SPEED;
+
+    private static final int DOS_MIN_YEAR = 1980;
+
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "war", "apk",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "m4a", "ogg", "opus", "flac",
+            "mp4", "m4v", "mkv", "avi", "mov", "webm",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub"));
+
+    private final Iterator<? extends ArchiveEntry> entries;
+
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+    private InputStream current;
+
+    private Entry entry;
+
+    private long offset;
+
+    private long entryCount;
+
+    private boolean finished;
+
+    private boolean closed;
+
+    public ZipArchiveInputStream(Iterator<? extends ArchiveEntry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Сохранять ли файл без сжатия: расширение уже сжатого формата
+     *
+     * @param name
+     * @return
+     */
+    public static boolean isCompressedType(String name) {
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_TYPES.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int off, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Архив закрыт");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        while (true) {
+            if (current == null && !nextPart()) {
+                return -1;
+            }
+            int read = current.read(buffer, off, length);
+            if (read > 0) {
+                offset += read;
+                return read;
+            }
+            current.close();
+            current = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (current != null) {
+                current.close();
+            }
+        } finally {
+            if (entry != null) {
+                entry.end();
+            }
+        }
+    }
+
+    /**
+     * Следующая часть архива: дескриптор только что переданного файла, заголовок и содержимое
+     * следующего файла или центральный каталог. Файл, которого уже нет в хранилище, пропускается
+     *
+     * @return false, если архив передан полностью
+     * @throws IOException
+     */
+    private boolean nextPart() throws IOException {
+        if (entry != null) {
+            current = new ByteArrayInputStream(finishEntry());
+            entry = null;
+            return true;
+        }
+        while (entries.hasNext()) {
+            ArchiveEntry archiveEntry = entries.next();
+            InputStream content;
+            try {
+                content = archiveEntry.open();
+            } catch (NoSuchFileException e) {
+                logger.info(String.format("Файл %s не найден в хранилище и пропущен в архиве", archiveEntry.getName()));
+                continue;
+            }
+            entry = new Entry(archiveEntry, offset);
+            byte[] header = localHeader(entry);
+            entry.dataOffset = offset + header.length;
+            current = new SequenceInputStream(new ByteArrayInputStream(header), entry.data(content));
+            return true;
+        }
+        if (!finished) {
+            finished = true;
+            current = new ByteArrayInputStream(endOfArchive());
+            return true;
+        }
+        return false;
+    }
+
+    private byte[] localHeader(Entry entry) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeInt(header, LOCAL_HEADER_SIGNATURE);
+        writeShort(header, entry.zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(header, FLAGS);
+        writeShort(header, entry.method);
+        writeInt(header, entry.dosTime);
+        writeInt(header, 0);
+        writeInt(header, entry.zip64 ? ZIP64_MAGIC : 0);
+        writeInt(header, entry.zip64 ? ZIP64_MAGIC : 0);
+        writeShort(header, entry.name.length);
+        writeShort(header, entry.zip64 ? ZIP64_LOCAL_EXTRA_LENGTH + 4 : 0);
+        header.write(entry.name, 0, entry.name.length);
+        if (entry.zip64) {
+            writeShort(header, ZIP64_EXTRA);
+            writeShort(header, ZIP64_LOCAL_EXTRA_LENGTH);
+            writeLong(header, 0);
+            writeLong(header, 0);
+        }
+        return header.toByteArray();
+    }
+
+    /**
+     * Дескриптор данных переданного файла и его запись в центральном каталоге
+     *
+     * @return дескриптор данных
+     */
+    private byte[] finishEntry() {
+        entry.end();
+        long crc = entry.crc.getValue();
+        long compressedLength = offset - entry.dataOffset;
+        long length = entry.plain.getByteCount();
+        ByteArrayOutputStream descriptor = new ByteArrayOutputStream();
+        writeInt(descriptor, DATA_DESCRIPTOR_SIGNATURE);
+        writeInt(descriptor, crc);
+        if (entry.zip64) {
+            writeLong(descriptor, compressedLength);
+            writeLong(descriptor, length);
+        } else {
+            writeInt(descriptor, compressedLength);
+            writeInt(descriptor, length);
+        }
+        ByteArrayOutputStream extra = new ByteArrayOutputStream();
+        if (length >= ZIP64_MAGIC) {
+            writeLong(extra, length);
+        }
+        if (compressedLength >= ZIP64_MAGIC) {
+            writeLong(extra, compressedLength);
+        }
+        if (entry.headerOffset >= ZIP64_MAGIC) {
+            writeLong(extra, entry.headerOffset);
+        }
+        boolean zip64 = extra.size() > 0;
+        writeInt(centralDirectory, CENTRAL_HEADER_SIGNATURE);
+        writeShort(centralDirectory, VERSION_ZIP64);
+        writeShort(centralDirectory, zip64 || entry.zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(centralDirectory, FLAGS);
+        writeShort(centralDirectory, entry.method);
+        writeInt(centralDirectory, entry.dosTime);
+        writeInt(centralDirectory, crc);
+        writeInt(centralDirectory, Math.min(compressedLength, ZIP64_MAGIC));
+        writeInt(centralDirectory, Math.min(length, ZIP64_MAGIC));
+        writeShort(centralDirectory, entry.name.length);
+        writeShort(centralDirectory, zip64 ? extra.size() + 4 : 0);
+        writeShort(centralDirectory, 0);
+        writeShort(centralDirectory, 0);
+        writeShort(centralDirectory, 0);
+        writeInt(centralDirectory, 0);
+        writeInt(centralDirectory, Math.min(entry.headerOffset, ZIP64_MAGIC));
+        centralDirectory.write(entry.name, 0, entry.name.length);
+        if (zip64) {
+            writeShort(centralDirectory, ZIP64_EXTRA);
+            writeShort(centralDirectory, extra.size());
+            centralDirectory.write(extra.toByteArray(), 0, extra.size());
+        }
+        entryCount++;
+        return descriptor.toByteArray();
+    }
+
+    /**
+     * Центральный каталог и записи его конца, при необходимости в формате ZIP64
+     *
+     * @return
+     */
+    private byte[] endOfArchive() {
+        long directoryOffset = offset;
+        long directoryLength = centralDirectory.size();
+        boolean zip64 = entryCount >= ZIP64_MAGIC_COUNT || directoryOffset >= ZIP64_MAGIC || directoryLength >= ZIP64_MAGIC;
+        ByteArrayOutputStream end = centralDirectory;
+        if (zip64) {
+            long zip64EndOffset = directoryOffset + directoryLength;
+            writeInt(end, ZIP64_END_SIGNATURE);
+            writeLong(end, ZIP64_END_LENGTH);
+            writeShort(end, VERSION_ZIP64);
+            writeShort(end, VERSION_ZIP64);
+            writeInt(end, 0);
+            writeInt(end, 0);
+            writeLong(end, entryCount);
+            writeLong(end, entryCount);
+            writeLong(end, directoryLength);
+            writeLong(end, directoryOffset);
+            writeInt(end, ZIP64_LOCATOR_SIGNATURE);
+            writeInt(end, 0);
+            writeLong(end, zip64EndOffset);
+            writeInt(end, 1);
+        }
+        writeInt(end, END_SIGNATURE);
+        writeShort(end, 0);
+        writeShort(end, 0);
+        writeShort(end, (int) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        writeShort(end, (int) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        writeInt(end, Math.min(directoryLength, ZIP64_MAGIC));
+        writeInt(end, Math.min(directoryOffset, ZIP64_MAGIC));
+        writeShort(end, 0);
+        return end.toByteArray();
+    }
+
+    /**
+     * Время в формате MS-DOS: младшие 16 бит - время, старшие - дата
+     *
+     * @param millis
+     * @return
+     */
+    private static long toDosTime(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < DOS_MIN_YEAR) {
+            return (1 << 21) | (1 << 16);
+        }
+        long date = ((year - DOS_MIN_YEAR) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5) | calendar.get(Calendar.DAY_OF_MONTH);
+        long time = (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+        return date << 16 | time;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        writeShort(out, (int) (value & 0xFFFF));
+        writeShort(out, (int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        writeInt(out, value & ZIP64_MAGIC);
+        writeInt(out, value >>> 32);
+    }
+
+    /**
+     * Передаваемый файл: CRC и длина открытого текста считаются при чтении
+     */
+    private static class Entry {
+
+        private final byte[] name;
+
+        private final long headerOffset;
+
+        private final long dosTime;
+
+        private final boolean zip64;
+
+        private final int method;
+
+        private final CRC32 crc = new CRC32();
+
+        private long dataOffset;
+
+        private CountingInputStream plain;
+
+        private Deflater deflater;
+
+        private Entry(ArchiveEntry archiveEntry, long headerOffset) {
+            this.name = archiveEntry.getName().getBytes(StandardCharsets.UTF_8);
+            this.headerOffset = headerOffset;
+            this.dosTime = toDosTime(archiveEntry.getLastModified());
+            this.zip64 = archiveEntry.getLength() >= ZIP64_THRESHOLD;
+            this.method = isCompressedType(archiveEntry.getName()) ? METHOD_STORED : METHOD_DEFLATED;
+        }
+
+        private InputStream data(InputStream content) {
+            plain = new CountingInputStream(new CheckedInputStream(content, crc));
+            if (method == METHOD_STORED) {
+                return plain;
+            }
+            deflater = new Deflater(DEFLATE_LEVEL, true);
+            return new DeflaterInputStream(plain, deflater, BUFFER_SIZE);
+        }
+
+        private void end() {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package ru.donstu.cloudstorage.service.batch;
+
+import ru.donstu.cloudstorage.domain.userfiles.entity.BatchUploadItem;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Получатель результата пакетной загрузки, формирует ответ
+ *
+ * @author v.solomasov
+ */
+public interface BatchResultHandler {
+
+    void handle(List<BatchUploadItem> items) throws IOException;
+}
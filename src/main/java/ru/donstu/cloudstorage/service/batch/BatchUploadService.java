@@ -0,0 +1,22 @@
+package ru.donstu.cloudstorage.service.batch;
+
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.service.transfer.FilePartHandler;
+
+/**
+ * Пакетная загрузка множества файлов одним запросом
+ *
+ * @author v.solomasov
+ */
+public interface BatchUploadService {
+
+    /**
+     * Обработчик файлов multipart-тела пакета. Содержимое файлов шифруется и записывается по мере приема,
+     * строки файлов создаются одной транзакцией после приема всего тела
+     *
+     * @param account
+     * @param resultHandler получает результат по каждому файлу в порядке запроса, пустой список - файлов в теле нет
+     * @return
+     */
+    FilePartHandler uploadBatch(Account account, BatchResultHandler resultHandler);
+}
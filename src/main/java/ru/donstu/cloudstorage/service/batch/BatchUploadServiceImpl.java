@@ -0,0 +1,297 @@
+package ru.donstu.cloudstorage.service.batch;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.entity.BatchUploadItem;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.domain.userfiles.enums.BatchItemStatus;
+import ru.donstu.cloudstorage.exception.FileNameConflictException;
+import ru.donstu.cloudstorage.service.transfer.ContentOutputStream;
+import ru.donstu.cloudstorage.service.transfer.FilePartHandler;
+import ru.donstu.cloudstorage.service.userfiles.StoreOutputStream;
+import ru.donstu.cloudstorage.service.userfiles.StoredFile;
+import ru.donstu.cloudstorage.service.userfiles.UserFilesService;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Реализация интерфейса {@link BatchUploadService}.
+ * Тело запроса разбирается за один проход по мере приема: файл проверяется без обращения к базе,
+ * когда известно, пуст ли он, и его содержимое сразу шифруется и пишется в хранилище. Завершение файла
+ * (последние сегменты, подтверждение записи) передается в ограниченный пул загрузки, чтобы прием
+ * следующего файла его не ждал. После приема всего тела совпадения с файлами пользователя находятся
+ * одним запросом, содержимое совпавших удаляется, а строки остальных создаются одной транзакцией
+ *
+ * @author v.solomasov
+ */
+@Service
+@PropertySource(RESOURCES_PROPERTY)
+public class BatchUploadServiceImpl implements BatchUploadService {
+
+    private static final Logger logger = Logger.getLogger(BatchUploadServiceImpl.class);
+
+    private static final String MAX_FILES = "upload.batch.max_files";
+
+    @Autowired
+    private UserFilesService userFilesService;
+
+    @Autowired
+    @Qualifier("uploadExecutor")
+    private ExecutorService uploadExecutor;
+
+    @Autowired
+    private Environment environment;
+
+    private int maxFiles;
+
+    @PostConstruct
+    public void init() {
+        maxFiles = Integer.valueOf(environment.getRequiredProperty(MAX_FILES));
+    }
+
+    @Override
+    public FilePartHandler uploadBatch(Account account, BatchResultHandler resultHandler) {
+        return new BatchFilesHandler(account, resultHandler);
+    }
+
+    /**
+     * Проверка файла пакета без обращения к базе
+     *
+     * @param fileName
+     * @param empty
+     * @param batchNames имена уже принятых файлов пакета, принятое имя добавляется
+     * @param count      номер файла в пакете начиная с 1
+     * @return статус отказа или null, если файл принят к записи
+     */
+    private BatchItemStatus checkFile(String fileName, boolean empty, Set<String> batchNames, int count) {
+        if (count > maxFiles) {
+            return BatchItemStatus.LIMIT_EXCEEDED;
+        }
+        if (fileName == null || !userFilesService.isValidFileName(fileName)) {
+            return BatchItemStatus.INVALID_NAME;
+        }
+        if (empty) {
+            return BatchItemStatus.EMPTY;
+        }
+        if (!batchNames.add(fileName)) {
+            return BatchItemStatus.DUPLICATE;
+        }
+        return null;
+    }
+
+    /**
+     * Файлы одного пакета
+     */
+    private class BatchFilesHandler implements FilePartHandler {
+
+        private final Account account;
+
+        private final BatchResultHandler resultHandler;
+
+        private final List<String> fileNames = new ArrayList<>();
+
+        private final List<BatchItemStatus> statuses = new ArrayList<>();
+
+        private final Set<String> batchNames = new HashSet<>();
+
+        private final Map<Integer, Future<StoredFile>> pending = new LinkedHashMap<>();
+
+        private BatchFilesHandler(Account account, BatchResultHandler resultHandler) {
+            this.account = account;
+            this.resultHandler = resultHandler;
+        }
+
+        @Override
+        public ContentOutputStream open(String fileName, boolean empty) {
+            fileNames.add(fileName);
+            BatchItemStatus status = checkFile(fileName, empty, batchNames, fileNames.size());
+            statuses.add(status);
+            if (status != null) {
+                return null;
+            }
+            int fileIndex = fileNames.size() - 1;
+            try {
+                return new BatchFileOutputStream(fileIndex, userFilesService.openStore(account, fileName));
+            } catch (IOException | RuntimeException e) {
+                logger.info(String.format("Ошибка записи файла %s пакета пользователя %s", fileName, account.getName()));
+                statuses.set(fileIndex, BatchItemStatus.FAILED);
+                return null;
+            }
+        }
+
+        @Override
+        public void complete(int count) throws IOException {
+            if (fileNames.isEmpty()) {
+                resultHandler.handle(Collections.emptyList());
+                return;
+            }
+            Map<Integer, StoredFile> storedFiles = awaitPending();
+            Set<String> existingNames = batchNames.isEmpty() ? Collections.emptySet() : userFilesService.findExistingFileNames(account, batchNames);
+            List<StoredFile> existing = new ArrayList<>();
+            for (Iterator<Map.Entry<Integer, StoredFile>> iterator = storedFiles.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<Integer, StoredFile> entry = iterator.next();
+                if (existingNames.contains(fileNames.get(entry.getKey()))) {
+                    statuses.set(entry.getKey(), BatchItemStatus.EXISTS);
+                    existing.add(entry.getValue());
+                    iterator.remove();
+                }
+            }
+            userFilesService.discardStoredFiles(existing);
+            try {
+                userFilesService.saveStoredFiles(account, new ArrayList<>(storedFiles.values()));
+            } catch (FileNameConflictException e) {
+                markConflicts(storedFiles);
+                storedFiles.clear();
+            } catch (RuntimeException e) {
+                logger.error(String.format("Ошибка сохранения пакета файлов пользователя %s", account.getName()), e);
+                storedFiles.clear();
+            }
+
+            List<BatchUploadItem> items = new ArrayList<>(fileNames.size());
+            for (int i = 0; i < fileNames.size(); i++) {
+                StoredFile storedFile = storedFiles.get(i);
+                if (storedFile != null) {
+                    UserFiles userFiles = storedFile.getUserFiles();
+                    items.add(new BatchUploadItem(fileNames.get(i), BatchItemStatus.CREATED, userFiles.getId(), userFiles.getFileLength()));
+                } else {
+                    BatchItemStatus status = statuses.get(i);
+                    items.add(new BatchUploadItem(fileNames.get(i), status == null ? BatchItemStatus.FAILED : status, null, null));
+                }
+            }
+            logger.info(String.format("Пользователь %s загрузил пакетом %d файлов из %d", account.getName(), storedFiles.size(), fileNames.size()));
+            resultHandler.handle(items);
+        }
+
+        @Override
+        public void abort() {
+            userFilesService.discardStoredFiles(new ArrayList<>(awaitPending().values()));
+            logger.info(String.format("Прием пакета файлов пользователя %s прерван", account.getName()));
+        }
+
+        /**
+         * Пакет не сохранен, потому что часть имен занял параллельный запрос: такие файлы получают статус EXISTS,
+         * остальные несохраненные - FAILED
+         *
+         * @param storedFiles
+         */
+        private void markConflicts(Map<Integer, StoredFile> storedFiles) {
+            Set<String> names = storedFiles.keySet().stream().map(fileNames::get).collect(Collectors.toSet());
+            Set<String> existingNames = userFilesService.findExistingFileNames(account, names);
+            for (Integer fileIndex : storedFiles.keySet()) {
+                statuses.set(fileIndex, existingNames.contains(fileNames.get(fileIndex)) ? BatchItemStatus.EXISTS : BatchItemStatus.FAILED);
+            }
+        }
+
+        /**
+         * Ожидание завершения записанных файлов
+         *
+         * @return записанные файлы по номеру в пакете
+         */
+        private Map<Integer, StoredFile> awaitPending() {
+            Map<Integer, StoredFile> storedFiles = new LinkedHashMap<>();
+            for (Map.Entry<Integer, Future<StoredFile>> entry : pending.entrySet()) {
+                try {
+                    storedFiles.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    logger.info(String.format("Ошибка записи файла %s пакета пользователя %s", fileNames.get(entry.getKey()), account.getName()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.info(String.format("Запись пакета файлов пользователя %s прервана", account.getName()));
+                }
+            }
+            pending.clear();
+            return storedFiles;
+        }
+
+        /**
+         * Прием файла пакета. Ошибка записи не прерывает пакет: остаток файла пропускается,
+         * файл получает статус FAILED
+         */
+        private class BatchFileOutputStream extends ContentOutputStream {
+
+            private final int fileIndex;
+
+            private final StoreOutputStream store;
+
+            private boolean failed;
+
+            private boolean submitted;
+
+            private BatchFileOutputStream(int fileIndex, StoreOutputStream store) {
+                this.fileIndex = fileIndex;
+                this.store = store;
+            }
+
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (failed) {
+                    return;
+                }
+                try {
+                    store.write(b, off, len);
+                } catch (IOException | RuntimeException e) {
+                    logger.info(String.format("Ошибка записи файла %s пакета пользователя %s", fileNames.get(fileIndex), account.getName()));
+                    failed = true;
+                    statuses.set(fileIndex, BatchItemStatus.FAILED);
+                    closeStore();
+                }
+            }
+
+            @Override
+            public void commit() {
+                if (failed) {
+                    return;
+                }
+                submitted = true;
+                pending.put(fileIndex, uploadExecutor.submit(() -> {
+                    try {
+                        store.commit();
+                        return store.getStoredFile();
+                    } finally {
+                        store.close();
+                    }
+                }));
+            }
+
+            @Override
+            public void close() {
+                if (!submitted) {
+                    closeStore();
+                }
+            }
+
+            private void closeStore() {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    logger.info(String.format("Ошибка отмены записи файла %s пакета", fileNames.get(fileIndex)));
+                }
+            }
+        }
+    }
+}
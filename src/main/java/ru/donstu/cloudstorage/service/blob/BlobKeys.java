@@ -0,0 +1,35 @@
+package ru.donstu.cloudstorage.service.blob;
+
+import java.util.UUID;
+
+/**
+ * Ключи объектов хранилища: файлы пользователя лежат в папке аккаунта под ключами,
+ * которые генерирует сервер. Имя файла хранится только в базе и в ключ не входит
+ *
+ * @author v.solomasov
+ */
+public final class BlobKeys {
+
+    public static final String SEPARATOR = "/";
+
+    private BlobKeys() {
+    }
+
+    public static String accountFolder(Long accountId) {
+        return String.valueOf(accountId);
+    }
+
+    public static String accountPrefix(Long accountId) {
+        return accountFolder(accountId) + SEPARATOR;
+    }
+
+    /**
+     * Новый ключ содержимого файла. Не меняется при переименовании и перемещении файла
+     *
+     * @param accountId
+     * @return
+     */
+    public static String newUserFile(Long accountId) {
+        return accountPrefix(accountId) + UUID.randomUUID();
+    }
+}
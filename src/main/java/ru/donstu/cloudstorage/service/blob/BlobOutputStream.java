@@ -0,0 +1,20 @@
+package ru.donstu.cloudstorage.service.blob;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Поток записи объекта хранилища. Объект появляется только после {@link #commit()},
+ * закрытие без подтверждения удаляет все записанное
+ *
+ * @author v.solomasov
+ */
+public abstract class BlobOutputStream extends OutputStream {
+
+    /**
+     * Завершение записи: объект становится виден целиком, поток закрывается
+     *
+     * @throws IOException
+     */
+    public abstract void commit() throws IOException;
+}
@@ -0,0 +1,33 @@
+package ru.donstu.cloudstorage.service.blob;
+
+/**
+ * Сведения об объекте хранилища
+ *
+ * @author v.solomasov
+ */
+public class BlobStat {
+
+    private final String key;
+
+    private final long length;
+
+    private final long lastModified;
+
+    public BlobStat(String key, long length, long lastModified) {
+        this.key = key;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+}
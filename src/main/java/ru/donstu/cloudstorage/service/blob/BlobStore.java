@@ -0,0 +1,91 @@
+package ru.donstu.cloudstorage.service.blob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Хранилище содержимого файлов. Ключ - путь из частей через "/", без пустых частей, "." и "..".
+ * Запись видна читателям только после {@link BlobOutputStream#commit()} и целиком
+ *
+ * @author v.solomasov
+ */
+public interface BlobStore extends Closeable {
+
+    /**
+     * Поток записи объекта. Закрытие потока без подтверждения отменяет запись
+     *
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    BlobOutputStream put(String key) throws IOException;
+
+    /**
+     * Запись объекта из подготовленного файла. Файл после записи удаляется
+     *
+     * @param key
+     * @param source
+     * @throws IOException
+     */
+    void putFile(String key, Path source) throws IOException;
+
+    /**
+     * Поток байт [from, to) объекта, конец диапазона ограничивается длиной объекта
+     *
+     * @param key
+     * @param from
+     * @param to
+     * @return
+     * @throws NoSuchFileException объекта нет
+     * @throws IOException
+     */
+    InputStream get(String key, long from, long to) throws IOException;
+
+    /**
+     * Сведения об объекте
+     *
+     * @param key
+     * @return сведения или null, если объекта нет
+     * @throws IOException
+     */
+    BlobStat stat(String key) throws IOException;
+
+    /**
+     * Удаление объекта, отсутствие объекта ошибкой не считается
+     *
+     * @param key
+     * @throws IOException
+     */
+    void delete(String key) throws IOException;
+
+    /**
+     * Групповое удаление объектов
+     *
+     * @param keys
+     * @throws IOException
+     */
+    void delete(Collection<String> keys) throws IOException;
+
+    /**
+     * Удаление всех объектов с ключами, начинающимися с префикса
+     *
+     * @param prefix
+     * @return количество освобожденных байт
+     * @throws IOException
+     */
+    long deleteAll(String prefix) throws IOException;
+
+    /**
+     * Объекты с ключами, начинающимися с префикса, незавершенные записи не возвращаются
+     *
+     * @param prefix
+     * @return
+     * @throws IOException
+     */
+    List<BlobStat> list(String prefix) throws IOException;
+}
@@ -0,0 +1,346 @@
+package ru.donstu.cloudstorage.service.blob.local;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.log4j.Logger;
+import ru.donstu.cloudstorage.service.blob.BlobOutputStream;
+import ru.donstu.cloudstorage.service.blob.BlobStat;
+import ru.donstu.cloudstorage.service.blob.BlobStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static ru.donstu.cloudstorage.service.blob.BlobKeys.SEPARATOR;
+
+/**
+ * Хранилище в каталоге локальной файловой системы: ключ - относительный путь файла.
+ * Запись идет во временный файл рядом с целевым и завершается атомарным переименованием
+ *
+ * @author v.solomasov
+ */
+public class LocalBlobStore implements BlobStore {
+
+    private static final Logger logger = Logger.getLogger(LocalBlobStore.class);
+
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path root;
+
+    private final int bufferSize;
+
+    public LocalBlobStore(Path root, int bufferSize) {
+        this.root = root.toAbsolutePath().normalize();
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public BlobOutputStream put(String key) throws IOException {
+        Path path = resolve(key);
+        Files.createDirectories(path.getParent());
+        Path tempPath = getTempPath(path);
+        FileChannel channel = FileChannel.open(tempPath, CREATE_NEW, WRITE);
+        return new LocalOutputStream(channel, new BufferedOutputStream(Channels.newOutputStream(channel), bufferSize), tempPath, path);
+    }
+
+    @Override
+    public void putFile(String key, Path source) throws IOException {
+        Path path = resolve(key);
+        Files.createDirectories(path.getParent());
+        try {
+            Files.move(source, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Path tempPath = getTempPath(path);
+            try {
+                Files.copy(source, tempPath);
+                try (FileChannel channel = FileChannel.open(tempPath, WRITE)) {
+                    channel.force(false);
+                }
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+            Files.delete(source);
+        }
+    }
+
+    @Override
+    public InputStream get(String key, long from, long to) throws IOException {
+        FileChannel channel = FileChannel.open(resolve(key), READ);
+        try {
+            long end = Math.min(to, channel.size());
+            channel.position(from);
+            return new BoundedInputStream(new BufferedInputStream(Channels.newInputStream(channel), bufferSize), Math.max(0, end - from));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public BlobStat stat(String key) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(resolve(key), BasicFileAttributes.class);
+            return new BlobStat(key, attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(resolve(key));
+    }
+
+    @Override
+    public void delete(Collection<String> keys) throws IOException {
+        int deleted = deleteExisting(keys).size();
+        if (deleted < keys.size()) {
+            logger.info(String.format("При удалении не найдено %d файлов из %d", keys.size() - deleted, keys.size()));
+        }
+    }
+
+    /**
+     * Ключи группируются по каталогам, имена удаляются относительно открытого каталога,
+     * если файловая система это поддерживает, иначе - по полному пути
+     *
+     * @param keys
+     * @return удаленные ключи, отсутствующие файлы пропускаются
+     * @throws IOException
+     */
+    Set<String> deleteExisting(Collection<String> keys) throws IOException {
+        Map<Path, Map<Path, String>> directories = new LinkedHashMap<>();
+        for (String key : keys) {
+            Path path = resolve(key);
+            directories.computeIfAbsent(path.getParent(), directory -> new LinkedHashMap<>()).put(path.getFileName(), key);
+        }
+        Set<String> deleted = new HashSet<>();
+        for (Map.Entry<Path, Map<Path, String>> directory : directories.entrySet()) {
+            deleteFromDirectory(directory.getKey(), directory.getValue(), deleted);
+        }
+        return deleted;
+    }
+
+    @Override
+    public long deleteAll(String prefix) throws IOException {
+        if (!prefix.endsWith(SEPARATOR)) {
+            List<BlobStat> blobs = list(prefix);
+            delete(blobs.stream().map(BlobStat::getKey).collect(Collectors.toList()));
+            return blobs.stream().mapToLong(BlobStat::getLength).sum();
+        }
+        Path folder = resolve(prefix.substring(0, prefix.length() - SEPARATOR.length()));
+        if (!Files.exists(folder)) {
+            return 0;
+        }
+        AtomicLong deletedLength = new AtomicLong();
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                deletedLength.addAndGet(attributes.size());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return deletedLength.get();
+    }
+
+    @Override
+    public List<BlobStat> list(String prefix) throws IOException {
+        int lastSeparator = prefix.lastIndexOf(SEPARATOR);
+        Path start = lastSeparator < 0 ? root : resolve(prefix.substring(0, lastSeparator));
+        List<BlobStat> blobs = new ArrayList<>();
+        if (!Files.isDirectory(start)) {
+            return blobs;
+        }
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String key = getKey(file);
+                if (key.startsWith(prefix) && !key.endsWith(TEMP_SUFFIX)) {
+                    blobs.add(new BlobStat(key, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return blobs;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Путь файла по ключу. Ключ не может выйти за пределы корня хранилища. Обратная косая черта
+     * запрещена, только если она разделитель файловой системы: иначе это обычный символ имени,
+     * и ключи файлов, загруженных до V5 под своими именами, указывают на исходные файлы
+     *
+     * @param key
+     * @return
+     */
+    public Path resolve(String key) {
+        if (key == null || key.isEmpty() || (key.contains("\\") && root.getFileSystem().getSeparator().equals("\\"))) {
+            throw new IllegalArgumentException(String.format("Недопустимый ключ %s", key));
+        }
+        Path path = root;
+        for (String part : key.split(SEPARATOR, -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                throw new IllegalArgumentException(String.format("Недопустимый ключ %s", key));
+            }
+            path = path.resolve(part);
+        }
+        return path;
+    }
+
+    /**
+     * Ключ по пути файла внутри корня хранилища
+     *
+     * @param path
+     * @return
+     */
+    public String getKey(Path path) {
+        List<String> parts = new ArrayList<>();
+        for (Path part : root.relativize(path)) {
+            parts.add(part.toString());
+        }
+        return String.join(SEPARATOR, parts);
+    }
+
+    private Path getTempPath(Path path) {
+        return path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+    }
+
+    private void deleteFromDirectory(Path directory, Map<Path, String> names, Set<String> deleted) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            if (stream instanceof SecureDirectoryStream) {
+                SecureDirectoryStream<Path> secureStream = (SecureDirectoryStream<Path>) stream;
+                for (Map.Entry<Path, String> name : names.entrySet()) {
+                    try {
+                        secureStream.deleteFile(name.getKey());
+                        deleted.add(name.getValue());
+                    } catch (NoSuchFileException e) {
+                        // файла нет в каталоге
+                    }
+                }
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        for (Map.Entry<Path, String> name : names.entrySet()) {
+            if (Files.deleteIfExists(directory.resolve(name.getKey()))) {
+                deleted.add(name.getValue());
+            }
+        }
+    }
+
+    /**
+     * Запись во временный файл, подтверждение - сброс содержимого на диск (force) и переименование:
+     * после подтверждения объект не окажется пустым или обрезанным при сбое питания
+     */
+    private static class LocalOutputStream extends BlobOutputStream {
+
+        private final FileChannel channel;
+
+        private final OutputStream outputStream;
+
+        private final Path tempPath;
+
+        private final Path path;
+
+        private boolean closed;
+
+        private LocalOutputStream(FileChannel channel, OutputStream outputStream, Path tempPath, Path path) {
+            this.channel = channel;
+            this.outputStream = outputStream;
+            this.tempPath = tempPath;
+            this.path = path;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            outputStream.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            outputStream.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (closed) {
+                throw new IOException(String.format("Запись %s уже завершена", path));
+            }
+            closed = true;
+            try {
+                outputStream.flush();
+                channel.force(false);
+                outputStream.close();
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                IOUtils.closeQuietly(outputStream);
+                Files.deleteIfExists(tempPath);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                outputStream.close();
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        }
+    }
+}
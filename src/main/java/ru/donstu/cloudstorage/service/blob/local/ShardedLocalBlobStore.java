@@ -0,0 +1,617 @@
+package ru.donstu.cloudstorage.service.blob.local;
+
+import org.apache.log4j.Logger;
+import ru.donstu.cloudstorage.service.blob.BlobOutputStream;
+import ru.donstu.cloudstorage.service.blob.BlobStat;
+import ru.donstu.cloudstorage.service.blob.BlobStore;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import static ru.donstu.cloudstorage.service.blob.BlobKeys.SEPARATOR;
+import static ru.donstu.cloudstorage.service.blob.local.LocalBlobStore.TEMP_SUFFIX;
+
+/**
+ * Хранилище на нескольких томах локальной файловой системы.
+ * Файл лежит в двухуровневом каталоге по хешу ключа внутри папки ключа: ключ a/b/name - по пути
+ * a/b/xx/yy/name, поэтому ни в одном каталоге не скапливается больше нескольких сотен файлов.
+ * Тома упорядочиваются для ключа рандеву-хешированием, файл пишется на один из первых
+ * candidates томов - с наибольшим свободным местом с поправкой на число открытых потоков.
+ * Чтение проверяет тома в том же порядке, поэтому таблица размещения не нужна. Файлы, записанные
+ * до разбиения, читаются из прежнего каталога, ребалансировка переносит их и файлы с томов,
+ * переставших быть кандидатами после добавления томов
+ *
+ * @author v.solomasov
+ */
+public class ShardedLocalBlobStore implements BlobStore {
+
+    private static final Logger logger = Logger.getLogger(ShardedLocalBlobStore.class);
+
+    private static final String HASH_TYPE = "MD5";
+
+    private static final int FAN_OUT_LEVELS = 2;
+
+    private static final int LOCK_STRIPES = 256;
+
+    private static final int READ_ATTEMPTS = 2;
+
+    private final List<Volume> volumes = new ArrayList<>();
+
+    private final LocalBlobStore legacyStore;
+
+    private final int candidates;
+
+    private final long minFreeSpace;
+
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * @param volumeRoots  корни томов, не вложенные в прежний каталог
+     * @param legacyRoot   прежний каталог без разбиения или null
+     * @param bufferSize
+     * @param candidates   число томов, между которыми выбирается место для файла
+     * @param minFreeSpace свободное место, ниже которого том не принимает новые файлы
+     * @throws IOException
+     */
+    public ShardedLocalBlobStore(List<Path> volumeRoots, Path legacyRoot, int bufferSize, int candidates, long minFreeSpace) throws IOException {
+        for (Path root : volumeRoots) {
+            Files.createDirectories(root);
+            volumes.add(new Volume(new LocalBlobStore(root, bufferSize)));
+        }
+        this.legacyStore = legacyRoot == null ? null : new LocalBlobStore(legacyRoot, bufferSize);
+        this.candidates = Math.max(1, Math.min(candidates, volumes.size()));
+        this.minFreeSpace = minFreeSpace;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public BlobOutputStream put(String key) throws IOException {
+        Volume volume = chooseVolume(key);
+        BlobOutputStream outputStream = volume.store.put(getPhysicalKey(key));
+        return new ShardedOutputStream(key, volume, outputStream);
+    }
+
+    @Override
+    public void putFile(String key, Path source) throws IOException {
+        Volume volume = chooseVolume(key);
+        ReentrantLock lock = getLock(key);
+        lock.lock();
+        try {
+            volume.store.putFile(getPhysicalKey(key), source);
+            deleteCopies(key, volume);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Повторная попытка закрывает окно, в котором ребалансировка переносит файл
+     * между проверенными путями
+     */
+    @Override
+    public InputStream get(String key, long from, long to) throws IOException {
+        String physicalKey = getPhysicalKey(key);
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            for (Volume volume : rankVolumes(key)) {
+                try {
+                    return volume.track(volume.store.get(physicalKey, from, to));
+                } catch (NoSuchFileException e) {
+                    // файла нет на этом томе
+                }
+            }
+            if (legacyStore != null) {
+                try {
+                    return legacyStore.get(key, from, to);
+                } catch (NoSuchFileException e) {
+                    // файла нет в прежнем каталоге
+                }
+            }
+        }
+        throw new NoSuchFileException(key);
+    }
+
+    @Override
+    public BlobStat stat(String key) throws IOException {
+        String physicalKey = getPhysicalKey(key);
+        for (Volume volume : rankVolumes(key)) {
+            BlobStat stat = volume.store.stat(physicalKey);
+            if (stat != null) {
+                return new BlobStat(key, stat.getLength(), stat.getLastModified());
+            }
+        }
+        return legacyStore == null ? null : legacyStore.stat(key);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        ReentrantLock lock = getLock(key);
+        lock.lock();
+        try {
+            deleteCopies(key, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ключи группируются по томам-кандидатам рандеву-хеширования и удаляются одним групповым вызовом
+     * на том. Ключи, не найденные на кандидатах (записанные на другой том при заполненных кандидатах,
+     * до добавления томов или до разбиения), так же группами удаляются с остальных томов и из прежнего
+     * каталога. Блокировки ключей берутся по возрастанию номера, поэтому не взаимоблокируются
+     * с записью и ребалансировкой, которые держат одну блокировку
+     */
+    @Override
+    public void delete(Collection<String> keys) throws IOException {
+        int[] stripes = keys.stream().mapToInt(this::getStripe).distinct().sorted().toArray();
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+        }
+        try {
+            Map<Volume, Map<String, String>> candidateKeys = new LinkedHashMap<>();
+            Map<Volume, Map<String, String>> otherKeys = new LinkedHashMap<>();
+            for (String key : keys) {
+                String physicalKey = getPhysicalKey(key);
+                List<Volume> ranked = rankVolumes(key);
+                for (int i = 0; i < ranked.size(); i++) {
+                    (i < candidates ? candidateKeys : otherKeys).computeIfAbsent(ranked.get(i), volume -> new LinkedHashMap<>()).put(physicalKey, key);
+                }
+            }
+            Set<String> remaining = new HashSet<>(keys);
+            for (Map.Entry<Volume, Map<String, String>> volumeKeys : candidateKeys.entrySet()) {
+                for (String physicalKey : volumeKeys.getKey().store.deleteExisting(volumeKeys.getValue().keySet())) {
+                    remaining.remove(volumeKeys.getValue().get(physicalKey));
+                }
+            }
+            if (remaining.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<Volume, Map<String, String>> volumeKeys : otherKeys.entrySet()) {
+                volumeKeys.getValue().values().retainAll(remaining);
+                if (!volumeKeys.getValue().isEmpty()) {
+                    volumeKeys.getKey().store.deleteExisting(volumeKeys.getValue().keySet());
+                }
+            }
+            if (legacyStore != null) {
+                legacyStore.deleteExisting(remaining);
+            }
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                locks[stripes[i]].unlock();
+            }
+        }
+    }
+
+    /**
+     * Папка ключей лежит на каждом томе под своим именем, поэтому удаляется целиком без обхода всех файлов
+     */
+    @Override
+    public long deleteAll(String prefix) throws IOException {
+        if (!prefix.endsWith(SEPARATOR)) {
+            List<BlobStat> blobs = list(prefix);
+            delete(blobs.stream().map(BlobStat::getKey).collect(Collectors.toList()));
+            return blobs.stream().mapToLong(BlobStat::getLength).sum();
+        }
+        long length = 0;
+        for (Volume volume : volumes) {
+            length += volume.store.deleteAll(prefix);
+        }
+        if (legacyStore != null) {
+            length += legacyStore.deleteAll(prefix);
+        }
+        return length;
+    }
+
+    @Override
+    public List<BlobStat> list(String prefix) throws IOException {
+        String folder = prefix.substring(0, prefix.lastIndexOf(SEPARATOR) + 1);
+        Map<String, BlobStat> blobs = new LinkedHashMap<>();
+        for (Volume volume : volumes) {
+            for (BlobStat stat : volume.store.list(folder)) {
+                String key = getLogicalKey(stat.getKey());
+                if (key != null && key.startsWith(prefix)) {
+                    blobs.putIfAbsent(key, new BlobStat(key, stat.getLength(), stat.getLastModified()));
+                }
+            }
+        }
+        if (legacyStore != null) {
+            for (BlobStat stat : legacyStore.list(prefix)) {
+                blobs.putIfAbsent(stat.getKey(), stat);
+            }
+        }
+        return new ArrayList<>(blobs.values());
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Перенос файлов на свои места: с томов, не входящих в число кандидатов для ключа,
+     * и из прежнего каталога. Перенос и запись одного ключа исключают друг друга
+     *
+     * @param listener получает каждый перенесенный файл и может остановить ребалансировку
+     * @throws IOException
+     */
+    public void rebalance(RebalanceListener listener) throws IOException {
+        for (Volume volume : volumes) {
+            if (!walk(volume.store, true, listener)) {
+                return;
+            }
+        }
+        if (legacyStore != null && Files.isDirectory(legacyStore.getRoot())) {
+            walk(legacyStore, false, listener);
+        }
+    }
+
+    /**
+     * Сведения о томах: свободное и общее место, число открытых потоков
+     *
+     * @return
+     */
+    public Map<String, Object> getVolumeStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        for (Volume volume : volumes) {
+            Map<String, Object> volumeStatistics = new LinkedHashMap<>();
+            try {
+                volumeStatistics.put("usableBytes", Files.getFileStore(volume.store.getRoot()).getUsableSpace());
+                volumeStatistics.put("totalBytes", Files.getFileStore(volume.store.getRoot()).getTotalSpace());
+            } catch (IOException e) {
+                volumeStatistics.put("error", e.getMessage());
+            }
+            volumeStatistics.put("activeStreams", volume.active.get());
+            statistics.put(volume.store.getRoot().toString(), volumeStatistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * Обход файлов одного тома или прежнего каталога с переносом файлов не на своем месте.
+     * Опустевшие каталоги прежнего каталога удаляются
+     *
+     * @param store
+     * @param sharded
+     * @param listener
+     * @return false, если ребалансировка остановлена
+     * @throws IOException
+     */
+    private boolean walk(LocalBlobStore store, boolean sharded, RebalanceListener listener) throws IOException {
+        boolean[] stopped = new boolean[1];
+        Files.walkFileTree(store.getRoot(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String key = sharded ? getLogicalKey(store.getKey(file)) : store.getKey(file);
+                if (key == null || !relocate(key, sharded ? getVolume(store) : null, file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (!listener.moved(key, attributes.size())) {
+                    stopped[0] = true;
+                    return FileVisitResult.TERMINATE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                if (!sharded && !dir.equals(store.getRoot())) {
+                    try {
+                        Files.delete(dir);
+                    } catch (DirectoryNotEmptyException ignored) {
+                        // в каталоге остались файлы
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return !stopped[0];
+    }
+
+    /**
+     * Перенос файла на выбранный для ключа том, если файл лежит не на одном из кандидатов
+     *
+     * @param key
+     * @param current том файла или null для прежнего каталога
+     * @param file
+     * @return true, если файл перенесен
+     * @throws IOException
+     */
+    private boolean relocate(String key, Volume current, Path file) throws IOException {
+        if (current != null && rankVolumes(key).subList(0, candidates).contains(current)) {
+            return false;
+        }
+        Volume target = chooseVolume(key);
+        if (target == current) {
+            return false;
+        }
+        ReentrantLock lock = getLock(key);
+        lock.lock();
+        try {
+            if (!Files.exists(file)) {
+                return false;
+            }
+            target.store.putFile(getPhysicalKey(key), file);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Том для записи: кандидат с наибольшим свободным местом на один открытый поток.
+     * Если у всех кандидатов места меньше порога, берется первый по порядку том с местом
+     *
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    private Volume chooseVolume(String key) throws IOException {
+        List<Volume> ranked = rankVolumes(key);
+        Volume best = null;
+        double bestScore = -1;
+        for (Volume volume : ranked.subList(0, candidates)) {
+            long usable = getUsableSpace(volume);
+            double score = (double) usable / (1 + volume.active.get());
+            if (usable > minFreeSpace && score > bestScore) {
+                best = volume;
+                bestScore = score;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        for (Volume volume : ranked.subList(candidates, ranked.size())) {
+            if (getUsableSpace(volume) > minFreeSpace) {
+                logger.info(String.format("Кандидаты для ключа %s заполнены, файл записывается на том %s", key, volume.store.getRoot()));
+                return volume;
+            }
+        }
+        throw new IOException(String.format("Нет свободного места ни на одном томе для ключа %s", key));
+    }
+
+    private long getUsableSpace(Volume volume) throws IOException {
+        return Files.getFileStore(volume.store.getRoot()).getUsableSpace();
+    }
+
+    /**
+     * Порядок томов для ключа по рандеву-хешированию: при добавлении тома меняется место
+     * только тех ключей, для которых новый том оказался среди первых
+     *
+     * @param key
+     * @return
+     */
+    private List<Volume> rankVolumes(String key) {
+        Map<Volume, Long> weights = new LinkedHashMap<>();
+        for (Volume volume : volumes) {
+            byte[] hash = hash(volume.store.getRoot() + SEPARATOR + key);
+            long weight = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                weight = (weight << 8) | (hash[i] & 0xff);
+            }
+            weights.put(volume, weight);
+        }
+        List<Volume> ranked = new ArrayList<>(volumes);
+        ranked.sort(Comparator.comparing(weights::get, Comparator.reverseOrder()));
+        return ranked;
+    }
+
+    /**
+     * Удаление копий ключа со всех томов, кроме указанного, и из прежнего каталога
+     *
+     * @param key
+     * @param keep
+     * @throws IOException
+     */
+    private void deleteCopies(String key, Volume keep) throws IOException {
+        String physicalKey = getPhysicalKey(key);
+        for (Volume volume : volumes) {
+            if (volume != keep) {
+                volume.store.delete(physicalKey);
+            }
+        }
+        if (legacyStore != null) {
+            legacyStore.delete(key);
+        }
+    }
+
+    /**
+     * Путь на томе: каталоги ключа, два уровня по байтам хеша ключа, имя
+     *
+     * @param key
+     * @return
+     */
+    private String getPhysicalKey(String key) {
+        byte[] hash = hash(key);
+        int lastSeparator = key.lastIndexOf(SEPARATOR);
+        StringBuilder builder = new StringBuilder(key.substring(0, lastSeparator + 1));
+        for (int i = 0; i < FAN_OUT_LEVELS; i++) {
+            builder.append(String.format("%02x", hash[i])).append(SEPARATOR);
+        }
+        return builder.append(key.substring(lastSeparator + 1)).toString();
+    }
+
+    /**
+     * Ключ по пути на томе
+     *
+     * @param physicalKey
+     * @return ключ или null, если путь не похож на путь хранилища
+     */
+    private String getLogicalKey(String physicalKey) {
+        String[] parts = physicalKey.split(SEPARATOR);
+        if (parts.length <= FAN_OUT_LEVELS) {
+            return null;
+        }
+        List<String> keyParts = new ArrayList<>();
+        for (int i = 0; i < parts.length - FAN_OUT_LEVELS - 1; i++) {
+            keyParts.add(parts[i]);
+        }
+        keyParts.add(parts[parts.length - 1]);
+        return String.join(SEPARATOR, keyParts);
+    }
+
+    private Volume getVolume(LocalBlobStore store) {
+        for (Volume volume : volumes) {
+            if (volume.store == store) {
+                return volume;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Том %s не найден", store.getRoot()));
+    }
+
+    private ReentrantLock getLock(String key) {
+        return locks[getStripe(key)];
+    }
+
+    private int getStripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES;
+    }
+
+    private byte[] hash(String value) {
+        try {
+            return MessageDigest.getInstance(HASH_TYPE).digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Получатель перенесенных ребалансировкой файлов
+     */
+    @FunctionalInterface
+    public interface RebalanceListener {
+
+        /**
+         * @param key
+         * @param length
+         * @return false, чтобы остановить ребалансировку
+         */
+        boolean moved(String key, long length);
+    }
+
+    /**
+     * Том и число открытых на нем потоков чтения и записи
+     */
+    private static class Volume {
+
+        private final LocalBlobStore store;
+
+        private final AtomicInteger active = new AtomicInteger();
+
+        private Volume(LocalBlobStore store) {
+            this.store = store;
+        }
+
+        private InputStream track(InputStream inputStream) {
+            active.incrementAndGet();
+            return new FilterInputStream(inputStream) {
+
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed) {
+                        closed = true;
+                        active.decrementAndGet();
+                    }
+                    super.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * Запись на выбранный том. Подтверждение под блокировкой ключа удаляет копии ключа
+     * на других томах, чтобы чтение не нашло прежнее содержимое
+     */
+    private class ShardedOutputStream extends BlobOutputStream {
+
+        private final String key;
+
+        private final Volume volume;
+
+        private final BlobOutputStream outputStream;
+
+        private boolean closed;
+
+        private ShardedOutputStream(String key, Volume volume, BlobOutputStream outputStream) {
+            this.key = key;
+            this.volume = volume;
+            this.outputStream = outputStream;
+            volume.active.incrementAndGet();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            outputStream.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            outputStream.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        @Override
+        public void commit() throws IOException {
+            ReentrantLock lock = getLock(key);
+            lock.lock();
+            try {
+                outputStream.commit();
+                deleteCopies(key, volume);
+            } finally {
+                lock.unlock();
+                release();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                outputStream.close();
+            } finally {
+                release();
+            }
+        }
+
+        private void release() {
+            if (!closed) {
+                closed = true;
+                volume.active.decrementAndGet();
+            }
+        }
+    }
+}
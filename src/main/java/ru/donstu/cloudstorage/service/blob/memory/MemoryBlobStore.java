@@ -0,0 +1,146 @@
+package ru.donstu.cloudstorage.service.blob.memory;
+
+import ru.donstu.cloudstorage.service.blob.BlobOutputStream;
+import ru.donstu.cloudstorage.service.blob.BlobStat;
+import ru.donstu.cloudstorage.service.blob.BlobStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Хранилище в памяти процесса для тестов и локального запуска, содержимое теряется при остановке
+ *
+ * @author v.solomasov
+ */
+public class MemoryBlobStore implements BlobStore {
+
+    private final ConcurrentSkipListMap<String, Blob> blobs = new ConcurrentSkipListMap<>();
+
+    @Override
+    public BlobOutputStream put(String key) {
+        return new MemoryOutputStream(key);
+    }
+
+    @Override
+    public void putFile(String key, Path source) throws IOException {
+        blobs.put(key, new Blob(Files.readAllBytes(source)));
+        Files.delete(source);
+    }
+
+    @Override
+    public InputStream get(String key, long from, long to) throws IOException {
+        Blob blob = blobs.get(key);
+        if (blob == null) {
+            throw new NoSuchFileException(key);
+        }
+        int start = (int) Math.min(from, blob.data.length);
+        int end = (int) Math.min(to, blob.data.length);
+        return new ByteArrayInputStream(blob.data, start, Math.max(0, end - start));
+    }
+
+    @Override
+    public BlobStat stat(String key) {
+        Blob blob = blobs.get(key);
+        return blob == null ? null : new BlobStat(key, blob.data.length, blob.lastModified);
+    }
+
+    @Override
+    public void delete(String key) {
+        blobs.remove(key);
+    }
+
+    @Override
+    public void delete(Collection<String> keys) {
+        keys.forEach(blobs::remove);
+    }
+
+    @Override
+    public long deleteAll(String prefix) {
+        long length = 0;
+        NavigableMap<String, Blob> range = getRange(prefix);
+        for (String key : new ArrayList<>(range.keySet())) {
+            Blob blob = blobs.remove(key);
+            if (blob != null) {
+                length += blob.data.length;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public List<BlobStat> list(String prefix) {
+        List<BlobStat> stats = new ArrayList<>();
+        getRange(prefix).forEach((key, blob) -> stats.add(new BlobStat(key, blob.data.length, blob.lastModified)));
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        blobs.clear();
+    }
+
+    private NavigableMap<String, Blob> getRange(String prefix) {
+        return blobs.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private static class Blob {
+
+        private final byte[] data;
+
+        private final long lastModified;
+
+        private Blob(byte[] data) {
+            this.data = data;
+            this.lastModified = System.currentTimeMillis();
+        }
+    }
+
+    private class MemoryOutputStream extends BlobOutputStream {
+
+        private final String key;
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private MemoryOutputStream(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            getBuffer().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            getBuffer().write(b, off, len);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            blobs.put(key, new Blob(getBuffer().toByteArray()));
+            buffer = null;
+        }
+
+        @Override
+        public void close() {
+            buffer = null;
+        }
+
+        private ByteArrayOutputStream getBuffer() throws IOException {
+            if (buffer == null) {
+                throw new IOException(String.format("Запись %s уже завершена", key));
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package ru.donstu.cloudstorage.service.blob.s3;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.apache.log4j.Logger;
+import ru.donstu.cloudstorage.service.blob.BlobOutputStream;
+import ru.donstu.cloudstorage.service.blob.BlobStat;
+import ru.donstu.cloudstorage.service.blob.BlobStore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Хранилище в S3-совместимом сервисе (адрес в стиле пути, подходит и для локальной замены S3).
+ * Объект меньше одной части записывается одним запросом, больший - составной загрузкой:
+ * части отправляются параллельно, число частей в памяти на один поток записи ограничено.
+ * Буфер первой части растет по мере записи, поэтому небольшой объект занимает память по размеру
+ * содержимого. Буферы следующих частей берутся из общего ограниченного пула: при его исчерпании
+ * запись ждет отправки частей других потоков, и память под части не растет с числом загрузок
+ *
+ * @author v.solomasov
+ */
+public class S3BlobStore implements BlobStore {
+
+    private static final Logger logger = Logger.getLogger(S3BlobStore.class);
+
+    private static final int NOT_FOUND = 404;
+
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    private static final int DELETE_BATCH = 1000;
+
+    private final AmazonS3Client client;
+
+    private final String bucket;
+
+    private final int partSize;
+
+    private final int concurrency;
+
+    private final int bufferSize;
+
+    private final ExecutorService uploadExecutor;
+
+    private final Semaphore partBuffers;
+
+    private final Deque<byte[]> freeBuffers = new ArrayDeque<>();
+
+    public S3BlobStore(String endpoint, String region, String bucket, String accessKey, String secretKey,
+                       int partSize, int concurrency, int bufferSize, int partBuffers) {
+        this.client = new AmazonS3Client(new BasicAWSCredentials(accessKey, secretKey),
+                new ClientConfiguration().withMaxConnections(2 * concurrency));
+        this.client.setEndpoint(endpoint);
+        this.client.setSignerRegionOverride(region);
+        this.client.setS3ClientOptions(S3ClientOptions.builder().setPathStyleAccess(true).build());
+        this.bucket = bucket;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.bufferSize = bufferSize;
+        this.partBuffers = new Semaphore(partBuffers);
+        AtomicInteger counter = new AtomicInteger();
+        this.uploadExecutor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "s3-upload-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public BlobOutputStream put(String key) {
+        return new S3OutputStream(key);
+    }
+
+    @Override
+    public void putFile(String key, Path source) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(source);
+             BlobOutputStream outputStream = put(key)) {
+            byte[] buffer = new byte[bufferSize];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            outputStream.commit();
+        }
+        Files.delete(source);
+    }
+
+    @Override
+    public InputStream get(String key, long from, long to) throws IOException {
+        if (from >= to) {
+            if (stat(key) == null) {
+                throw new NoSuchFileException(key);
+            }
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        GetObjectRequest request = new GetObjectRequest(bucket, key);
+        if (from > 0 || to < Long.MAX_VALUE) {
+            request.setRange(from, to - 1);
+        }
+        try {
+            S3Object object = client.getObject(request);
+            return new BufferedInputStream(object.getObjectContent(), bufferSize);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == NOT_FOUND) {
+                throw new NoSuchFileException(key);
+            }
+            if (e.getStatusCode() == RANGE_NOT_SATISFIABLE) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            throw new IOException(String.format("Ошибка чтения объекта %s: %s", key, e.getMessage()), e);
+        }
+    }
+
+    @Override
+    public BlobStat stat(String key) throws IOException {
+        try {
+            ObjectMetadata metadata = client.getObjectMetadata(bucket, key);
+            return new BlobStat(key, metadata.getContentLength(), metadata.getLastModified().getTime());
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == NOT_FOUND) {
+                return null;
+            }
+            throw new IOException(String.format("Ошибка чтения сведений об объекте %s: %s", key, e.getMessage()), e);
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        try {
+            client.deleteObject(bucket, key);
+        } catch (AmazonServiceException e) {
+            throw new IOException(String.format("Ошибка удаления объекта %s: %s", key, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Удаление запросами DeleteObjects не более чем по {@value #DELETE_BATCH} ключей
+     *
+     * @param keys
+     * @throws IOException
+     */
+    @Override
+    public void delete(Collection<String> keys) throws IOException {
+        List<DeleteObjectsRequest.KeyVersion> batch = new ArrayList<>();
+        for (String key : keys) {
+            batch.add(new DeleteObjectsRequest.KeyVersion(key));
+            if (batch.size() == DELETE_BATCH) {
+                deleteObjects(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            deleteObjects(batch);
+        }
+    }
+
+    @Override
+    public long deleteAll(String prefix) throws IOException {
+        List<BlobStat> blobs = list(prefix);
+        List<String> keys = new ArrayList<>();
+        long length = 0;
+        for (BlobStat blob : blobs) {
+            keys.add(blob.getKey());
+            length += blob.getLength();
+        }
+        delete(keys);
+        return length;
+    }
+
+    @Override
+    public List<BlobStat> list(String prefix) throws IOException {
+        List<BlobStat> blobs = new ArrayList<>();
+        try {
+            ObjectListing listing = client.listObjects(bucket, prefix);
+            while (true) {
+                for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                    blobs.add(new BlobStat(summary.getKey(), summary.getSize(), summary.getLastModified().getTime()));
+                }
+                if (!listing.isTruncated()) {
+                    return blobs;
+                }
+                listing = client.listNextBatchOfObjects(listing);
+            }
+        } catch (AmazonServiceException e) {
+            throw new IOException(String.format("Ошибка получения списка объектов %s: %s", prefix, e.getMessage()), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        uploadExecutor.shutdown();
+        client.shutdown();
+    }
+
+    /**
+     * Буфер части из общего пула, ожидание, если все буферы заняты
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    private byte[] acquireBuffer() throws InterruptedException {
+        partBuffers.acquire();
+        synchronized (freeBuffers) {
+            byte[] buffer = freeBuffers.poll();
+            return buffer != null ? buffer : new byte[partSize];
+        }
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        synchronized (freeBuffers) {
+            freeBuffers.push(buffer);
+        }
+        partBuffers.release();
+    }
+
+    private void deleteObjects(List<DeleteObjectsRequest.KeyVersion> keys) throws IOException {
+        try {
+            client.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(new ArrayList<>(keys)).withQuiet(true));
+        } catch (AmazonServiceException e) {
+            throw new IOException(String.format("Ошибка группового удаления %d объектов: %s", keys.size(), e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Запись частями. Заполненная часть отправляется в пул, при исчерпании разрешений
+     * поток записи ждет отправки предыдущих частей. Буфер части выделяется при первой записи в нее,
+     * буфер из общего пула возвращается после отправки части
+     */
+    private class S3OutputStream extends BlobOutputStream {
+
+        private final String key;
+
+        private final Semaphore permits = new Semaphore(concurrency);
+
+        private final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+
+        private byte[] buffer;
+
+        private boolean pooled;
+
+        private int position;
+
+        private String uploadId;
+
+        private boolean closed;
+
+        private S3OutputStream(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException(String.format("Запись %s уже завершена", key));
+            }
+            while (len > 0) {
+                ensureCapacity(position + len);
+                int count = Math.min(len, buffer.length - position);
+                System.arraycopy(b, off, buffer, position, count);
+                position += count;
+                off += count;
+                len -= count;
+                if (position == partSize) {
+                    uploadPart();
+                }
+            }
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (closed) {
+                throw new IOException(String.format("Запись %s уже завершена", key));
+            }
+            closed = true;
+            try {
+                if (uploadId == null) {
+                    ObjectMetadata metadata = new ObjectMetadata();
+                    metadata.setContentLength(position);
+                    InputStream content = buffer == null ? new ByteArrayInputStream(new byte[0]) : new ByteArrayInputStream(buffer, 0, position);
+                    client.putObject(new PutObjectRequest(bucket, key, content, metadata));
+                    return;
+                }
+                if (position > 0) {
+                    uploadPart();
+                }
+                List<PartETag> partETags = new ArrayList<>();
+                for (CompletableFuture<PartETag> part : parts) {
+                    partETags.add(part.get());
+                }
+                client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+            } catch (IOException e) {
+                abort();
+                throw e;
+            } catch (AmazonServiceException e) {
+                abort();
+                throw new IOException(String.format("Ошибка записи объекта %s: %s", key, e.getMessage()), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort();
+                throw new InterruptedIOException(String.format("Запись объекта %s прервана", key));
+            } catch (ExecutionException e) {
+                abort();
+                throw new IOException(String.format("Ошибка записи части объекта %s: %s", key, e.getCause().getMessage()), e.getCause());
+            } finally {
+                dropBuffer();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            dropBuffer();
+            abort();
+        }
+
+        /**
+         * Буфер первой части растет вдвое от размера буфера чтения до размера части,
+         * буферы следующих частей - полного размера из общего пула
+         *
+         * @param capacity
+         * @throws IOException
+         */
+        private void ensureCapacity(int capacity) throws IOException {
+            if (buffer != null && (capacity <= buffer.length || buffer.length == partSize)) {
+                return;
+            }
+            if (buffer == null && uploadId != null) {
+                try {
+                    buffer = acquireBuffer();
+                    pooled = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(String.format("Запись объекта %s прервана", key));
+                }
+                return;
+            }
+            int length = buffer == null ? 0 : buffer.length;
+            int size = Math.min(partSize, Math.max(capacity, Math.max(bufferSize, length * 2)));
+            buffer = buffer == null ? new byte[size] : Arrays.copyOf(buffer, size);
+        }
+
+        private void dropBuffer() {
+            if (buffer != null && pooled) {
+                releaseBuffer(buffer);
+            }
+            buffer = null;
+            pooled = false;
+        }
+
+        private void uploadPart() throws IOException {
+            try {
+                if (uploadId == null) {
+                    uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+                }
+                permits.acquire();
+            } catch (AmazonServiceException e) {
+                throw new IOException(String.format("Ошибка начала записи объекта %s: %s", key, e.getMessage()), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(String.format("Запись объекта %s прервана", key));
+            }
+            UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucket)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(parts.size() + 1)
+                    .withInputStream(new ByteArrayInputStream(buffer, 0, position))
+                    .withPartSize(position);
+            byte[] partBuffer = buffer;
+            boolean partPooled = pooled;
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return client.uploadPart(request).getPartETag();
+                } finally {
+                    if (partPooled) {
+                        releaseBuffer(partBuffer);
+                    }
+                    permits.release();
+                }
+            }, uploadExecutor));
+            buffer = null;
+            pooled = false;
+            position = 0;
+        }
+
+        /**
+         * Отмена составной загрузки после завершения отправленных частей,
+         * иначе сервис сохранит части, пришедшие после отмены
+         */
+        private void abort() {
+            if (uploadId == null) {
+                return;
+            }
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).handle((result, e) -> null).join();
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            } catch (AmazonServiceException e) {
+                logger.info(String.format("Составная загрузка %s объекта %s не отменена: %s", uploadId, key, e.getMessage()));
+            }
+            uploadId = null;
+        }
+    }
+}
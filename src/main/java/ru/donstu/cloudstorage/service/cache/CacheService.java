@@ -0,0 +1,30 @@
+package ru.donstu.cloudstorage.service.cache;
+
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+
+/**
+ * Управление кэшем второго уровня Hibernate
+ *
+ * @author v.solomasov
+ */
+public interface CacheService {
+
+    /**
+     * Включен ли кэш второго уровня
+     *
+     * @return
+     */
+    boolean isEnabled();
+
+    /**
+     * Вытеснение аккаунта и записи его естественного идентификатора, остальные аккаунты остаются в кэше
+     *
+     * @param account
+     */
+    void evictAccount(Account account);
+
+    /**
+     * Полная очистка, например после изменения данных в базе в обход приложения
+     */
+    void evictAll();
+}
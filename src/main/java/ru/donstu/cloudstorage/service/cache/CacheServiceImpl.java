@@ -0,0 +1,123 @@
+package ru.donstu.cloudstorage.service.cache;
+
+import org.apache.log4j.Logger;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.cache.spi.access.NaturalIdRegionAccessStrategy;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.stereotype.Service;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Реализация интерфейса {@link CacheService}.
+ * Статистика выдается по каждому региону: попадания, промахи, доля попаданий и число записей,
+ * для естественных идентификаторов и запросов вместо числа записей - число помещений в кэш
+ *
+ * @author v.solomasov
+ */
+@Service
+public class CacheServiceImpl implements CacheService, StatisticsProvider {
+
+    private static final Logger logger = Logger.getLogger(CacheServiceImpl.class);
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+
+    private SessionFactory sessionFactory;
+
+    @PostConstruct
+    public void init() {
+        sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return sessionFactory.getSessionFactoryOptions().isSecondLevelCacheEnabled();
+    }
+
+    @Override
+    public void evictAccount(Account account) {
+        if (isEnabled()) {
+            sessionFactory.getCache().evictEntity(Account.class, account.getId());
+            if (account.getName() != null) {
+                evictNaturalId(account.getName());
+            }
+        }
+    }
+
+    @Override
+    public void evictAll() {
+        if (isEnabled()) {
+            sessionFactory.getCache().evictAllRegions();
+            logger.info("Кэш второго уровня очищен");
+        }
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "hibernateCache";
+    }
+
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", isEnabled());
+        if (!isEnabled()) {
+            return statistics;
+        }
+        Statistics hibernateStatistics = sessionFactory.getStatistics();
+        String[] regions = hibernateStatistics.getSecondLevelCacheRegionNames();
+        Arrays.sort(regions);
+        for (String region : regions) {
+            SecondLevelCacheStatistics regionStatistics = hibernateStatistics.getSecondLevelCacheStatistics(region);
+            if (regionStatistics != null) {
+                putRegion(statistics, region, regionStatistics.getHitCount(), regionStatistics.getMissCount(),
+                        regionStatistics.getElementCountInMemory());
+            }
+        }
+        putRegion(statistics, "naturalIds", hibernateStatistics.getNaturalIdCacheHitCount(), hibernateStatistics.getNaturalIdCacheMissCount(),
+                hibernateStatistics.getNaturalIdCachePutCount());
+        putRegion(statistics, "queries", hibernateStatistics.getQueryCacheHitCount(), hibernateStatistics.getQueryCacheMissCount(),
+                hibernateStatistics.getQueryCachePutCount());
+        return statistics;
+    }
+
+    /**
+     * Вытеснение одной записи естественного идентификатора: ключ записи строится стратегией доступа
+     * к региону, для этого нужна сессия, но без обращения к базе
+     *
+     * @param name
+     */
+    private void evictNaturalId(String name) {
+        EntityPersister persister = sessionFactory.unwrap(SessionFactoryImplementor.class).getMetamodel().entityPersister(Account.class);
+        NaturalIdRegionAccessStrategy accessStrategy = persister.getNaturalIdCacheAccessStrategy();
+        if (accessStrategy == null) {
+            return;
+        }
+        StatelessSession session = sessionFactory.openStatelessSession();
+        try {
+            accessStrategy.evict(accessStrategy.generateCacheKey(new Object[]{name}, persister, (SharedSessionContractImplementor) session));
+        } finally {
+            session.close();
+        }
+    }
+
+    private void putRegion(Map<String, Object> statistics, String region, long hits, long misses, long size) {
+        statistics.put(region + ".hits", hits);
+        statistics.put(region + ".misses", misses);
+        statistics.put(region + ".ratio", hits + misses == 0 ? "-" : String.format("%.2f", (double) hits / (hits + misses)));
+        statistics.put(region + ".size", size);
+    }
+}
@@ -0,0 +1,52 @@
+package ru.donstu.cloudstorage.service.compression;
+
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+
+import java.io.IOException;
+
+/**
+ * Сжатие содержимого файлов перед шифрованием. Сжимается каждый сегмент отдельно,
+ * поэтому диапазон файла читается без распаковки предыдущих сегментов
+ *
+ * @author v.solomasov
+ */
+public interface CompressionService {
+
+    /**
+     * Выбор кодека по имени файла и первому сегменту содержимого (у короткого файла - всему содержимому)
+     *
+     * @param fileName
+     * @param segment
+     * @return кодек или null, если файл не нужно сжимать
+     */
+    CompressionCodec selectCodec(String fileName, byte[] segment);
+
+    /**
+     * Выбор кодека по имени и длине файла, содержимое которого еще не получено (загрузка по частям).
+     * Сегменты, которые не сжимаются, хранятся как есть
+     *
+     * @param fileName
+     * @param fileLength
+     * @return кодек или null, если файл не нужно сжимать
+     */
+    CompressionCodec selectCodec(String fileName, long fileLength);
+
+    /**
+     * Сжатие сегмента
+     *
+     * @param segment
+     * @param codec
+     * @return сжатый сегмент или null, если выигрыш меньше порога и сегмент нужно хранить как есть
+     */
+    byte[] compressSegment(byte[] segment, CompressionCodec codec);
+
+    /**
+     * Распаковка сегмента
+     *
+     * @param data
+     * @param plainLength длина открытого текста сегмента
+     * @return
+     * @throws IOException если данные не распаковываются ровно в plainLength байт
+     */
+    byte[] decompressSegment(byte[] data, int plainLength) throws IOException;
+}
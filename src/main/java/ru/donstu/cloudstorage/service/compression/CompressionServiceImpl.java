@@ -0,0 +1,323 @@
+package ru.donstu.cloudstorage.service.compression;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.BUFFER_SIZE;
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+import static ru.donstu.cloudstorage.service.archive.ZipArchiveInputStream.isCompressedType;
+
+/**
+ * Реализация интерфейса {@link CompressionService}.
+ * Файл не сжимается, если он меньше порога, если его тип уже сжат (по расширению или сигнатуре
+ * в начале содержимого) или если пробное быстрое сжатие начала файла дает выигрыш меньше порога.
+ * Текст сжимается со стандартным уровнем, остальное - с быстрым. Сегмент хранится сжатым, только
+ * если его выигрыш не меньше того же порога. По каждому кодеку считаются объемы до и после сжатия
+ * и процессорное время сжатия, по распаковке - общие объем и время
+ *
+ * @author v.solomasov
+ */
+@Service
+@PropertySource(RESOURCES_PROPERTY)
+public class CompressionServiceImpl implements CompressionService, StatisticsProvider {
+
+    private static final String ENABLED = "compression.enabled";
+
+    private static final String SAMPLE_SIZE = "compression.sample_size";
+
+    private static final String MIN_LENGTH = "compression.min_length";
+
+    private static final String MAX_RATIO = "compression.max_ratio";
+
+    private static final double TEXT_SHARE = 0.95;
+
+    private static final int MP4_SIGNATURE_OFFSET = 4;
+
+    private static final byte[] MP4_SIGNATURE = {'f', 't', 'y', 'p'};
+
+    private static final List<byte[]> COMPRESSED_SIGNATURES = Arrays.asList(
+            new byte[]{0x1f, (byte) 0x8b},
+            new byte[]{'P', 'K', 0x03, 0x04},
+            new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff},
+            new byte[]{(byte) 0x89, 'P', 'N', 'G'},
+            new byte[]{'G', 'I', 'F', '8'},
+            new byte[]{'7', 'z', (byte) 0xbc, (byte) 0xaf},
+            new byte[]{'R', 'a', 'r', '!'},
+            new byte[]{(byte) 0xfd, '7', 'z', 'X', 'Z'},
+            new byte[]{'B', 'Z', 'h'},
+            new byte[]{0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},
+            new byte[]{0x04, 0x22, 0x4d, 0x18},
+            new byte[]{'I', 'D', '3'},
+            new byte[]{'O', 'g', 'g', 'S'},
+            new byte[]{'f', 'L', 'a', 'C'});
+
+    @Autowired
+    private Environment environment;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private final Map<CompressionCodec, CodecStatistics> codecStatistics = new EnumMap<>(CompressionCodec.class);
+
+    private final AtomicLong skippedSmall = new AtomicLong();
+
+    private final AtomicLong skippedType = new AtomicLong();
+
+    private final AtomicLong skippedSample = new AtomicLong();
+
+    private final AtomicLong decompressedBytes = new AtomicLong();
+
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    private boolean enabled;
+
+    private int sampleSize;
+
+    private int minLength;
+
+    private double maxRatio;
+
+    @PostConstruct
+    public void init() {
+        enabled = Boolean.valueOf(environment.getRequiredProperty(ENABLED));
+        sampleSize = Integer.valueOf(environment.getRequiredProperty(SAMPLE_SIZE));
+        minLength = Integer.valueOf(environment.getRequiredProperty(MIN_LENGTH));
+        maxRatio = Double.valueOf(environment.getRequiredProperty(MAX_RATIO));
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            codecStatistics.put(codec, new CodecStatistics());
+        }
+    }
+
+    @Override
+    public CompressionCodec selectCodec(String fileName, byte[] segment) {
+        if (!enabled) {
+            return null;
+        }
+        if (isCompressedType(fileName)) {
+            skippedType.incrementAndGet();
+            return null;
+        }
+        int length = Math.min(segment.length, sampleSize);
+        if (length < minLength) {
+            skippedSmall.incrementAndGet();
+            return null;
+        }
+        if (isCompressedContent(segment, length)) {
+            skippedType.incrementAndGet();
+            return null;
+        }
+        if (getSampleRatio(segment, length) > maxRatio) {
+            skippedSample.incrementAndGet();
+            return null;
+        }
+        return isText(segment, length) ? CompressionCodec.DEFLATE : CompressionCodec.DEFLATE_FAST;
+    }
+
+    @Override
+    public CompressionCodec selectCodec(String fileName, long fileLength) {
+        if (!enabled) {
+            return null;
+        }
+        if (isCompressedType(fileName)) {
+            skippedType.incrementAndGet();
+            return null;
+        }
+        if (fileLength < minLength) {
+            skippedSmall.incrementAndGet();
+            return null;
+        }
+        return CompressionCodec.DEFLATE_FAST;
+    }
+
+    @Override
+    public byte[] compressSegment(byte[] segment, CompressionCodec codec) {
+        CodecStatistics statistics = codecStatistics.get(codec);
+        int limit = (int) (segment.length * maxRatio);
+        byte[] buffer = new byte[limit + 1];
+        int length = 0;
+        boolean finished;
+        long start = getCpuTime();
+        Deflater deflater = new Deflater(codec.getLevel(), true);
+        try {
+            deflater.setInput(segment);
+            deflater.finish();
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            finished = deflater.finished();
+        } finally {
+            deflater.end();
+            statistics.compressNanos.addAndGet(getCpuTime() - start);
+        }
+        byte[] compressed = finished && length <= limit ? Arrays.copyOf(buffer, length) : null;
+        statistics.segments.incrementAndGet();
+        statistics.plainBytes.addAndGet(segment.length);
+        if (compressed == null) {
+            statistics.storedBytes.addAndGet(segment.length);
+        } else {
+            statistics.compressedSegments.incrementAndGet();
+            statistics.storedBytes.addAndGet(compressed.length);
+        }
+        return compressed;
+    }
+
+    @Override
+    public byte[] decompressSegment(byte[] data, int plainLength) throws IOException {
+        byte[] segment = new byte[plainLength];
+        int length = 0;
+        long start = getCpuTime();
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            while (length < plainLength && !inflater.finished() && !inflater.needsInput()) {
+                length += inflater.inflate(segment, length, plainLength - length);
+            }
+            boolean longer = length == plainLength && !inflater.finished() && inflater.inflate(new byte[1]) > 0;
+            if (longer || length != plainLength || !inflater.finished()) {
+                throw new IOException(String.format("Сегмент распакован в %d байт вместо %d", length, plainLength));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Сегмент не распаковывается", e);
+        } finally {
+            inflater.end();
+            decompressNanos.addAndGet(getCpuTime() - start);
+        }
+        decompressedBytes.addAndGet(plainLength);
+        return segment;
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "compression";
+    }
+
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", enabled);
+        statistics.put("skippedSmall", skippedSmall.get());
+        statistics.put("skippedCompressedType", skippedType.get());
+        statistics.put("skippedIncompressible", skippedSample.get());
+        for (Map.Entry<CompressionCodec, CodecStatistics> entry : codecStatistics.entrySet()) {
+            CodecStatistics codec = entry.getValue();
+            long plainBytes = codec.plainBytes.get();
+            long storedBytes = codec.storedBytes.get();
+            long compressNanos = codec.compressNanos.get();
+            String prefix = entry.getKey().name() + ".";
+            statistics.put(prefix + "segments", codec.segments.get());
+            statistics.put(prefix + "compressedSegments", codec.compressedSegments.get());
+            statistics.put(prefix + "plainBytes", plainBytes);
+            statistics.put(prefix + "storedBytes", storedBytes);
+            statistics.put(prefix + "ratio", storedBytes == 0 ? 0.0 : (double) plainBytes / storedBytes);
+            statistics.put(prefix + "compressCpuMillis", compressNanos / 1_000_000);
+            statistics.put(prefix + "compressMbPerCpuSecond", compressNanos == 0 ? 0.0 : plainBytes * 1000.0 / compressNanos);
+        }
+        long nanos = decompressNanos.get();
+        statistics.put("decompressedBytes", decompressedBytes.get());
+        statistics.put("decompressCpuMillis", nanos / 1_000_000);
+        statistics.put("decompressMbPerCpuSecond", nanos == 0 ? 0.0 : decompressedBytes.get() * 1000.0 / nanos);
+        return statistics;
+    }
+
+    /**
+     * Доля размера после быстрого сжатия начала файла
+     *
+     * @param sample
+     * @param length
+     * @return
+     */
+    private double getSampleRatio(byte[] sample, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                deflater.deflate(buffer);
+            }
+            return (double) deflater.getBytesWritten() / length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private boolean isCompressedContent(byte[] sample, int length) {
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (startsWith(sample, length, 0, signature)) {
+                return true;
+            }
+        }
+        return startsWith(sample, length, MP4_SIGNATURE_OFFSET, MP4_SIGNATURE);
+    }
+
+    private boolean startsWith(byte[] sample, int length, int offset, byte[] signature) {
+        if (length < offset + signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (sample[offset + i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Текст: нет нулевых байтов, почти все байты - печатные символы ASCII, пробельные
+     * символы или байты многобайтовых символов UTF-8
+     *
+     * @param sample
+     * @param length
+     * @return
+     */
+    private boolean isText(byte[] sample, int length) {
+        int textBytes = 0;
+        for (int i = 0; i < length; i++) {
+            int b = sample[i] & 0xff;
+            if (b == 0) {
+                return false;
+            }
+            if (b >= 0x20 && b != 0x7f || b == '\t' || b == '\n' || b == '\r') {
+                textBytes++;
+            }
+        }
+        return textBytes >= length * TEXT_SHARE;
+    }
+
+    private long getCpuTime() {
+        return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Счетчики сжатия сегментов кодеком: хранимый объем включает сегменты, оставленные без сжатия
+     */
+    private static class CodecStatistics {
+
+        private final AtomicLong segments = new AtomicLong();
+
+        private final AtomicLong compressedSegments = new AtomicLong();
+
+        private final AtomicLong plainBytes = new AtomicLong();
+
+        private final AtomicLong storedBytes = new AtomicLong();
+
+        private final AtomicLong compressNanos = new AtomicLong();
+    }
+}
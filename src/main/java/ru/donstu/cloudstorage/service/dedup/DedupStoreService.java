@@ -0,0 +1,91 @@
+package ru.donstu.cloudstorage.service.dedup;
+
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.blob.entity.FileChunk;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+import ru.donstu.cloudstorage.service.security.segment.EncryptionResult;
+import ru.donstu.cloudstorage.service.security.segment.SegmentOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Класс сервиса хранилища сегментов с дедупликацией: одинаковые сегменты хранятся один раз,
+ * файлы ссылаются на них, неиспользуемые сегменты удаляются сборщиком мусора
+ *
+ * @author v.solomasov
+ */
+public interface DedupStoreService {
+
+    /**
+     * Включено ли хранилище с дедупликацией для новых файлов
+     *
+     * @return
+     */
+    boolean isEnabled();
+
+    /**
+     * Поток сохранения содержимого в хранилище: на каждый сегмент берется ссылка,
+     * отсутствующие сегменты записываются по мере поступления данных. Ссылки нужно привязать к файлу
+     * методом {@link #attachChunks} или, если поток закрыт без подтверждения, освободить методом {@link #releaseChunks}
+     *
+     * @param account
+     * @param dataKey
+     * @param codecSelector выбор кодека посегментного сжатия (или null) по первому сегменту
+     * @param chunks сюда добавляются ссылки на сегменты по порядку
+     * @return поток, подтверждение которого возвращает длину открытого текста и дайджест содержимого
+     */
+    SegmentOutputStream<EncryptionResult> storeContent(Account account, byte[] dataKey, Function<byte[], CompressionCodec> codecSelector, List<FileChunk> chunks);
+
+    /**
+     * Привязка ссылок на сегменты к сохраненному файлу
+     *
+     * @param userFiles
+     * @param chunks
+     */
+    void attachChunks(UserFiles userFiles, List<FileChunk> chunks);
+
+    /**
+     * Копия ссылок на сегменты файла для его копии: содержимое не перезаписывается,
+     * счетчики ссылок сегментов увеличиваются. Выполняется в транзакции вызывающего кода
+     *
+     * @param source
+     * @param target сохраненная копия файла
+     */
+    void copyChunks(UserFiles source, UserFiles target);
+
+    /**
+     * Освобождение ссылок, не привязанных к файлу
+     *
+     * @param chunks
+     */
+    void releaseChunks(List<FileChunk> chunks);
+
+    /**
+     * Поток открытого текста файла в диапазоне [from, to)
+     *
+     * @param userFiles
+     * @param account
+     * @param from
+     * @param to
+     * @return
+     * @throws IOException
+     */
+    InputStream openContent(UserFiles userFiles, Account account, long from, long to) throws IOException;
+
+    /**
+     * Удаление ссылок группы файлов двумя групповыми запросами.
+     * Выполняется в транзакции вызывающего кода до удаления строк файлов
+     *
+     * @param ids идентификаторы файлов
+     */
+    void deleteFilesContent(List<Long> ids);
+
+    /**
+     * Удаление сегментов, на которые не осталось ссылок
+     */
+    void collectGarbage();
+}
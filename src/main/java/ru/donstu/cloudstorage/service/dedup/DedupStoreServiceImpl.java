@@ -0,0 +1,326 @@
+package ru.donstu.cloudstorage.service.dedup;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.blob.BlobChunkRepository;
+import ru.donstu.cloudstorage.domain.blob.FileChunkRepository;
+import ru.donstu.cloudstorage.domain.blob.entity.BlobChunk;
+import ru.donstu.cloudstorage.domain.blob.entity.FileChunk;
+import ru.donstu.cloudstorage.domain.userfiles.UserFilesRepository;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+import ru.donstu.cloudstorage.domain.userfiles.enums.StorageFormat;
+import ru.donstu.cloudstorage.service.blob.BlobOutputStream;
+import ru.donstu.cloudstorage.service.blob.BlobStore;
+import ru.donstu.cloudstorage.service.security.SecurityService;
+import ru.donstu.cloudstorage.service.security.segment.ConvergentSegment;
+import ru.donstu.cloudstorage.service.security.segment.ConvergentSegmentSource;
+import ru.donstu.cloudstorage.service.security.segment.EncryptionResult;
+import ru.donstu.cloudstorage.service.security.segment.SegmentOutputStream;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+import static ru.donstu.cloudstorage.service.blob.BlobKeys.SEPARATOR;
+
+/**
+ * Реализация интерфейса {@link DedupStoreService}.
+ * Сегмент лежит в хранилище под ключом из своего адреса, счетчик ссылок хранится в базе. Ссылка берется
+ * до записи сегмента, а сборщик удаляет сегмент под блокировкой строки и только при нулевом
+ * счетчике, поэтому сегмент, на который только что взяли ссылку, удален не будет
+ *
+ * @author v.solomasov
+ */
+@Service
+@PropertySource(RESOURCES_PROPERTY)
+public class DedupStoreServiceImpl implements DedupStoreService, StatisticsProvider {
+
+    private static final Logger logger = Logger.getLogger(DedupStoreServiceImpl.class);
+
+    private static final String ENABLED = "storage.dedup.enabled";
+
+    private static final String SECRET = "storage.dedup.secret";
+
+    private static final String PLACEHOLDER_SECRET = "change-this-convergence-secret";
+
+    private static final String CHUNKS_PREFIX = "chunks/";
+
+    private static final int FAN_OUT_LENGTH = 2;
+
+    private static final int GC_BATCH = 1000;
+
+    private static final long GC_INTERVAL = 10 * 60 * 1000L;
+
+    @Autowired
+    private BlobChunkRepository blobRepository;
+
+    @Autowired
+    private FileChunkRepository fileChunkRepository;
+
+    @Autowired
+    private UserFilesRepository filesRepository;
+
+    @Autowired
+    private SecurityService securityService;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private Environment environment;
+
+    private TransactionTemplate transactionTemplate;
+
+    private boolean enabled;
+
+    private final AtomicLong storedChunks = new AtomicLong();
+
+    private final AtomicLong reusedChunks = new AtomicLong();
+
+    private final AtomicLong reclaimedChunks = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        enabled = Boolean.valueOf(environment.getRequiredProperty(ENABLED));
+        String secret = environment.getProperty(SECRET, "").trim();
+        if (enabled && (secret.isEmpty() || PLACEHOLDER_SECRET.equals(secret))) {
+            throw new IllegalStateException(String.format("Дедупликация включена, но секрет %s не задан", SECRET));
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public SegmentOutputStream<EncryptionResult> storeContent(Account account, byte[] dataKey, Function<byte[], CompressionCodec> codecSelector, List<FileChunk> chunks) {
+        return securityService.openConvergentEncryption(account, dataKey, codecSelector, segment -> storeSegment(segment, chunks));
+    }
+
+    @Override
+    public void attachChunks(UserFiles userFiles, List<FileChunk> chunks) {
+        chunks.forEach(chunk -> chunk.setUserFiles(userFiles));
+        fileChunkRepository.save(chunks);
+    }
+
+    @Override
+    public void copyChunks(UserFiles source, UserFiles target) {
+        List<FileChunk> chunks = fileChunkRepository.findByUserFilesOrderByChunkIndex(source).stream()
+                .map(chunk -> {
+                    FileChunk copy = new FileChunk();
+                    copy.setChunkIndex(chunk.getChunkIndex());
+                    copy.setAddress(chunk.getAddress());
+                    copy.setChunkKey(chunk.getChunkKey());
+                    copy.setCompressed(chunk.getCompressed());
+                    return copy;
+                })
+                .collect(Collectors.toList());
+        Map<String, Long> counts = chunks.stream().collect(Collectors.groupingBy(FileChunk::getAddress, Collectors.counting()));
+        counts.forEach((address, count) -> {
+            if (blobRepository.incrementRefCount(address, count) == 0) {
+                throw new IllegalStateException(String.format("Сегмент %s файла id=%d не найден", address, source.getId()));
+            }
+        });
+        attachChunks(target, chunks);
+    }
+
+    @Override
+    public void releaseChunks(List<FileChunk> chunks) {
+        Map<String, Long> counts = chunks.stream().collect(Collectors.groupingBy(FileChunk::getAddress, Collectors.counting()));
+        counts.forEach((address, count) -> blobRepository.decrementRefCount(address, count));
+    }
+
+    @Override
+    public InputStream openContent(UserFiles userFiles, Account account, long from, long to) throws IOException {
+        List<FileChunk> chunks = fileChunkRepository.findByUserFilesOrderByChunkIndex(userFiles);
+        return securityService.convergentDecryption(new FileChunkSource(chunks), account, userFiles.getDataKey(), userFiles.getFileLength(), from, to);
+    }
+
+    @Override
+    public void deleteFilesContent(List<Long> ids) {
+        blobRepository.releaseFilesChunks(ids);
+        fileChunkRepository.deleteByUserFilesIds(ids);
+    }
+
+    @Override
+    @Scheduled(fixedDelay = GC_INTERVAL)
+    public void collectGarbage() {
+        List<String> addresses = blobRepository.findUnreferenced(new PageRequest(0, GC_BATCH));
+        long reclaimed = 0;
+        for (String address : addresses) {
+            if (Boolean.TRUE.equals(transactionTemplate.execute(status -> reclaimChunk(address)))) {
+                reclaimed++;
+            }
+        }
+        if (reclaimed > 0) {
+            reclaimedChunks.addAndGet(reclaimed);
+            logger.info(String.format("Удалено %d сегментов без ссылок", reclaimed));
+        }
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "dedupStore";
+    }
+
+    @Override
+    public Map<String, Object> getStatistics() {
+        long logicalLength = filesRepository.sumFileLengthByStorageFormat(StorageFormat.DEDUP);
+        long physicalLength = blobRepository.sumReferencedLength();
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", enabled);
+        statistics.put("chunks", blobRepository.countReferenced());
+        statistics.put("logicalBytes", logicalLength);
+        statistics.put("physicalBytes", physicalLength);
+        statistics.put("ratio", physicalLength == 0 ? "-" : String.format("%.2f", (double) logicalLength / physicalLength));
+        statistics.put("storedChunks", storedChunks.get());
+        statistics.put("reusedChunks", reusedChunks.get());
+        statistics.put("reclaimedChunks", reclaimedChunks.get());
+        return statistics;
+    }
+
+    /**
+     * Ссылка на сегмент добавляется в список сразу после увеличения счетчика,
+     * чтобы при ошибке записи ее можно было освободить
+     *
+     * @param segment
+     * @param chunks
+     * @throws IOException
+     */
+    private void storeSegment(ConvergentSegment segment, List<FileChunk> chunks) throws IOException {
+        boolean created = acquireBlob(segment);
+        FileChunk chunk = new FileChunk();
+        chunk.setChunkIndex(segment.getIndex());
+        chunk.setAddress(segment.getAddress());
+        chunk.setChunkKey(segment.getWrappedKey());
+        chunk.setCompressed(segment.isCompressed());
+        chunks.add(chunk);
+        String key = getChunkKey(segment.getAddress());
+        if (created || blobStore.stat(key) == null) {
+            writeChunk(key, segment.getCipherText());
+            storedChunks.incrementAndGet();
+        } else {
+            reusedChunks.incrementAndGet();
+        }
+    }
+
+    /**
+     * Увеличение счетчика ссылок, при отсутствии записи - ее создание
+     *
+     * @param segment
+     * @return true, если запись создана
+     */
+    private boolean acquireBlob(ConvergentSegment segment) {
+        while (blobRepository.incrementRefCount(segment.getAddress(), 1L) == 0) {
+            BlobChunk blob = new BlobChunk();
+            blob.setAddress(segment.getAddress());
+            blob.setPlainLength(segment.getPlainLength());
+            blob.setRefCount(1L);
+            try {
+                blobRepository.saveAndFlush(blob);
+                return true;
+            } catch (DataIntegrityViolationException e) {
+                logger.info(String.format("Сегмент %s создан параллельно, повтор увеличения счетчика", segment.getAddress()));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Сегмент становится виден читателям только после подтверждения записи целиком
+     *
+     * @param key
+     * @param cipherText
+     * @throws IOException
+     */
+    private void writeChunk(String key, byte[] cipherText) throws IOException {
+        try (BlobOutputStream outputStream = blobStore.put(key)) {
+            outputStream.write(cipherText);
+            outputStream.commit();
+        }
+    }
+
+    /**
+     * Удаление сегмента под блокировкой строки, если на него так и не появилось ссылок
+     *
+     * @param address
+     * @return
+     */
+    private boolean reclaimChunk(String address) {
+        BlobChunk blob = blobRepository.findForUpdate(address);
+        if (blob == null || blob.getRefCount() > 0) {
+            return false;
+        }
+        try {
+            blobStore.delete(getChunkKey(address));
+        } catch (IOException e) {
+            logger.info(String.format("Сегмент %s не удален из хранилища", address));
+            return false;
+        }
+        blobRepository.delete(blob);
+        return true;
+    }
+
+    private String getChunkKey(String address) {
+        return CHUNKS_PREFIX + address.substring(0, FAN_OUT_LENGTH) + SEPARATOR
+                + address.substring(FAN_OUT_LENGTH, 2 * FAN_OUT_LENGTH) + SEPARATOR + address;
+    }
+
+    /**
+     * Сегменты файла по списку ссылок
+     */
+    private class FileChunkSource implements ConvergentSegmentSource {
+
+        private final List<FileChunk> chunks;
+
+        private FileChunkSource(List<FileChunk> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public byte[] getWrappedKey(long index) {
+            return chunks.get((int) index).getChunkKey();
+        }
+
+        @Override
+        public byte[] readCipherText(long index) throws IOException {
+            try (InputStream inputStream = blobStore.get(getCacheKey(index), 0, Long.MAX_VALUE)) {
+                return IOUtils.toByteArray(inputStream);
+            }
+        }
+
+        @Override
+        public boolean isCompressed(long index) {
+            return chunks.get((int) index).getCompressed();
+        }
+
+        @Override
+        public String getCacheKey(long index) {
+            return getChunkKey(chunks.get((int) index).getAddress());
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package ru.donstu.cloudstorage.service.migration;
+
+/**
+ * Класс сервиса перевода файлов старого формата AES/ECB в сегментированный формат
+ *
+ * @author v.solomasov
+ */
+public interface StorageMigrationService {
+
+    /**
+     * Запустить миграцию всех файлов старого формата в фоне
+     *
+     * @return false, если миграция уже выполняется
+     */
+    boolean startMigration();
+}
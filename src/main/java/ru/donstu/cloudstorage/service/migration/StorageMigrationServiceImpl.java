@@ -0,0 +1,100 @@
+package ru.donstu.cloudstorage.service.migration;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.donstu.cloudstorage.domain.userfiles.UserFilesRepository;
+import ru.donstu.cloudstorage.domain.userfiles.enums.StorageFormat;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+import ru.donstu.cloudstorage.service.userfiles.UserFilesService;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Реализация интерфейса {@link StorageMigrationService}.
+ * Файлы переводятся по одному в отдельном потоке, каждый файл - через временный файл
+ * с атомарной заменой, поэтому прерванную миграцию можно просто запустить повторно
+ *
+ * @author v.solomasov
+ */
+@Service
+public class StorageMigrationServiceImpl implements StorageMigrationService, StatisticsProvider {
+
+    private static final Logger logger = Logger.getLogger(StorageMigrationServiceImpl.class);
+
+    @Autowired
+    private UserFilesRepository filesRepository;
+
+    @Autowired
+    private UserFilesService userFilesService;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong migrated = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    @Override
+    public boolean startMigration() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        executor.submit(this::migrate);
+        return true;
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "storageMigration";
+    }
+
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("running", running.get());
+        statistics.put("total", total.get());
+        statistics.put("migrated", migrated.get());
+        statistics.put("failed", failed.get());
+        return statistics;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private void migrate() {
+        try {
+            List<Long> ids = filesRepository.findIdsByStorageFormat(StorageFormat.LEGACY);
+            total.set(ids.size());
+            migrated.set(0);
+            failed.set(0);
+            logger.info(String.format("Миграция формата хранения: %d файлов", ids.size()));
+            for (Long id : ids) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                try {
+                    userFilesService.migrateFile(id);
+                    migrated.incrementAndGet();
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                }
+            }
+            logger.info(String.format("Миграция формата хранения завершена: переведено %d, ошибок %d", migrated.get(), failed.get()));
+        } finally {
+            running.set(false);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package ru.donstu.cloudstorage.service.purge;
+
+/**
+ * Класс сервиса окончательного удаления файлов из корзины по истечении срока хранения
+ *
+ * @author v.solomasov
+ */
+public interface TrashPurgeService {
+
+    /**
+     * Удаление содержимого и строк файлов, пролежавших в корзине дольше срока хранения
+     */
+    void purgeTrash();
+}
@@ -0,0 +1,198 @@
+package ru.donstu.cloudstorage.service.purge;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.donstu.cloudstorage.domain.account.AccountRepository;
+import ru.donstu.cloudstorage.domain.userfiles.UserFilesRepository;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.service.dedup.DedupStoreService;
+import ru.donstu.cloudstorage.service.security.cache.AccountCache;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+import ru.donstu.cloudstorage.service.userfiles.FileNameIndex;
+import ru.donstu.cloudstorage.service.userfiles.UserFilesService;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Реализация интерфейса {@link TrashPurgeService}.
+ * Файлы выбираются пачками в порядке папок и удаляются по папкам аккаунтов: на каждую папку
+ * одна транзакция и одно групповое удаление из хранилища. Строки папки
+ * блокируются до удаления содержимого, поэтому восстановление, начатое в этот момент, дождется
+ * окончания и ничего не найдет, а при откате транзакции строки останутся в корзине с истекшим
+ * сроком и будут удалены следующим проходом. Скорость удаления ограничивается паузами,
+ * чтобы очистка не отнимала диск у запросов пользователей
+ *
+ * @author v.solomasov
+ */
+@Service
+@PropertySource(RESOURCES_PROPERTY)
+public class TrashPurgeServiceImpl implements TrashPurgeService, StatisticsProvider {
+
+    private static final Logger logger = Logger.getLogger(TrashPurgeServiceImpl.class);
+
+    private static final String RETENTION = "trash.retention_days";
+
+    private static final String BATCH_SIZE = "trash.purge.batch_size";
+
+    private static final String RATE = "trash.purge.rate";
+
+    private static final long PURGE_INTERVAL = 10 * 60 * 1000L;
+
+    @Autowired
+    private UserFilesRepository filesRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private DedupStoreService dedupStoreService;
+
+    @Autowired
+    private AccountCache accountCache;
+
+    @Autowired
+    private FileNameIndex fileNameIndex;
+
+    @Autowired
+    private UserFilesService userFilesService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private Environment environment;
+
+    private TransactionTemplate transactionTemplate;
+
+    private int retentionDays;
+
+    private int batchSize;
+
+    private int rate;
+
+    private final AtomicLong purgedFiles = new AtomicLong();
+
+    private final AtomicLong purgedBytes = new AtomicLong();
+
+    private final AtomicLong purgedDirectories = new AtomicLong();
+
+    private final AtomicLong failedDirectories = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        retentionDays = Integer.valueOf(environment.getRequiredProperty(RETENTION));
+        batchSize = Integer.valueOf(environment.getRequiredProperty(BATCH_SIZE));
+        rate = Integer.valueOf(environment.getRequiredProperty(RATE));
+    }
+
+    @Override
+    @Scheduled(fixedDelay = PURGE_INTERVAL)
+    public void purgeTrash() {
+        Calendar date = Calendar.getInstance();
+        date.add(Calendar.DAY_OF_MONTH, -retentionDays);
+        List<UserFiles> batch;
+        while (!(batch = filesRepository.findTrashedBefore(date, new PageRequest(0, batchSize))).isEmpty()) {
+            Map<Long, List<Long>> directories = batch.stream().collect(Collectors.groupingBy(file -> file.getAccount().getId(),
+                    LinkedHashMap::new, Collectors.mapping(UserFiles::getId, Collectors.toList())));
+            long purged = 0;
+            for (Map.Entry<Long, List<Long>> directory : directories.entrySet()) {
+                try {
+                    purged += transactionTemplate.execute(status -> purgeDirectory(directory.getValue(), date));
+                    purgedDirectories.incrementAndGet();
+                } catch (RuntimeException e) {
+                    failedDirectories.incrementAndGet();
+                    logger.info(String.format("Очистка корзины в папке аккаунта id=%d не выполнена: %s", directory.getKey(), e.getMessage()));
+                }
+                if (!pause(directory.getValue().size())) {
+                    return;
+                }
+            }
+            if (purged == 0) {
+                return;
+            }
+            logger.info(String.format("Из корзины удалено %d файлов в %d папках", purged, directories.size()));
+        }
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "trashPurge";
+    }
+
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("retentionDays", retentionDays);
+        statistics.put("trashedFiles", filesRepository.countTrashed());
+        statistics.put("purgedFiles", purgedFiles.get());
+        statistics.put("purgedBytes", purgedBytes.get());
+        statistics.put("purgedDirectories", purgedDirectories.get());
+        statistics.put("failedDirectories", failedDirectories.get());
+        return statistics;
+    }
+
+    /**
+     * Удаление файлов одной папки: блокировка строк с повторной проверкой срока, освобождение
+     * сегментов и строк, групповое удаление из хранилища содержимого, на которое не осталось ссылок
+     *
+     * @param ids
+     * @param date
+     * @return количество удаленных файлов
+     */
+    private long purgeDirectory(List<Long> ids, Calendar date) {
+        List<UserFiles> files = filesRepository.findTrashedBeforeForUpdate(ids, date);
+        if (files.isEmpty()) {
+            return 0;
+        }
+        List<Long> lockedIds = files.stream().map(UserFiles::getId).collect(Collectors.toList());
+        dedupStoreService.deleteFilesContent(lockedIds);
+        filesRepository.deleteByIds(lockedIds);
+        try {
+            purgedBytes.addAndGet(userFilesService.deleteUnreferencedContent(files));
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Ошибка удаления файлов из хранилища: %s", e.getMessage()), e);
+        }
+        Set<Long> accountIds = files.stream().map(file -> file.getAccount().getId()).collect(Collectors.toSet());
+        for (Long accountId : accountIds) {
+            accountRepository.incrementFilesVersion(accountId);
+            accountCache.evict(accountId);
+            fileNameIndex.invalidate(accountId);
+        }
+        purgedFiles.addAndGet(files.size());
+        return files.size();
+    }
+
+    /**
+     * Пауза, ограничивающая скорость удаления заданным числом файлов в секунду
+     *
+     * @param count количество файлов, удаленных с прошлой паузы
+     * @return false, если поток прерван
+     */
+    private boolean pause(int count) {
+        try {
+            Thread.sleep(count * 1000L / rate);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ru.donstu.cloudstorage.service.rebalance;
+
+/**
+ * Класс сервиса переноса файлов между томами хранилища после добавления томов
+ * и из прежнего каталога без разбиения
+ *
+ * @author v.solomasov
+ */
+public interface StorageRebalanceService {
+
+    /**
+     * Запустить ребалансировку в фоне
+     *
+     * @return false, если ребалансировка уже выполняется или хранилище не разбито на тома
+     */
+    boolean startRebalance();
+}
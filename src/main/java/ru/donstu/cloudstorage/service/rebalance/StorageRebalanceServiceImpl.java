@@ -0,0 +1,118 @@
+package ru.donstu.cloudstorage.service.rebalance;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import ru.donstu.cloudstorage.service.blob.BlobStore;
+import ru.donstu.cloudstorage.service.blob.local.ShardedLocalBlobStore;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Реализация интерфейса {@link StorageRebalanceService}.
+ * Файлы переносятся по одному в отдельном потоке, скорость ограничивается паузами,
+ * чтобы перенос не отнимал диск у запросов пользователей. Файл на время переноса доступен
+ * на прежнем месте, прерванную ребалансировку можно просто запустить повторно
+ *
+ * @author v.solomasov
+ */
+@Service
+@PropertySource(RESOURCES_PROPERTY)
+public class StorageRebalanceServiceImpl implements StorageRebalanceService, StatisticsProvider {
+
+    private static final Logger logger = Logger.getLogger(StorageRebalanceServiceImpl.class);
+
+    private static final String RATE = "storage.sharded.rebalance.rate";
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private Environment environment;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final AtomicLong movedFiles = new AtomicLong();
+
+    private final AtomicLong movedBytes = new AtomicLong();
+
+    @Override
+    public boolean startRebalance() {
+        if (!(blobStore instanceof ShardedLocalBlobStore) || !running.compareAndSet(false, true)) {
+            return false;
+        }
+        executor.submit(this::rebalance);
+        return true;
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "storageRebalance";
+    }
+
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("running", running.get());
+        statistics.put("movedFiles", movedFiles.get());
+        statistics.put("movedBytes", movedBytes.get());
+        if (blobStore instanceof ShardedLocalBlobStore) {
+            statistics.putAll(((ShardedLocalBlobStore) blobStore).getVolumeStatistics());
+        }
+        return statistics;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private void rebalance() {
+        int rate = Integer.valueOf(environment.getRequiredProperty(RATE));
+        try {
+            movedFiles.set(0);
+            movedBytes.set(0);
+            logger.info("Ребалансировка хранилища запущена");
+            ((ShardedLocalBlobStore) blobStore).rebalance((key, length) -> {
+                movedFiles.incrementAndGet();
+                movedBytes.addAndGet(length);
+                return pause(rate);
+            });
+            logger.info(String.format("Ребалансировка хранилища завершена: перенесено %d файлов, %d байт", movedFiles.get(), movedBytes.get()));
+        } catch (IOException | RuntimeException e) {
+            logger.info(String.format("Ребалансировка хранилища прервана: %s", e.getMessage()));
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Пауза, ограничивающая скорость переноса заданным числом файлов в секунду
+     *
+     * @param rate
+     * @return false, если поток прерван
+     */
+    private boolean pause(int rate) {
+        try {
+            Thread.sleep(1000L / rate);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package ru.donstu.cloudstorage.service.reclaim;
+
+/**
+ * Класс сервиса фонового удаления аккаунтов, помеченных удаленными
+ *
+ * @author v.solomasov
+ */
+public interface AccountReclaimService {
+
+    /**
+     * Удаление файлов, сессий загрузки, папки и строки каждого помеченного аккаунта
+     */
+    void reclaimAccounts();
+}
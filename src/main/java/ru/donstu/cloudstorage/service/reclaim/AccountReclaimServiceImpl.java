@@ -0,0 +1,210 @@
+package ru.donstu.cloudstorage.service.reclaim;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.donstu.cloudstorage.domain.account.AccountRepository;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.UserFilesRepository;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.service.cache.CacheService;
+import ru.donstu.cloudstorage.service.dedup.DedupStoreService;
+import ru.donstu.cloudstorage.service.security.cache.AccountCache;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+import ru.donstu.cloudstorage.service.upload.UploadService;
+import ru.donstu.cloudstorage.service.userfiles.FileNameIndex;
+import ru.donstu.cloudstorage.service.userfiles.UserFilesService;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Реализация интерфейса {@link AccountReclaimService}.
+ * Состояние удаления хранится только в базе: пока отметка удаления стоит, аккаунт обрабатывается
+ * пачками файлов, каждая пачка - отдельной транзакцией, и после сбоя продолжается с оставшихся строк.
+ * Файлы пачки, не удаленные из хранилища из-за сбоя, удаляются вместе с папкой аккаунта, строка аккаунта
+ * удаляется последней. Между пачками делается пауза, чтобы не занимать базу и хранилище целиком.
+ * Сегменты хранилища с дедупликацией только освобождаются, место на диске возвращает сборщик мусора
+ *
+ * @author v.solomasov
+ */
+@Service
+@PropertySource(RESOURCES_PROPERTY)
+public class AccountReclaimServiceImpl implements AccountReclaimService, StatisticsProvider {
+
+    private static final Logger logger = Logger.getLogger(AccountReclaimServiceImpl.class);
+
+    private static final String BATCH_SIZE = "account.reclaim.batch_size";
+
+    private static final String BATCH_PAUSE = "account.reclaim.batch_pause";
+
+    private static final int ACCOUNT_BATCH = 100;
+
+    private static final long RECLAIM_INTERVAL = 60 * 1000L;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private UserFilesRepository filesRepository;
+
+    @Autowired
+    private UploadService uploadService;
+
+    @Autowired
+    private DedupStoreService dedupStoreService;
+
+    @Autowired
+    private UserFilesService userFilesService;
+
+    @Autowired
+    private AccountCache accountCache;
+
+    @Autowired
+    private FileNameIndex fileNameIndex;
+
+    @Autowired
+    private CacheService cacheService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private Environment environment;
+
+    private TransactionTemplate transactionTemplate;
+
+    private int batchSize;
+
+    private long batchPause;
+
+    private final AtomicReference<Long> currentAccount = new AtomicReference<>();
+
+    private final AtomicLong currentFiles = new AtomicLong();
+
+    private final AtomicLong reclaimedAccounts = new AtomicLong();
+
+    private final AtomicLong reclaimedFiles = new AtomicLong();
+
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    private final AtomicLong failedAccounts = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        batchSize = Integer.valueOf(environment.getRequiredProperty(BATCH_SIZE));
+        batchPause = Long.valueOf(environment.getRequiredProperty(BATCH_PAUSE));
+    }
+
+    @Override
+    @Scheduled(fixedDelay = RECLAIM_INTERVAL)
+    public void reclaimAccounts() {
+        for (Account account : accountRepository.findDeleted(new PageRequest(0, ACCOUNT_BATCH))) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                reclaimAccount(account);
+            } catch (IOException | RuntimeException e) {
+                failedAccounts.incrementAndGet();
+                logger.info(String.format("Удаление аккаунта id=%d прервано, будет продолжено: %s", account.getId(), e.getMessage()));
+            } finally {
+                currentAccount.set(null);
+            }
+        }
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "accountReclaim";
+    }
+
+    @Override
+    public Map<String, Object> getStatistics() {
+        Long accountId = currentAccount.get();
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("pendingAccounts", accountRepository.countDeleted());
+        statistics.put("currentAccount", accountId == null ? "-" : accountId);
+        statistics.put("currentFiles", accountId == null ? 0 : currentFiles.get());
+        statistics.put("reclaimedAccounts", reclaimedAccounts.get());
+        statistics.put("reclaimedFiles", reclaimedFiles.get());
+        statistics.put("reclaimedBytes", reclaimedBytes.get());
+        statistics.put("failedAccounts", failedAccounts.get());
+        return statistics;
+    }
+
+    private void reclaimAccount(Account account) throws IOException {
+        currentAccount.set(account.getId());
+        currentFiles.set(0);
+        List<UserFiles> batch;
+        while (!(batch = filesRepository.findByAccountOrderById(account, new PageRequest(0, batchSize))).isEmpty()) {
+            reclaimFiles(batch);
+            currentFiles.addAndGet(batch.size());
+            if (!pause()) {
+                return;
+            }
+        }
+        uploadService.deleteAccountSessions(account);
+        reclaimedBytes.addAndGet(userFilesService.deleteFolder(account.getId()));
+        transactionTemplate.execute(status -> {
+            accountRepository.delete(account.getId());
+            return null;
+        });
+        accountCache.evict(account.getId());
+        fileNameIndex.invalidate(account.getId());
+        cacheService.evictAccount(account);
+        reclaimedAccounts.incrementAndGet();
+        logger.info(String.format("Аккаунт id=%d удален, файлов: %d", account.getId(), currentFiles.get()));
+    }
+
+    /**
+     * Строки пачки и ссылки на сегменты удаляются групповыми запросами в одной транзакции,
+     * затем содержимое без ссылок удаляется из хранилища одним групповым удалением
+     *
+     * @param batch
+     */
+    private void reclaimFiles(List<UserFiles> batch) {
+        List<Long> ids = batch.stream().map(UserFiles::getId).collect(Collectors.toList());
+        transactionTemplate.execute(status -> {
+            dedupStoreService.deleteFilesContent(ids);
+            filesRepository.deleteByIds(ids);
+            return null;
+        });
+        try {
+            reclaimedBytes.addAndGet(userFilesService.deleteUnreferencedContent(batch));
+        } catch (IOException e) {
+            logger.info(String.format("Файлы пачки не удалены из хранилища, будут удалены вместе с папкой: %s", e.getMessage()));
+        }
+        reclaimedFiles.addAndGet(batch.size());
+    }
+
+    /**
+     * Пауза между пачками
+     *
+     * @return false, если поток прерван
+     */
+    private boolean pause() {
+        try {
+            Thread.sleep(batchPause);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -1,6 +1,20 @@
 package ru.donstu.cloudstorage.service.security;
 
 import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+import ru.donstu.cloudstorage.service.security.segment.CipherTextSource;
+import ru.donstu.cloudstorage.service.security.segment.ConvergentSegmentHandler;
+import ru.donstu.cloudstorage.service.security.segment.ConvergentSegmentSource;
+import ru.donstu.cloudstorage.service.security.segment.EncryptionResult;
+import ru.donstu.cloudstorage.service.security.segment.SegmentOutputStream;
+import ru.donstu.cloudstorage.service.security.segment.SegmentTrailer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.function.Function;
 
 /**
  * Класс сервисов безопасности
@@ -23,6 +37,14 @@ public interface SecurityService {
      */
     Account getLoggedAccount();
 
+    /**
+     * Выдана ли сессия для текущей версии учетных данных. После смены пароля сессии,
+     * выданные до нее, перестают действовать
+     *
+     * @return true, если пользователь не авторизован или версия совпадает
+     */
+    boolean isCredentialActual();
+
     /**
      * Авторизация пользователя
      *
@@ -32,18 +54,141 @@ public interface SecurityService {
     void autoLogin(String name, String password);
 
     /**
-     * Шифрование AES
+     * Сгенерировать новый ключ данных файла, обернутый ключом аккаунта
      *
-     * @param bytes
+     * @param account
      * @return
      */
-    byte[] encryption(byte[] bytes);
+    byte[] generateDataKey(Account account);
 
     /**
-     * Дешифрование AES
+     * Перевернуть ключи данных файлов со старого ключа аккаунта на текущий.
+     * Пустой ключ означает файл, зашифрованный напрямую старым ключом аккаунта:
+     * такой ключ становится ключом данных файла
      *
-     * @param bytes
+     * @param dataKeys
+     * @param account
+     * @param oldPassword
      * @return
      */
-    byte[] decryption(byte[] bytes, String password);
+    List<byte[]> rewrapDataKeys(List<byte[]> dataKeys, Account account, String oldPassword);
+
+    /**
+     * Потоковое шифрование ключом данных файла в сегментированный формат AES/GCM
+     *
+     * @param inputStream
+     * @param outputStream
+     * @param account
+     * @param dataKey
+     * @param codec кодек посегментного сжатия или null
+     * @return длина открытого текста и дайджест содержимого
+     * @throws IOException
+     */
+    EncryptionResult encryption(InputStream inputStream, OutputStream outputStream, Account account, byte[] dataKey, CompressionCodec codec) throws IOException;
+
+    /**
+     * Поток шифрования ключом данных файла в сегментированный формат для содержимого,
+     * поступающего порциями: сегменты шифруются по мере поступления данных
+     *
+     * @param outputStream
+     * @param account
+     * @param dataKey
+     * @param codecSelector выбор кодека посегментного сжатия (или null) по первому сегменту
+     * @return поток, подтверждение которого возвращает длину открытого текста и дайджест содержимого
+     */
+    SegmentOutputStream<EncryptionResult> openEncryption(OutputStream outputStream, Account account, byte[] dataKey,
+                                                         Function<byte[], CompressionCodec> codecSelector);
+
+    /**
+     * Завершающий блок сегментированного файла заранее известной длины, собираемого по частям
+     *
+     * @param plainLength
+     * @return
+     */
+    SegmentTrailer createSegmentTrailer(long plainLength);
+
+    /**
+     * Поток шифрования части файла ключом данных: сегменты [firstSegment, endSegment) и их записи индекса
+     * пишутся на свои места в канале, остальные сегменты файла не затрагиваются. Каждый поток шифрует
+     * со своим nonce, поэтому часть можно передать повторно
+     *
+     * @param channel
+     * @param account
+     * @param dataKey
+     * @param trailer
+     * @param firstSegment
+     * @param endSegment
+     * @param codec кодек посегментного сжатия или null
+     * @return поток, подтверждение которого возвращает дайджесты сегментов подряд
+     */
+    SegmentOutputStream<byte[]> openSegmentsEncryption(FileChannel channel, Account account, byte[] dataKey,
+                                                     SegmentTrailer trailer, long firstSegment, long endSegment, CompressionCodec codec);
+
+    /**
+     * Запись собранного по частям файла со сжатыми сегментами в поток без пустот на местах сжатых сегментов
+     *
+     * @param channel
+     * @param trailer
+     * @param outputStream
+     * @throws IOException
+     */
+    void packSegments(FileChannel channel, SegmentTrailer trailer, OutputStream outputStream) throws IOException;
+
+    /**
+     * Результат шифрования файла, собранного по частям
+     *
+     * @param trailer
+     * @param segmentDigests дайджесты сегментов по порядку
+     * @return
+     */
+    EncryptionResult getEncryptionResult(SegmentTrailer trailer, List<byte[]> segmentDigests);
+
+    /**
+     * Поток открытого текста файла в диапазоне [from, to). Формат (сегментированный или старый AES/ECB)
+     * определяется по завершающему блоку файла, дешифруются только сегменты (блоки),
+     * покрывающие диапазон
+     *
+     * @param source
+     * @param account
+     * @param dataKey
+     * @param from
+     * @param to не больше длины открытого текста
+     * @return
+     * @throws IOException
+     */
+    InputStream decryption(CipherTextSource source, Account account, byte[] dataKey, long from, long to) throws IOException;
+
+    /**
+     * Поток сходящегося шифрования для хранилища с дедупликацией:
+     * ключи сегментов оборачиваются ключом данных файла
+     *
+     * @param account
+     * @param dataKey
+     * @param codecSelector выбор кодека посегментного сжатия (или null) по первому сегменту
+     * @param handler получатель сегментов по порядку
+     * @return поток, подтверждение которого возвращает длину открытого текста и дайджест содержимого
+     */
+    SegmentOutputStream<EncryptionResult> openConvergentEncryption(Account account, byte[] dataKey, Function<byte[], CompressionCodec> codecSelector,
+                                                                   ConvergentSegmentHandler handler);
+
+    /**
+     * Поток открытого текста файла из хранилища с дедупликацией в диапазоне [from, to)
+     *
+     * @param source
+     * @param account
+     * @param dataKey
+     * @param plainLength
+     * @param from
+     * @param to
+     * @return
+     * @throws IOException
+     */
+    InputStream convergentDecryption(ConvergentSegmentSource source, Account account, byte[] dataKey, long plainLength, long from, long to) throws IOException;
+
+    /**
+     * Удалить ключ аккаунта из кэша
+     *
+     * @param account
+     */
+    void evictSecretKey(Account account);
 }
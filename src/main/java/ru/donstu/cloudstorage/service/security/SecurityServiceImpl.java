@@ -1,5 +1,7 @@
 package ru.donstu.cloudstorage.service.security;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
@@ -9,17 +11,41 @@ import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Service;
 import ru.donstu.cloudstorage.domain.account.entity.Account;
 import ru.donstu.cloudstorage.domain.account.enums.Role;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
 import ru.donstu.cloudstorage.exception.AesException;
 import ru.donstu.cloudstorage.service.account.AccountService;
+import ru.donstu.cloudstorage.service.security.cache.AccountCache;
+import ru.donstu.cloudstorage.service.security.cache.AccountSnapshot;
+import ru.donstu.cloudstorage.service.security.cache.SecretKeyCache;
+import ru.donstu.cloudstorage.service.security.segment.CipherTextSource;
+import ru.donstu.cloudstorage.service.security.segment.ConvergentSegmentHandler;
+import ru.donstu.cloudstorage.service.security.segment.ConvergentSegmentSource;
+import ru.donstu.cloudstorage.service.security.segment.EncryptionResult;
+import ru.donstu.cloudstorage.service.security.segment.SegmentCipher;
+import ru.donstu.cloudstorage.service.security.segment.SegmentOutputStream;
+import ru.donstu.cloudstorage.service.security.segment.SegmentTrailer;
+import ru.donstu.cloudstorage.service.userdetails.AccountUserDetails;
 import ru.donstu.cloudstorage.service.userdetails.CustomUserDetailsService;
 import ru.donstu.cloudstorage.service.userfiles.UserFilesService;
 
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
-import java.security.InvalidKeyException;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
 
+import static ru.donstu.cloudstorage.config.constant.Constants.BUFFER_SIZE;
 
 /**
  * Реализация интерфейса {@link SecurityService}
@@ -31,6 +57,12 @@ public class SecurityServiceImpl implements SecurityService {
 
     private static final String ENCRYPTION_TYPE = "AES";
 
+    private static final String LEGACY_RANGE_TYPE = "AES/ECB/NoPadding";
+
+    private static final int LEGACY_BLOCK_SIZE = 16;
+
+    private static final String WRAP_TYPE = "AESWrap";
+
     private static final String RNG_ALGORITHM = "SHA1PRNG";
 
     private static final Integer KEY_LENGTH = 128;
@@ -47,18 +79,55 @@ public class SecurityServiceImpl implements SecurityService {
     @Autowired
     private UserFilesService userFilesService;
 
+    @Autowired
+    private SecretKeyCache secretKeyCache;
+
+    @Autowired
+    private AccountCache accountCache;
+
+    @Autowired
+    private SegmentCipher segmentCipher;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+
     @Override
     public boolean isLoggedUser() {
-        return getAuthentication().getAuthorities().stream().anyMatch(auth -> auth.getAuthority().equals(Role.ROLE_USER.name()));
+        AccountUserDetails userDetails = getAccountUserDetails();
+        return userDetails != null && userDetails.getRole() == Role.ROLE_USER;
     }
 
+    /**
+     * Аккаунт берется из кэша снимков по идентификатору из сессии,
+     * база читается только при отсутствии снимка (первый запрос, изменение аккаунта)
+     *
+     * @return
+     */
     @Override
     public Account getLoggedAccount() {
-        Object userDetails = getAuthentication().getPrincipal();
-        if (userDetails instanceof UserDetails) {
-            return accountService.findAccountByName(((UserDetails) userDetails).getUsername());
+        AccountUserDetails userDetails = getAccountUserDetails();
+        if (userDetails == null) {
+            return null;
         }
-        return null;
+        AccountSnapshot snapshot = accountCache.get(userDetails.getAccountId());
+        if (snapshot != null) {
+            return snapshot.toAccount();
+        }
+        long generation = accountCache.getGeneration(userDetails.getAccountId());
+        Account account = accountService.findAccountById(userDetails.getAccountId());
+        if (account != null) {
+            accountCache.put(account, generation);
+        }
+        return account;
+    }
+
+    @Override
+    public boolean isCredentialActual() {
+        AccountUserDetails userDetails = getAccountUserDetails();
+        if (userDetails == null) {
+            return true;
+        }
+        Account account = getLoggedAccount();
+        return account != null && Objects.equals(account.getCredentialVersion(), userDetails.getCredentialVersion());
     }
 
     @Override
@@ -72,75 +141,197 @@ public class SecurityServiceImpl implements SecurityService {
     }
 
     @Override
-    public byte[] encryption(byte[] bytes) {
+    public byte[] generateDataKey(Account account) {
         try {
-            return encrypt(bytes);
-        } catch (NoSuchAlgorithmException e) {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(ENCRYPTION_TYPE);
+            keyGenerator.init(KEY_LENGTH, secureRandom);
+            return wrapKey(keyGenerator.generateKey(), getSecretKey(account));
+        } catch (GeneralSecurityException e) {
             throw new AesException();
-        } catch (NoSuchPaddingException e) {
-            throw new AesException();
-        } catch (InvalidKeyException e) {
+        }
+    }
+
+    @Override
+    public List<byte[]> rewrapDataKeys(List<byte[]> dataKeys, Account account, String oldPassword) {
+        try {
+            SecretKeySpec oldSecretKey = new SecretKeySpec(getRawKey(oldPassword), ENCRYPTION_TYPE);
+            SecretKeySpec newSecretKey = getSecretKey(account);
+            List<byte[]> rewrapped = new ArrayList<>(dataKeys.size());
+            for (byte[] dataKey : dataKeys) {
+                Key key = dataKey == null ? oldSecretKey : unwrapKey(dataKey, oldSecretKey);
+                rewrapped.add(wrapKey(key, newSecretKey));
+            }
+            return rewrapped;
+        } catch (GeneralSecurityException e) {
             throw new AesException();
-        } catch (BadPaddingException e) {
+        }
+    }
+
+    @Override
+    public EncryptionResult encryption(InputStream inputStream, OutputStream outputStream, Account account, byte[] dataKey, CompressionCodec codec) throws IOException {
+        try {
+            return segmentCipher.encrypt(inputStream, outputStream, getDataKey(account, dataKey), codec);
+        } catch (GeneralSecurityException e) {
             throw new AesException();
-        } catch (IllegalBlockSizeException e) {
+        }
+    }
+
+    @Override
+    public SegmentOutputStream<EncryptionResult> openEncryption(OutputStream outputStream, Account account, byte[] dataKey,
+                                                                Function<byte[], CompressionCodec> codecSelector) {
+        try {
+            return segmentCipher.openEncryption(outputStream, getDataKey(account, dataKey), codecSelector);
+        } catch (GeneralSecurityException e) {
             throw new AesException();
         }
     }
 
     @Override
-    public byte[] decryption(byte[] bytes, String password) {
+    public SegmentTrailer createSegmentTrailer(long plainLength) {
+        return segmentCipher.createTrailer(plainLength);
+    }
+
+    @Override
+    public SegmentOutputStream<byte[]> openSegmentsEncryption(FileChannel channel, Account account, byte[] dataKey,
+                                                            SegmentTrailer trailer, long firstSegment, long endSegment, CompressionCodec codec) {
         try {
-            return decrypt(bytes, password);
-        } catch (NoSuchAlgorithmException e) {
+            return segmentCipher.openSegmentsEncryption(channel, trailer, getDataKey(account, dataKey), firstSegment, endSegment, codec);
+        } catch (GeneralSecurityException e) {
             throw new AesException();
-        } catch (NoSuchPaddingException e) {
+        }
+    }
+
+    @Override
+    public void packSegments(FileChannel channel, SegmentTrailer trailer, OutputStream outputStream) throws IOException {
+        segmentCipher.pack(channel, trailer, outputStream);
+    }
+
+    @Override
+    public EncryptionResult getEncryptionResult(SegmentTrailer trailer, List<byte[]> segmentDigests) {
+        try {
+            return new EncryptionResult(trailer.getPlainLength(), segmentCipher.getContentDigest(segmentDigests));
+        } catch (GeneralSecurityException e) {
             throw new AesException();
-        } catch (InvalidKeyException e) {
+        }
+    }
+
+    @Override
+    public InputStream decryption(CipherTextSource source, Account account, byte[] dataKey, long from, long to) throws IOException {
+        try {
+            Key key = getDataKey(account, dataKey);
+            SegmentTrailer trailer = SegmentTrailer.read(source);
+            if (trailer != null) {
+                return segmentCipher.decrypt(source, trailer, key, from, to);
+            }
+            return legacyDecrypt(source, key, from, to);
+        } catch (GeneralSecurityException e) {
             throw new AesException();
-        } catch (BadPaddingException e) {
+        }
+    }
+
+    @Override
+    public SegmentOutputStream<EncryptionResult> openConvergentEncryption(Account account, byte[] dataKey, Function<byte[], CompressionCodec> codecSelector,
+                                                                          ConvergentSegmentHandler handler) {
+        try {
+            return segmentCipher.openConvergentEncryption(getDataKey(account, dataKey), codecSelector, handler);
+        } catch (GeneralSecurityException e) {
             throw new AesException();
-        } catch (IllegalBlockSizeException e) {
+        }
+    }
+
+    @Override
+    public InputStream convergentDecryption(ConvergentSegmentSource source, Account account, byte[] dataKey, long plainLength, long from, long to) throws IOException {
+        try {
+            return segmentCipher.decryptConvergent(source, getDataKey(account, dataKey), plainLength, from, to);
+        } catch (GeneralSecurityException e) {
             throw new AesException();
         }
     }
 
+    @Override
+    public void evictSecretKey(Account account) {
+        secretKeyCache.evict(account.getId());
+    }
+
     /**
-     * Шифрование последовательности байт алгоритмом AES
+     * Ключ аккаунта из кэша, при отсутствии - генерация из пароля
      *
-     * @param sequenceBytes
+     * @param account
      * @return
-     * @throws NoSuchPaddingException
      * @throws NoSuchAlgorithmException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
      */
-    private byte[] encrypt(byte[] sequenceBytes) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
-        SecretKeySpec secretKeySpec = new SecretKeySpec(getRawKey(getLoggedAccount().getPassword()), ENCRYPTION_TYPE);
-        Cipher cipher = Cipher.getInstance(ENCRYPTION_TYPE);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-        byte[] encrypted = cipher.doFinal(sequenceBytes);
-        return encrypted;
+    private SecretKeySpec getSecretKey(Account account) throws NoSuchAlgorithmException {
+        SecretKeySpec secretKeySpec = secretKeyCache.get(account.getId(), account.getCredentialVersion());
+        if (secretKeySpec == null) {
+            secretKeySpec = new SecretKeySpec(getRawKey(account.getPassword()), ENCRYPTION_TYPE);
+            secretKeyCache.put(account.getId(), account.getCredentialVersion(), secretKeySpec);
+        }
+        return secretKeySpec;
     }
 
     /**
-     * Дешифрование последовательности байт алгоритмом AES
+     * Ключ данных файла. Файлы без ключа данных зашифрованы напрямую ключом аккаунта
      *
-     * @param file
+     * @param account
+     * @param dataKey
      * @return
-     * @throws NoSuchPaddingException
-     * @throws NoSuchAlgorithmException
-     * @throws InvalidKeyException
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
+     * @throws GeneralSecurityException
      */
-    private byte[] decrypt(byte[] file, String password) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
-        SecretKeySpec secretKeySpec = new SecretKeySpec(getRawKey(password), ENCRYPTION_TYPE);
-        Cipher cipher = Cipher.getInstance(ENCRYPTION_TYPE);
-        cipher.init(Cipher.DECRYPT_MODE, secretKeySpec);
-        byte[] decrypted = cipher.doFinal(file);
-        return decrypted;
+    private Key getDataKey(Account account, byte[] dataKey) throws GeneralSecurityException {
+        SecretKeySpec secretKeySpec = getSecretKey(account);
+        if (dataKey == null) {
+            return secretKeySpec;
+        }
+        return unwrapKey(dataKey, secretKeySpec);
+    }
+
+    /**
+     * Обертывание ключа данных ключом аккаунта (AES Key Wrap)
+     *
+     * @param key
+     * @param secretKeySpec
+     * @return
+     * @throws GeneralSecurityException
+     */
+    private byte[] wrapKey(Key key, SecretKeySpec secretKeySpec) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(WRAP_TYPE);
+        cipher.init(Cipher.WRAP_MODE, secretKeySpec);
+        return cipher.wrap(key);
+    }
+
+    /**
+     * Извлечение ключа данных, обернутого ключом аккаунта
+     *
+     * @param dataKey
+     * @param secretKeySpec
+     * @return
+     * @throws GeneralSecurityException
+     */
+    private Key unwrapKey(byte[] dataKey, SecretKeySpec secretKeySpec) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(WRAP_TYPE);
+        cipher.init(Cipher.UNWRAP_MODE, secretKeySpec);
+        return cipher.unwrap(dataKey, ENCRYPTION_TYPE, Cipher.SECRET_KEY);
+    }
+
+    /**
+     * Дешифрование диапазона файла старого формата. Блоки ECB независимы, поэтому чтение
+     * начинается с блока, содержащего начало диапазона, а дополнение PKCS5 отсекается длиной диапазона
+     *
+     * @param source
+     * @param key
+     * @param from
+     * @param to
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    private InputStream legacyDecrypt(CipherTextSource source, Key key, long from, long to) throws GeneralSecurityException, IOException {
+        long blockStart = from - from % LEGACY_BLOCK_SIZE;
+        Cipher cipher = Cipher.getInstance(LEGACY_RANGE_TYPE);
+        cipher.init(Cipher.DECRYPT_MODE, key);
+        InputStream inputStream = new CipherInputStream(new BufferedInputStream(source.open(blockStart, source.length()), BUFFER_SIZE), cipher);
+        IOUtils.skipFully(inputStream, from - blockStart);
+        return new BoundedInputStream(inputStream, Math.max(0, to - from));
     }
 
     /**
@@ -161,4 +352,12 @@ public class SecurityServiceImpl implements SecurityService {
     private Authentication getAuthentication() {
         return SecurityContextHolder.getContext().getAuthentication();
     }
+
+    private AccountUserDetails getAccountUserDetails() {
+        Authentication authentication = getAuthentication();
+        if (authentication != null && authentication.getPrincipal() instanceof AccountUserDetails) {
+            return (AccountUserDetails) authentication.getPrincipal();
+        }
+        return null;
+    }
 }
@@ -0,0 +1,188 @@
+package ru.donstu.cloudstorage.service.security.cache;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+
+import javax.annotation.PostConstruct;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Кэш снимков аккаунтов вошедших пользователей (LRU по размеру, срок жизни записи ограничен).
+ * Любое изменение аккаунта вызывает {@link #evict(Long)}, который также увеличивает поколение записи:
+ * снимок, прочитанный из базы до изменения, не будет положен в кэш после него. Поколения хранятся
+ * в массиве фиксированного размера по остатку от идентификатора, поэтому не растут с числом аккаунтов;
+ * общее поколение у разных аккаунтов только изредка откладывает кэширование снимка до следующего чтения.
+ * Срок жизни ограничивает устаревание снимка, если аккаунт изменен в обход приложения
+ *
+ * @author v.solomasov
+ */
+@Component
+@PropertySource(RESOURCES_PROPERTY)
+public class AccountCache implements StatisticsProvider {
+
+    private static final String MAX_SIZE = "security.account_cache.max_size";
+
+    private static final String TTL = "security.account_cache.ttl";
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    @Autowired
+    private Environment environment;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final long[] generations = new long[GENERATION_STRIPES];
+
+    private int maxSize;
+
+    private long ttl;
+
+    private Map<Long, Entry> entries;
+
+    @PostConstruct
+    public void init() {
+        maxSize = Integer.valueOf(environment.getRequiredProperty(MAX_SIZE));
+        ttl = TimeUnit.SECONDS.toMillis(Long.valueOf(environment.getRequiredProperty(TTL)));
+        entries = new LinkedHashMap<Long, Entry>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Снимок аккаунта
+     *
+     * @param accountId
+     * @return снимок или null
+     */
+    public synchronized AccountSnapshot get(Long accountId) {
+        Entry entry = entries.get(accountId);
+        if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+            entries.remove(accountId);
+            evictions.incrementAndGet();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.snapshot;
+    }
+
+    /**
+     * Поколение записи, запоминается до чтения аккаунта из базы
+     *
+     * @param accountId
+     * @return
+     */
+    public synchronized long getGeneration(Long accountId) {
+        return generations[stripe(accountId)];
+    }
+
+    /**
+     * Положить снимок, если с момента получения поколения аккаунт не изменялся
+     *
+     * @param account
+     * @param generation
+     */
+    public synchronized void put(Account account, long generation) {
+        if (generation == getGeneration(account.getId())) {
+            long now = System.currentTimeMillis();
+            removeExpired(now);
+            entries.put(account.getId(), new Entry(new AccountSnapshot(account), now));
+        }
+    }
+
+    /**
+     * Вытеснить снимок после изменения аккаунта. Внутри транзакции вытеснение повторяется
+     * после ее завершения: снимок, прочитанный до фиксации, содержит старые данные
+     *
+     * @param accountId
+     */
+    public void evict(Long accountId) {
+        remove(accountId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    remove(accountId);
+                }
+            });
+        }
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "accountCache";
+    }
+
+    @Override
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("size", entries.size());
+        statistics.put("hits", hits.get());
+        statistics.put("misses", misses.get());
+        statistics.put("evictions", evictions.get());
+        return statistics;
+    }
+
+    private synchronized void remove(Long accountId) {
+        generations[stripe(accountId)]++;
+        if (entries.remove(accountId) != null) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Удаление записей с истекшим сроком жизни среди давно не читавшихся: записи упорядочены
+     * по доступу, поэтому проход останавливается на первой неистекшей
+     *
+     * @param now
+     */
+    private void removeExpired(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext() && isExpired(iterator.next(), now)) {
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.created > ttl;
+    }
+
+    private static int stripe(Long accountId) {
+        return (int) Math.floorMod(accountId, (long) GENERATION_STRIPES);
+    }
+
+    private static class Entry {
+
+        private final AccountSnapshot snapshot;
+
+        private final long created;
+
+        private Entry(AccountSnapshot snapshot, long created) {
+            this.snapshot = snapshot;
+            this.created = created;
+        }
+    }
+}
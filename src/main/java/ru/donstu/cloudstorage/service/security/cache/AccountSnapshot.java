@@ -0,0 +1,72 @@
+package ru.donstu.cloudstorage.service.security.cache;
+
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.account.enums.Role;
+
+import java.util.Calendar;
+
+/**
+ * Неизменяемый снимок аккаунта. Вызывающий код получает отдельную копию сущности,
+ * поэтому изменения в одном запросе не попадают в кэш
+ *
+ * @author v.solomasov
+ */
+public final class AccountSnapshot {
+
+    private final Long id;
+
+    private final String email;
+
+    private final String name;
+
+    private final String password;
+
+    private final Role role;
+
+    private final long dataCreate;
+
+    private final Long credentialVersion;
+
+    private final Long filesVersion;
+
+    public AccountSnapshot(Account account) {
+        this.id = account.getId();
+        this.email = account.getEmail();
+        this.name = account.getName();
+        this.password = account.getPassword();
+        this.role = account.getRole();
+        this.dataCreate = account.getDataCreate() == null ? 0 : account.getDataCreate().getTimeInMillis();
+        this.credentialVersion = account.getCredentialVersion();
+        this.filesVersion = account.getFilesVersion();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getCredentialVersion() {
+        return credentialVersion;
+    }
+
+    /**
+     * Новая отсоединенная сущность с данными снимка
+     *
+     * @return
+     */
+    public Account toAccount() {
+        Account account = new Account();
+        account.setId(id);
+        account.setEmail(email);
+        account.setName(name);
+        account.setPassword(password);
+        account.setRole(role);
+        if (dataCreate != 0) {
+            Calendar date = Calendar.getInstance();
+            date.setTimeInMillis(dataCreate);
+            account.setDataCreate(date);
+        }
+        account.setCredentialVersion(credentialVersion);
+        account.setFilesVersion(filesVersion);
+        return account;
+    }
+}
@@ -0,0 +1,164 @@
+package ru.donstu.cloudstorage.service.security.cache;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Ограниченный кэш ключей AES, полученных из пароля аккаунта.
+ * Запись действительна только для той версии учетных данных, с которой была создана,
+ * и вытесняется по размеру (LRU) и по времени простоя
+ *
+ * @author v.solomasov
+ */
+@Component
+@PropertySource(RESOURCES_PROPERTY)
+public class SecretKeyCache implements StatisticsProvider {
+
+    private static final String MAX_SIZE = "security.key_cache.max_size";
+
+    private static final String IDLE_TIMEOUT = "security.key_cache.idle_timeout";
+
+    @Autowired
+    private Environment environment;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private int maxSize;
+
+    private long idleTimeout;
+
+    private Map<Long, Entry> entries;
+
+    @PostConstruct
+    public void init() {
+        maxSize = Integer.valueOf(environment.getRequiredProperty(MAX_SIZE));
+        idleTimeout = TimeUnit.SECONDS.toMillis(Long.valueOf(environment.getRequiredProperty(IDLE_TIMEOUT)));
+        entries = new LinkedHashMap<Long, Entry>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Получить ключ аккаунта, если он есть в кэше и версия учетных данных совпадает
+     *
+     * @param accountId
+     * @param credentialVersion
+     * @return ключ или null
+     */
+    public synchronized SecretKeySpec get(Long accountId, Long credentialVersion) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(accountId);
+        if (entry == null || !Objects.equals(entry.credentialVersion, credentialVersion) || isIdle(entry, now)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.lastAccess = now;
+        hits.incrementAndGet();
+        return entry.secretKey;
+    }
+
+    /**
+     * Положить ключ аккаунта в кэш
+     *
+     * @param accountId
+     * @param credentialVersion
+     * @param secretKey
+     */
+    public synchronized void put(Long accountId, Long credentialVersion, SecretKeySpec secretKey) {
+        long now = System.currentTimeMillis();
+        removeIdle(now);
+        entries.put(accountId, new Entry(credentialVersion, secretKey, now));
+    }
+
+    /**
+     * Вытеснить ключ аккаунта (смена пароля, удаление аккаунта)
+     *
+     * @param accountId
+     */
+    public synchronized void evict(Long accountId) {
+        if (entries.remove(accountId) != null) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "secretKeyCache";
+    }
+
+    @Override
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("size", entries.size());
+        statistics.put("hits", hits.get());
+        statistics.put("misses", misses.get());
+        statistics.put("evictions", evictions.get());
+        return statistics;
+    }
+
+    /**
+     * Удаление записей, простаивающих дольше таймаута. Записи упорядочены по доступу,
+     * поэтому проход останавливается на первой активной
+     *
+     * @param now
+     */
+    private void removeIdle(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext() && isIdle(iterator.next(), now)) {
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private boolean isIdle(Entry entry, long now) {
+        return now - entry.lastAccess > idleTimeout;
+    }
+
+    private static class Entry {
+
+        private final Long credentialVersion;
+
+        private final SecretKeySpec secretKey;
+
+        private long lastAccess;
+
+        private Entry(Long credentialVersion, SecretKeySpec secretKey, long lastAccess) {
+            this.credentialVersion = credentialVersion;
+            this.secretKey = secretKey;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
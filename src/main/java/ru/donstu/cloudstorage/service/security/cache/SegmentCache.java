@@ -0,0 +1,310 @@
+package ru.donstu.cloudstorage.service.security.cache;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+import static ru.donstu.cloudstorage.service.security.segment.SegmentCipher.SEGMENT_SIZE;
+import static ru.donstu.cloudstorage.service.security.segment.SegmentTrailer.TAG_LENGTH;
+
+/**
+ * Кэш шифротекста популярных сегментов вне кучи и объединение одновременных чтений.
+ * <p>
+ * Память - ячейки прямых буферов размером с сегмент, выделяются по мере заполнения до бюджета
+ * и дальше переиспользуются, поэтому кэш не нагружает сборщик мусора. Вытеснение LRU,
+ * сегмент допускается в кэш со второго промаха: однократное чтение большого файла не вытесняет
+ * популярные сегменты. Ключ - неизменный идентификатор содержимого (ключ объекта хранилища)
+ * и номер сегмента, поэтому записи не нужно инвалидировать.
+ * <p>
+ * Одновременные запросы одного сегмента ждут одну загрузку: первый читает и дешифрует сегмент,
+ * остальные получают тот же результат
+ *
+ * @author v.solomasov
+ */
+@Component
+@PropertySource(RESOURCES_PROPERTY)
+public class SegmentCache implements StatisticsProvider {
+
+    private static final String CACHE_SIZE = "crypto.segment.cache_size";
+
+    private static final int SLOT_SIZE = SEGMENT_SIZE + TAG_LENGTH;
+
+    private static final int ADMISSION_MISSES = 2;
+
+    @Autowired
+    private Environment environment;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong hitBytes = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final ConcurrentMap<SegmentKey, CompletableFuture<byte[]>> loads = new ConcurrentHashMap<>();
+
+    private final Map<SegmentKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+
+    private int slotCount;
+
+    private ByteBuffer[] slots;
+
+    private int allocatedSlots;
+
+    private long usedBytes;
+
+    private Map<SegmentKey, Integer> candidates;
+
+    @PostConstruct
+    public void init() {
+        slotCount = (int) Math.min(Integer.MAX_VALUE, Long.valueOf(environment.getRequiredProperty(CACHE_SIZE)) / SLOT_SIZE);
+        slots = new ByteBuffer[slotCount];
+        int maxCandidates = Math.max(1, slotCount * 2);
+        candidates = new LinkedHashMap<SegmentKey, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SegmentKey, Integer> eldest) {
+                return size() > maxCandidates;
+            }
+        };
+    }
+
+    /**
+     * Шифротекст сегмента из кэша
+     *
+     * @param key   идентификатор содержимого
+     * @param index номер сегмента
+     * @return копия шифротекста или null
+     */
+    public byte[] get(String key, long index) {
+        if (slotCount == 0) {
+            return null;
+        }
+        SegmentKey segmentKey = new SegmentKey(key, index);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(segmentKey);
+            if (entry == null) {
+                misses.incrementAndGet();
+                candidates.merge(segmentKey, 1, Integer::sum);
+                return null;
+            }
+            entry.pins++;
+        }
+        try {
+            byte[] segment = new byte[entry.length];
+            ByteBuffer buffer = slots[entry.slot].duplicate();
+            buffer.clear();
+            buffer.get(segment);
+            hits.incrementAndGet();
+            hitBytes.addAndGet(segment.length);
+            return segment;
+        } finally {
+            release(entry);
+        }
+    }
+
+    /**
+     * Положить шифротекст сегмента в кэш. Сегмент кэшируется, только если до этого был промах
+     * по нему хотя бы дважды
+     *
+     * @param key
+     * @param index
+     * @param segment
+     */
+    public void put(String key, long index, byte[] segment) {
+        if (slotCount == 0 || segment.length > SLOT_SIZE) {
+            return;
+        }
+        SegmentKey segmentKey = new SegmentKey(key, index);
+        int slot;
+        synchronized (this) {
+            if (entries.containsKey(segmentKey)) {
+                return;
+            }
+            Integer missCount = candidates.get(segmentKey);
+            if (missCount == null || missCount < ADMISSION_MISSES) {
+                rejected.incrementAndGet();
+                return;
+            }
+            candidates.remove(segmentKey);
+            slot = allocateSlot();
+            if (slot < 0) {
+                return;
+            }
+        }
+        ByteBuffer buffer = slots[slot].duplicate();
+        buffer.clear();
+        buffer.put(segment);
+        synchronized (this) {
+            if (entries.containsKey(segmentKey)) {
+                freeSlots.push(slot);
+                return;
+            }
+            entries.put(segmentKey, new Entry(slot, segment.length));
+            usedBytes += segment.length;
+        }
+    }
+
+    /**
+     * Объединение одновременных загрузок сегмента: пока загрузка идет, остальные запросы
+     * ждут ее результат. Каждый вызывающий получает свой зависимый Future, поэтому его отмена
+     * не отменяет загрузку для остальных
+     *
+     * @param key
+     * @param index
+     * @param loader запуск загрузки, вызывается, только если загрузки этого сегмента нет
+     * @return
+     */
+    public Future<byte[]> load(String key, long index, Supplier<CompletableFuture<byte[]>> loader) {
+        SegmentKey segmentKey = new SegmentKey(key, index);
+        CompletableFuture<byte[]> load = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = loads.putIfAbsent(segmentKey, load);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing.thenApply(segment -> segment);
+        }
+        try {
+            loader.get().whenComplete((segment, e) -> {
+                loads.remove(segmentKey, load);
+                if (e != null) {
+                    load.completeExceptionally(e);
+                } else {
+                    load.complete(segment);
+                }
+            });
+        } catch (RuntimeException e) {
+            loads.remove(segmentKey, load);
+            load.completeExceptionally(e);
+        }
+        return load.thenApply(segment -> segment);
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "segmentCache";
+    }
+
+    @Override
+    public synchronized Map<String, Object> getStatistics() {
+        long hitCount = hits.get();
+        long requests = hitCount + misses.get();
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("capacityBytes", (long) slotCount * SLOT_SIZE);
+        statistics.put("usedBytes", usedBytes);
+        statistics.put("segments", entries.size());
+        statistics.put("hits", hitCount);
+        statistics.put("misses", misses.get());
+        statistics.put("hitRatio", requests == 0 ? 0.0 : (double) hitCount / requests);
+        statistics.put("bytesFromCache", hitBytes.get());
+        statistics.put("evictions", evictions.get());
+        statistics.put("rejectedAdmissions", rejected.get());
+        statistics.put("coalescedLoads", coalesced.get());
+        statistics.put("activeLoads", loads.size());
+        return statistics;
+    }
+
+    /**
+     * Свободная ячейка: из освобожденных, новая в пределах бюджета или вытеснением самой старой записи.
+     * Запись, которую сейчас читают, освобождает ячейку после окончания чтения
+     *
+     * @return номер ячейки или -1, если все ячейки заняты читаемыми записями
+     */
+    private int allocateSlot() {
+        if (!freeSlots.isEmpty()) {
+            return freeSlots.pop();
+        }
+        if (allocatedSlots < slotCount) {
+            slots[allocatedSlots] = ByteBuffer.allocateDirect(SLOT_SIZE);
+            return allocatedSlots++;
+        }
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            usedBytes -= eldest.length;
+            evictions.incrementAndGet();
+            if (eldest.pins == 0) {
+                return eldest.slot;
+            }
+            eldest.evicted = true;
+        }
+        return -1;
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.pins--;
+        if (entry.pins == 0 && entry.evicted) {
+            freeSlots.push(entry.slot);
+        }
+    }
+
+    private static class SegmentKey {
+
+        private final String key;
+
+        private final long index;
+
+        private SegmentKey(String key, long index) {
+            this.key = key;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SegmentKey)) {
+                return false;
+            }
+            SegmentKey other = (SegmentKey) o;
+            return index == other.index && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, index);
+        }
+    }
+
+    private static class Entry {
+
+        private final int slot;
+
+        private final int length;
+
+        private int pins;
+
+        private boolean evicted;
+
+        private Entry(int slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+}
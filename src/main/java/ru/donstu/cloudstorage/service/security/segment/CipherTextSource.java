@@ -0,0 +1,39 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Зашифрованное содержимое файла, доступное для чтения диапазонами
+ *
+ * @author v.solomasov
+ */
+public interface CipherTextSource {
+
+    /**
+     * Длина шифротекста
+     *
+     * @return
+     * @throws IOException
+     */
+    long length() throws IOException;
+
+    /**
+     * Поток шифротекста в диапазоне [from, to)
+     *
+     * @param from
+     * @param to
+     * @return
+     * @throws IOException
+     */
+    InputStream open(long from, long to) throws IOException;
+
+    /**
+     * Неизменный идентификатор содержимого для кэша сегментов
+     *
+     * @return идентификатор или null, если сегменты не кэшируются
+     */
+    default String getCacheKey() {
+        return null;
+    }
+}
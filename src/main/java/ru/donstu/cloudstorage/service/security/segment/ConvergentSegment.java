@@ -0,0 +1,73 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+/**
+ * Сегмент, зашифрованный сходящимся шифрованием: ключ сегмента выводится из его содержимого,
+ * поэтому одинаковые сегменты дают одинаковый шифротекст и адрес и хранятся один раз.
+ * Ключ сегмента хранится у файла обернутым ключом данных файла
+ *
+ * @author v.solomasov
+ */
+public class ConvergentSegment {
+
+    private final long index;
+
+    private final String address;
+
+    private final int plainLength;
+
+    private final byte[] wrappedKey;
+
+    private final byte[] cipherText;
+
+    private final byte[] digest;
+
+    private final boolean compressed;
+
+    public ConvergentSegment(long index, String address, int plainLength, byte[] wrappedKey, byte[] cipherText, byte[] digest, boolean compressed) {
+        this.index = index;
+        this.address = address;
+        this.plainLength = plainLength;
+        this.wrappedKey = wrappedKey;
+        this.cipherText = cipherText;
+        this.digest = digest;
+        this.compressed = compressed;
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    /**
+     * Адрес сегмента в хранилище: SHA-256 (hex) от ключа сегмента
+     *
+     * @return
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    public int getPlainLength() {
+        return plainLength;
+    }
+
+    public byte[] getWrappedKey() {
+        return wrappedKey;
+    }
+
+    public byte[] getCipherText() {
+        return cipherText;
+    }
+
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * Сжат ли сегмент перед шифрованием
+     *
+     * @return
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+}
@@ -0,0 +1,13 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+import java.io.IOException;
+
+/**
+ * Получатель сегментов сходящегося шифрования, сегменты передаются строго по порядку
+ *
+ * @author v.solomasov
+ */
+public interface ConvergentSegmentHandler {
+
+    void accept(ConvergentSegment segment) throws IOException;
+}
@@ -0,0 +1,46 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+import java.io.IOException;
+
+/**
+ * Источник сегментов файла, зашифрованного сходящимся шифрованием
+ *
+ * @author v.solomasov
+ */
+public interface ConvergentSegmentSource {
+
+    /**
+     * Ключ сегмента, обернутый ключом данных файла
+     *
+     * @param index
+     * @return
+     */
+    byte[] getWrappedKey(long index);
+
+    /**
+     * Шифротекст сегмента из хранилища
+     *
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    byte[] readCipherText(long index) throws IOException;
+
+    /**
+     * Сжат ли сегмент перед шифрованием
+     *
+     * @param index
+     * @return
+     */
+    boolean isCompressed(long index);
+
+    /**
+     * Неизменный идентификатор содержимого сегмента для кэша сегментов
+     *
+     * @param index
+     * @return идентификатор или null, если сегмент не кэшируется
+     */
+    default String getCacheKey(long index) {
+        return null;
+    }
+}
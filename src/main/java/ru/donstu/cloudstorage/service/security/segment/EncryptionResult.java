@@ -0,0 +1,32 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+/**
+ * Результат шифрования файла: длина открытого текста и дайджест содержимого
+ *
+ * @author v.solomasov
+ */
+public class EncryptionResult {
+
+    private final long plainLength;
+
+    private final String contentDigest;
+
+    public EncryptionResult(long plainLength, String contentDigest) {
+        this.plainLength = plainLength;
+        this.contentDigest = contentDigest;
+    }
+
+    public long getPlainLength() {
+        return plainLength;
+    }
+
+    /**
+     * SHA-256 (hex) от последовательности SHA-256 сегментов открытого текста.
+     * Дайджесты сегментов считаются параллельно вместе с шифрованием
+     *
+     * @return
+     */
+    public String getContentDigest() {
+        return contentDigest;
+    }
+}
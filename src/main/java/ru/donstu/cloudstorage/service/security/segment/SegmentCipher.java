@@ -0,0 +1,779 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+import ru.donstu.cloudstorage.service.compression.CompressionService;
+import ru.donstu.cloudstorage.service.security.cache.SegmentCache;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.BUFFER_SIZE;
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+import static ru.donstu.cloudstorage.service.security.segment.SegmentTrailer.NONCE_LENGTH;
+import static ru.donstu.cloudstorage.service.security.segment.SegmentTrailer.TAG_LENGTH;
+
+/**
+ * Сегментированное шифрование AES/GCM: каждый сегмент шифруется и аутентифицируется независимо,
+ * поэтому сегменты обрабатываются параллельно на общем ограниченном пуле,
+ * а чтение можно начать с любого сегмента. Сжатие тоже посегментное и выполняется в том же пуле
+ * перед шифрованием: сегмент хранится сжатым, только если это дает выигрыш, и диапазон файла
+ * распаковывается без предыдущих сегментов
+ *
+ * @author v.solomasov
+ */
+@Component
+@PropertySource(RESOURCES_PROPERTY)
+public class SegmentCipher {
+
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+
+    public static final int DIGEST_LENGTH = 32;
+
+    private static final String CIPHER_TYPE = "AES/GCM/NoPadding";
+
+    private static final String DIGEST_TYPE = "SHA-256";
+
+    private static final String WINDOW = "crypto.segment.window";
+
+    private static final String CONVERGENCE_SECRET = "storage.dedup.secret";
+
+    private static final String MAC_TYPE = "HmacSHA256";
+
+    private static final String KEY_TYPE = "AES";
+
+    private static final String WRAP_TYPE = "AESWrap";
+
+    private static final int CONVERGENT_KEY_LENGTH = 16;
+
+    private static final byte CONVERGENT_VERSION = 1;
+
+    private static final byte COMPRESSED_CONVERGENT_VERSION = 2;
+
+    private static final byte[] CONVERGENT_IV = new byte[NONCE_LENGTH + Integer.BYTES];
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    @Qualifier("cryptoExecutor")
+    private ExecutorService cryptoExecutor;
+
+    @Autowired
+    private SegmentCache segmentCache;
+
+    @Autowired
+    private CompressionService compressionService;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    private int window;
+
+    private SecretKeySpec convergenceKey;
+
+    @PostConstruct
+    public void init() {
+        window = Integer.valueOf(environment.getRequiredProperty(WINDOW));
+        String secret = environment.getProperty(CONVERGENCE_SECRET, "");
+        convergenceKey = secret.isEmpty() ? null : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_TYPE);
+    }
+
+    /**
+     * Шифрование потока в сегментированный формат, см. {@link #openEncryption}
+     *
+     * @param inputStream
+     * @param outputStream
+     * @param key
+     * @param codec кодек сжатия сегментов или null
+     * @return длина открытого текста и дайджест содержимого
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public EncryptionResult encrypt(InputStream inputStream, OutputStream outputStream, Key key, CompressionCodec codec) throws IOException, GeneralSecurityException {
+        try (SegmentOutputStream<EncryptionResult> encryption = openEncryption(outputStream, key, segment -> codec)) {
+            IOUtils.copyLarge(inputStream, encryption, new byte[BUFFER_SIZE]);
+            return encryption.commit();
+        }
+    }
+
+    /**
+     * Поток шифрования в сегментированный формат. Одновременно в работе не более window сегментов,
+     * результат пишется строго по порядку. Без кодека пишется версия 1, с кодеком - версия 2:
+     * сжатые сегменты идут подряд, за ними индекс с их смещениями
+     *
+     * @param outputStream
+     * @param key
+     * @param codecSelector выбор кодека сжатия (или null) по первому сегменту
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public SegmentOutputStream<EncryptionResult> openEncryption(OutputStream outputStream, Key key,
+                                                              Function<byte[], CompressionCodec> codecSelector) throws GeneralSecurityException {
+        return new StreamEncryption(outputStream, key, codecSelector);
+    }
+
+    /**
+     * Завершающий блок файла заранее известной длины, собираемого по частям (версия 2 с индексом nonce)
+     *
+     * @param plainLength
+     * @return
+     */
+    public SegmentTrailer createTrailer(long plainLength) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        secureRandom.nextBytes(nonce);
+        return new SegmentTrailer(nonce, plainLength, SEGMENT_SIZE, SegmentTrailer.INDEXED_VERSION);
+    }
+
+    /**
+     * Шифрование сегментов [first, end) файла версии 2 из потока, см. {@link #openSegmentsEncryption}
+     *
+     * @param inputStream
+     * @param channel
+     * @param trailer
+     * @param key
+     * @param first
+     * @param end
+     * @param codec кодек сжатия сегментов или null
+     * @return дайджесты сегментов подряд, по порядку
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public byte[] encryptSegments(InputStream inputStream, FileChannel channel, SegmentTrailer trailer, Key key,
+                                  long first, long end, CompressionCodec codec) throws IOException, GeneralSecurityException {
+        try (SegmentOutputStream<byte[]> encryption = openSegmentsEncryption(channel, trailer, key, first, end, codec)) {
+            IOUtils.copyLarge(inputStream, encryption, new byte[BUFFER_SIZE]);
+            return encryption.commit();
+        }
+    }
+
+    /**
+     * Поток шифрования сегментов [first, end) файла версии 2, описанного блоком trailer. Каждый сегмент пишется
+     * на свое место в канале (сжатый занимает начало места), поэтому части файла можно шифровать в любом
+     * порядке и параллельно. Каждый поток шифрует со своим случайным nonce и записывает записи индекса
+     * только после всех сегментов: повторная передача части после сбоя не повторяет пару ключ-IV, а индекс
+     * не указывает на недописанные сегменты. В поток должен быть записан ровно открытый текст этих сегментов,
+     * лишние данные отклоняются, как только их набирается на сегмент
+     *
+     * @param channel
+     * @param trailer
+     * @param key
+     * @param first
+     * @param end
+     * @param codec кодек сжатия сегментов или null
+     * @return поток, подтверждение которого возвращает дайджесты сегментов подряд, по порядку
+     */
+    public SegmentOutputStream<byte[]> openSegmentsEncryption(FileChannel channel, SegmentTrailer trailer, Key key,
+                                                            long first, long end, CompressionCodec codec) {
+        return new SlotEncryption(channel, trailer, key, first, end, codec);
+    }
+
+    /**
+     * Перепаковка файла версии 2, собранного по частям: сегменты переписываются подряд без пустот
+     * на местах сжатых сегментов, за ними индекс с новыми смещениями и завершающий блок.
+     * Шифротекст не расшифровывается
+     *
+     * @param channel файл с сегментами на своих местах и индексом
+     * @param trailer
+     * @param outputStream
+     * @throws IOException
+     */
+    public void pack(FileChannel channel, SegmentTrailer trailer, OutputStream outputStream) throws IOException {
+        long count = trailer.getSegmentCount();
+        SegmentIndex index = SegmentIndex.read(channel, trailer);
+        ByteBuffer entries = ByteBuffer.allocate((int) count * SegmentIndex.ENTRY_LENGTH);
+        long offset = 0;
+        for (long i = 0; i < count; i++) {
+            ByteBuffer segment = ByteBuffer.allocate(index.getCipherLength(i));
+            long from = index.getOffset(i);
+            while (segment.hasRemaining()) {
+                if (channel.read(segment, from + segment.position()) < 0) {
+                    throw new IOException(String.format("Сегмент %d обрезан", i));
+                }
+            }
+            outputStream.write(segment.array());
+            SegmentIndex.putEntry(entries, index.getNonce(i), offset, segment.capacity(), index.isCompressed(i));
+            offset += segment.capacity();
+        }
+        outputStream.write(entries.array());
+        trailer.write(outputStream);
+    }
+
+    /**
+     * Дайджест содержимого из дайджестов сегментов, тот же, что возвращает {@link #encrypt}
+     *
+     * @param segmentDigests дайджесты сегментов по порядку
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public String getContentDigest(List<byte[]> segmentDigests) throws GeneralSecurityException {
+        MessageDigest contentDigest = MessageDigest.getInstance(DIGEST_TYPE);
+        segmentDigests.forEach(contentDigest::update);
+        return formatDigest(contentDigest);
+    }
+
+    /**
+     * Поток открытого текста сегментированного файла в диапазоне [from, to).
+     * Шифротекст нужных сегментов читается одним потоком источника по порядку,
+     * дешифрование выполняется в пуле
+     *
+     * @param source
+     * @param trailer
+     * @param key
+     * @param from
+     * @param to
+     * @return
+     */
+    public InputStream decrypt(CipherTextSource source, SegmentTrailer trailer, Key key, long from, long to) {
+        long end = Math.min(to, trailer.getPlainLength());
+        long last = end <= from ? from / trailer.getSegmentSize() : (end - 1) / trailer.getSegmentSize();
+        long first = Math.min(from / trailer.getSegmentSize(), trailer.getSegmentCount() - 1);
+        SegmentReader reader = new SegmentReader(source, trailer, segmentCache, first, Math.max(first, Math.min(last, trailer.getSegmentCount() - 1)));
+        return new SegmentInputStream(this, index -> submitDecrypt(reader, trailer, key, index), reader,
+                trailer.getPlainLength(), trailer.getSegmentSize(), from, to, window);
+    }
+
+    /**
+     * Сходящееся шифрование потока, см. {@link #openConvergentEncryption}
+     *
+     * @param inputStream
+     * @param dataKey
+     * @param codec кодек сжатия сегментов или null
+     * @param handler
+     * @return длина открытого текста и дайджест содержимого
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public EncryptionResult encryptConvergent(InputStream inputStream, Key dataKey, CompressionCodec codec, ConvergentSegmentHandler handler) throws IOException, GeneralSecurityException {
+        try (SegmentOutputStream<EncryptionResult> encryption = openConvergentEncryption(dataKey, segment -> codec, handler)) {
+            IOUtils.copyLarge(inputStream, encryption, new byte[BUFFER_SIZE]);
+            return encryption.commit();
+        }
+    }
+
+    /**
+     * Поток сходящегося шифрования. Ключ сегмента - HMAC секрета сервера от дайджеста
+     * хранимых байтов сегмента, поэтому одинаковые сегменты дают одинаковый адрес и шифротекст, а без секрета
+     * проверить наличие известного содержимого по шифротексту нельзя. Ключи сегментов оборачиваются
+     * ключом данных файла. Сегменты передаются обработчику строго по порядку
+     *
+     * @param dataKey
+     * @param codecSelector выбор кодека сжатия (или null) по первому сегменту
+     * @param handler
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public SegmentOutputStream<EncryptionResult> openConvergentEncryption(Key dataKey, Function<byte[], CompressionCodec> codecSelector,
+                                                                        ConvergentSegmentHandler handler) throws GeneralSecurityException {
+        return new ConvergentEncryption(dataKey, codecSelector, handler);
+    }
+
+    /**
+     * Поток открытого текста файла сходящегося шифрования в диапазоне [from, to)
+     *
+     * @param source
+     * @param dataKey
+     * @param plainLength
+     * @param from
+     * @param to
+     * @return
+     */
+    public InputStream decryptConvergent(ConvergentSegmentSource source, Key dataKey, long plainLength, long from, long to) {
+        return new SegmentInputStream(this, index -> submitConvergentDecrypt(dataKey, source, index, getSegmentPlainLength(plainLength, index)), () -> {
+        }, plainLength, SEGMENT_SIZE, from, to, window);
+    }
+
+    /**
+     * Дешифрование сегмента. Одновременные запросы одного сегмента кэшируемого содержимого
+     * объединяются в одно чтение и одно дешифрование
+     *
+     * @param reader
+     * @param trailer
+     * @param key
+     * @param index
+     * @return
+     */
+    private Future<byte[]> submitDecrypt(SegmentReader reader, SegmentTrailer trailer, Key key, long index) {
+        String cacheKey = reader.getCacheKey();
+        if (cacheKey == null) {
+            return readAndDecrypt(reader, trailer, key, index);
+        }
+        return segmentCache.load(cacheKey, index, () -> readAndDecrypt(reader, trailer, key, index));
+    }
+
+    /**
+     * Чтение сегмента в вызывающем потоке, чтобы сегменты читались строго по порядку,
+     * и асинхронное дешифрование
+     *
+     * @param reader
+     * @param trailer
+     * @param key
+     * @param index
+     * @return
+     */
+    private CompletableFuture<byte[]> readAndDecrypt(SegmentReader reader, SegmentTrailer trailer, Key key, long index) {
+        byte[] nonce;
+        boolean compressed;
+        byte[] cipherText;
+        try {
+            nonce = reader.getNonce(index);
+            compressed = reader.isCompressed(index);
+            cipherText = reader.read(index);
+        } catch (IOException e) {
+            CompletableFuture<byte[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return decryptSegment(key, trailer, nonce, index, compressed, cipherText);
+            } catch (GeneralSecurityException | IOException e) {
+                throw new CompletionException(e);
+            }
+        }, cryptoExecutor);
+    }
+
+    /**
+     * Дешифрование сегмента сходящегося шифрования. Открытый текст определяется адресом сегмента,
+     * поэтому одновременные запросы одного сегмента из любых файлов объединяются
+     *
+     * @param dataKey
+     * @param source
+     * @param index
+     * @param plainLength
+     * @return
+     */
+    private Future<byte[]> submitConvergentDecrypt(Key dataKey, ConvergentSegmentSource source, long index, int plainLength) {
+        String cacheKey = source.getCacheKey(index);
+        if (cacheKey == null) {
+            return cryptoExecutor.submit(() -> decryptConvergentSegment(dataKey, source, index, plainLength));
+        }
+        return segmentCache.load(cacheKey, 0, () -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return decryptConvergentSegment(dataKey, source, index, plainLength);
+            } catch (GeneralSecurityException | IOException e) {
+                throw new CompletionException(e);
+            }
+        }, cryptoExecutor));
+    }
+
+    <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private EncryptedSegment encryptSegment(Key key, byte[] nonce, byte version, long index, boolean last, byte[] segment,
+                                            CompressionCodec codec) throws GeneralSecurityException {
+        byte[] compressed = codec == null ? null : compressionService.compressSegment(segment, codec);
+        Cipher cipher = Cipher.getInstance(CIPHER_TYPE);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, getIv(nonce, index)));
+        cipher.updateAAD(getAad(version, last, compressed != null));
+        byte[] cipherText = cipher.doFinal(compressed == null ? segment : compressed);
+        return new EncryptedSegment(index, nonce, compressed != null, cipherText, MessageDigest.getInstance(DIGEST_TYPE).digest(segment));
+    }
+
+    /**
+     * Сжатый сегмент шифруется ключом от дайджеста сжатых байтов с отдельной версией: одинаковый
+     * открытый текст, сжатый по-разному, дает разные ключи, и постоянный IV не повторяется с одним ключом
+     *
+     * @param dataKey
+     * @param index
+     * @param segment
+     * @param codec
+     * @return
+     * @throws GeneralSecurityException
+     */
+    private ConvergentSegment encryptConvergentSegment(Key dataKey, long index, byte[] segment, CompressionCodec codec) throws GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance(DIGEST_TYPE).digest(segment);
+        byte[] compressed = codec == null ? null : compressionService.compressSegment(segment, codec);
+        byte version = compressed == null ? CONVERGENT_VERSION : COMPRESSED_CONVERGENT_VERSION;
+        if (convergenceKey == null) {
+            throw new IllegalStateException(String.format("Не задан секрет %s", CONVERGENCE_SECRET));
+        }
+        Mac mac = Mac.getInstance(MAC_TYPE);
+        mac.init(convergenceKey);
+        if (compressed != null) {
+            mac.update(version);
+        }
+        byte[] keyDigest = compressed == null ? digest : MessageDigest.getInstance(DIGEST_TYPE).digest(compressed);
+        SecretKeySpec segmentKey = new SecretKeySpec(Arrays.copyOf(mac.doFinal(keyDigest), CONVERGENT_KEY_LENGTH), KEY_TYPE);
+        Cipher cipher = Cipher.getInstance(CIPHER_TYPE);
+        cipher.init(Cipher.ENCRYPT_MODE, segmentKey, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, CONVERGENT_IV));
+        cipher.updateAAD(new byte[]{version});
+        byte[] cipherText = cipher.doFinal(compressed == null ? segment : compressed);
+        Cipher wrapCipher = Cipher.getInstance(WRAP_TYPE);
+        wrapCipher.init(Cipher.WRAP_MODE, dataKey);
+        String address = String.format("%064x", new BigInteger(1, MessageDigest.getInstance(DIGEST_TYPE).digest(segmentKey.getEncoded())));
+        return new ConvergentSegment(index, address, segment.length, wrapCipher.wrap(segmentKey), cipherText, digest, compressed != null);
+    }
+
+    /**
+     * Ключ сегмента выводится из содержимого и для каждого содержимого свой,
+     * поэтому постоянный вектор инициализации не приводит к повторному использованию пары ключ-IV
+     *
+     * @param dataKey
+     * @param source
+     * @param index
+     * @param plainLength
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    private byte[] decryptConvergentSegment(Key dataKey, ConvergentSegmentSource source, long index, int plainLength) throws GeneralSecurityException, IOException {
+        boolean compressed = source.isCompressed(index);
+        Cipher wrapCipher = Cipher.getInstance(WRAP_TYPE);
+        wrapCipher.init(Cipher.UNWRAP_MODE, dataKey);
+        Key segmentKey = wrapCipher.unwrap(source.getWrappedKey(index), KEY_TYPE, Cipher.SECRET_KEY);
+        Cipher cipher = Cipher.getInstance(CIPHER_TYPE);
+        cipher.init(Cipher.DECRYPT_MODE, segmentKey, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, CONVERGENT_IV));
+        cipher.updateAAD(new byte[]{compressed ? COMPRESSED_CONVERGENT_VERSION : CONVERGENT_VERSION});
+        byte[] segment = cipher.doFinal(readConvergentCipherText(source, index));
+        return compressed ? compressionService.decompressSegment(segment, plainLength) : segment;
+    }
+
+    /**
+     * Шифротекст сегмента сходящегося шифрования через кэш сегментов
+     *
+     * @param source
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    private byte[] readConvergentCipherText(ConvergentSegmentSource source, long index) throws IOException {
+        String cacheKey = source.getCacheKey(index);
+        if (cacheKey == null) {
+            return source.readCipherText(index);
+        }
+        byte[] cipherText = segmentCache.get(cacheKey, 0);
+        if (cipherText == null) {
+            cipherText = source.readCipherText(index);
+            segmentCache.put(cacheKey, 0, cipherText);
+        }
+        return cipherText;
+    }
+
+    private void handleSegment(ConvergentSegment segment, ConvergentSegmentHandler handler, MessageDigest contentDigest) throws IOException {
+        contentDigest.update(segment.getDigest());
+        handler.accept(segment);
+    }
+
+    /**
+     * Запись сегмента в поток, в версии 2 - с записью индекса
+     *
+     * @param segment
+     * @param outputStream
+     * @param contentDigest
+     * @param entries записи индекса или null для версии 1
+     * @param offset смещение сегмента в файле
+     * @return длина шифротекста сегмента
+     * @throws IOException
+     */
+    private int writeSegment(EncryptedSegment segment, OutputStream outputStream, MessageDigest contentDigest,
+                             ByteArrayOutputStream entries, long offset) throws IOException {
+        outputStream.write(segment.cipherText);
+        contentDigest.update(segment.digest);
+        if (entries != null) {
+            ByteBuffer entry = ByteBuffer.allocate(SegmentIndex.ENTRY_LENGTH);
+            SegmentIndex.putEntry(entry, segment.nonce, offset, segment.cipherText.length, segment.compressed);
+            entries.write(entry.array());
+        }
+        return segment.cipherText.length;
+    }
+
+    private void writeSegment(EncryptedSegment segment, FileChannel channel, SegmentTrailer trailer, OutputStream digests, ByteBuffer entries) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(segment.cipherText);
+        long offset = trailer.getSegmentOffset(segment.index);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        digests.write(segment.digest);
+        SegmentIndex.putEntry(entries, segment.nonce, offset, segment.cipherText.length, segment.compressed);
+    }
+
+    private byte[] decryptSegment(Key key, SegmentTrailer trailer, byte[] nonce, long index, boolean compressed, byte[] segment) throws GeneralSecurityException, IOException {
+        Cipher cipher = Cipher.getInstance(CIPHER_TYPE);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, getIv(nonce, index)));
+        cipher.updateAAD(getAad(trailer.getVersion(), index == trailer.getSegmentCount() - 1, compressed));
+        byte[] plainText = cipher.doFinal(segment);
+        return compressed ? compressionService.decompressSegment(plainText, trailer.getSegmentPlainLength(index)) : plainText;
+    }
+
+    private int getSegmentPlainLength(long plainLength, long index) {
+        return (int) Math.min(SEGMENT_SIZE, plainLength - index * SEGMENT_SIZE);
+    }
+
+    private String formatDigest(MessageDigest digest) {
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * Вектор инициализации: nonce файла (в версии 2 - nonce сегмента из индекса) и номер сегмента
+     *
+     * @param nonce
+     * @param index
+     * @return
+     */
+    private byte[] getIv(byte[] nonce, long index) {
+        return ByteBuffer.allocate(NONCE_LENGTH + Integer.BYTES).put(nonce).putInt((int) index).array();
+    }
+
+    /**
+     * Признак последнего сегмента аутентифицируется, чтобы обрезание файла по границе сегмента обнаруживалось.
+     * В версии 2 аутентифицируется и признак сжатия из индекса
+     *
+     * @param version
+     * @param last
+     * @param compressed
+     * @return
+     */
+    private byte[] getAad(byte version, boolean last, boolean compressed) {
+        if (version == SegmentTrailer.VERSION) {
+            return new byte[]{version, (byte) (last ? 1 : 0)};
+        }
+        return new byte[]{version, (byte) (last ? 1 : 0), (byte) (compressed ? 1 : 0)};
+    }
+
+    /**
+     * Шифрование в сегментированный формат с записью в поток
+     */
+    private class StreamEncryption extends SegmentOutputStream<EncryptionResult> {
+
+        private final OutputStream outputStream;
+
+        private final Key key;
+
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+
+        private final MessageDigest contentDigest;
+
+        private final Deque<Future<EncryptedSegment>> pending = new ArrayDeque<>();
+
+        private ByteArrayOutputStream entries;
+
+        private byte version;
+
+        private long plainLength;
+
+        private long cipherLength;
+
+        private StreamEncryption(OutputStream outputStream, Key key, Function<byte[], CompressionCodec> codecSelector) throws GeneralSecurityException {
+            super(codecSelector);
+            this.outputStream = outputStream;
+            this.key = key;
+            this.contentDigest = MessageDigest.getInstance(DIGEST_TYPE);
+            secureRandom.nextBytes(nonce);
+        }
+
+        @Override
+        protected void submit(long index, byte[] segment, boolean last) throws IOException {
+            CompressionCodec codec = getCodec();
+            if (index == 0) {
+                version = codec == null ? SegmentTrailer.VERSION : SegmentTrailer.INDEXED_VERSION;
+                entries = codec == null ? null : new ByteArrayOutputStream();
+            }
+            byte segmentVersion = version;
+            pending.add(cryptoExecutor.submit(() -> encryptSegment(key, nonce, segmentVersion, index, last, segment, codec)));
+            plainLength += segment.length;
+            while (pending.size() > window) {
+                cipherLength += writeSegment(await(pending.poll()), outputStream, contentDigest, entries, cipherLength);
+            }
+        }
+
+        @Override
+        protected EncryptionResult finish() throws IOException {
+            while (!pending.isEmpty()) {
+                cipherLength += writeSegment(await(pending.poll()), outputStream, contentDigest, entries, cipherLength);
+            }
+            if (entries != null) {
+                entries.writeTo(outputStream);
+            }
+            new SegmentTrailer(nonce, plainLength, SEGMENT_SIZE, version).write(outputStream);
+            return new EncryptionResult(plainLength, formatDigest(contentDigest));
+        }
+
+        @Override
+        protected void cancel() {
+            pending.forEach(future -> future.cancel(false));
+        }
+    }
+
+    /**
+     * Шифрование части файла версии 2 на места сегментов в канале
+     */
+    private class SlotEncryption extends SegmentOutputStream<byte[]> {
+
+        private final FileChannel channel;
+
+        private final SegmentTrailer trailer;
+
+        private final Key key;
+
+        private final long first;
+
+        private final long end;
+
+        private final byte[] nonce = new byte[NONCE_LENGTH];
+
+        private final ByteArrayOutputStream digests;
+
+        private final ByteBuffer entries;
+
+        private final Deque<Future<EncryptedSegment>> pending = new ArrayDeque<>();
+
+        private long next;
+
+        private SlotEncryption(FileChannel channel, SegmentTrailer trailer, Key key, long first, long end, CompressionCodec codec) {
+            super(segment -> codec);
+            this.channel = channel;
+            this.trailer = trailer;
+            this.key = key;
+            this.first = first;
+            this.end = end;
+            this.next = first;
+            this.digests = new ByteArrayOutputStream((int) (end - first) * DIGEST_LENGTH);
+            this.entries = ByteBuffer.allocate((int) (end - first) * SegmentIndex.ENTRY_LENGTH);
+            secureRandom.nextBytes(nonce);
+        }
+
+        @Override
+        protected void submit(long index, byte[] segment, boolean last) throws IOException {
+            long segmentIndex = first + index;
+            if (segmentIndex >= end || segment.length > trailer.getSegmentPlainLength(segmentIndex)) {
+                throw new IOException("Получено больше данных, чем содержат сегменты");
+            }
+            if (segment.length < trailer.getSegmentPlainLength(segmentIndex)) {
+                throw new IOException(String.format("Сегмент %d получен не полностью", segmentIndex));
+            }
+            CompressionCodec codec = getCodec();
+            boolean lastInFile = segmentIndex == trailer.getSegmentCount() - 1;
+            pending.add(cryptoExecutor.submit(() -> encryptSegment(key, nonce, trailer.getVersion(), segmentIndex, lastInFile, segment, codec)));
+            next = segmentIndex + 1;
+            while (pending.size() > window) {
+                writeSegment(await(pending.poll()), channel, trailer, digests, entries);
+            }
+        }
+
+        @Override
+        protected byte[] finish() throws IOException {
+            if (next < end) {
+                throw new IOException(String.format("Сегмент %d получен не полностью", next));
+            }
+            while (!pending.isEmpty()) {
+                writeSegment(await(pending.poll()), channel, trailer, digests, entries);
+            }
+            SegmentIndex.write(channel, trailer, first, entries);
+            return digests.toByteArray();
+        }
+
+        @Override
+        protected void cancel() {
+            pending.forEach(future -> future.cancel(false));
+        }
+    }
+
+    /**
+     * Сходящееся шифрование с передачей сегментов обработчику
+     */
+    private class ConvergentEncryption extends SegmentOutputStream<EncryptionResult> {
+
+        private final Key dataKey;
+
+        private final ConvergentSegmentHandler handler;
+
+        private final MessageDigest contentDigest;
+
+        private final Deque<Future<ConvergentSegment>> pending = new ArrayDeque<>();
+
+        private long plainLength;
+
+        private ConvergentEncryption(Key dataKey, Function<byte[], CompressionCodec> codecSelector, ConvergentSegmentHandler handler) throws GeneralSecurityException {
+            super(codecSelector);
+            this.dataKey = dataKey;
+            this.handler = handler;
+            this.contentDigest = MessageDigest.getInstance(DIGEST_TYPE);
+        }
+
+        @Override
+        protected void submit(long index, byte[] segment, boolean last) throws IOException {
+            CompressionCodec codec = getCodec();
+            pending.add(cryptoExecutor.submit(() -> encryptConvergentSegment(dataKey, index, segment, codec)));
+            plainLength += segment.length;
+            while (pending.size() > window) {
+                handleSegment(await(pending.poll()), handler, contentDigest);
+            }
+        }
+
+        @Override
+        protected EncryptionResult finish() throws IOException {
+            while (!pending.isEmpty()) {
+                handleSegment(await(pending.poll()), handler, contentDigest);
+            }
+            return new EncryptionResult(plainLength, formatDigest(contentDigest));
+        }
+
+        @Override
+        protected void cancel() {
+            pending.forEach(future -> future.cancel(false));
+        }
+    }
+
+    private static class EncryptedSegment {
+
+        private final long index;
+
+        private final byte[] nonce;
+
+        private final boolean compressed;
+
+        private final byte[] cipherText;
+
+        private final byte[] digest;
+
+        private EncryptedSegment(long index, byte[] nonce, boolean compressed, byte[] cipherText, byte[] digest) {
+            this.index = index;
+            this.nonce = nonce;
+            this.compressed = compressed;
+            this.cipherText = cipherText;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static ru.donstu.cloudstorage.service.security.segment.SegmentTrailer.NONCE_LENGTH;
+import static ru.donstu.cloudstorage.service.security.segment.SegmentTrailer.TAG_LENGTH;
+
+/**
+ * Индекс сегментов файла версии 2, запись на каждый сегмент по порядку:
+ * nonce (8) | смещение шифротекста (8) | длина шифротекста (4) | флаги (1).
+ * Читается только нужный диапазон записей; у файла версии 1 индекса нет,
+ * сегменты лежат на своих местах, не сжаты и шифруются nonce завершающего блока
+ *
+ * @author v.solomasov
+ */
+class SegmentIndex {
+
+    static final int ENTRY_LENGTH = NONCE_LENGTH + Long.BYTES + Integer.BYTES + 1;
+
+    static final byte COMPRESSED = 1;
+
+    private final SegmentTrailer trailer;
+
+    private final long first;
+
+    private final ByteBuffer entries;
+
+    private SegmentIndex(SegmentTrailer trailer, long first, ByteBuffer entries) {
+        this.trailer = trailer;
+        this.first = first;
+        this.entries = entries;
+    }
+
+    /**
+     * Записи сегментов [first, last]
+     *
+     * @param source
+     * @param trailer
+     * @param first
+     * @param last
+     * @return
+     * @throws IOException
+     */
+    static SegmentIndex read(CipherTextSource source, SegmentTrailer trailer, long first, long last) throws IOException {
+        if (!trailer.isIndexed()) {
+            return new SegmentIndex(trailer, first, null);
+        }
+        byte[] entries = new byte[(int) (last - first + 1) * ENTRY_LENGTH];
+        long from = trailer.getIndexOffset() + first * ENTRY_LENGTH;
+        try (InputStream inputStream = source.open(from, from + entries.length)) {
+            IOUtils.readFully(inputStream, entries);
+        } catch (EOFException e) {
+            throw new IOException(String.format("Индекс сегментов %d..%d обрезан", first, last));
+        }
+        return new SegmentIndex(trailer, first, ByteBuffer.wrap(entries));
+    }
+
+    /**
+     * Все записи индекса файла, собираемого по частям
+     *
+     * @param channel
+     * @param trailer
+     * @return
+     * @throws IOException
+     */
+    static SegmentIndex read(FileChannel channel, SegmentTrailer trailer) throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate((int) trailer.getSegmentCount() * ENTRY_LENGTH);
+        while (entries.hasRemaining()) {
+            if (channel.read(entries, trailer.getIndexOffset() + entries.position()) < 0) {
+                throw new IOException("Индекс сегментов обрезан");
+            }
+        }
+        return new SegmentIndex(trailer, 0, entries);
+    }
+
+    /**
+     * Добавление записи сегмента в буфер индекса
+     *
+     * @param buffer
+     * @param nonce
+     * @param offset
+     * @param cipherLength
+     * @param compressed
+     */
+    static void putEntry(ByteBuffer buffer, byte[] nonce, long offset, int cipherLength, boolean compressed) {
+        buffer.put(nonce).putLong(offset).putInt(cipherLength).put(compressed ? COMPRESSED : 0);
+    }
+
+    /**
+     * Запись записей сегментов, начиная с first, на их место в индексе
+     *
+     * @param channel
+     * @param trailer
+     * @param first
+     * @param buffer записи, подготовленные {@link #putEntry}
+     * @throws IOException
+     */
+    static void write(FileChannel channel, SegmentTrailer trailer, long first, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        long offset = trailer.getIndexOffset() + first * ENTRY_LENGTH;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    byte[] getNonce(long index) {
+        if (entries == null) {
+            return trailer.getNonce();
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        for (int i = 0; i < NONCE_LENGTH; i++) {
+            nonce[i] = entries.get(getPosition(index) + i);
+        }
+        return nonce;
+    }
+
+    long getOffset(long index) {
+        if (entries == null) {
+            return trailer.getSegmentOffset(index);
+        }
+        return entries.getLong(getPosition(index) + NONCE_LENGTH);
+    }
+
+    int getCipherLength(long index) throws IOException {
+        if (entries == null) {
+            return trailer.getSegmentCipherLength(index);
+        }
+        int length = entries.getInt(getPosition(index) + NONCE_LENGTH + Long.BYTES);
+        if (length < TAG_LENGTH || length > trailer.getSegmentCipherLength(index)) {
+            throw new IOException(String.format("Неверная длина сегмента %d в индексе", index));
+        }
+        return length;
+    }
+
+    boolean isCompressed(long index) {
+        return entries != null && (entries.get(getPosition(index) + NONCE_LENGTH + Long.BYTES + Integer.BYTES) & COMPRESSED) != 0;
+    }
+
+    private int getPosition(long index) {
+        return (int) (index - first) * ENTRY_LENGTH;
+    }
+}
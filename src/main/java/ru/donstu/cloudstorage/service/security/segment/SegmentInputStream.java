@@ -0,0 +1,98 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
+
+/**
+ * Поток открытого текста сегментированного файла. Сегменты читаются и дешифруются
+ * с опережением не более чем на window штук, поэтому память на поток ограничена.
+ * Источник сегментов закрывается вместе с потоком
+ *
+ * @author v.solomasov
+ */
+class SegmentInputStream extends InputStream {
+
+    private final SegmentCipher segmentCipher;
+
+    private final SegmentSupplier supplier;
+
+    private final Closeable source;
+
+    private final int window;
+
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private long remaining;
+
+    private long nextSubmit;
+
+    private final long lastSegment;
+
+    private int skip;
+
+    private byte[] segment;
+
+    private int position;
+
+    SegmentInputStream(SegmentCipher segmentCipher, SegmentSupplier supplier, Closeable source,
+                       long plainLength, int segmentSize, long from, long to, int window) {
+        this.segmentCipher = segmentCipher;
+        this.supplier = supplier;
+        this.source = source;
+        this.window = window;
+        long end = Math.min(to, plainLength);
+        this.remaining = Math.max(0, end - from);
+        this.nextSubmit = from / segmentSize;
+        this.lastSegment = remaining == 0 ? nextSubmit : (end - 1) / segmentSize;
+        this.skip = (int) (from % segmentSize);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        if (segment == null || position == segment.length) {
+            nextSegment();
+        }
+        int count = (int) Math.min(Math.min(length, segment.length - position), remaining);
+        System.arraycopy(segment, position, buffer, offset, count);
+        position += count;
+        remaining -= count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pending.forEach(future -> future.cancel(false));
+        pending.clear();
+        source.close();
+    }
+
+    private void nextSegment() throws IOException {
+        while (pending.size() < window && nextSubmit <= lastSegment) {
+            pending.add(supplier.submit(nextSubmit++));
+        }
+        segment = segmentCipher.await(pending.poll());
+        position = skip;
+        skip = 0;
+    }
+
+    /**
+     * Асинхронное получение открытого текста сегмента по номеру
+     */
+    interface SegmentSupplier {
+
+        Future<byte[]> submit(long index);
+    }
+}
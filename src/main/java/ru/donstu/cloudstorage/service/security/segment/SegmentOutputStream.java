@@ -0,0 +1,141 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.BUFFER_SIZE;
+import static ru.donstu.cloudstorage.service.security.segment.SegmentCipher.SEGMENT_SIZE;
+
+/**
+ * Поток шифрования открытого текста, поступающего порциями по мере приема из сети. Открытый текст
+ * копится в буфере сегмента, полный сегмент уходит на шифрование, только когда приходят следующие байты:
+ * признак последнего сегмента известен лишь в конце. Буфер первого сегмента растет по мере поступления
+ * данных, поэтому медленный клиент не удерживает целый сегмент памяти. Кодек сжатия выбирается
+ * по первому сегменту. Результат возвращает {@link #commit()}, закрытие без подтверждения отменяет
+ * незавершенные сегменты
+ *
+ * @param <T> результат шифрования
+ * @author v.solomasov
+ */
+public abstract class SegmentOutputStream<T> extends OutputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Function<byte[], CompressionCodec> codecSelector;
+
+    private CompressionCodec codec;
+
+    private byte[] segment = EMPTY;
+
+    private int length;
+
+    private long index;
+
+    private boolean closed;
+
+    protected SegmentOutputStream(Function<byte[], CompressionCodec> codecSelector) {
+        this.codecSelector = codecSelector;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Поток шифрования закрыт");
+        }
+        while (len > 0) {
+            if (length == SEGMENT_SIZE) {
+                submitSegment(segment, false);
+                segment = EMPTY;
+                length = 0;
+            }
+            ensureCapacity(Math.min(SEGMENT_SIZE, length + len));
+            int count = Math.min(len, SEGMENT_SIZE - length);
+            System.arraycopy(b, off, segment, length, count);
+            length += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Шифрование последнего сегмента и ожидание всех сегментов, поток закрывается
+     *
+     * @return
+     * @throws IOException
+     */
+    public T commit() throws IOException {
+        if (closed) {
+            throw new IOException("Поток шифрования закрыт");
+        }
+        submitSegment(length == segment.length ? segment : Arrays.copyOf(segment, length), true);
+        segment = null;
+        T result = finish();
+        closed = true;
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            segment = null;
+            cancel();
+        }
+    }
+
+    /**
+     * Кодек, выбранный по первому сегменту
+     *
+     * @return кодек или null, если сегменты не сжимаются
+     */
+    public CompressionCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Шифрование сегмента. Сегменты передаются по порядку, все, кроме последнего, полные
+     *
+     * @param index номер сегмента в потоке
+     * @param segment
+     * @param last
+     * @throws IOException
+     */
+    protected abstract void submit(long index, byte[] segment, boolean last) throws IOException;
+
+    /**
+     * Ожидание зашифрованных сегментов и запись завершающих данных
+     *
+     * @return
+     * @throws IOException
+     */
+    protected abstract T finish() throws IOException;
+
+    /**
+     * Отмена незавершенных сегментов
+     */
+    protected abstract void cancel();
+
+    private void submitSegment(byte[] data, boolean last) throws IOException {
+        if (index == 0) {
+            codec = codecSelector.apply(data);
+        }
+        submit(index++, data, last);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= segment.length) {
+            return;
+        }
+        int size = index > 0 ? SEGMENT_SIZE : Math.min(SEGMENT_SIZE, Math.max(capacity, Math.max(BUFFER_SIZE, segment.length * 2)));
+        segment = Arrays.copyOf(segment, size);
+    }
+}
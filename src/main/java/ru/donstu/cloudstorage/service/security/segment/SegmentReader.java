@@ -0,0 +1,118 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+import org.apache.commons.io.IOUtils;
+import ru.donstu.cloudstorage.service.security.cache.SegmentCache;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Последовательное чтение сегментов [first, last] одним потоком источника:
+ * для удаленного хранилища это один запрос на весь диапазон вместо запроса на каждый сегмент.
+ * Сегменты запрашиваются по порядку, их смещения и длины берутся из индекса. Сегменты из кэша не читаются из источника: поток пропускает
+ * их шифротекст и остается открытым, заново открывается только при переходе назад или через
+ * пропуск длиннее {@link #MAX_SKIP} байт, который дешевле запросить отдельно, чем дочитать.
+ * Прочитанные сегменты предлагаются кэшу
+ *
+ * @author v.solomasov
+ */
+class SegmentReader implements Closeable {
+
+    static final long MAX_SKIP = 8L * SegmentCipher.SEGMENT_SIZE;
+
+    private final CipherTextSource source;
+
+    private final SegmentTrailer trailer;
+
+    private final SegmentCache cache;
+
+    private final long first;
+
+    private final long last;
+
+    private SegmentIndex segmentIndex;
+
+    private InputStream stream;
+
+    private long position;
+
+    SegmentReader(CipherTextSource source, SegmentTrailer trailer, SegmentCache cache, long first, long last) {
+        this.source = source;
+        this.trailer = trailer;
+        this.cache = cache;
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Nonce сегмента. Индекс файла версии 2 читается при первом обращении
+     *
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    byte[] getNonce(long index) throws IOException {
+        return getSegmentIndex().getNonce(index);
+    }
+
+    /**
+     * Сжат ли сегмент перед шифрованием
+     *
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    boolean isCompressed(long index) throws IOException {
+        return getSegmentIndex().isCompressed(index);
+    }
+
+    String getCacheKey() {
+        return source.getCacheKey();
+    }
+
+    byte[] read(long index) throws IOException {
+        String cacheKey = source.getCacheKey();
+        if (cacheKey != null) {
+            byte[] cached = cache.get(cacheKey, index);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        SegmentIndex segmentIndex = getSegmentIndex();
+        long offset = segmentIndex.getOffset(index);
+        if (stream == null || offset < position || offset - position > MAX_SKIP) {
+            close();
+            stream = source.open(offset, segmentIndex.getOffset(last) + segmentIndex.getCipherLength(last));
+            position = offset;
+        }
+        byte[] segment = new byte[segmentIndex.getCipherLength(index)];
+        try {
+            IOUtils.skipFully(stream, offset - position);
+            IOUtils.readFully(stream, segment);
+        } catch (EOFException e) {
+            throw new IOException(String.format("Сегмент %d обрезан", index));
+        }
+        position = offset + segment.length;
+        if (cacheKey != null) {
+            cache.put(cacheKey, index, segment);
+        }
+        return segment;
+    }
+
+    private SegmentIndex getSegmentIndex() throws IOException {
+        if (segmentIndex == null) {
+            segmentIndex = SegmentIndex.read(source, trailer, first, last);
+        }
+        return segmentIndex;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+}
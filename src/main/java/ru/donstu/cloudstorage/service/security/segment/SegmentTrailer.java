@@ -0,0 +1,205 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Завершающий блок сегментированного файла:
+ * nonce (8) | длина открытого текста (8) | размер сегмента (4) | версия (1) | сигнатура (4).
+ * В версии 1 сегмент i начинается со смещения i * (segmentSize + TAG_LENGTH) и все сегменты шифруются
+ * с nonce блока. В версии 2 между сегментами и блоком лежит индекс {@link SegmentIndex} с nonce, смещением,
+ * длиной и признаком сжатия каждого сегмента: сжатые сегменты короче открытого текста, а файл, собираемый
+ * по частям, шифрует каждую попытку передачи части своим nonce. Индекс занимает фиксированную длину
+ * перед блоком, поэтому его смещение определяется по длине файла. Блок пишется в конце,
+ * поэтому файл формируется строго последовательно
+ *
+ * @author v.solomasov
+ */
+public class SegmentTrailer {
+
+    public static final int NONCE_LENGTH = 8;
+
+    public static final int TAG_LENGTH = 16;
+
+    public static final byte VERSION = 1;
+
+    public static final byte INDEXED_VERSION = 2;
+
+    public static final int LENGTH = NONCE_LENGTH + Long.BYTES + Integer.BYTES + 1 + Integer.BYTES;
+
+    private static final int MAGIC = 0x43535347;
+
+    private final byte[] nonce;
+
+    private final long plainLength;
+
+    private final int segmentSize;
+
+    private final byte version;
+
+    private final long indexOffset;
+
+    public SegmentTrailer(byte[] nonce, long plainLength, int segmentSize) {
+        this(nonce, plainLength, segmentSize, VERSION);
+    }
+
+    /**
+     * Блок файла, сегменты которого лежат на местах версии 1: индекс версии 2 начинается
+     * сразу за последним сегментом
+     *
+     * @param nonce
+     * @param plainLength
+     * @param segmentSize
+     * @param version
+     */
+    public SegmentTrailer(byte[] nonce, long plainLength, int segmentSize, byte version) {
+        this.nonce = nonce;
+        this.plainLength = plainLength;
+        this.segmentSize = segmentSize;
+        this.version = version;
+        this.indexOffset = getSlotsLength();
+    }
+
+    private SegmentTrailer(byte[] nonce, long plainLength, int segmentSize, byte version, long indexOffset) {
+        this.nonce = nonce;
+        this.plainLength = plainLength;
+        this.segmentSize = segmentSize;
+        this.version = version;
+        this.indexOffset = indexOffset;
+    }
+
+    /**
+     * Чтение завершающего блока. Файлы старого формата блока не содержат
+     *
+     * @param source
+     * @return блок или null, если файл не сегментированный
+     * @throws IOException
+     */
+    public static SegmentTrailer read(CipherTextSource source) throws IOException {
+        long size = source.length();
+        if (size < LENGTH) {
+            return null;
+        }
+        byte[] block = new byte[LENGTH];
+        try (InputStream inputStream = source.open(size - LENGTH, size)) {
+            IOUtils.readFully(inputStream, block);
+        } catch (EOFException e) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        buffer.get(nonce);
+        long plainLength = buffer.getLong();
+        int segmentSize = buffer.getInt();
+        byte version = buffer.get();
+        if (buffer.getInt() != MAGIC || (version != VERSION && version != INDEXED_VERSION) || segmentSize <= 0 || plainLength < 0) {
+            return null;
+        }
+        SegmentTrailer trailer = new SegmentTrailer(nonce, plainLength, segmentSize, version);
+        if (trailer.isIndexed()) {
+            long indexOffset = size - LENGTH - trailer.getSegmentCount() * SegmentIndex.ENTRY_LENGTH;
+            return indexOffset < trailer.getSegmentCount() * TAG_LENGTH ? null
+                    : new SegmentTrailer(nonce, plainLength, segmentSize, version, indexOffset);
+        }
+        return trailer.getFileLength() == size ? trailer : null;
+    }
+
+    public void write(OutputStream outputStream) throws IOException {
+        outputStream.write(toBuffer().array());
+    }
+
+    /**
+     * Запись блока на его место в конце файла
+     *
+     * @param channel
+     * @throws IOException
+     */
+    public void write(FileChannel channel) throws IOException {
+        ByteBuffer buffer = toBuffer();
+        long offset = getFileLength() - LENGTH;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    /**
+     * Количество сегментов. Пустой файл состоит из одного пустого сегмента,
+     * чтобы его содержимое тоже было аутентифицировано
+     *
+     * @return
+     */
+    public long getSegmentCount() {
+        return plainLength == 0 ? 1 : (plainLength + segmentSize - 1) / segmentSize;
+    }
+
+    public long getSegmentOffset(long index) {
+        return index * (segmentSize + TAG_LENGTH);
+    }
+
+    public int getSegmentPlainLength(long index) {
+        return (int) Math.min(segmentSize, plainLength - index * segmentSize);
+    }
+
+    public int getSegmentCipherLength(long index) {
+        return getSegmentPlainLength(index) + TAG_LENGTH;
+    }
+
+    /**
+     * Смещение индекса версии 2: за последним сегментом
+     *
+     * @return
+     */
+    public long getIndexOffset() {
+        return indexOffset;
+    }
+
+    /**
+     * Длина сегментов на местах версии 1
+     *
+     * @return
+     */
+    public long getSlotsLength() {
+        return plainLength + getSegmentCount() * TAG_LENGTH;
+    }
+
+    public long getFileLength() {
+        return getIndexOffset() + (isIndexed() ? getSegmentCount() * SegmentIndex.ENTRY_LENGTH : 0) + LENGTH;
+    }
+
+    public boolean isIndexed() {
+        return version == INDEXED_VERSION;
+    }
+
+    public byte[] getNonce() {
+        return nonce;
+    }
+
+    public long getPlainLength() {
+        return plainLength;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public byte getVersion() {
+        return version;
+    }
+
+    private ByteBuffer toBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+        buffer.put(nonce);
+        buffer.putLong(plainLength);
+        buffer.putInt(segmentSize);
+        buffer.put(version);
+        buffer.putInt(MAGIC);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,25 @@
+package ru.donstu.cloudstorage.service.statistics;
+
+import java.util.Map;
+
+/**
+ * Источник счетчиков для страницы статистики администратора
+ *
+ * @author v.solomasov
+ */
+public interface StatisticsProvider {
+
+    /**
+     * Название группы счетчиков
+     *
+     * @return
+     */
+    String getStatisticsName();
+
+    /**
+     * Текущие значения счетчиков
+     *
+     * @return
+     */
+    Map<String, Object> getStatistics();
+}
@@ -0,0 +1,106 @@
+package ru.donstu.cloudstorage.service.transfer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Неблокирующая передача тел запросов и ответов (Servlet 3.1 ReadListener/WriteListener).
+ * Поток контейнера занят только пока данные можно читать или писать без ожидания сети, а обработка
+ * принятых данных и чтение источника ответа выполняются в пуле передачи, поэтому медленные клиенты
+ * не удерживают потоки на все время передачи
+ *
+ * @author v.solomasov
+ */
+@Component
+@PropertySource(RESOURCES_PROPERTY)
+public class AsyncTransfer {
+
+    private static final String TIMEOUT = "transfer.async.timeout";
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    @Qualifier("transferExecutor")
+    private ExecutorService transferExecutor;
+
+    private long timeout;
+
+    @PostConstruct
+    public void init() {
+        timeout = Long.valueOf(environment.getRequiredProperty(TIMEOUT));
+    }
+
+    /**
+     * Отправка тела ответа по мере готовности канала к записи. Заголовки должны быть
+     * выставлены заранее, поток закрывается по окончании передачи или при ошибке
+     *
+     * @param request
+     * @param response
+     * @param body
+     * @throws IOException
+     */
+    public void sendBody(HttpServletRequest request, HttpServletResponse response, InputStream body) throws IOException {
+        AsyncContext asyncContext = startAsync(request, response);
+        StreamWriteListener listener = new StreamWriteListener(asyncContext, response.getOutputStream(), body, transferExecutor);
+        asyncContext.addListener(listener);
+        response.getOutputStream().setWriteListener(listener);
+        listener.start();
+    }
+
+    /**
+     * Прием тела запроса по мере поступления данных: обработчик получает порции в пуле передачи,
+     * тело на диск не записывается. Тело длиннее maxLength отклоняется ответом 413
+     *
+     * @param request
+     * @param response
+     * @param maxLength
+     * @param handler
+     * @throws IOException
+     */
+    public void receiveBody(HttpServletRequest request, HttpServletResponse response, long maxLength, BodyHandler handler) throws IOException {
+        if (request.getContentLengthLong() > maxLength) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        AsyncContext asyncContext = startAsync(request, response);
+        StreamReadListener listener = new StreamReadListener(asyncContext, request.getInputStream(), maxLength, handler, transferExecutor);
+        asyncContext.addListener(listener);
+        request.getInputStream().setReadListener(listener);
+    }
+
+    /**
+     * Прием multipart-тела с потоковым разбором: обработчик получает содержимое каждого файла
+     * с заданным именем поля по мере приема, без промежуточного сохранения тела
+     *
+     * @param request
+     * @param response
+     * @param maxLength
+     * @param fieldName
+     * @param handler
+     * @throws IOException
+     */
+    public void receiveMultipartFiles(HttpServletRequest request, HttpServletResponse response, long maxLength,
+                                      String fieldName, FilePartHandler handler) throws IOException {
+        receiveBody(request, response, maxLength, new MultipartParser(request.getContentType(), fieldName, handler));
+    }
+
+    private AsyncContext startAsync(HttpServletRequest request, HttpServletResponse response) {
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(timeout);
+        return asyncContext;
+    }
+}
@@ -0,0 +1,35 @@
+package ru.donstu.cloudstorage.service.transfer;
+
+import java.io.IOException;
+
+/**
+ * Обработчик тела запроса, получающий данные порциями по мере приема. Методы вызываются
+ * в пуле передачи строго по очереди, никогда одновременно
+ *
+ * @author v.solomasov
+ */
+public interface BodyHandler {
+
+    /**
+     * Очередная порция тела. Массив действителен только во время вызова
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Тело принято целиком: обработчик сам формирует ответ
+     *
+     * @throws IOException
+     */
+    void complete() throws IOException;
+
+    /**
+     * Прием прерван (ошибка сети или обработчика, превышение длины, истечение времени):
+     * все принятое нужно удалить, ответ формирует передача
+     */
+    void abort();
+}
@@ -0,0 +1,20 @@
+package ru.donstu.cloudstorage.service.transfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Приемник содержимого, поступающего из тела запроса порциями по мере приема. Содержимое принимается
+ * только после {@link #commit()}, закрытие без подтверждения отменяет прием и удаляет все записанное
+ *
+ * @author v.solomasov
+ */
+public abstract class ContentOutputStream extends OutputStream {
+
+    /**
+     * Завершение приема: содержимое получено целиком, поток закрывается
+     *
+     * @throws IOException
+     */
+    public abstract void commit() throws IOException;
+}
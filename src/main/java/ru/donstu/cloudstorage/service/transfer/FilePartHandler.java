@@ -0,0 +1,37 @@
+package ru.donstu.cloudstorage.service.transfer;
+
+import java.io.IOException;
+
+/**
+ * Обработчик файлов из multipart-тела запроса, содержимое передается по мере приема.
+ * Методы вызываются в пуле передачи строго по очереди
+ *
+ * @author v.solomasov
+ */
+public interface FilePartHandler {
+
+    /**
+     * Начало файла. Вызывается, когда известно, пуст ли файл: с первыми байтами содержимого
+     * или в конце пустого файла. Приемник подтверждается в конце файла, при прерывании
+     * приема закрывается без подтверждения
+     *
+     * @param fileName имя файла без пути
+     * @param empty
+     * @return приемник содержимого или null, если файл пропускается
+     * @throws IOException
+     */
+    ContentOutputStream open(String fileName, boolean empty) throws IOException;
+
+    /**
+     * Тело разобрано: обработчик сам формирует ответ
+     *
+     * @param count количество файлов, 0 - файлов в теле нет или тело некорректно
+     * @throws IOException
+     */
+    void complete(int count) throws IOException;
+
+    /**
+     * Прием тела прерван: подтвержденные файлы нужно удалить, ответ формирует передача
+     */
+    void abort();
+}
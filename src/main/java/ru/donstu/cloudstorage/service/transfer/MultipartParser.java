@@ -0,0 +1,291 @@
+package ru.donstu.cloudstorage.service.transfer;
+
+import org.apache.commons.fileupload.ParameterParser;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.CHARACTER_ENCODING;
+
+/**
+ * Разбор multipart/form-data по мере приема тела: содержимое файлов передается обработчику порциями,
+ * в памяти остаются только заголовки части и хвост порции, в котором может начинаться разделитель.
+ * Некорректное тело не прерывает прием: разбор останавливается, а обработчику сообщается
+ * количество уже принятых файлов
+ *
+ * @author v.solomasov
+ */
+class MultipartParser implements BodyHandler {
+
+    private static final Logger logger = Logger.getLogger(MultipartParser.class);
+
+    private static final int MAX_HEADERS_LENGTH = 16 * 1024;
+
+    private static final String MULTIPART = "multipart/";
+
+    private static final String BOUNDARY = "boundary";
+
+    private static final String CONTENT_DISPOSITION = "content-disposition";
+
+    private static final String FORM_DATA = "form-data";
+
+    private static final String NAME = "name";
+
+    private static final String FILENAME = "filename";
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+
+    private static final byte[] CLOSE = {'-', '-'};
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private enum State {PREAMBLE, DELIMITER, HEADERS, BODY, EPILOGUE, FAILED}
+
+    private final String fieldName;
+
+    private final FilePartHandler handler;
+
+    private final byte[] delimiter;
+
+    private final Charset headerCharset = Charset.forName(CHARACTER_ENCODING);
+
+    private State state;
+
+    private byte[] carry = CRLF;
+
+    private String partFileName;
+
+    private boolean partOpened;
+
+    private ContentOutputStream part;
+
+    private int count;
+
+    /**
+     * Разделитель частей - CRLF, "--" и граница из типа содержимого. Первому разделителю CRLF
+     * не предшествует, поэтому разбор начинается с виртуального CRLF
+     *
+     * @param contentType
+     * @param fieldName
+     * @param handler
+     */
+    MultipartParser(String contentType, String fieldName, FilePartHandler handler) {
+        this.fieldName = fieldName;
+        this.handler = handler;
+        String boundary = getBoundary(contentType);
+        this.delimiter = boundary == null ? null : ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.state = boundary == null ? State.FAILED : State.PREAMBLE;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (state == State.EPILOGUE || state == State.FAILED) {
+            return;
+        }
+        byte[] data = new byte[carry.length + length];
+        System.arraycopy(carry, 0, data, 0, carry.length);
+        System.arraycopy(buffer, offset, data, carry.length, length);
+        carry = EMPTY;
+        int position = 0;
+        while (position < data.length && state != State.EPILOGUE && state != State.FAILED) {
+            int next = parse(data, position);
+            if (next < 0) {
+                carry = Arrays.copyOfRange(data, -next - 1, data.length);
+                return;
+            }
+            position = next;
+        }
+    }
+
+    @Override
+    public void complete() throws IOException {
+        if (state != State.EPILOGUE && state != State.FAILED) {
+            logger.info("Тело multipart обрезано");
+        }
+        closePart();
+        handler.complete(count);
+    }
+
+    @Override
+    public void abort() {
+        closePart();
+        handler.abort();
+    }
+
+    /**
+     * Разбор с позиции position в текущем состоянии
+     *
+     * @param data
+     * @param position
+     * @return позиция продолжения разбора или -(начало необработанного хвоста) - 1, если нужно больше данных
+     * @throws IOException
+     */
+    private int parse(byte[] data, int position) throws IOException {
+        switch (state) {
+            case PREAMBLE: {
+                int found = indexOf(data, position, delimiter);
+                if (found < 0) {
+                    return -Math.max(position, data.length - delimiter.length + 1) - 1;
+                }
+                state = State.DELIMITER;
+                return found + delimiter.length;
+            }
+            case DELIMITER: {
+                if (data.length - position < CLOSE.length) {
+                    return -position - 1;
+                }
+                if (startsWith(data, position, CLOSE)) {
+                    state = State.EPILOGUE;
+                    return data.length;
+                }
+                if (startsWith(data, position, CRLF)) {
+                    state = State.HEADERS;
+                    return position + CRLF.length;
+                }
+                return fail("Неверный разделитель частей");
+            }
+            case HEADERS: {
+                int end = startsWith(data, position, CRLF) ? position - CRLF.length : indexOf(data, position, HEADERS_END);
+                if (end < 0 && data.length - position > MAX_HEADERS_LENGTH) {
+                    return fail("Заголовки части слишком длинные");
+                }
+                if (end < 0) {
+                    return -position - 1;
+                }
+                startPart(end < position ? "" : new String(data, position, end - position, headerCharset));
+                state = State.BODY;
+                return end + HEADERS_END.length;
+            }
+            case BODY: {
+                int found = indexOf(data, position, delimiter);
+                if (found < 0) {
+                    int safe = Math.max(position, data.length - delimiter.length + 1);
+                    writePart(data, position, safe - position);
+                    return -safe - 1;
+                }
+                writePart(data, position, found - position);
+                endPart();
+                state = State.DELIMITER;
+                return found + delimiter.length;
+            }
+            default:
+                return data.length;
+        }
+    }
+
+    /**
+     * Часть с заголовком Content-Disposition: form-data, нужным именем поля и именем файла - файл
+     *
+     * @param headers
+     */
+    private void startPart(String headers) {
+        partFileName = null;
+        partOpened = false;
+        for (String header : headers.split("\r\n")) {
+            int separator = header.indexOf(':');
+            if (separator < 0 || !CONTENT_DISPOSITION.equalsIgnoreCase(header.substring(0, separator).trim())) {
+                continue;
+            }
+            String value = header.substring(separator + 1).trim();
+            if (!value.toLowerCase().startsWith(FORM_DATA)) {
+                continue;
+            }
+            ParameterParser parser = new ParameterParser();
+            parser.setLowerCaseNames(true);
+            Map<String, String> parameters = parser.parse(value, ';');
+            String fileName = parameters.get(FILENAME);
+            if (fileName != null && fieldName.equals(parameters.get(NAME))) {
+                partFileName = FilenameUtils.getName(fileName);
+            }
+        }
+    }
+
+    private void writePart(byte[] data, int offset, int length) throws IOException {
+        if (partFileName == null || length == 0) {
+            return;
+        }
+        if (!partOpened) {
+            partOpened = true;
+            part = handler.open(partFileName, false);
+        }
+        if (part != null) {
+            part.write(data, offset, length);
+        }
+    }
+
+    private void endPart() throws IOException {
+        if (partFileName == null) {
+            return;
+        }
+        if (!partOpened) {
+            partOpened = true;
+            part = handler.open(partFileName, true);
+        }
+        count++;
+        partFileName = null;
+        if (part != null) {
+            try {
+                part.commit();
+            } finally {
+                closePart();
+            }
+        }
+    }
+
+    private void closePart() {
+        if (part == null) {
+            return;
+        }
+        try {
+            part.close();
+        } catch (IOException e) {
+            logger.info(String.format("Ошибка закрытия приемника файла: %s", e.getMessage()));
+        }
+        part = null;
+    }
+
+    private int fail(String message) {
+        logger.info(String.format("Некорректное тело multipart: %s", message));
+        state = State.FAILED;
+        closePart();
+        return Integer.MAX_VALUE;
+    }
+
+    private String getBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith(MULTIPART)) {
+            return null;
+        }
+        ParameterParser parser = new ParameterParser();
+        parser.setLowerCaseNames(true);
+        String boundary = parser.parse(contentType, new char[]{';', ','}).get(BOUNDARY);
+        return boundary == null || boundary.isEmpty() ? null : boundary;
+    }
+
+    private static int indexOf(byte[] data, int from, byte[] pattern) {
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            if (startsWith(data, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] data, int position, byte[] pattern) {
+        if (data.length - position < pattern.length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (data[position + i] != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
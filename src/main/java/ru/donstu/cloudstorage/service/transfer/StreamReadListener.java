@@ -0,0 +1,264 @@
+package ru.donstu.cloudstorage.service.transfer;
+
+import org.apache.log4j.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.BUFFER_SIZE;
+
+/**
+ * Прием тела запроса без промежуточного файла. Поток контейнера только читает доступные без блокировки
+ * данные в очередь, обработчик получает их в пуле передачи по одной задаче на запрос, поэтому порции
+ * обрабатываются по порядку. Когда очередь заполнена, чтение приостанавливается и возобновляется задачей
+ * обработки по мере ее освобождения: память на запрос ограничена очередью, а медленный обработчик
+ * тормозит клиента, а не накапливает тело
+ *
+ * @author v.solomasov
+ */
+class StreamReadListener implements ReadListener, AsyncListener {
+
+    private static final Logger logger = Logger.getLogger(StreamReadListener.class);
+
+    private static final int MAX_QUEUED = 4;
+
+    private final AsyncContext asyncContext;
+
+    private final ServletInputStream inputStream;
+
+    private final long maxLength;
+
+    private final BodyHandler handler;
+
+    private final ExecutorService executor;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private final Deque<byte[]> queue = new ArrayDeque<>();
+
+    private final Object readLock = new Object();
+
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private long received;
+
+    private boolean allRead;
+
+    private boolean paused;
+
+    private boolean draining;
+
+    private int failStatus;
+
+    StreamReadListener(AsyncContext asyncContext, ServletInputStream inputStream, long maxLength, BodyHandler handler, ExecutorService executor) {
+        this.asyncContext = asyncContext;
+        this.inputStream = inputStream;
+        this.maxLength = maxLength;
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    @Override
+    public void onDataAvailable() {
+        readAvailable();
+    }
+
+    @Override
+    public void onAllDataRead() {
+        synchronized (this) {
+            allRead = true;
+        }
+        scheduleDrain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.info(String.format("Прием запроса прерван: %s", throwable.getMessage()));
+        fail(0);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        fail(HttpServletResponse.SC_REQUEST_TIMEOUT);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        fail(0);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    /**
+     * Чтение доступных без блокировки данных, пока очередь не заполнена. Вызывается потоком контейнера
+     * и задачей обработки при возобновлении чтения, поэтому чтение идет под блокировкой
+     */
+    private void readAvailable() {
+        try {
+            synchronized (readLock) {
+                while (true) {
+                    synchronized (this) {
+                        if (failStatus != 0 || allRead || queue.size() >= MAX_QUEUED) {
+                            paused = failStatus == 0 && !allRead;
+                            break;
+                        }
+                    }
+                    if (!inputStream.isReady()) {
+                        break;
+                    }
+                    int read = inputStream.read(buffer);
+                    if (read == -1) {
+                        synchronized (this) {
+                            allRead = true;
+                        }
+                        break;
+                    }
+                    received += read;
+                    if (received > maxLength) {
+                        fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                        return;
+                    }
+                    synchronized (this) {
+                        queue.add(Arrays.copyOf(buffer, read));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            onError(e);
+            return;
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        synchronized (this) {
+            if (draining || (queue.isEmpty() && !allRead && failStatus == 0)) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                draining = false;
+            }
+            sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            abort();
+        }
+    }
+
+    /**
+     * Передача очереди обработчику. Одновременно работает не больше одной задачи на запрос,
+     * завершение и отмена приема тоже выполняются ею
+     */
+    private void drain() {
+        try {
+            while (true) {
+                byte[] data;
+                boolean resume;
+                synchronized (this) {
+                    if (failStatus != 0) {
+                        break;
+                    }
+                    data = queue.poll();
+                    if (data == null) {
+                        if (allRead) {
+                            complete();
+                            return;
+                        }
+                        draining = false;
+                        return;
+                    }
+                    resume = paused && queue.size() < MAX_QUEUED;
+                    if (resume) {
+                        paused = false;
+                    }
+                }
+                handler.write(data, 0, data.length);
+                if (resume) {
+                    readAvailable();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.info(String.format("Ошибка обработки запроса: %s", e.getMessage()));
+            fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        abort();
+    }
+
+    private void complete() {
+        try {
+            handler.complete();
+        } catch (IOException | RuntimeException e) {
+            logger.info(String.format("Ошибка обработки запроса: %s", e.getMessage()));
+            sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Отмена приема. Обработчик отменяет задача обработки: сразу, если она не выполняется, иначе по
+     * окончании текущей порции
+     *
+     * @param status код ответа или 0, если ответ отправить нельзя
+     */
+    private void fail(int status) {
+        synchronized (this) {
+            if (failStatus != 0 || finished.get()) {
+                return;
+            }
+            failStatus = status == 0 ? HttpServletResponse.SC_BAD_REQUEST : status;
+            queue.clear();
+        }
+        if (status != 0) {
+            sendError(status);
+        }
+        scheduleDrain();
+    }
+
+    private void abort() {
+        try {
+            handler.abort();
+        } catch (RuntimeException e) {
+            logger.info(String.format("Ошибка отмены обработки запроса: %s", e.getMessage()));
+        } finally {
+            finish();
+        }
+    }
+
+    private void sendError(int status) {
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        if (!response.isCommitted()) {
+            try {
+                response.sendError(status);
+            } catch (IOException | IllegalStateException e) {
+                logger.info(String.format("Ответ %d не отправлен", status));
+            }
+        }
+    }
+
+    private void finish() {
+        if (finished.compareAndSet(false, true)) {
+            asyncContext.complete();
+        }
+    }
+}
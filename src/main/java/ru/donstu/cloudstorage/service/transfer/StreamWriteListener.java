@@ -0,0 +1,231 @@
+package ru.donstu.cloudstorage.service.transfer;
+
+import org.apache.log4j.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.BUFFER_SIZE;
+
+/**
+ * Запись потока в ответ. Источник (дешифрование, чтение из хранилища) может блокироваться, поэтому
+ * читается задачей в пуле передачи в небольшую очередь, а поток контейнера только пишет из очереди,
+ * пока канал готов принимать данные без блокировки. Задача чтения запускается заново по мере
+ * освобождения очереди, и если канал ждал данных, сама продолжает запись
+ *
+ * @author v.solomasov
+ */
+class StreamWriteListener implements WriteListener, AsyncListener {
+
+    private static final Logger logger = Logger.getLogger(StreamWriteListener.class);
+
+    private static final int MAX_QUEUED = 4;
+
+    private final AsyncContext asyncContext;
+
+    private final ServletOutputStream outputStream;
+
+    private final InputStream body;
+
+    private final ExecutorService executor;
+
+    private final Deque<byte[]> queue = new ArrayDeque<>();
+
+    private final Object writeLock = new Object();
+
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private boolean endOfBody;
+
+    private boolean filling;
+
+    private boolean waiting;
+
+    private boolean closed;
+
+    StreamWriteListener(AsyncContext asyncContext, ServletOutputStream outputStream, InputStream body, ExecutorService executor) {
+        this.asyncContext = asyncContext;
+        this.outputStream = outputStream;
+        this.body = body;
+        this.executor = executor;
+    }
+
+    /**
+     * Запуск чтения источника до первой готовности канала
+     */
+    void start() {
+        scheduleFill();
+    }
+
+    @Override
+    public void onWritePossible() {
+        writeAvailable();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.info(String.format("Передача ответа прервана: %s", throwable.getMessage()));
+        finish();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        onError(new IOException("Истекло время передачи ответа"));
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        closeBody();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        closeBody();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    /**
+     * Запись очереди, пока канал готов. Если очередь пуста, а канал готов, контейнер больше
+     * не вызовет {@link #onWritePossible()}, поэтому запись продолжит задача чтения.
+     * Ответ завершается, только когда весь источник записан и канал снова готов
+     */
+    private void writeAvailable() {
+        try {
+            synchronized (writeLock) {
+                boolean drained = false;
+                while (outputStream.isReady()) {
+                    byte[] data;
+                    synchronized (this) {
+                        data = queue.poll();
+                        if (data == null) {
+                            waiting = !endOfBody;
+                            if (waiting) {
+                                return;
+                            }
+                        }
+                    }
+                    drained = data == null;
+                    if (drained) {
+                        break;
+                    }
+                    scheduleFill();
+                    outputStream.write(data);
+                }
+                if (!drained) {
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            onError(e);
+            return;
+        }
+        finish();
+    }
+
+    private void scheduleFill() {
+        synchronized (this) {
+            if (filling || endOfBody || closed || queue.size() >= MAX_QUEUED) {
+                return;
+            }
+            filling = true;
+        }
+        try {
+            executor.execute(this::fill);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                filling = false;
+            }
+            onError(e);
+        }
+    }
+
+    /**
+     * Чтение источника в очередь до ее заполнения
+     */
+    private void fill() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (closed || queue.size() >= MAX_QUEUED) {
+                        break;
+                    }
+                }
+                int read = body.read(buffer);
+                boolean resume;
+                synchronized (this) {
+                    if (read == -1) {
+                        endOfBody = true;
+                    } else {
+                        queue.add(Arrays.copyOf(buffer, read));
+                    }
+                    resume = waiting;
+                    waiting = false;
+                }
+                if (resume) {
+                    writeAvailable();
+                }
+                if (read == -1) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                filling = false;
+            }
+            onError(e);
+            return;
+        }
+        boolean close;
+        synchronized (this) {
+            filling = false;
+            close = closed;
+        }
+        if (close) {
+            closeBody();
+        } else {
+            scheduleFill();
+        }
+    }
+
+    private void finish() {
+        closeBody();
+        if (finished.compareAndSet(false, true)) {
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Источник закрывается задачей чтения, если она выполняется: закрытие во время чтения
+     * из другого потока не поддерживается источниками
+     */
+    private void closeBody() {
+        synchronized (this) {
+            closed = true;
+            queue.clear();
+            if (filling) {
+                return;
+            }
+            filling = true;
+        }
+        try {
+            body.close();
+        } catch (IOException e) {
+            logger.info("Ошибка закрытия источника ответа");
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package ru.donstu.cloudstorage.service.upload;
+
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.upload.entity.UploadStatus;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.exception.UploadConflictException;
+import ru.donstu.cloudstorage.exception.UploadException;
+import ru.donstu.cloudstorage.service.transfer.ContentOutputStream;
+
+import java.io.IOException;
+
+/**
+ * Класс сервиса возобновляемой загрузки файлов по частям
+ *
+ * @author v.solomasov
+ */
+public interface UploadService {
+
+    /**
+     * Создание сессии загрузки файла заданной длины
+     *
+     * @param account
+     * @param fileName
+     * @param fileLength
+     * @return состояние новой сессии
+     */
+    UploadStatus createSession(Account account, String fileName, long fileLength);
+
+    /**
+     * Состояние сессии загрузки
+     *
+     * @param id
+     * @param account
+     * @return состояние или null, если сессии нет
+     */
+    UploadStatus getStatus(String id, Account account);
+
+    /**
+     * Прием части файла по мере поступления данных: часть шифруется на свое место в файле сессии и
+     * регистрируется при подтверждении потока. Части принимаются в любом порядке и параллельно. Уже принятая
+     * часть и часть, которую в этот момент передает другой запрос, отклоняются {@link UploadConflictException};
+     * часть, не принятая из-за сбоя, передается заново. Ошибки содержимого части - {@link UploadException}
+     *
+     * @param id
+     * @param account
+     * @param index
+     * @return поток части или null, если сессии нет
+     * @throws IOException
+     */
+    ContentOutputStream openChunk(String id, Account account, int index) throws IOException;
+
+    /**
+     * Завершение загрузки: файл регистрируется в базе, сессия удаляется
+     *
+     * @param id
+     * @param account
+     * @return файл или null, если сессии нет
+     * @throws IOException
+     */
+    UserFiles commitSession(String id, Account account) throws IOException;
+
+    /**
+     * Перевернуть ключи данных открытых сессий пользователя при изменении пароля,
+     * в той же транзакции, что и ключи файлов: иначе завершенная после смены пароля
+     * загрузка сохранит ключ, зашифрованный старым ключом аккаунта
+     *
+     * @param account
+     * @param oldPassword
+     */
+    void changeSessions(Account account, String oldPassword);
+
+    /**
+     * Отмена загрузки
+     *
+     * @param id
+     * @param account
+     * @return false, если сессии нет
+     */
+    boolean abortSession(String id, Account account);
+
+    /**
+     * Удаление сессий, не завершенных за отведенное время
+     */
+    void deleteExpiredSessions();
+
+    /**
+     * Удаление всех сессий аккаунта вместе с каталогом подготовки
+     *
+     * @param account
+     */
+    void deleteAccountSessions(Account account);
+}
@@ -0,0 +1,431 @@
+package ru.donstu.cloudstorage.service.upload;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.FileSystemUtils;
+import ru.donstu.cloudstorage.domain.account.AccountRepository;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.upload.UploadChunkRepository;
+import ru.donstu.cloudstorage.domain.upload.UploadSessionRepository;
+import ru.donstu.cloudstorage.domain.upload.entity.UploadChunk;
+import ru.donstu.cloudstorage.domain.upload.entity.UploadSession;
+import ru.donstu.cloudstorage.domain.upload.entity.UploadStatus;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UploadCheckItem;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.exception.FileNameConflictException;
+import ru.donstu.cloudstorage.exception.UploadConflictException;
+import ru.donstu.cloudstorage.exception.UploadException;
+import ru.donstu.cloudstorage.service.blob.BlobKeys;
+import ru.donstu.cloudstorage.service.blob.BlobOutputStream;
+import ru.donstu.cloudstorage.service.blob.BlobStore;
+import ru.donstu.cloudstorage.service.compression.CompressionService;
+import ru.donstu.cloudstorage.service.security.SecurityService;
+import ru.donstu.cloudstorage.service.security.segment.EncryptionResult;
+import ru.donstu.cloudstorage.service.security.segment.SegmentOutputStream;
+import ru.donstu.cloudstorage.service.security.segment.SegmentTrailer;
+import ru.donstu.cloudstorage.service.transfer.ContentOutputStream;
+import ru.donstu.cloudstorage.service.userfiles.UserFilesService;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+import static ru.donstu.cloudstorage.service.security.segment.SegmentCipher.SEGMENT_SIZE;
+
+/**
+ * Реализация интерфейса {@link UploadService}.
+ * Сессия хранит длину файла и ключ данных, поэтому расположение каждого сегмента известно
+ * с момента создания: части шифруются сразу в файл сессии в каталоге подготовки на свои места,
+ * а завершение только дописывает завершающий блок и передает файл в хранилище. Если кодек сессии сжимает сегменты,
+ * сжатый сегмент занимает начало своего места, и при завершении сегменты переписываются в хранилище подряд. Каждая попытка передачи части
+ * шифруется со своим nonce, принятая часть повторно не принимается, одновременная передача одной части
+ * отклоняется. Состояние сессии хранится в базе, но каталог подготовки локален для сервера: загрузку можно
+ * продолжить после перезапуска того же сервера, части одной сессии должны приходить на него же. Создание и завершение сессии берут разделяемую блокировку
+ * строки аккаунта, смена пароля - исключительную: ключ данных сессии всегда зашифрован действующим ключом аккаунта
+ *
+ * @author v.solomasov
+ */
+@Service
+@PropertySource(RESOURCES_PROPERTY)
+public class UploadServiceImpl implements UploadService {
+
+    private static final Logger logger = Logger.getLogger(UploadServiceImpl.class);
+
+    private static final String STAGING_PATH = "upload.staging.path";
+
+    private static final String MAX_LENGTH = "upload.max_length";
+
+    private static final String SESSION_TTL = "upload.session.ttl";
+
+    private static final String SESSION_SUFFIX = ".upload";
+
+    private static final int SEGMENTS_PER_CHUNK = 8;
+
+    private static final long CLEANUP_INTERVAL = 60 * 60 * 1000L;
+
+    @Autowired
+    private UploadSessionRepository sessionRepository;
+
+    @Autowired
+    private UploadChunkRepository chunkRepository;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private UserFilesService userFilesService;
+
+    @Autowired
+    private SecurityService securityService;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private CompressionService compressionService;
+
+    @Autowired
+    private Environment environment;
+
+    private final Set<String> receivingChunks = ConcurrentHashMap.newKeySet();
+
+    @Override
+    @Transactional
+    public UploadStatus createSession(Account account, String fileName, long fileLength) {
+        UploadCheckItem check = userFilesService.checkUploads(account, Collections.singletonList(fileName),
+                Collections.singletonList(fileLength), Long.valueOf(environment.getRequiredProperty(MAX_LENGTH))).get(0);
+        switch (check.getStatus()) {
+            case INVALID_NAME:
+                throw new UploadException(String.format("Недопустимое имя файла %s", fileName));
+            case TOO_LARGE:
+                throw new UploadException(String.format("Недопустимая длина файла %d", fileLength));
+            case EXISTS:
+                throw new UploadException(String.format("Файл %s уже существует", fileName));
+            case QUOTA_EXCEEDED:
+                throw new UploadException(String.format("Файл %s не помещается в квоту", fileName));
+            default:
+                break;
+        }
+        Path path = getStagingPath(account);
+        try {
+            Files.createDirectories(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        SegmentTrailer trailer = securityService.createSegmentTrailer(fileLength);
+        UploadSession session = new UploadSession();
+        session.setId(UUID.randomUUID().toString());
+        session.setAccount(account);
+        session.setFileName(fileName);
+        session.setFileLength(fileLength);
+        session.setChunkSize(SEGMENT_SIZE * SEGMENTS_PER_CHUNK);
+        session.setFilePath(path.toString());
+        session.setNonce(trailer.getNonce());
+        session.setDataKey(securityService.generateDataKey(accountRepository.findForShare(account.getId())));
+        session.setCompression(compressionService.selectCodec(fileName, fileLength));
+        session.setDateCreate(Calendar.getInstance());
+        sessionRepository.save(session);
+        logger.info(String.format("Пользователь %s начал загрузку файла %s, сессия %s", account.getName(), fileName, session.getId()));
+        return getStatus(session);
+    }
+
+    @Override
+    public UploadStatus getStatus(String id, Account account) {
+        UploadSession session = sessionRepository.findByIdAndAccount(id, account);
+        if (session == null) {
+            return null;
+        }
+        return getStatus(session);
+    }
+
+    @Override
+    public ContentOutputStream openChunk(String id, Account account, int index) throws IOException {
+        UploadSession session = sessionRepository.findByIdAndAccount(id, account);
+        if (session == null) {
+            return null;
+        }
+        int chunkCount = getChunkCount(session);
+        if (index < 0 || index >= chunkCount) {
+            throw new UploadException(String.format("Номер части %d вне диапазона 0..%d", index, chunkCount - 1));
+        }
+        if (chunkRepository.findBySessionAndChunkIndex(session, index) != null) {
+            throw new UploadConflictException(String.format("Часть %d уже принята", index));
+        }
+        String receivingChunk = id + "/" + index;
+        if (!receivingChunks.add(receivingChunk)) {
+            throw new UploadConflictException(String.format("Часть %d уже передается", index));
+        }
+        FileChannel channel = null;
+        try {
+            SegmentTrailer trailer = getTrailer(session);
+            long segmentsPerChunk = session.getChunkSize() / SEGMENT_SIZE;
+            long firstSegment = index * segmentsPerChunk;
+            long endSegment = Math.min(firstSegment + segmentsPerChunk, trailer.getSegmentCount());
+            channel = FileChannel.open(getSessionPath(session), CREATE, WRITE);
+            return new ChunkOutputStream(session, index, receivingChunk, channel, securityService.openSegmentsEncryption(channel, account,
+                    session.getDataKey(), trailer, firstSegment, endSegment, session.getCompression()));
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            receivingChunks.remove(receivingChunk);
+            throw e;
+        }
+    }
+
+    @Override
+    @Transactional(rollbackFor = IOException.class)
+    public UserFiles commitSession(String id, Account account) throws IOException {
+        accountRepository.findForShare(account.getId());
+        UploadSession session = sessionRepository.findByIdAndAccount(id, account);
+        if (session == null) {
+            return null;
+        }
+        List<UploadChunk> chunks = chunkRepository.findBySessionOrderByChunkIndex(session);
+        int chunkCount = getChunkCount(session);
+        if (chunks.size() != chunkCount) {
+            throw new UploadException(String.format("Принято %d из %d частей", chunks.size(), chunkCount));
+        }
+        if (userFilesService.checkUserFile(account, session.getFileName())) {
+            throw new UploadConflictException(String.format("Файл %s уже существует", session.getFileName()));
+        }
+        SegmentTrailer trailer = getTrailer(session);
+        Path sessionPath = getSessionPath(session);
+        try (FileChannel channel = FileChannel.open(sessionPath, WRITE)) {
+            trailer.write(channel);
+            if (channel.size() != trailer.getFileLength()) {
+                throw new UploadException(String.format("Файл сессии %s имеет неверную длину", id));
+            }
+            channel.force(true);
+        }
+        List<byte[]> segmentDigests = chunks.stream().map(UploadChunk::getSegmentDigests).collect(Collectors.toList());
+        EncryptionResult result = securityService.getEncryptionResult(trailer, segmentDigests);
+        String storageKey = BlobKeys.newUserFile(account.getId());
+        UserFiles userFiles;
+        try {
+            userFiles = userFilesService.saveUploadedFile(account, session.getFileName(), storageKey, session.getDataKey(), result, session.getCompression());
+        } catch (FileNameConflictException e) {
+            throw new UploadConflictException(e.getMessage());
+        }
+        chunkRepository.deleteBySession(session);
+        sessionRepository.delete(session);
+        if (session.getCompression() == null) {
+            blobStore.putFile(storageKey, sessionPath);
+        } else {
+            putPacked(storageKey, sessionPath, trailer);
+        }
+        logger.info(String.format("Файл %s загружен по частям, сессия %s", session.getFileName(), id));
+        return userFiles;
+    }
+
+    @Override
+    @Transactional
+    public void changeSessions(Account account, String oldPassword) {
+        List<UploadSession> sessions = sessionRepository.findByAccount(account);
+        List<byte[]> dataKeys = sessions.stream().map(UploadSession::getDataKey).collect(Collectors.toList());
+        List<byte[]> rewrapped = securityService.rewrapDataKeys(dataKeys, account, oldPassword);
+        for (int i = 0; i < sessions.size(); i++) {
+            sessions.get(i).setDataKey(rewrapped.get(i));
+        }
+        sessionRepository.save(sessions);
+        logger.info(String.format("Ключи %d сессий загрузки пользователя %s перевернуты на новый пароль", sessions.size(), account.getName()));
+    }
+
+    @Override
+    @Transactional
+    public boolean abortSession(String id, Account account) {
+        UploadSession session = sessionRepository.findByIdAndAccount(id, account);
+        if (session == null) {
+            return false;
+        }
+        deleteSession(session);
+        logger.info(String.format("Сессия загрузки %s отменена пользователем %s", id, account.getName()));
+        return true;
+    }
+
+    @Override
+    @Scheduled(fixedDelay = CLEANUP_INTERVAL)
+    public void deleteExpiredSessions() {
+        Calendar date = Calendar.getInstance();
+        date.add(Calendar.HOUR_OF_DAY, -Integer.valueOf(environment.getRequiredProperty(SESSION_TTL)));
+        for (UploadSession session : sessionRepository.findCreatedBefore(date)) {
+            deleteSession(session);
+            logger.info(String.format("Сессия загрузки %s удалена по истечении срока", session.getId()));
+        }
+    }
+
+    @Override
+    @Transactional
+    public void deleteAccountSessions(Account account) {
+        chunkRepository.deleteByAccount(account);
+        sessionRepository.deleteByAccount(account);
+        if (!FileSystemUtils.deleteRecursively(getStagingPath(account).toFile())) {
+            logger.info(String.format("Каталог подготовки загрузок аккаунта id=%d не найден", account.getId()));
+        }
+    }
+
+    /**
+     * Запись файла сессии со сжатыми сегментами в хранилище подряд, файл сессии после записи удаляется
+     *
+     * @param storageKey
+     * @param sessionPath
+     * @param trailer
+     * @throws IOException
+     */
+    private void putPacked(String storageKey, Path sessionPath, SegmentTrailer trailer) throws IOException {
+        try (FileChannel channel = FileChannel.open(sessionPath, READ);
+             BlobOutputStream outputStream = blobStore.put(storageKey)) {
+            securityService.packSegments(channel, trailer, outputStream);
+            outputStream.commit();
+        }
+        Files.delete(sessionPath);
+    }
+
+    private void deleteSession(UploadSession session) {
+        chunkRepository.deleteBySession(session);
+        sessionRepository.delete(session);
+        try {
+            Files.deleteIfExists(getSessionPath(session));
+        } catch (IOException e) {
+            logger.info(String.format("Файл сессии %s не удален", session.getId()));
+        }
+    }
+
+    private UploadStatus getStatus(UploadSession session) {
+        List<Integer> receivedChunks = chunkRepository.findChunkIndexesBySession(session);
+        long receivedLength = receivedChunks.stream().mapToLong(index -> getChunkLength(session, index)).sum();
+        return new UploadStatus(session.getId(), session.getFileName(), session.getFileLength(), session.getChunkSize(),
+                getChunkCount(session), receivedChunks, receivedLength);
+    }
+
+    /**
+     * Количество частей. Пустой файл передается одной пустой частью
+     *
+     * @param session
+     * @return
+     */
+    private int getChunkCount(UploadSession session) {
+        long length = session.getFileLength();
+        return length == 0 ? 1 : (int) ((length + session.getChunkSize() - 1) / session.getChunkSize());
+    }
+
+    private long getChunkLength(UploadSession session, int index) {
+        return Math.min(session.getChunkSize(), session.getFileLength() - (long) index * session.getChunkSize());
+    }
+
+    private SegmentTrailer getTrailer(UploadSession session) {
+        return new SegmentTrailer(session.getNonce(), session.getFileLength(), SEGMENT_SIZE, SegmentTrailer.INDEXED_VERSION);
+    }
+
+    private Path getStagingPath(Account account) {
+        return Paths.get(environment.getRequiredProperty(STAGING_PATH), String.valueOf(account.getId()));
+    }
+
+    private Path getSessionPath(UploadSession session) {
+        return Paths.get(session.getFilePath(), session.getId() + SESSION_SUFFIX);
+    }
+
+    /**
+     * Прием части: сегменты шифруются на свои места по мере поступления, строка части создается
+     * после записи всех сегментов на диск
+     */
+    private class ChunkOutputStream extends ContentOutputStream {
+
+        private final UploadSession session;
+
+        private final int index;
+
+        private final String receivingChunk;
+
+        private final FileChannel channel;
+
+        private final SegmentOutputStream<byte[]> encryption;
+
+        private boolean closed;
+
+        private ChunkOutputStream(UploadSession session, int index, String receivingChunk, FileChannel channel, SegmentOutputStream<byte[]> encryption) {
+            this.session = session;
+            this.index = index;
+            this.receivingChunk = receivingChunk;
+            this.channel = channel;
+            this.encryption = encryption;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            try {
+                encryption.write(b, off, len);
+            } catch (IOException e) {
+                throw reject(e);
+            }
+        }
+
+        @Override
+        public void commit() throws IOException {
+            try {
+                byte[] segmentDigests;
+                try {
+                    segmentDigests = encryption.commit();
+                    channel.force(false);
+                } catch (IOException e) {
+                    throw reject(e);
+                }
+                UploadChunk chunk = new UploadChunk();
+                chunk.setSession(session);
+                chunk.setChunkIndex(index);
+                chunk.setSegmentDigests(segmentDigests);
+                try {
+                    chunkRepository.save(chunk);
+                } catch (DataIntegrityViolationException e) {
+                    throw new UploadConflictException(String.format("Часть %d уже принята", index));
+                }
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                encryption.close();
+                channel.close();
+            } finally {
+                receivingChunks.remove(receivingChunk);
+            }
+        }
+
+        private UploadException reject(IOException e) {
+            logger.info(String.format("Часть %d сессии %s не принята: %s", index, session.getId(), e.getMessage()));
+            return new UploadException(String.format("Часть %d не принята: %s", index, e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ru.donstu.cloudstorage.service.userdetails;
+
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.account.enums.Role;
+
+import java.util.Collections;
+
+/**
+ * Пользователь Spring Security с идентификатором аккаунта, ролью и версией учетных данных,
+ * чтобы не искать аккаунт по имени в каждом запросе
+ *
+ * @author v.solomasov
+ */
+public class AccountUserDetails extends User {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Long accountId;
+
+    private final Role role;
+
+    private final Long credentialVersion;
+
+    public AccountUserDetails(Account account) {
+        super(account.getName(), account.getPassword(), Collections.singletonList(new SimpleGrantedAuthority(account.getRole().name())));
+        this.accountId = account.getId();
+        this.role = account.getRole();
+        this.credentialVersion = account.getCredentialVersion();
+    }
+
+    public Long getAccountId() {
+        return accountId;
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public Long getCredentialVersion() {
+        return credentialVersion;
+    }
+}
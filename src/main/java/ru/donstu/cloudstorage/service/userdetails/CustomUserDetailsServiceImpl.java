@@ -1,9 +1,6 @@
 package ru.donstu.cloudstorage.service.userdetails;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
-import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
@@ -11,9 +8,6 @@ import org.springframework.transaction.annotation.Transactional;
 import ru.donstu.cloudstorage.domain.account.entity.Account;
 import ru.donstu.cloudstorage.service.account.AccountService;
 
-import java.util.ArrayList;
-import java.util.Collection;
-
 /**
  * Реализация интерфейса {@link CustomUserDetailsService}
  *
@@ -29,8 +23,9 @@ public class CustomUserDetailsServiceImpl implements CustomUserDetailsService {
     @Transactional(readOnly = true)
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
         Account account = accountService.findAccountByName(username);
-        Collection<GrantedAuthority> grantedAuthorities = new ArrayList<>();
-        grantedAuthorities.add(new SimpleGrantedAuthority(account.getRole().name()));
-        return new User(account.getName(), account.getPassword(), grantedAuthorities);
+        if (account == null || account.getDateDelete() != null) {
+            throw new UsernameNotFoundException(username);
+        }
+        return new AccountUserDetails(account);
     }
 }
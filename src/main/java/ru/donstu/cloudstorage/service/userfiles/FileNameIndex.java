@@ -0,0 +1,288 @@
+package ru.donstu.cloudstorage.service.userfiles;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.UserFilesRepository;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Индекс имен и занятого объема файлов аккаунтов в памяти (LRU по числу аккаунтов) для
+ * предварительной проверки загрузок без обращения к базе. Индекс аккаунта читается из базы
+ * одним запросом при первом обращении, затем поддерживается изменениями этого сервера
+ * после фиксации транзакции. Удаление строк сбрасывает индекс аккаунта, изменения с других
+ * серверов учитываются по истечении срока жизни записи. Проверка индекса предварительная:
+ * при сохранении файла имя проверяется по базе
+ *
+ * @author v.solomasov
+ */
+@Component
+@PropertySource(RESOURCES_PROPERTY)
+public class FileNameIndex implements StatisticsProvider {
+
+    private static final String MAX_ACCOUNTS = "userfiles.name_index.max_accounts";
+
+    private static final String TTL = "userfiles.name_index.ttl";
+
+    @Autowired
+    private UserFilesRepository filesRepository;
+
+    @Autowired
+    private Environment environment;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    private final AtomicLong updates = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final Map<Long, PendingLoad> pendingLoads = new HashMap<>();
+
+    private long ttl;
+
+    private Map<Long, Entry> entries;
+
+    @PostConstruct
+    public void init() {
+        int maxAccounts = Integer.valueOf(environment.getRequiredProperty(MAX_ACCOUNTS));
+        ttl = TimeUnit.SECONDS.toMillis(Long.valueOf(environment.getRequiredProperty(TTL)));
+        entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxAccounts;
+            }
+        };
+    }
+
+    /**
+     * Имена из списка, занятые файлами аккаунта
+     *
+     * @param account
+     * @param fileNames
+     * @return
+     */
+    public Set<String> findExisting(Account account, List<String> fileNames) {
+        Entry entry = getEntry(account);
+        Set<String> existing = new HashSet<>();
+        synchronized (this) {
+            for (String fileName : fileNames) {
+                if (entry.names.contains(fileName)) {
+                    existing.add(fileName);
+                }
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Суммарная длина файлов аккаунта, включая корзину
+     *
+     * @param account
+     * @return
+     */
+    public long getUsedLength(Account account) {
+        Entry entry = getEntry(account);
+        synchronized (this) {
+            return entry.usedLength;
+        }
+    }
+
+    /**
+     * Новый файл аккаунта
+     *
+     * @param accountId
+     * @param fileName
+     * @param fileLength
+     */
+    public void addFile(Long accountId, String fileName, long fileLength) {
+        update(accountId, entry -> {
+            entry.names.add(fileName);
+            entry.usedLength += fileLength;
+        });
+    }
+
+    /**
+     * Переименование файла аккаунта
+     *
+     * @param accountId
+     * @param oldName
+     * @param newName
+     */
+    public void renameFile(Long accountId, String oldName, String newName) {
+        update(accountId, entry -> {
+            entry.names.remove(oldName);
+            entry.names.add(newName);
+        });
+    }
+
+    /**
+     * Сброс индекса аккаунта после удаления файлов. Внутри транзакции сброс повторяется
+     * после ее завершения: индекс, прочитанный до фиксации, содержит удаленные файлы
+     *
+     * @param accountId
+     */
+    public void invalidate(Long accountId) {
+        remove(accountId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    remove(accountId);
+                }
+            });
+        }
+    }
+
+    @Override
+    public String getStatisticsName() {
+        return "fileNameIndex";
+    }
+
+    @Override
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("accounts", entries.size());
+        statistics.put("names", entries.values().stream().mapToLong(entry -> entry.names.size()).sum());
+        statistics.put("hits", hits.get());
+        statistics.put("loads", loads.get());
+        statistics.put("updates", updates.get());
+        statistics.put("invalidations", invalidations.get());
+        return statistics;
+    }
+
+    /**
+     * Индекс аккаунта из памяти или из базы. Прочитанный индекс кладется в память, только если
+     * за время чтения файлы аккаунта не изменялись. Поколение изменений хранится, только пока
+     * индекс аккаунта читается из базы
+     *
+     * @param account
+     * @return
+     */
+    private Entry getEntry(Account account) {
+        PendingLoad pendingLoad;
+        long generation;
+        synchronized (this) {
+            Entry entry = entries.get(account.getId());
+            if (entry != null && System.currentTimeMillis() - entry.loaded < ttl) {
+                hits.incrementAndGet();
+                return entry;
+            }
+            pendingLoad = pendingLoads.computeIfAbsent(account.getId(), id -> new PendingLoad());
+            pendingLoad.count++;
+            generation = pendingLoad.generation;
+        }
+        Entry entry = new Entry(System.currentTimeMillis());
+        try {
+            for (Object[] row : filesRepository.findNamesAndLengths(account)) {
+                entry.names.add((String) row[0]);
+                entry.usedLength += (Long) row[1];
+            }
+            loads.incrementAndGet();
+            synchronized (this) {
+                if (generation == pendingLoad.generation) {
+                    entries.put(account.getId(), entry);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (--pendingLoad.count == 0) {
+                    pendingLoads.remove(account.getId());
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Изменение индекса аккаунта, внутри транзакции - после ее фиксации
+     *
+     * @param accountId
+     * @param change
+     */
+    private void update(Long accountId, Consumer<Entry> change) {
+        Runnable apply = () -> {
+            synchronized (this) {
+                changed(accountId);
+                Entry entry = entries.get(accountId);
+                if (entry != null) {
+                    change.accept(entry);
+                    updates.incrementAndGet();
+                }
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    apply.run();
+                }
+            });
+        } else {
+            apply.run();
+        }
+    }
+
+    private synchronized void remove(Long accountId) {
+        changed(accountId);
+        if (entries.remove(accountId) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Файлы аккаунта изменились: индекс, который сейчас читается из базы, может быть устаревшим
+     *
+     * @param accountId
+     */
+    private void changed(Long accountId) {
+        PendingLoad pendingLoad = pendingLoads.get(accountId);
+        if (pendingLoad != null) {
+            pendingLoad.generation++;
+        }
+    }
+
+    /**
+     * Имена и занятый объем файлов аккаунта
+     */
+    private static class Entry {
+
+        private final Set<String> names = new HashSet<>();
+
+        private final long loaded;
+
+        private long usedLength;
+
+        private Entry(long loaded) {
+            this.loaded = loaded;
+        }
+    }
+
+    /**
+     * Чтения индекса аккаунта из базы, которые еще не завершены
+     */
+    private static class PendingLoad {
+
+        private int count;
+
+        private long generation;
+    }
+}
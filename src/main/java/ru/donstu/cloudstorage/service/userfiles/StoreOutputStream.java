@@ -0,0 +1,20 @@
+package ru.donstu.cloudstorage.service.userfiles;
+
+import ru.donstu.cloudstorage.service.transfer.ContentOutputStream;
+
+/**
+ * Поток записи содержимого нового файла: содержимое шифруется и записывается в хранилище по мере
+ * поступления, после {@link #commit()} доступен файл для записи в базу. Закрытие без подтверждения
+ * удаляет записанное содержимое
+ *
+ * @author v.solomasov
+ */
+public abstract class StoreOutputStream extends ContentOutputStream {
+
+    /**
+     * Записанный файл, доступен после подтверждения
+     *
+     * @return
+     */
+    public abstract StoredFile getStoredFile();
+}
@@ -0,0 +1,37 @@
+package ru.donstu.cloudstorage.service.userfiles;
+
+import ru.donstu.cloudstorage.domain.blob.entity.FileChunk;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+
+import java.util.List;
+
+/**
+ * Файл, содержимое которого уже записано, а строка в базе еще не создана.
+ * Такие файлы накапливаются и записываются в базу одной транзакцией
+ *
+ * @author v.solomasov
+ */
+public class StoredFile {
+
+    private final UserFiles userFiles;
+
+    private final List<FileChunk> chunks;
+
+    public StoredFile(UserFiles userFiles, List<FileChunk> chunks) {
+        this.userFiles = userFiles;
+        this.chunks = chunks;
+    }
+
+    public UserFiles getUserFiles() {
+        return userFiles;
+    }
+
+    /**
+     * Ссылки на сегменты для файлов в хранилище с дедупликацией, иначе пустой список
+     *
+     * @return
+     */
+    public List<FileChunk> getChunks() {
+        return chunks;
+    }
+}
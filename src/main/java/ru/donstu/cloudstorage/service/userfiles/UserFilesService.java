@@ -1,12 +1,20 @@
 package ru.donstu.cloudstorage.service.userfiles;
 
-import org.springframework.web.multipart.MultipartFile;
 import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UploadCheckItem;
 import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFilesPage;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+import ru.donstu.cloudstorage.domain.userfiles.enums.FileSort;
+import ru.donstu.cloudstorage.service.security.segment.EncryptionResult;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Класс сервиса для работы с файлами пользователей
@@ -16,12 +24,65 @@ import java.util.List;
 public interface UserFilesService {
 
     /**
-     * Загрузка файла на сервер
+     * Загрузка файла на сервер из потока
      *
      * @param account
-     * @param file
+     * @param fileName
+     * @param inputStream
+     */
+    void uploadFile(Account account, String fileName, InputStream inputStream);
+
+    /**
+     * Шифрование и запись содержимого файла без создания строки в базе
+     *
+     * @param account
+     * @param fileName
+     * @param inputStream
+     * @return
+     * @throws IOException
+     */
+    StoredFile storeFile(Account account, String fileName, InputStream inputStream) throws IOException;
+
+    /**
+     * Поток записи содержимого файла, поступающего порциями: содержимое шифруется по мере поступления,
+     * строка в базе не создается
+     *
+     * @param account
+     * @param fileName
+     * @return
+     * @throws IOException
+     */
+    StoreOutputStream openStore(Account account, String fileName) throws IOException;
+
+    /**
+     * Создание строк файлов, содержимое которых уже записано, одной транзакцией пакетными вставками.
+     * При ошибке содержимое файлов удаляется
+     *
+     * @param account
+     * @param storedFiles
+     * @return
+     */
+    List<UserFiles> saveStoredFiles(Account account, List<StoredFile> storedFiles);
+
+    /**
+     * Удаление содержимого файлов, строки которых так и не созданы
+     *
+     * @param storedFiles
      */
-    void uploadFile(Account account, MultipartFile file);
+    void discardStoredFiles(List<StoredFile> storedFiles);
+
+    /**
+     * Регистрация в базе файла, содержимое которого будет перенесено в хранилище под ключом storageKey
+     *
+     * @param account
+     * @param fileName
+     * @param storageKey ключ из {@link ru.donstu.cloudstorage.service.blob.BlobKeys#newUserFile(Long)}
+     * @param dataKey
+     * @param result
+     * @param codec кодек, которым сжаты сегменты, или null
+     * @return
+     */
+    UserFiles saveUploadedFile(Account account, String fileName, String storageKey, byte[] dataKey, EncryptionResult result, CompressionCodec codec);
 
     /**
      * Поиск всех файлов аккаунта
@@ -31,6 +92,39 @@ public interface UserFilesService {
      */
     List<UserFiles> findUserFilesByAccount(Account account);
 
+    /**
+     * Страница списка файлов аккаунта
+     *
+     * @param account
+     * @param trashed true - файлы в корзине, false - остальные
+     * @param sort
+     * @param prefix начало имени файла, пустое или null - без фильтра
+     * @param cursor продолжение из предыдущей страницы, null - первая страница
+     * @param size   размер страницы, ограничивается сверху
+     * @return
+     */
+    UserFilesPage findUserFilesPage(Account account, boolean trashed, FileSort sort, String prefix, String cursor, int size);
+
+    /**
+     * Предварительная проверка загрузки файлов по именам и длинам до приема содержимого
+     *
+     * @param account
+     * @param fileNames
+     * @param fileLengths
+     * @param maxLength  наибольшая длина одного файла
+     * @return результат по каждому файлу в порядке списка
+     */
+    List<UploadCheckItem> checkUploads(Account account, List<String> fileNames, List<Long> fileLengths, long maxLength);
+
+    /**
+     * Помещаются ли еще length байт в квоту пользователя
+     *
+     * @param account
+     * @param length
+     * @return
+     */
+    boolean checkQuota(Account account, long length);
+
     /**
      * Проверка файла пользователя на совпадение
      *
@@ -41,34 +135,128 @@ public interface UserFilesService {
     boolean checkUserFile(Account account, String fileName);
 
     /**
-     * Удаление файла
+     * Имена из списка, уже занятые файлами пользователя, одним запросом
+     *
+     * @param account
+     * @param fileNames
+     * @return
+     */
+    Set<String> findExistingFileNames(Account account, Collection<String> fileNames);
+
+    /**
+     * Проверка имени файла. Имя может содержать виртуальные папки через "/",
+     * но без пустых частей, "." и ".." и без управляющих символов
+     *
+     * @param fileName
+     * @return
+     */
+    boolean isValidFileName(String fileName);
+
+    /**
+     * Переименование файла: меняется только строка в базе, содержимое не читается и не переписывается
+     *
+     * @param id
+     * @param account
+     * @param fileName новое полное имя
+     * @return false, если файла нет, имя недопустимо или занято
+     */
+    boolean renameFile(Long id, Account account, String fileName);
+
+    /**
+     * Перемещение файла в другую виртуальную папку с сохранением имени без папки
+     *
+     * @param id
+     * @param account
+     * @param folder папка назначения, пустая - корень
+     * @return false, если файла нет, папка недопустима или имя в ней занято
+     */
+    boolean moveFile(Long id, Account account, String folder);
+
+    /**
+     * Копия файла в том же аккаунте без копирования данных: копия ссылается на тот же объект
+     * хранилища или те же сегменты и использует тот же ключ данных
+     *
+     * @param id
+     * @param account
+     * @param fileName имя копии
+     * @return копия или null, если файла нет, имя недопустимо или занято
+     */
+    UserFiles copyFile(Long id, Account account, String fileName);
+
+    /**
+     * Удаление содержимого удаленных строк файлов, на которое больше не ссылается ни одна строка.
+     * Вызывается после удаления строк, в той же транзакции или после ее завершения
+     *
+     * @param deleted удаленные строки
+     * @return количество байт удаленного содержимого
+     * @throws IOException
+     */
+    long deleteUnreferencedContent(List<UserFiles> deleted) throws IOException;
+
+    /**
+     * Перемещение файла в корзину: меняется только строка в базе, содержимое удаляется
+     * позже {@link ru.donstu.cloudstorage.service.purge.TrashPurgeService}
      *
      * @param id
      * @param account
      */
-    void deleteFile(Long id, Account account);
+    void trashFile(Long id, Account account);
 
     /**
-     * Удаление папки пользваотеля для хранения файлов
+     * Восстановление файла из корзины, пока не истек срок хранения
      *
      * @param id
+     * @param account
+     * @return false, если файла нет в корзине или срок хранения истек
      */
-    void deleteFolder(Long id);
+    boolean restoreFile(Long id, Account account);
 
     /**
-     * Скачивание файла c сервера
+     * Удаление папки пользователя для хранения файлов вместе со всем содержимым
      *
      * @param id
+     * @return количество освобожденных байт
+     * @throws IOException если часть содержимого не удалена
+     */
+    long deleteFolder(Long id) throws IOException;
+
+    /**
+     * Скачивание файла c сервера, в том числе по диапазонам (Range, If-Range).
+     * Тело ответа передается асинхронно, по готовности канала к записи
+     *
+     * @param id
+     * @param account
+     * @param request
+     * @param response
+     */
+    void downloadFile(Long id, Account account, HttpServletRequest request, HttpServletResponse response);
+
+    /**
+     * Скачивание нескольких файлов и папок одним архивом ZIP. Архив формируется по мере передачи:
+     * файлы дешифруются по очереди, без временных файлов и буферизации архива
+     *
+     * @param ids     выбранные файлы
+     * @param folder  папка, все файлы которой попадают в архив, пустая - без папки
      * @param account
+     * @param request
      * @param response
      */
-    void downloadFile(Long id, Account account, HttpServletResponse response);
+    void downloadArchive(List<Long> ids, String folder, Account account, HttpServletRequest request, HttpServletResponse response);
 
     /**
-     * Изменить все файлы пользователя при изменении пароля
+     * Перевернуть ключи данных всех файлов пользователя при изменении пароля.
+     * Содержимое файлов не перешифровывается, файлы без ключа данных получают
+     * старый ключ аккаунта в качестве ключа данных
      *
      * @param account
      * @param oldPassword
      */
     void changeFiles(Account account, String oldPassword);
+
+    /**
+     * Перевести файл старого формата AES/ECB в сегментированный формат
+     *
+     * @param id
+     */
+    void migrateFile(Long id);
 }
@@ -1,24 +1,72 @@
 package ru.donstu.cloudstorage.service.userfiles;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.env.Environment;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+import ru.donstu.cloudstorage.domain.account.AccountRepository;
 import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.blob.entity.FileChunk;
 import ru.donstu.cloudstorage.domain.userfiles.UserFilesRepository;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UploadCheckItem;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFileItem;
 import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFilesPage;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+import ru.donstu.cloudstorage.domain.userfiles.enums.FileSort;
+import ru.donstu.cloudstorage.domain.userfiles.enums.StorageFormat;
+import ru.donstu.cloudstorage.domain.userfiles.enums.UploadCheckStatus;
 import ru.donstu.cloudstorage.exception.AesException;
+import ru.donstu.cloudstorage.exception.FileNameConflictException;
+import ru.donstu.cloudstorage.service.archive.ArchiveEntry;
+import ru.donstu.cloudstorage.service.archive.ZipArchiveInputStream;
+import ru.donstu.cloudstorage.service.blob.BlobKeys;
+import ru.donstu.cloudstorage.service.blob.BlobOutputStream;
+import ru.donstu.cloudstorage.service.blob.BlobStat;
+import ru.donstu.cloudstorage.service.blob.BlobStore;
+import ru.donstu.cloudstorage.service.compression.CompressionService;
+import ru.donstu.cloudstorage.service.dedup.DedupStoreService;
 import ru.donstu.cloudstorage.service.security.SecurityService;
+import ru.donstu.cloudstorage.service.security.cache.AccountCache;
+import ru.donstu.cloudstorage.service.security.segment.CipherTextSource;
+import ru.donstu.cloudstorage.service.security.segment.EncryptionResult;
+import ru.donstu.cloudstorage.service.security.segment.SegmentOutputStream;
+import ru.donstu.cloudstorage.service.transfer.AsyncTransfer;
 
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import static ru.donstu.cloudstorage.config.constant.Constants.BUFFER_SIZE;
 import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
 
 /**
@@ -32,47 +80,254 @@ public class UserFilesServiceImpl implements UserFilesService {
 
     private static final Logger logger = Logger.getLogger(UserFilesServiceImpl.class);
 
-    private static final String SEPARATOR = File.separator;
-
     private static final String MIME_TYPE = "application/octet-stream";
 
     private static final String HEADER_TYPE = "Content-Disposition";
 
-    private static final String USER_FILES = "win.user_files";
+    private static final String ATTACHMENT = "attachment; filename=\"%s\"; filename*=UTF-8''%s";
+
+    private static final String ATTR_CHARS = "!#$&+-.^_`|~";
+
+    private static final char FALLBACK_CHAR = '_';
+
+    private static final String FILE_NAME_CONSTRAINT = "user_files_account_name_key";
+
+    private static final String BYTES_UNIT = "bytes";
+
+    private static final String MULTIPART_BYTERANGES = "multipart/byteranges; boundary=";
+
+    private static final int MAX_RANGES = 16;
+
+    private static final String CACHE_CONTROL = "private, no-cache";
+
+    private static final String TRASH_RETENTION = "trash.retention_days";
+
+    private static final String UPLOAD_QUOTA = "upload.quota";
 
     private static final int DIVIDE_MEGABYTE = 1000000;
 
     private static final int POINT_OFFSET = 2;
 
+    private static final int MAX_PAGE_SIZE = 200;
+
+    private static final char CURSOR_SEPARATOR = ':';
+
+    private static final String SORT_BY_NAME = "fileName";
+
+    private static final int MAX_FILE_NAME_LENGTH = 255;
+
+    private static final char FOLDER_SEPARATOR = '/';
+
+    private static final String ZIP_MIME_TYPE = "application/zip";
+
+    private static final String ARCHIVE_NAME = "files";
+
+    private static final String ARCHIVE_EXTENSION = ".zip";
+
+    private static final int MAX_ARCHIVE_FILES = 10000;
+
     @Autowired
     private UserFilesRepository filesRepository;
 
+    @Autowired
+    private AccountRepository accountRepository;
+
     @Autowired
     private Environment environment;
 
     @Autowired
     private SecurityService securityService;
 
+    @Autowired
+    private DedupStoreService dedupStoreService;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Autowired
+    private AsyncTransfer asyncTransfer;
+
+    @Autowired
+    private CompressionService compressionService;
+
+    @Autowired
+    private FileNameIndex fileNameIndex;
+
+    @Autowired
+    private AccountCache accountCache;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
     @Override
-    public void uploadFile(Account account, MultipartFile file) {
-        String fullNameFile = file.getOriginalFilename();
-        String path = environment.getRequiredProperty(USER_FILES) + SEPARATOR + account.getId();
+    public void uploadFile(Account account, String fullNameFile, InputStream inputStream) {
         try {
-            saveFileOnDisk(file, path);
-            saveInfoFile(account, fullNameFile, file.getSize(), path);
+            saveStoredFiles(account, Collections.singletonList(storeFile(account, fullNameFile, inputStream)));
             logger.info(String.format("Файл %s загружен", fullNameFile));
         } catch (FileNotFoundException e) {
-            logger.info(String.format("Файл %s%s%s не найден", path, SEPARATOR, fullNameFile));
+            logger.info(String.format("Файл %s не найден", fullNameFile));
         } catch (IOException e) {
             logger.info(String.format("Ошибка загрузки файла %s", fullNameFile));
         }
     }
 
+    @Override
+    public StoredFile storeFile(Account account, String fileName, InputStream inputStream) throws IOException {
+        try (StoreOutputStream outputStream = openStore(account, fileName)) {
+            IOUtils.copyLarge(inputStream, outputStream, new byte[BUFFER_SIZE]);
+            outputStream.commit();
+            return outputStream.getStoredFile();
+        }
+    }
+
+    @Override
+    public StoreOutputStream openStore(Account account, String fileName) throws IOException {
+        byte[] dataKey = securityService.generateDataKey(account);
+        Function<byte[], CompressionCodec> codecSelector = segment -> compressionService.selectCodec(fileName, segment);
+        if (dedupStoreService.isEnabled()) {
+            List<FileChunk> chunks = new ArrayList<>();
+            return new FileStoreOutputStream(account, fileName, dataKey, null, null, chunks,
+                    dedupStoreService.storeContent(account, dataKey, codecSelector, chunks));
+        }
+        String storageKey = BlobKeys.newUserFile(account.getId());
+        BlobOutputStream blobStream = blobStore.put(storageKey);
+        try {
+            return new FileStoreOutputStream(account, fileName, dataKey, storageKey, blobStream, Collections.emptyList(),
+                    securityService.openEncryption(blobStream, account, dataKey, codecSelector));
+        } catch (RuntimeException e) {
+            blobStream.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public List<UserFiles> saveStoredFiles(Account account, List<StoredFile> storedFiles) {
+        if (storedFiles.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            return transactionTemplate.execute(status -> {
+                List<UserFiles> userFiles = filesRepository.save(storedFiles.stream().map(StoredFile::getUserFiles).collect(Collectors.toList()));
+                for (StoredFile storedFile : storedFiles) {
+                    if (!storedFile.getChunks().isEmpty()) {
+                        dedupStoreService.attachChunks(storedFile.getUserFiles(), storedFile.getChunks());
+                    }
+                    fileNameIndex.addFile(account.getId(), storedFile.getUserFiles().getFileName(), storedFile.getUserFiles().getFileLength());
+                }
+                markFilesChanged(account);
+                return userFiles;
+            });
+        } catch (DataIntegrityViolationException e) {
+            storedFiles.forEach(this::discardStoredFile);
+            throw toFileNameConflict(e, account, storedFiles.size() == 1 ? storedFiles.get(0).getUserFiles().getFileName() : null);
+        } catch (RuntimeException e) {
+            storedFiles.forEach(this::discardStoredFile);
+            throw e;
+        }
+    }
+
+    @Override
+    public void discardStoredFiles(List<StoredFile> storedFiles) {
+        storedFiles.forEach(this::discardStoredFile);
+    }
+
+    @Override
+    public UserFiles saveUploadedFile(Account account, String fileName, String storageKey, byte[] dataKey, EncryptionResult result, CompressionCodec codec) {
+        UserFiles userFiles = saveInfoFile(account, fileName, result, BlobKeys.accountFolder(account.getId()), storageKey, dataKey, StorageFormat.SEGMENTED, codec);
+        fileNameIndex.addFile(account.getId(), fileName, userFiles.getFileLength());
+        markFilesChanged(account);
+        return userFiles;
+    }
+
     @Override
     public List<UserFiles> findUserFilesByAccount(Account account) {
         return filesRepository.findByAccount(account);
     }
 
+    @Override
+    public UserFilesPage findUserFilesPage(Account account, boolean trashed, FileSort sort, String prefix, String cursor, int size) {
+        int limit = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        String namePrefix = prefix == null || prefix.isEmpty() ? null : prefix;
+        Object afterValue = null;
+        Long afterId = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int separator = decoded.indexOf(CURSOR_SEPARATOR);
+                afterId = Long.valueOf(decoded.substring(0, separator));
+                afterValue = decodeCursorValue(sort, decoded.substring(separator + 1));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                logger.info(String.format("Некорректный курсор списка файлов %s, выдается первая страница", cursor));
+                afterValue = null;
+                afterId = null;
+            }
+        }
+        List<UserFileItem> items = filesRepository.findItemsPage(account, trashed, sort, namePrefix, afterValue, afterId, limit + 1);
+        if (items.size() <= limit) {
+            return new UserFilesPage(items, null);
+        }
+        items = new ArrayList<>(items.subList(0, limit));
+        return new UserFilesPage(items, encodeCursor(sort, items.get(limit - 1)));
+    }
+
+    @Override
+    public Set<String> findExistingFileNames(Account account, Collection<String> fileNames) {
+        return new HashSet<>(filesRepository.findExistingFileNames(account, fileNames));
+    }
+
+    /**
+     * Проверка по индексу имен в памяти: имена, длины и квота проверяются без обращения к базе.
+     * Квота учитывает файлы списка, принятые до текущего
+     *
+     * @param account
+     * @param fileNames
+     * @param fileLengths
+     * @param maxLength
+     * @return
+     */
+    @Override
+    public List<UploadCheckItem> checkUploads(Account account, List<String> fileNames, List<Long> fileLengths, long maxLength) {
+        Set<String> existingNames = fileNameIndex.findExisting(account, fileNames);
+        long quota = Long.valueOf(environment.getRequiredProperty(UPLOAD_QUOTA));
+        long usedLength = quota > 0 ? fileNameIndex.getUsedLength(account) : 0;
+        Set<String> checkedNames = new HashSet<>();
+        List<UploadCheckItem> items = new ArrayList<>(fileNames.size());
+        for (int i = 0; i < fileNames.size(); i++) {
+            String fileName = fileNames.get(i);
+            long fileLength = fileLengths.get(i);
+            UploadCheckStatus status;
+            if (!isValidFileName(fileName)) {
+                status = UploadCheckStatus.INVALID_NAME;
+            } else if (fileLength < 0 || fileLength > maxLength) {
+                status = UploadCheckStatus.TOO_LARGE;
+            } else if (existingNames.contains(fileName)) {
+                status = UploadCheckStatus.EXISTS;
+            } else if (!checkedNames.add(fileName)) {
+                status = UploadCheckStatus.DUPLICATE;
+            } else if (quota > 0 && usedLength + fileLength > quota) {
+                status = UploadCheckStatus.QUOTA_EXCEEDED;
+            } else {
+                status = UploadCheckStatus.ACCEPTED;
+                usedLength += fileLength;
+            }
+            items.add(new UploadCheckItem(fileName, fileLength, status));
+        }
+        return items;
+    }
+
+    @Override
+    public boolean checkQuota(Account account, long length) {
+        long quota = Long.valueOf(environment.getRequiredProperty(UPLOAD_QUOTA));
+        return quota <= 0 || fileNameIndex.getUsedLength(account) + Math.max(0, length) <= quota;
+    }
+
     @Override
     public boolean checkUserFile(Account account, String fileName) {
         UserFiles file = filesRepository.findByAccountAndFileName(account, fileName);
@@ -83,48 +338,179 @@ public class UserFilesServiceImpl implements UserFilesService {
     }
 
     @Override
-    public void deleteFile(Long id, Account account) {
-        UserFiles userFiles = filesRepository.findByIdAndAccount(id, account);
-        if (userFiles != null) {
-            try {
-                filesRepository.delete(id);
-                deleteFileFromDisk(userFiles.getFilePath(), userFiles.getFileName());
-                logger.info(String.format("Файл id=%d, удален пользователем, %s", id, account.getName()));
-            } catch (FileNotFoundException e) {
-                logger.info(String.format("Файл %s не найден на диске, но удален из БД", userFiles.getFileName()));
+    public boolean isValidFileName(String fileName) {
+        if (fileName == null || fileName.isEmpty() || fileName.length() > MAX_FILE_NAME_LENGTH) {
+            return false;
+        }
+        for (String part : fileName.split(String.valueOf(FOLDER_SEPARATOR), -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                return false;
             }
-        } else {
+        }
+        return fileName.chars().noneMatch(Character::isISOControl);
+    }
+
+    @Override
+    public boolean renameFile(Long id, Account account, String fileName) {
+        UserFiles userFiles = filesRepository.findByIdAndAccountAndDateTrashIsNull(id, account);
+        if (userFiles == null) {
             logger.info(String.format("Пользователь %s пытался манипулировать с файлом id=%d, которого не существует или принадлежит не ему", account.getName(), id));
+            return false;
+        }
+        return changeFileName(userFiles, account, fileName);
+    }
+
+    @Override
+    public boolean moveFile(Long id, Account account, String folder) {
+        UserFiles userFiles = filesRepository.findByIdAndAccountAndDateTrashIsNull(id, account);
+        if (userFiles == null) {
+            logger.info(String.format("Пользователь %s пытался манипулировать с файлом id=%d, которого не существует или принадлежит не ему", account.getName(), id));
+            return false;
+        }
+        String baseName = getBaseName(userFiles.getFileName());
+        String folderName = getFolderName(folder);
+        return changeFileName(userFiles, account, folderName.isEmpty() ? baseName : folderName + FOLDER_SEPARATOR + baseName);
+    }
+
+    /**
+     * Копия - новая строка с тем же ключом содержимого и ключом данных, для файлов с дедупликацией -
+     * копия ссылок на сегменты. Строка копии и ссылки создаются в одной транзакции
+     *
+     * @param id
+     * @param account
+     * @param fileName
+     * @return
+     */
+    @Override
+    @Transactional
+    public UserFiles copyFile(Long id, Account account, String fileName) {
+        UserFiles source = filesRepository.findByIdAndAccountAndDateTrashIsNull(id, account);
+        if (source == null) {
+            logger.info(String.format("Пользователь %s пытался манипулировать с файлом id=%d, которого не существует или принадлежит не ему", account.getName(), id));
+            return null;
+        }
+        if (!isValidFileName(fileName) || checkUserFile(account, fileName)) {
+            logger.info(String.format("Файл id=%d не скопирован пользователем %s: имя %s недопустимо или занято", id, account.getName(), fileName));
+            return null;
+        }
+        UserFiles copy = new UserFiles();
+        copy.setAccount(account);
+        copy.setFileName(fileName);
+        copy.setFileLength(source.getFileLength());
+        copy.setFileLengthShow(source.getFileLengthShow());
+        copy.setFilePath(source.getFilePath());
+        copy.setStorageKey(source.getStorageKey());
+        copy.setDateUpload(Calendar.getInstance());
+        copy.setDataKey(source.getDataKey());
+        copy.setStorageFormat(source.getStorageFormat());
+        copy.setContentDigest(source.getContentDigest());
+        copy.setCompression(source.getCompression());
+        saveFileName(copy, account);
+        if (source.getStorageFormat() == StorageFormat.DEDUP) {
+            dedupStoreService.copyChunks(source, copy);
+        }
+        fileNameIndex.addFile(account.getId(), fileName, copy.getFileLength());
+        markFilesChanged(account);
+        logger.info(String.format("Файл id=%d скопирован пользователем %s в %s", id, account.getName(), fileName));
+        return copy;
+    }
+
+    /**
+     * Копии файла делят один объект хранилища, поэтому удаляются только ключи,
+     * на которые не ссылается ни одна оставшаяся строка
+     *
+     * @param deleted
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public long deleteUnreferencedContent(List<UserFiles> deleted) throws IOException {
+        Map<String, Long> lengths = deleted.stream()
+                .filter(file -> file.getStorageKey() != null)
+                .collect(Collectors.toMap(UserFiles::getStorageKey, UserFiles::getFileLength, (first, second) -> first));
+        if (lengths.isEmpty()) {
+            return 0;
         }
+        lengths.keySet().removeAll(filesRepository.findReferencedStorageKeys(lengths.keySet()));
+        if (lengths.isEmpty()) {
+            return 0;
+        }
+        blobStore.delete(lengths.keySet());
+        return lengths.values().stream().mapToLong(Long::longValue).sum();
     }
 
     @Override
-    public void deleteFolder(Long id) {
-        String pathToFolder = environment.getRequiredProperty(USER_FILES) + SEPARATOR + id;
-        File file = new File(pathToFolder);
-        if (file.delete()) {
-            logger.info(String.format("Папка %s удалена", pathToFolder));
+    public void trashFile(Long id, Account account) {
+        UserFiles userFiles = filesRepository.findByIdAndAccountAndDateTrashIsNull(id, account);
+        if (userFiles != null) {
+            userFiles.setDateTrash(Calendar.getInstance());
+            filesRepository.save(userFiles);
+            markFilesChanged(account);
+            logger.info(String.format("Файл id=%d, перемещен в корзину пользователем, %s", id, account.getName()));
         } else {
-            logger.info(String.format("Папка %s не найдена", pathToFolder));
+            logger.info(String.format("Пользователь %s пытался манипулировать с файлом id=%d, которого не существует или принадлежит не ему", account.getName(), id));
         }
     }
 
+    /**
+     * Восстановление одним условным запросом: файл с истекшим сроком хранения не восстанавливается,
+     * поэтому очистка корзины и восстановление никогда не работают с одной строкой
+     *
+     * @param id
+     * @param account
+     * @return
+     */
+    @Override
+    public boolean restoreFile(Long id, Account account) {
+        Calendar date = Calendar.getInstance();
+        date.add(Calendar.DAY_OF_MONTH, -Integer.valueOf(environment.getRequiredProperty(TRASH_RETENTION)));
+        if (filesRepository.restoreTrashedAfter(id, account, date) == 0) {
+            logger.info(String.format("Файл id=%d не восстановлен пользователем %s: нет в корзине или истек срок хранения", id, account.getName()));
+            return false;
+        }
+        markFilesChanged(account);
+        logger.info(String.format("Файл id=%d восстановлен из корзины пользователем %s", id, account.getName()));
+        return true;
+    }
+
+    @Override
+    public long deleteFolder(Long id) throws IOException {
+        String prefix = BlobKeys.accountPrefix(id);
+        long deletedLength = blobStore.deleteAll(prefix);
+        logger.info(String.format("Папка %s удалена, освобождено %d байт", prefix, deletedLength));
+        return deletedLength;
+    }
+
     @Override
-    public void downloadFile(Long id, Account account, HttpServletResponse response) {
-        UserFiles userFiles = filesRepository.findByIdAndAccount(id, account);
+    public void downloadFile(Long id, Account account, HttpServletRequest request, HttpServletResponse response) {
+        UserFiles userFiles = filesRepository.findByIdAndAccountAndDateTrashIsNull(id, account);
         if (userFiles != null) {
             try {
-                byte[] buffer = getBytesFile(userFiles);
-                String valueHeader = String.format("attachment; filename=%s", userFiles.getFileName());
-                response.setContentType(MIME_TYPE);
-                response.setHeader(HEADER_TYPE, valueHeader);
-                OutputStream outputStream = response.getOutputStream();
-                buffer = securityService.decryption(buffer, account.getPassword());
-                outputStream.write(buffer, 0, buffer.length);
-                outputStream.flush();
-                outputStream.close();
-            } catch (FileNotFoundException e) {
-                logger.info(String.format("Файл %s не найден на диске", userFiles.getFileName()));
+                response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+                if (checkNotModified(userFiles, request, response)) {
+                    return;
+                }
+                response.setHeader(HEADER_TYPE, getContentDisposition(getBaseName(userFiles.getFileName())));
+                response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES_UNIT);
+                List<HttpRange> ranges = getRequestedRanges(request, userFiles);
+                if (ranges == null) {
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, String.format("%s */%d", BYTES_UNIT, userFiles.getFileLength()));
+                    return;
+                }
+                InputStream body;
+                if (ranges.isEmpty()) {
+                    response.setContentType(MIME_TYPE);
+                    response.setContentLengthLong(userFiles.getFileLength());
+                    body = openContent(account, userFiles, 0, userFiles.getFileLength());
+                } else if (ranges.size() == 1) {
+                    body = prepareRange(account, userFiles, ranges.get(0), response);
+                } else {
+                    body = prepareRanges(account, userFiles, ranges, response);
+                }
+                sendBody(request, response, body);
+            } catch (NoSuchFileException e) {
+                logger.info(String.format("Файл %s не найден в хранилище", userFiles.getFileName()));
             } catch (IOException e) {
                 logger.info(String.format("Ошибка загрузки файла %s", userFiles.getFileName()));
             }
@@ -133,97 +519,640 @@ public class UserFilesServiceImpl implements UserFilesService {
         }
     }
 
+    /**
+     * Все строки архива выбираются заранее не более чем двумя запросами, содержимое каждого файла
+     * открывается, только когда до него дойдет передача. Файлы папки получают в архиве пути
+     * относительно родителя папки
+     *
+     * @param ids
+     * @param folder
+     * @param account
+     * @param request
+     * @param response
+     */
     @Override
+    public void downloadArchive(List<Long> ids, String folder, Account account, HttpServletRequest request, HttpServletResponse response) {
+        String folderName = getFolderName(folder);
+        Map<Long, UserFiles> files = new LinkedHashMap<>();
+        if (ids != null && !ids.isEmpty()) {
+            filesRepository.findByIdInAndAccountAndDateTrashIsNullOrderByFileName(ids, account).forEach(file -> files.put(file.getId(), file));
+        }
+        if (!folderName.isEmpty()) {
+            filesRepository.findFolderFiles(account, folderName, MAX_ARCHIVE_FILES + 1).forEach(file -> files.putIfAbsent(file.getId(), file));
+        }
+        try {
+            if (files.isEmpty() || files.size() > MAX_ARCHIVE_FILES) {
+                logger.info(String.format("Архив пользователя %s не сформирован: выбрано файлов %d", account.getName(), files.size()));
+                response.sendError(files.isEmpty() ? HttpServletResponse.SC_NOT_FOUND : HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            String parent = folderName.substring(0, folderName.lastIndexOf(FOLDER_SEPARATOR) + 1);
+            List<ArchiveEntry> entries = files.values().stream()
+                    .map(file -> new FileArchiveEntry(account, file, file.getFileName().startsWith(parent) ? file.getFileName().substring(parent.length()) : file.getFileName()))
+                    .collect(Collectors.toList());
+            String archiveName = (folderName.isEmpty() ? ARCHIVE_NAME : getBaseName(folderName)) + ARCHIVE_EXTENSION;
+            response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+            response.setHeader(HEADER_TYPE, getContentDisposition(archiveName));
+            response.setContentType(ZIP_MIME_TYPE);
+            sendBody(request, response, new ZipArchiveInputStream(entries.iterator()));
+            logger.info(String.format("Пользователь %s скачивает архив %s, файлов: %d", account.getName(), archiveName, entries.size()));
+        } catch (IOException e) {
+            logger.info(String.format("Ошибка передачи архива пользователю %s", account.getName()));
+        }
+    }
+
+    @Override
+    @Transactional
     public void changeFiles(Account account, String oldPassword) {
         List<UserFiles> userFiles = findUserFilesByAccount(account);
-        userFiles.stream().forEach(userFile -> {
-            byte[] decryptedFile = securityService.decryption(getBytesFile(userFile), oldPassword);
-            writeFileOnDisk(userFile.getFilePath() + SEPARATOR + userFile.getFileName(), securityService.encryption(decryptedFile));
-        });
+        List<byte[]> dataKeys = userFiles.stream().map(UserFiles::getDataKey).collect(Collectors.toList());
+        List<byte[]> rewrapped = securityService.rewrapDataKeys(dataKeys, account, oldPassword);
+        for (int i = 0; i < userFiles.size(); i++) {
+            userFiles.get(i).setDataKey(rewrapped.get(i));
+        }
+        filesRepository.save(userFiles);
+        logger.info(String.format("Ключи %d файлов пользователя %s перевернуты на новый пароль", userFiles.size(), account.getName()));
+    }
+
+    @Override
+    public void migrateFile(Long id) {
+        UserFiles userFiles = filesRepository.findWithAccountById(id);
+        if (userFiles == null || (userFiles.getStorageFormat() != null && userFiles.getStorageFormat() != StorageFormat.LEGACY)) {
+            return;
+        }
+        Account account = userFiles.getAccount();
+        String oldKey = userFiles.getStorageKey();
+        String newKey = BlobKeys.newUserFile(account.getId());
+        try {
+            EncryptionResult result;
+            try (BlobOutputStream outputStream = blobStore.put(newKey)) {
+                try (InputStream inputStream = securityService.decryption(new BlobCipherTextSource(oldKey), account, userFiles.getDataKey(), 0, userFiles.getFileLength())) {
+                    result = securityService.encryption(inputStream, outputStream, account, userFiles.getDataKey(), null);
+                }
+                outputStream.commit();
+            }
+            if (filesRepository.updateStorage(id, oldKey, newKey, StorageFormat.SEGMENTED, result.getContentDigest()) == 0) {
+                blobStore.delete(newKey);
+                logger.info(String.format("Файл id=%d удален или изменен во время перевода в сегментированный формат", id));
+                return;
+            }
+            if (filesRepository.findReferencedStorageKeys(Collections.singletonList(oldKey)).isEmpty()) {
+                blobStore.delete(oldKey);
+            }
+            logger.info(String.format("Файл id=%d переведен в сегментированный формат", id));
+        } catch (IOException e) {
+            logger.info(String.format("Ошибка перевода файла id=%d в сегментированный формат", id));
+            throw new AesException();
+        }
+    }
+
+    /**
+     * Запрошенные диапазоны из заголовка Range. Пустой список означает ответ целым файлом:
+     * заголовка нет, он некорректен, диапазонов слишком много или не выполнено условие If-Range.
+     *
+     * @param request
+     * @param userFiles
+     * @return диапазоны или null, если ни один диапазон не попадает в файл (ответ 416)
+     */
+    private List<HttpRange> getRequestedRanges(HttpServletRequest request, UserFiles userFiles) {
+        String header = request.getHeader(HttpHeaders.RANGE);
+        if (header == null || !isIfRangeSatisfied(request, userFiles)) {
+            return Collections.emptyList();
+        }
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(header);
+            if (ranges.size() > MAX_RANGES) {
+                return Collections.emptyList();
+            }
+            long length = userFiles.getFileLength();
+            List<HttpRange> satisfiable = ranges.stream()
+                    .filter(range -> range.getRangeStart(length) < length && range.getRangeStart(length) <= range.getRangeEnd(length))
+                    .collect(Collectors.toList());
+            return satisfiable.isEmpty() ? null : satisfiable;
+        } catch (IllegalArgumentException e) {
+            return Collections.emptyList();
+        }
     }
 
     /**
-     * Получение массива байт файла
+     * Условный запрос (If-None-Match, If-Modified-Since) проверяется только по строке из БД,
+     * до обращения к диску. Валидаторы ETag и Last-Modified выставляются в ответ
      *
      * @param userFiles
+     * @param request
+     * @param response
+     * @return true, если отправлен ответ 304
+     */
+    private boolean checkNotModified(UserFiles userFiles, HttpServletRequest request, HttpServletResponse response) {
+        ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        long lastModified = userFiles.getDateUpload().getTimeInMillis();
+        String etag = getETag(userFiles);
+        if (etag == null) {
+            return webRequest.checkNotModified(lastModified);
+        }
+        return webRequest.checkNotModified(etag, lastModified);
+    }
+
+    /**
+     * Сильный ETag из дайджеста содержимого, посчитанного при загрузке
+     *
+     * @param userFiles
+     * @return ETag или null для файлов без дайджеста
+     */
+    private String getETag(UserFiles userFiles) {
+        if (userFiles.getContentDigest() == null) {
+            return null;
+        }
+        return "\"" + userFiles.getContentDigest() + "\"";
+    }
+
+    /**
+     * If-Range должен совпасть с сильным ETag или с датой загрузки с точностью до секунды
+     *
+     * @param request
+     * @param userFiles
      * @return
      */
-    private byte[] getBytesFile(UserFiles userFiles) {
+    private boolean isIfRangeSatisfied(HttpServletRequest request, UserFiles userFiles) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(getETag(userFiles));
+        }
         try {
-            File file = new File(userFiles.getFilePath() + SEPARATOR + userFiles.getFileName());
-            FileInputStream inputStream = new FileInputStream(file);
-            byte[] buffer = new byte[inputStream.available()];
-            inputStream.read(buffer);
-            inputStream.close();
-            return buffer;
-        } catch (IOException e) {
-            throw new AesException();
+            long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return date / 1000 == userFiles.getDateUpload().getTimeInMillis() / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
         }
     }
 
     /**
-     * Удаление файла с диска
+     * Заголовки ответа 206 с одним диапазоном
      *
-     * @param path
-     * @param name
-     * @throws FileNotFoundException
+     * @param account
+     * @param userFiles
+     * @param range
+     * @param response
+     * @return тело ответа
+     * @throws IOException
+     */
+    private InputStream prepareRange(Account account, UserFiles userFiles, HttpRange range, HttpServletResponse response) throws IOException {
+        long length = userFiles.getFileLength();
+        long start = range.getRangeStart(length);
+        long end = range.getRangeEnd(length);
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType(MIME_TYPE);
+        response.setHeader(HttpHeaders.CONTENT_RANGE, getContentRange(start, end, length));
+        response.setContentLengthLong(end - start + 1);
+        return openContent(account, userFiles, start, end + 1);
+    }
+
+    /**
+     * Заголовки ответа 206 multipart/byteranges. Длина ответа известна заранее,
+     * каждый диапазон дешифруется отдельно и открывается, только когда до него дойдет передача
+     *
+     * @param account
+     * @param userFiles
+     * @param ranges
+     * @param response
+     * @return тело ответа
+     */
+    private InputStream prepareRanges(Account account, UserFiles userFiles, List<HttpRange> ranges, HttpServletResponse response) {
+        long length = userFiles.getFileLength();
+        String boundary = UUID.randomUUID().toString();
+        byte[] closing = String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII);
+        List<byte[]> partHeaders = new ArrayList<>();
+        long contentLength = closing.length;
+        for (HttpRange range : ranges) {
+            long start = range.getRangeStart(length);
+            long end = range.getRangeEnd(length);
+            byte[] partHeader = String.format("\r\n--%s\r\n%s: %s\r\n%s: %s\r\n\r\n", boundary,
+                    HttpHeaders.CONTENT_TYPE, MIME_TYPE, HttpHeaders.CONTENT_RANGE, getContentRange(start, end, length))
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + end - start + 1;
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType(MULTIPART_BYTERANGES + boundary);
+        response.setContentLengthLong(contentLength);
+        Enumeration<InputStream> parts = new Enumeration<InputStream>() {
+
+            private int part;
+
+            @Override
+            public boolean hasMoreElements() {
+                return part <= 2 * ranges.size();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                int index = part++;
+                if (index == 2 * ranges.size()) {
+                    return new ByteArrayInputStream(closing);
+                }
+                if (index % 2 == 0) {
+                    return new ByteArrayInputStream(partHeaders.get(index / 2));
+                }
+                HttpRange range = ranges.get(index / 2);
+                try {
+                    return openContent(account, userFiles, range.getRangeStart(length), range.getRangeEnd(length) + 1);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        return new SequenceInputStream(parts);
+    }
+
+    /**
+     * Неблокирующая отправка тела ответа. При ошибке запуска передачи поток закрывается
+     *
+     * @param request
+     * @param response
+     * @param body
+     * @throws IOException
      */
-    private void deleteFileFromDisk(String path, String name) throws FileNotFoundException {
-        File file = new File(path + SEPARATOR + name);
-        if (!file.exists()) {
-            throw new FileNotFoundException();
+    private void sendBody(HttpServletRequest request, HttpServletResponse response, InputStream body) throws IOException {
+        try {
+            asyncTransfer.sendBody(request, response, body);
+        } catch (IOException | RuntimeException e) {
+            body.close();
+            throw e;
         }
-        file.delete();
     }
 
     /**
-     * Подготовка {@link MultipartFile} к сохранению
+     * Поток открытого текста диапазона [from, to) файла: из хранилища с дедупликацией или из объекта файла.
+     * Сжатые сегменты распаковываются при дешифровании, поэтому диапазон сжатого файла читается так же
      *
-     * @param file
-     * @param path
+     * @param account
+     * @param userFiles
+     * @param from
+     * @param to
+     * @return
      * @throws IOException
      */
-    private void saveFileOnDisk(MultipartFile file, String path) throws IOException {
-        File dir = new File(path);
-        if (!dir.exists()) {
-            dir.mkdirs();
+    private InputStream openContent(Account account, UserFiles userFiles, long from, long to) throws IOException {
+        if (userFiles.getStorageFormat() == StorageFormat.DEDUP) {
+            return dedupStoreService.openContent(userFiles, account, from, to);
         }
-        String fullPath = dir.getAbsolutePath() + SEPARATOR + file.getOriginalFilename();
-        byte[] bytes = securityService.encryption(file.getBytes());
-        writeFileOnDisk(fullPath, bytes);
+        return securityService.decryption(new BlobCipherTextSource(userFiles.getStorageKey()), account, userFiles.getDataKey(), from, to);
+    }
+
+    private String getContentRange(long start, long end, long length) {
+        return String.format("%s %d-%d/%d", BYTES_UNIT, start, end, length);
     }
 
     /**
-     * Сохранение на диск
+     * Удаление записанного содержимого файла, строка которого не была создана
      *
-     * @param fullPath
-     * @param buffer
+     * @param storedFile
      */
-    private void writeFileOnDisk(String fullPath, byte[] buffer) {
+    private void discardStoredFile(StoredFile storedFile) {
+        UserFiles userFiles = storedFile.getUserFiles();
+        if (userFiles.getStorageFormat() == StorageFormat.DEDUP) {
+            dedupStoreService.releaseChunks(storedFile.getChunks());
+            return;
+        }
         try {
-            File serverFile = new File(fullPath);
-            BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(serverFile));
-            outputStream.write(buffer);
-            outputStream.close();
+            blobStore.delete(userFiles.getStorageKey());
         } catch (IOException e) {
-            logger.info(String.format("Ошибка сохранения файла %s", fullPath));
+            logger.info(String.format("Файл %s не удален из хранилища после ошибки записи в БД", userFiles.getFileName()));
         }
     }
 
+    /**
+     * Имя файла без папок
+     *
+     * @param fileName
+     * @return
+     */
+    private String getBaseName(String fileName) {
+        return fileName.substring(fileName.lastIndexOf(FOLDER_SEPARATOR) + 1);
+    }
+
+    /**
+     * Имя папки без разделителей в начале и в конце, пустое - корень
+     *
+     * @param folder
+     * @return
+     */
+    private String getFolderName(String folder) {
+        if (folder == null) {
+            return "";
+        }
+        return StringUtils.trimTrailingCharacter(StringUtils.trimLeadingCharacter(folder.trim(), FOLDER_SEPARATOR), FOLDER_SEPARATOR);
+    }
+
+    /**
+     * Переименование строки файла, если новое имя допустимо и не занято
+     *
+     * @param userFiles
+     * @param account
+     * @param fileName
+     * @return
+     */
+    private boolean changeFileName(UserFiles userFiles, Account account, String fileName) {
+        if (!isValidFileName(fileName) || checkUserFile(account, fileName)) {
+            logger.info(String.format("Файл id=%d не переименован пользователем %s: имя %s недопустимо или занято", userFiles.getId(), account.getName(), fileName));
+            return false;
+        }
+        String oldName = userFiles.getFileName();
+        userFiles.setFileName(fileName);
+        saveFileName(userFiles, account);
+        fileNameIndex.renameFile(account.getId(), oldName, fileName);
+        markFilesChanged(account);
+        logger.info(String.format("Файл %s переименован пользователем %s в %s", oldName, account.getName(), fileName));
+        return true;
+    }
+
     /**
      * Создание информации в базе о загруженном файле на сервер
      *
      * @param account
      * @param fileName
+     * @param result
+     * @param path
+     * @param storageKey
+     * @param dataKey
+     * @param storageFormat
+     * @param codec
+     * @return
+     */
+    private UserFiles saveInfoFile(Account account, String fileName, EncryptionResult result, String path, String storageKey, byte[] dataKey,
+                                   StorageFormat storageFormat, CompressionCodec codec) {
+        UserFiles userFiles = createInfoFile(account, fileName, result, path, storageKey, dataKey, storageFormat);
+        userFiles.setCompression(codec);
+        return saveFileName(userFiles, account);
+    }
+
+    /**
+     * Сохранение строки с проверкой имени в базе сразу, а не при завершении транзакции:
+     * проверка {@link #checkUserFile(Account, String)} не защищает от параллельного запроса с тем же именем
+     *
+     * @param userFiles
+     * @param account
+     * @return
+     */
+    private UserFiles saveFileName(UserFiles userFiles, Account account) {
+        try {
+            return filesRepository.saveAndFlush(userFiles);
+        } catch (DataIntegrityViolationException e) {
+            throw toFileNameConflict(e, account, userFiles.getFileName());
+        }
+    }
+
+    /**
+     * Нарушение уникальности имени файла аккаунта становится конфликтом, остальные нарушения не меняются
+     *
+     * @param e
+     * @param account
+     * @param fileName имя файла или null, если сохранялось несколько файлов
+     * @return
+     */
+    private RuntimeException toFileNameConflict(DataIntegrityViolationException e, Account account, String fileName) {
+        String message = e.getMostSpecificCause().getMessage();
+        if (message == null || !message.contains(FILE_NAME_CONSTRAINT)) {
+            return e;
+        }
+        logger.info(String.format("Имя файла %s пользователя %s занято параллельным запросом", fileName == null ? "" : fileName, account.getName()));
+        return new FileNameConflictException(fileName == null ? "Имя одного из файлов уже занято" : String.format("Файл %s уже существует", fileName));
+    }
+
+    /**
+     * Значение заголовка вложения: имя в кавычках для старых клиентов, в котором символы вне ASCII, управляющие,
+     * кавычки и обратная косая черта заменены, и точное имя в UTF-8 по RFC 5987
+     *
+     * @param fileName
+     * @return
+     */
+    private static String getContentDisposition(String fileName) {
+        StringBuilder fallback = new StringBuilder();
+        fileName.codePoints().forEach(c -> fallback.append(c < ' ' || c > '~' || c == '"' || c == '\\' ? FALLBACK_CHAR : (char) c));
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || ATTR_CHARS.indexOf(c) >= 0) {
+                encoded.append(c);
+            } else {
+                encoded.append(String.format("%%%02X", (int) c));
+            }
+        }
+        return String.format(ATTACHMENT, fallback, encoded);
+    }
+
+    /**
+     * Строка файла без сохранения в базу
+     *
+     * @param account
+     * @param fileName
+     * @param result
+     * @param path
+     * @param storageKey ключ содержимого, null - содержимое в сегментах с дедупликацией
+     * @param dataKey
+     * @param storageFormat
+     * @return
      */
-    private void saveInfoFile(Account account, String fileName, Long size, String path) {
+    private UserFiles createInfoFile(Account account, String fileName, EncryptionResult result, String path, String storageKey, byte[] dataKey, StorageFormat storageFormat) {
+        long size = result.getPlainLength();
         UserFiles userFiles = new UserFiles();
         userFiles.setAccount(account);
         userFiles.setFileName(fileName);
         userFiles.setFileLength(size);
         userFiles.setFileLengthShow(new BigDecimal(size).divide(new BigDecimal(DIVIDE_MEGABYTE), POINT_OFFSET, RoundingMode.CEILING));
+        userFiles.setContentDigest(result.getContentDigest());
         userFiles.setFilePath(path);
+        userFiles.setStorageKey(storageKey);
         userFiles.setDateUpload(Calendar.getInstance());
-        filesRepository.save(userFiles);
+        userFiles.setDataKey(dataKey);
+        userFiles.setStorageFormat(storageFormat);
+        return userFiles;
+    }
+
+    /**
+     * Курсор - идентификатор и значение поля сортировки последнего файла страницы
+     *
+     * @param sort
+     * @param item
+     * @return
+     */
+    private String encodeCursor(FileSort sort, UserFileItem item) {
+        String value = sort.getProperty().equals(SORT_BY_NAME) ? item.getFileName() : String.valueOf(item.getDateUpload().getTimeInMillis());
+        String cursor = item.getId() + String.valueOf(CURSOR_SEPARATOR) + value;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Object decodeCursorValue(FileSort sort, String value) {
+        if (sort.getProperty().equals(SORT_BY_NAME)) {
+            return value;
+        }
+        Calendar date = Calendar.getInstance();
+        date.setTimeInMillis(Long.valueOf(value));
+        return date;
+    }
+
+    /**
+     * Новая версия списка файлов: ETag списка меняется, снимок аккаунта в кэше устаревает
+     *
+     * @param account
+     */
+    private void markFilesChanged(Account account) {
+        accountRepository.incrementFilesVersion(account.getId());
+        accountCache.evict(account.getId());
+    }
+
+    /**
+     * Файл в архиве, содержимое открывается при передаче
+     */
+    private class FileArchiveEntry implements ArchiveEntry {
+
+        private final Account account;
+
+        private final UserFiles userFiles;
+
+        private final String name;
+
+        private FileArchiveEntry(Account account, UserFiles userFiles, String name) {
+            this.account = account;
+            this.userFiles = userFiles;
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getLength() {
+            return userFiles.getFileLength();
+        }
+
+        @Override
+        public long getLastModified() {
+            return userFiles.getDateUpload().getTimeInMillis();
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return openContent(account, userFiles, 0, userFiles.getFileLength());
+        }
+    }
+
+    /**
+     * Шифротекст файла, читаемый из хранилища диапазонами. Длина запрашивается один раз.
+     * Содержимое под ключом хранилища не меняется, поэтому ключ служит идентификатором для кэша сегментов
+     */
+    private class BlobCipherTextSource implements CipherTextSource {
+
+        private final String key;
+
+        private BlobStat stat;
+
+        private BlobCipherTextSource(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public long length() throws IOException {
+            if (stat == null) {
+                stat = blobStore.stat(key);
+                if (stat == null) {
+                    throw new NoSuchFileException(key);
+                }
+            }
+            return stat.getLength();
+        }
+
+        @Override
+        public InputStream open(long from, long to) throws IOException {
+            return blobStore.get(key, from, to);
+        }
+
+        @Override
+        public String getCacheKey() {
+            return key;
+        }
+    }
+
+    /**
+     * Запись содержимого нового файла: в хранилище с дедупликацией (blobStream == null) или одним объектом
+     */
+    private class FileStoreOutputStream extends StoreOutputStream {
+
+        private final Account account;
+
+        private final String fileName;
+
+        private final byte[] dataKey;
+
+        private final String storageKey;
+
+        private final BlobOutputStream blobStream;
+
+        private final List<FileChunk> chunks;
+
+        private final SegmentOutputStream<EncryptionResult> encryption;
+
+        private StoredFile storedFile;
+
+        private boolean closed;
+
+        private FileStoreOutputStream(Account account, String fileName, byte[] dataKey, String storageKey, BlobOutputStream blobStream,
+                                      List<FileChunk> chunks, SegmentOutputStream<EncryptionResult> encryption) {
+            this.account = account;
+            this.fileName = fileName;
+            this.dataKey = dataKey;
+            this.storageKey = storageKey;
+            this.blobStream = blobStream;
+            this.chunks = chunks;
+            this.encryption = encryption;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            encryption.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            encryption.write(b, off, len);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            EncryptionResult result = encryption.commit();
+            if (blobStream != null) {
+                blobStream.commit();
+            }
+            UserFiles userFiles = createInfoFile(account, fileName, result, BlobKeys.accountFolder(account.getId()), storageKey, dataKey,
+                    blobStream == null ? StorageFormat.DEDUP : StorageFormat.SEGMENTED);
+            userFiles.setCompression(encryption.getCodec());
+            storedFile = new StoredFile(userFiles, chunks);
+            closed = true;
+        }
+
+        @Override
+        public StoredFile getStoredFile() {
+            return storedFile;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            encryption.close();
+            if (blobStream != null) {
+                blobStream.close();
+            } else {
+                dedupStoreService.releaseChunks(chunks);
+                chunks.clear();
+            }
+        }
     }
 }
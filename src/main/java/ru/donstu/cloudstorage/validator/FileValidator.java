@@ -3,7 +3,6 @@ package ru.donstu.cloudstorage.validator;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
-import org.springframework.web.multipart.MultipartFile;
 import ru.donstu.cloudstorage.domain.account.entity.Account;
 import ru.donstu.cloudstorage.domain.message.entity.Message;
 import ru.donstu.cloudstorage.domain.message.enums.Type;
@@ -12,7 +11,7 @@ import ru.donstu.cloudstorage.service.userfiles.UserFilesService;
 import java.util.List;
 
 /**
- * Валидация {@link org.springframework.web.multipart.MultipartFile}
+ * Валидация загружаемого файла
  *
  * @author v.solomasov
  */
@@ -23,17 +22,22 @@ public class FileValidator {
 
     private static final String FILE_SAME = "validator.file.same";
 
+    private static final String FILE_NAME = "validator.file.name";
+
     @Autowired
     private UserFilesService userFilesService;
 
     @Autowired
     private Environment environment;
 
-    public void validate(Account account, MultipartFile multipartFile, List<Message> messages) {
-        if (multipartFile.isEmpty()) {
+    public void validate(Account account, String fileName, boolean empty, List<Message> messages) {
+        if (empty) {
             messages.add(new Message(environment.getRequiredProperty(FILE_EMPTY), Type.DANGER));
         }
-        if (userFilesService.checkUserFile(account, multipartFile.getOriginalFilename())) {
+        if (fileName != null && !userFilesService.isValidFileName(fileName)) {
+            messages.add(new Message(environment.getRequiredProperty(FILE_NAME), Type.DANGER));
+        }
+        if (userFilesService.checkUserFile(account, fileName)) {
             messages.add(new Message(environment.getRequiredProperty(FILE_SAME), Type.DANGER));
         }
     }
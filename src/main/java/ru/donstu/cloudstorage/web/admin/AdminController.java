@@ -0,0 +1,84 @@
+package ru.donstu.cloudstorage.web.admin;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+import ru.donstu.cloudstorage.service.cache.CacheService;
+import ru.donstu.cloudstorage.service.migration.StorageMigrationService;
+import ru.donstu.cloudstorage.service.rebalance.StorageRebalanceService;
+import ru.donstu.cloudstorage.service.statistics.StatisticsProvider;
+
+import java.util.List;
+import java.util.Map;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.CHARACTER_ENCODING;
+import static ru.donstu.cloudstorage.web.admin.AdminController.ROUTE_ADMIN;
+
+/**
+ * Контроллер служебных страниц администратора
+ *
+ * @author v.solomasov
+ */
+@Controller
+@RequestMapping(ROUTE_ADMIN)
+public class AdminController {
+
+    public static final String ROUTE_ADMIN = "/admin";
+
+    private static final String TEXT_PLAIN = MediaType.TEXT_PLAIN_VALUE + ";charset=" + CHARACTER_ENCODING;
+
+    @Autowired
+    private List<StatisticsProvider> statisticsProviders;
+
+    @Autowired
+    private StorageMigrationService storageMigrationService;
+
+    @Autowired
+    private StorageRebalanceService storageRebalanceService;
+
+    @Autowired
+    private CacheService cacheService;
+
+    @ResponseBody
+    @RequestMapping(value = "/statistics", method = RequestMethod.GET, produces = TEXT_PLAIN)
+    public String statisticsPage() {
+        StringBuilder builder = new StringBuilder();
+        for (StatisticsProvider provider : statisticsProviders) {
+            for (Map.Entry<String, Object> entry : provider.getStatistics().entrySet()) {
+                builder.append(String.format("%s.%s=%s%n", provider.getStatisticsName(), entry.getKey(), entry.getValue()));
+            }
+        }
+        return builder.toString();
+    }
+
+    @ResponseBody
+    @RequestMapping(value = "/cache/evict", method = RequestMethod.POST, produces = TEXT_PLAIN)
+    public String evictCache() {
+        if (!cacheService.isEnabled()) {
+            return "Кэш второго уровня выключен";
+        }
+        cacheService.evictAll();
+        return "Кэш второго уровня очищен";
+    }
+
+    @ResponseBody
+    @RequestMapping(value = "/migration", method = RequestMethod.POST, produces = TEXT_PLAIN)
+    public String startMigration() {
+        if (storageMigrationService.startMigration()) {
+            return "Миграция запущена";
+        }
+        return "Миграция уже выполняется";
+    }
+
+    @ResponseBody
+    @RequestMapping(value = "/rebalance", method = RequestMethod.POST, produces = TEXT_PLAIN)
+    public String startRebalance() {
+        if (storageRebalanceService.startRebalance()) {
+            return "Ребалансировка запущена";
+        }
+        return "Ребалансировка уже выполняется или хранилище не разбито на тома";
+    }
+}
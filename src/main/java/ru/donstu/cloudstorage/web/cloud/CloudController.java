@@ -1,24 +1,50 @@
 package ru.donstu.cloudstorage.web.cloud;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.context.request.WebRequest;
 import ru.donstu.cloudstorage.domain.account.entity.Account;
 import ru.donstu.cloudstorage.domain.message.entity.Message;
+import ru.donstu.cloudstorage.domain.message.enums.Type;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UploadCheckItem;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFilesPage;
+import ru.donstu.cloudstorage.domain.userfiles.enums.FileSort;
+import ru.donstu.cloudstorage.exception.FileNameConflictException;
+import ru.donstu.cloudstorage.service.batch.BatchUploadService;
 import ru.donstu.cloudstorage.service.security.SecurityService;
+import ru.donstu.cloudstorage.service.transfer.AsyncTransfer;
+import ru.donstu.cloudstorage.service.transfer.ContentOutputStream;
+import ru.donstu.cloudstorage.service.transfer.FilePartHandler;
+import ru.donstu.cloudstorage.service.userfiles.StoreOutputStream;
+import ru.donstu.cloudstorage.service.userfiles.StoredFile;
 import ru.donstu.cloudstorage.service.userfiles.UserFilesService;
 import ru.donstu.cloudstorage.validator.FileValidator;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import static ru.donstu.cloudstorage.config.constant.Constants.MAX_UPLOAD_SIZE;
+import static ru.donstu.cloudstorage.config.constant.Constants.MESSAGE_PROPERTY;
 import static ru.donstu.cloudstorage.web.cloud.CloudController.ROUTE_CLOUD;
 import static ru.donstu.cloudstorage.web.registration.RegistrationController.MESSAGES;
 
@@ -30,12 +56,37 @@ import static ru.donstu.cloudstorage.web.registration.RegistrationController.MES
  */
 @Controller
 @RequestMapping(ROUTE_CLOUD)
+@PropertySource(MESSAGE_PROPERTY)
 public class CloudController {
 
     public static final String ROUTE_CLOUD = "/cloud";
 
     public static final String REDIRECT_CLOUD = "redirect:" + ROUTE_CLOUD;
 
+    private static final String REDIRECT_TRASH = REDIRECT_CLOUD + "/trash";
+
+    private static final String FILE_NOT_RESTORED = "cloud.file.not_restored";
+
+    private static final String FILE_NOT_RENAMED = "cloud.file.not_renamed";
+
+    private static final String FILE_NOT_MOVED = "cloud.file.not_moved";
+
+    private static final String FILE_NOT_COPIED = "cloud.file.not_copied";
+
+    private static final String CACHE_CONTROL = "private, no-cache";
+
+    private static final String FILE_PARAMETER = "file";
+
+    private static final String FILE_NAME_PARAMETER = "fileName";
+
+    private static final String FILE_LENGTH_PARAMETER = "fileLength";
+
+    private static final int PAGE_SIZE = 50;
+
+    private static final int MAX_PRECHECK_FILES = 1000;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
     @Autowired
     private SecurityService securityService;
 
@@ -45,40 +96,339 @@ public class CloudController {
     @Autowired
     private FileValidator fileValidator;
 
+    @Autowired
+    private BatchUploadService batchUploadService;
+
+    @Autowired
+    private AsyncTransfer asyncTransfer;
+
+    @Autowired
+    private Environment environment;
+
     @RequestMapping(method = RequestMethod.GET)
-    public String homePage(Model model,
-                           HttpServletRequest request) {
+    public String homePage(@RequestParam(value = "sort", defaultValue = "DATE_DESC") FileSort sort,
+                           @RequestParam(value = "prefix", required = false) String prefix,
+                           @RequestParam(value = "cursor", required = false) String cursor,
+                           Model model,
+                           HttpServletRequest request,
+                           HttpServletResponse response,
+                           WebRequest webRequest) {
         Account account = securityService.getLoggedAccount();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+        if (request.getSession().getAttribute(MESSAGES) == null && webRequest.checkNotModified(getListingETag(account, request))) {
+            return null;
+        }
+        UserFilesPage page = filesService.findUserFilesPage(account, false, sort, prefix, cursor, PAGE_SIZE);
         model.addAttribute("isLogged", securityService.isLoggedUser());
-        model.addAttribute("userFiles", filesService.findUserFilesByAccount(account));
+        model.addAttribute("userFiles", page.getItems());
+        model.addAttribute("nextCursor", page.getNextCursor());
+        model.addAttribute("sort", sort);
+        model.addAttribute("prefix", prefix);
         model.addAttribute(MESSAGES, request.getSession().getAttribute(MESSAGES));
         request.getSession().removeAttribute(MESSAGES);
         return "cloud";
     }
 
+    @RequestMapping(value = "/trash", method = RequestMethod.GET)
+    public String trashPage(@RequestParam(value = "sort", defaultValue = "DATE_DESC") FileSort sort,
+                            @RequestParam(value = "cursor", required = false) String cursor,
+                            Model model,
+                            HttpServletRequest request,
+                            HttpServletResponse response,
+                            WebRequest webRequest) {
+        Account account = securityService.getLoggedAccount();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+        if (request.getSession().getAttribute(MESSAGES) == null && webRequest.checkNotModified(getListingETag(account, request))) {
+            return null;
+        }
+        UserFilesPage page = filesService.findUserFilesPage(account, true, sort, null, cursor, PAGE_SIZE);
+        model.addAttribute("isLogged", securityService.isLoggedUser());
+        model.addAttribute("userFiles", page.getItems());
+        model.addAttribute("nextCursor", page.getNextCursor());
+        model.addAttribute("sort", sort);
+        model.addAttribute(MESSAGES, request.getSession().getAttribute(MESSAGES));
+        request.getSession().removeAttribute(MESSAGES);
+        return "trash";
+    }
+
+    /**
+     * Страница списка файлов в JSON для клиентов API
+     *
+     * @param sort
+     * @param prefix
+     * @param cursor
+     * @param size
+     * @param request
+     * @param webRequest
+     * @return
+     */
+    @RequestMapping(value = "/files", method = RequestMethod.GET)
+    public ResponseEntity<UserFilesPage> listFiles(@RequestParam(value = "sort", defaultValue = "DATE_DESC") FileSort sort,
+                                                   @RequestParam(value = "prefix", required = false) String prefix,
+                                                   @RequestParam(value = "cursor", required = false) String cursor,
+                                                   @RequestParam(value = "size", defaultValue = "50") int size,
+                                                   HttpServletRequest request,
+                                                   WebRequest webRequest) {
+        Account account = securityService.getLoggedAccount();
+        if (webRequest.checkNotModified(getListingETag(account, request))) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL)
+                .body(filesService.findUserFilesPage(account, false, sort, prefix, cursor, size));
+    }
+
+    /**
+     * Предварительная проверка загрузки для клиентов API: имена, длины и квота проверяются
+     * по индексу в памяти до передачи содержимого. Параметры fileName и fileLength повторяются
+     * для каждого файла в одном порядке
+     *
+     * @param request
+     * @return результат по каждому файлу в JSON
+     */
+    @RequestMapping(value = "/precheck", method = RequestMethod.GET)
+    public ResponseEntity<List<UploadCheckItem>> precheckUpload(HttpServletRequest request) {
+        String[] fileNames = request.getParameterValues(FILE_NAME_PARAMETER);
+        String[] fileLengths = request.getParameterValues(FILE_LENGTH_PARAMETER);
+        if (fileNames == null || fileLengths == null || fileNames.length != fileLengths.length || fileNames.length > MAX_PRECHECK_FILES) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        List<Long> lengths = new ArrayList<>(fileLengths.length);
+        try {
+            for (String fileLength : fileLengths) {
+                lengths.add(Long.valueOf(fileLength));
+            }
+        } catch (NumberFormatException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL)
+                .body(filesService.checkUploads(securityService.getLoggedAccount(), Arrays.asList(fileNames), lengths, MAX_UPLOAD_SIZE));
+    }
+
+    /**
+     * Загрузка одного или нескольких файлов формой. Тело запроса принимается без блокировки потока,
+     * разбор и шифрование выполняются в пуле передачи по мере приема, строки файлов создаются одной транзакцией
+     *
+     * @param request
+     * @param response
+     * @throws IOException
+     */
     @RequestMapping(value = "/save", method = RequestMethod.POST)
-    public String saveUserFile(@RequestParam("file") MultipartFile file,
-                               HttpServletRequest request) {
+    public void saveUserFile(HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
         Account account = securityService.getLoggedAccount();
-        List<Message> messages = new ArrayList();
-        fileValidator.validate(account, file, messages);
-        if (!messages.isEmpty()) {
-            request.getSession().setAttribute(MESSAGES, messages);
-            return REDIRECT_CLOUD;
+        if (rejectOverQuota(account, request, response)) {
+            return;
         }
-        filesService.uploadFile(account, file);
-        return REDIRECT_CLOUD;
+        asyncTransfer.receiveMultipartFiles(request, response, MAX_UPLOAD_SIZE, FILE_PARAMETER, new FilePartHandler() {
+
+            private final List<Message> messages = new ArrayList<>();
+
+            private final List<StoreOutputStream> stores = new ArrayList<>();
+
+            private final Set<String> fileNames = new HashSet<>();
+
+            @Override
+            public ContentOutputStream open(String fileName, boolean empty) throws IOException {
+                List<Message> fileMessages = new ArrayList<>();
+                fileValidator.validate(account, fileName, empty, fileMessages);
+                if (!fileMessages.isEmpty() || !fileNames.add(fileName)) {
+                    messages.addAll(fileMessages);
+                    return null;
+                }
+                StoreOutputStream store = filesService.openStore(account, fileName);
+                stores.add(store);
+                return store;
+            }
+
+            @Override
+            public void complete(int count) throws IOException {
+                try {
+                    filesService.saveStoredFiles(account, getStoredFiles());
+                } catch (FileNameConflictException e) {
+                    response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+                    return;
+                }
+                if (count == 0) {
+                    fileValidator.validate(account, null, true, messages);
+                }
+                if (!messages.isEmpty()) {
+                    request.getSession().setAttribute(MESSAGES, messages);
+                }
+                response.sendRedirect(request.getContextPath() + ROUTE_CLOUD);
+            }
+
+            @Override
+            public void abort() {
+                filesService.discardStoredFiles(getStoredFiles());
+            }
+
+            private List<StoredFile> getStoredFiles() {
+                return stores.stream().map(StoreOutputStream::getStoredFile).filter(Objects::nonNull).collect(Collectors.toList());
+            }
+        });
+    }
+
+    /**
+     * Пакетная загрузка файлов для клиентов API: файлы записываются по мере приема, проверяются
+     * по базе вместе и сохраняются одной транзакцией. Ответ - результат по каждому файлу в JSON
+     *
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    @RequestMapping(value = "/batch", method = RequestMethod.POST)
+    public void saveUserFiles(HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        Account account = securityService.getLoggedAccount();
+        if (rejectOverQuota(account, request, response)) {
+            return;
+        }
+        asyncTransfer.receiveMultipartFiles(request, response, MAX_UPLOAD_SIZE, FILE_PARAMETER, batchUploadService.uploadBatch(account, items -> {
+            if (items.isEmpty()) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            byte[] json = OBJECT_MAPPER.writeValueAsBytes(items);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+            response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+            response.setContentLength(json.length);
+            response.getOutputStream().write(json);
+        }));
     }
 
     @RequestMapping(value = "/delete/{id}", method = RequestMethod.GET)
     public String deleteUserFile(@PathVariable("id") Long id) {
-        filesService.deleteFile(id, securityService.getLoggedAccount());
+        filesService.trashFile(id, securityService.getLoggedAccount());
+        return REDIRECT_CLOUD;
+    }
+
+    @RequestMapping(value = "/restore/{id}", method = RequestMethod.GET)
+    public String restoreUserFile(@PathVariable("id") Long id,
+                                  HttpServletRequest request) {
+        if (!filesService.restoreFile(id, securityService.getLoggedAccount())) {
+            addMessage(request, FILE_NOT_RESTORED);
+        }
+        return REDIRECT_TRASH;
+    }
+
+    /**
+     * Переименование файла. Меняется только строка в базе, содержимое файла не переносится
+     *
+     * @param id
+     * @param fileName новое полное имя, может содержать папки через "/"
+     * @param request
+     * @return
+     */
+    @RequestMapping(value = "/rename/{id}", method = RequestMethod.POST)
+    public String renameUserFile(@PathVariable("id") Long id,
+                                 @RequestParam("fileName") String fileName,
+                                 HttpServletRequest request) {
+        if (!filesService.renameFile(id, securityService.getLoggedAccount(), fileName.trim())) {
+            addMessage(request, FILE_NOT_RENAMED);
+        }
+        return REDIRECT_CLOUD;
+    }
+
+    /**
+     * Перемещение файла в другую папку с сохранением имени
+     *
+     * @param id
+     * @param folder папка назначения, пустая - корень
+     * @param request
+     * @return
+     */
+    @RequestMapping(value = "/move/{id}", method = RequestMethod.POST)
+    public String moveUserFile(@PathVariable("id") Long id,
+                               @RequestParam(value = "folder", defaultValue = "") String folder,
+                               HttpServletRequest request) {
+        if (!filesService.moveFile(id, securityService.getLoggedAccount(), folder)) {
+            addMessage(request, FILE_NOT_MOVED);
+        }
+        return REDIRECT_CLOUD;
+    }
+
+    /**
+     * Копия файла под другим именем. Данные не копируются, копия ссылается на то же содержимое
+     *
+     * @param id
+     * @param fileName имя копии
+     * @param request
+     * @return
+     */
+    @RequestMapping(value = "/copy/{id}", method = RequestMethod.POST)
+    public String copyUserFile(@PathVariable("id") Long id,
+                               @RequestParam("fileName") String fileName,
+                               HttpServletRequest request) {
+        if (filesService.copyFile(id, securityService.getLoggedAccount(), fileName.trim()) == null) {
+            addMessage(request, FILE_NOT_COPIED);
+        }
         return REDIRECT_CLOUD;
     }
 
+    /**
+     * Скачивание выбранных файлов и папки одним архивом ZIP
+     *
+     * @param ids
+     * @param folder
+     * @param request
+     * @param response
+     */
+    @RequestMapping(value = "/archive", method = RequestMethod.GET)
+    public void downloadArchive(@RequestParam(value = "id", required = false) List<Long> ids,
+                                @RequestParam(value = "folder", defaultValue = "") String folder,
+                                HttpServletRequest request,
+                                HttpServletResponse response) {
+        filesService.downloadArchive(ids, folder, securityService.getLoggedAccount(), request, response);
+    }
+
     @RequestMapping(value = "/download/{id}", method = RequestMethod.GET)
     public void downloadUserFIle(@PathVariable("id") Long id,
+                                 HttpServletRequest request,
                                  HttpServletResponse response) {
-        filesService.downloadFile(id, securityService.getLoggedAccount(), response);
+        filesService.downloadFile(id, securityService.getLoggedAccount(), request, response);
+    }
+
+    /**
+     * Отказ по заголовку Content-Length до приема тела, если загрузка не помещается в квоту.
+     * Клиент, приславший Expect: 100-continue, получает ответ 507 и не передает тело
+     *
+     * @param account
+     * @param request
+     * @param response
+     * @return true, если отправлен отказ
+     * @throws IOException
+     */
+    private boolean rejectOverQuota(Account account, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (filesService.checkQuota(account, request.getContentLengthLong())) {
+            return false;
+        }
+        response.sendError(HttpStatus.INSUFFICIENT_STORAGE.value());
+        return true;
+    }
+
+    /**
+     * Сообщение об ошибке для страницы после перенаправления
+     *
+     * @param request
+     * @param key
+     */
+    private void addMessage(HttpServletRequest request, String key) {
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message(environment.getRequiredProperty(key), Type.DANGER));
+        request.getSession().setAttribute(MESSAGES, messages);
+    }
+
+    /**
+     * Слабый ETag списка файлов по версии изменений файлов аккаунта и параметрам страницы
+     *
+     * @param account
+     * @param request
+     * @return
+     */
+    private String getListingETag(Account account, HttpServletRequest request) {
+        String query = request.getQueryString() == null ? "" : request.getQueryString();
+        return String.format("W/\"%d-%d-%08x\"", account.getId(), account.getFilesVersion() == null ? 0 : account.getFilesVersion(), query.hashCode());
     }
 }
@@ -11,6 +11,7 @@ import org.springframework.web.servlet.NoHandlerFoundException;
 import ru.donstu.cloudstorage.domain.message.entity.Message;
 import ru.donstu.cloudstorage.domain.message.enums.Type;
 import ru.donstu.cloudstorage.exception.AesException;
+import ru.donstu.cloudstorage.exception.FileNameConflictException;
 import ru.donstu.cloudstorage.service.security.SecurityService;
 
 import javax.servlet.http.HttpServletRequest;
@@ -60,6 +61,14 @@ public class ExceptionHandlingController {
         return modelAndView;
     }
 
+    @ResponseStatus(HttpStatus.CONFLICT)
+    @ExceptionHandler(FileNameConflictException.class)
+    public ModelAndView handleError409(HttpServletRequest request, Exception ex) {
+        ModelAndView modelAndView = getModelAndView();
+        modelAndView.addObject(MESSAGES, new Message(ex.getMessage(), Type.ERROR));
+        return modelAndView;
+    }
+
     @ExceptionHandler(AesException.class)
     public ModelAndView handleErrorAES(HttpServletRequest request, Exception ex) {
         ModelAndView modelAndView = getModelAndView();
@@ -0,0 +1,45 @@
+package ru.donstu.cloudstorage.web.login;
+
+import org.apache.log4j.Logger;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+import ru.donstu.cloudstorage.service.security.SecurityService;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+
+/**
+ * Завершение сессий, выданных до смены пароля: версия учетных данных из сессии сравнивается
+ * с версией аккаунта из кэша снимков, при расхождении сессия закрывается, и запрос дальше
+ * обрабатывается как анонимный (перенаправление на вход)
+ *
+ * @author v.solomasov
+ */
+public class CredentialVersionFilter extends OncePerRequestFilter {
+
+    private static final Logger logger = Logger.getLogger(CredentialVersionFilter.class);
+
+    private final SecurityService securityService;
+
+    public CredentialVersionFilter(SecurityService securityService) {
+        this.securityService = securityService;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        if (!securityService.isCredentialActual()) {
+            logger.info(String.format("Сессия пользователя %s закрыта: учетные данные изменены", request.getRemoteUser()));
+            SecurityContextHolder.clearContext();
+            HttpSession session = request.getSession(false);
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+        filterChain.doFilter(request, response);
+    }
+}
@@ -0,0 +1,168 @@
+package ru.donstu.cloudstorage.web.upload;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import ru.donstu.cloudstorage.domain.upload.entity.UploadStatus;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.exception.UploadConflictException;
+import ru.donstu.cloudstorage.exception.UploadException;
+import ru.donstu.cloudstorage.service.security.SecurityService;
+import ru.donstu.cloudstorage.service.transfer.AsyncTransfer;
+import ru.donstu.cloudstorage.service.transfer.BodyHandler;
+import ru.donstu.cloudstorage.service.transfer.ContentOutputStream;
+import ru.donstu.cloudstorage.service.upload.UploadService;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+
+import static ru.donstu.cloudstorage.config.constant.Constants.CHARACTER_ENCODING;
+import static ru.donstu.cloudstorage.config.constant.Constants.MAX_UPLOAD_SIZE;
+import static ru.donstu.cloudstorage.web.upload.UploadController.ROUTE_UPLOAD;
+
+/**
+ * Контроллер возобновляемой загрузки файлов по частям:
+ * POST - создание сессии, PUT /{id}/{index} - часть файла телом запроса,
+ * GET /{id} - принятые части, POST /{id}/commit - завершение, DELETE /{id} - отмена
+ *
+ * @author v.solomasov
+ */
+@Controller
+@RequestMapping(ROUTE_UPLOAD)
+public class UploadController {
+
+    public static final String ROUTE_UPLOAD = "/cloud/upload";
+
+    private static final Logger logger = Logger.getLogger(UploadController.class);
+
+    private static final String ROUTE_DOWNLOAD = "/cloud/download/";
+
+    private static final MediaType TEXT_PLAIN = MediaType.parseMediaType(MediaType.TEXT_PLAIN_VALUE + ";charset=" + CHARACTER_ENCODING);
+
+    @Autowired
+    private SecurityService securityService;
+
+    @Autowired
+    private UploadService uploadService;
+
+    @Autowired
+    private AsyncTransfer asyncTransfer;
+
+    @RequestMapping(method = RequestMethod.POST)
+    public ResponseEntity<UploadStatus> createSession(@RequestParam("fileName") String fileName,
+                                                      @RequestParam("fileLength") long fileLength) {
+        UploadStatus status = uploadService.createSession(securityService.getLoggedAccount(), fileName, fileLength);
+        return ResponseEntity.created(URI.create(ROUTE_UPLOAD + "/" + status.getId())).body(status);
+    }
+
+    @RequestMapping(value = "/{id}", method = RequestMethod.GET)
+    public ResponseEntity<UploadStatus> getStatus(@PathVariable("id") String id) {
+        UploadStatus status = uploadService.getStatus(id, securityService.getLoggedAccount());
+        if (status == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.ok(status);
+    }
+
+    /**
+     * Часть файла принимается без блокировки потока контейнера и шифруется в пуле передачи по мере
+     * поступления. Ошибка содержимого части не прерывает прием: остаток тела пропускается,
+     * а ошибка возвращается после приема
+     *
+     * @param id
+     * @param index
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    @RequestMapping(value = "/{id}/{index}", method = RequestMethod.PUT)
+    public void uploadChunk(@PathVariable("id") String id,
+                            @PathVariable("index") int index,
+                            HttpServletRequest request,
+                            HttpServletResponse response) throws IOException {
+        ContentOutputStream chunk = uploadService.openChunk(id, securityService.getLoggedAccount(), index);
+        if (chunk == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        asyncTransfer.receiveBody(request, response, MAX_UPLOAD_SIZE, new BodyHandler() {
+
+            private UploadException error;
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                if (error != null) {
+                    return;
+                }
+                try {
+                    chunk.write(buffer, offset, length);
+                } catch (UploadException e) {
+                    error = e;
+                    chunk.close();
+                }
+            }
+
+            @Override
+            public void complete() throws IOException {
+                try {
+                    if (error == null) {
+                        chunk.commit();
+                    }
+                } catch (UploadException e) {
+                    error = e;
+                } finally {
+                    chunk.close();
+                }
+                if (error == null) {
+                    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                    return;
+                }
+                response.setStatus(error instanceof UploadConflictException ? HttpServletResponse.SC_CONFLICT : HttpServletResponse.SC_BAD_REQUEST);
+                response.setContentType(TEXT_PLAIN.toString());
+                response.getWriter().write(error.getMessage());
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    chunk.close();
+                } catch (IOException e) {
+                    logger.info(String.format("Ошибка отмены приема части %d сессии %s", index, id));
+                }
+            }
+        });
+    }
+
+    @RequestMapping(value = "/{id}/commit", method = RequestMethod.POST)
+    public ResponseEntity<Void> commitSession(@PathVariable("id") String id) throws IOException {
+        UserFiles userFiles = uploadService.commitSession(id, securityService.getLoggedAccount());
+        if (userFiles == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.created(URI.create(ROUTE_DOWNLOAD + userFiles.getId())).build();
+    }
+
+    @RequestMapping(value = "/{id}", method = RequestMethod.DELETE)
+    public ResponseEntity<Void> abortSession(@PathVariable("id") String id) {
+        if (!uploadService.abortSession(id, securityService.getLoggedAccount())) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    @ExceptionHandler(UploadException.class)
+    public ResponseEntity<String> handleUploadError(UploadException ex) {
+        HttpStatus status = ex instanceof UploadConflictException ? HttpStatus.CONFLICT : HttpStatus.BAD_REQUEST;
+        return ResponseEntity.status(status).contentType(TEXT_PLAIN).body(ex.getMessage());
+    }
+}
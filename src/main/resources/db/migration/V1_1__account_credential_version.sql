@@ -0,0 +1,7 @@
+-- Версия учетных данных аккаунта: ключ кэша производных ключей шифрования.
+-- IF NOT EXISTS здесь и в следующих миграциях до V2: базу, обновленную через hbm2ddl
+-- после версии 1, миграции догоняют без ошибок
+
+ALTER TABLE account ADD COLUMN IF NOT EXISTS credential_version INT8;
+
+UPDATE account SET credential_version = 0 WHERE credential_version IS NULL;
@@ -0,0 +1,2 @@
+-- Ключ данных файла, зашифрованный ключом аккаунта. NULL - файл зашифрован ключом аккаунта
+ALTER TABLE user_files ADD COLUMN IF NOT EXISTS data_key BYTEA;
@@ -0,0 +1,2 @@
+-- Формат контейнера содержимого, NULL - исходный формат (AES/ECB одним блоком)
+ALTER TABLE user_files ADD COLUMN IF NOT EXISTS storage_format VARCHAR(255);
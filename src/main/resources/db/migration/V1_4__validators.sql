@@ -0,0 +1,5 @@
+-- Валидаторы условных запросов: версия списка файлов аккаунта и дайджест содержимого файла
+ALTER TABLE account ADD COLUMN IF NOT EXISTS files_version INT8;
+ALTER TABLE user_files ADD COLUMN IF NOT EXISTS content_digest VARCHAR(255);
+
+UPDATE account SET files_version = 0 WHERE files_version IS NULL;
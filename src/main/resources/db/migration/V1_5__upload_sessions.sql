@@ -0,0 +1,26 @@
+-- Сессии загрузки по частям и принятые части
+CREATE SEQUENCE IF NOT EXISTS upload_chunk_seq START 1 INCREMENT 1;
+
+CREATE TABLE IF NOT EXISTS upload_session (
+    id          VARCHAR(36)  NOT NULL,
+    account     INT8,
+    chunk_size  INT4         NOT NULL,
+    data_key    BYTEA        NOT NULL,
+    date_create TIMESTAMP    NOT NULL,
+    file_length INT8         NOT NULL,
+    file_name   VARCHAR(255) NOT NULL,
+    file_path   VARCHAR(255) NOT NULL,
+    nonce       BYTEA        NOT NULL,
+    CONSTRAINT upload_session_pkey PRIMARY KEY (id),
+    CONSTRAINT upload_session_account_fkey FOREIGN KEY (account) REFERENCES account (id)
+);
+
+CREATE TABLE IF NOT EXISTS upload_chunk (
+    id              INT8        NOT NULL,
+    upload_session  VARCHAR(36) NOT NULL,
+    chunk_index     INT4        NOT NULL,
+    segment_digests BYTEA       NOT NULL,
+    CONSTRAINT upload_chunk_pkey PRIMARY KEY (id),
+    CONSTRAINT upload_chunk_session_index_key UNIQUE (upload_session, chunk_index),
+    CONSTRAINT upload_chunk_session_fkey FOREIGN KEY (upload_session) REFERENCES upload_session (id)
+);
@@ -0,0 +1,21 @@
+-- Хранилище сегментов с дедупликацией: сегменты по адресу содержимого и ссылки файлов на них
+CREATE SEQUENCE IF NOT EXISTS file_chunk_seq START 1 INCREMENT 1;
+
+CREATE TABLE IF NOT EXISTS blob_chunk (
+    address      VARCHAR(64) NOT NULL,
+    plain_length INT4        NOT NULL,
+    ref_count    INT8        NOT NULL,
+    version      INT8,
+    CONSTRAINT blob_chunk_pkey PRIMARY KEY (address)
+);
+
+CREATE TABLE IF NOT EXISTS file_chunk (
+    id          INT8        NOT NULL,
+    user_file   INT8        NOT NULL,
+    chunk_index INT8        NOT NULL,
+    address     VARCHAR(64) NOT NULL,
+    chunk_key   BYTEA       NOT NULL,
+    CONSTRAINT file_chunk_pkey PRIMARY KEY (id),
+    CONSTRAINT file_chunk_file_index_key UNIQUE (user_file, chunk_index),
+    CONSTRAINT file_chunk_user_file_fkey FOREIGN KEY (user_file) REFERENCES user_files (id)
+);
@@ -0,0 +1,37 @@
+-- Исходная схема в том виде, в каком ее создавал hibernate.hbm2ddl.auto=update до перехода
+-- на миграции. На такой базе не выполняется: она принимается за версию 1 (baselineOnMigrate),
+-- столбцы и таблицы, добавленные позже, создаются следующими миграциями
+
+CREATE SEQUENCE account_seq START 1 INCREMENT 1;
+CREATE SEQUENCE files_seq START 1 INCREMENT 1;
+CREATE SEQUENCE news_seq START 1 INCREMENT 1;
+
+CREATE TABLE account (
+    id                  INT8         NOT NULL,
+    date_create_account TIMESTAMP    NOT NULL,
+    email               VARCHAR(255) NOT NULL,
+    name                VARCHAR(255),
+    password            VARCHAR(255) NOT NULL,
+    role                VARCHAR(255),
+    CONSTRAINT account_pkey PRIMARY KEY (id)
+);
+
+CREATE TABLE user_files (
+    id               INT8           NOT NULL,
+    account          INT8,
+    date_upload      TIMESTAMP      NOT NULL,
+    file_length      INT8           NOT NULL,
+    file_length_show NUMERIC(19, 2) NOT NULL,
+    file_name        VARCHAR(255)   NOT NULL,
+    file_path        VARCHAR(255)   NOT NULL,
+    CONSTRAINT user_files_pkey PRIMARY KEY (id),
+    CONSTRAINT user_files_account_fkey FOREIGN KEY (account) REFERENCES account (id)
+);
+
+CREATE TABLE news (
+    id          INT8         NOT NULL,
+    description VARCHAR(255) NOT NULL,
+    text        TEXT         NOT NULL,
+    title       VARCHAR(255) NOT NULL,
+    CONSTRAINT news_pkey PRIMARY KEY (id)
+);
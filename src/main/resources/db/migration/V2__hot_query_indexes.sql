@@ -0,0 +1,33 @@
+-- Индексы под частые запросы и шаг последовательностей для pooled-lo.
+-- IF NOT EXISTS: на базе после hbm2ddl часть индексов уже может быть создана
+
+-- Constants.ID_ALLOCATION_SIZE
+ALTER SEQUENCE account_seq INCREMENT BY 50;
+ALTER SEQUENCE files_seq INCREMENT BY 50;
+ALTER SEQUENCE news_seq INCREMENT BY 50;
+ALTER SEQUENCE upload_chunk_seq INCREMENT BY 50;
+ALTER SEQUENCE file_chunk_seq INCREMENT BY 50;
+
+-- findByNaturalName / checkAccountName, findByEmail / checkAccountEmail
+CREATE UNIQUE INDEX IF NOT EXISTS account_name_key ON account (name);
+CREATE UNIQUE INDEX IF NOT EXISTS account_email_key ON account (email);
+
+-- Страницы списка файлов (keyset по дате и по имени); префикс индекса по имени
+-- обслуживает findByAccountAndFileName, префикс (account) - findByAccount и удаление аккаунта
+CREATE INDEX IF NOT EXISTS user_files_account_date_idx ON user_files (account, date_upload, id);
+CREATE INDEX IF NOT EXISTS user_files_account_name_idx ON user_files (account, file_name, id);
+-- Фильтр по началу имени (LIKE 'prefix%') независимо от правил сортировки базы
+CREATE INDEX IF NOT EXISTS user_files_account_name_pattern_idx ON user_files (account, file_name varchar_pattern_ops);
+
+-- findIdsByStorageFormat (миграция формата), sumFileLengthByStorageFormat (статистика)
+CREATE INDEX IF NOT EXISTS user_files_storage_format_idx ON user_files (storage_format);
+
+-- Сессии загрузки: поиск просроченных и удаление сессий аккаунта
+CREATE INDEX IF NOT EXISTS upload_session_date_create_idx ON upload_session (date_create);
+CREATE INDEX IF NOT EXISTS upload_session_account_idx ON upload_session (account);
+
+-- Сборщик мусора хранилища с дедупликацией ищет только сегменты без ссылок
+CREATE INDEX IF NOT EXISTS blob_chunk_unreferenced_idx ON blob_chunk (address) WHERE ref_count <= 0;
+
+-- Ссылки файлов аккаунта на сегменты при групповом освобождении
+CREATE INDEX IF NOT EXISTS file_chunk_address_idx ON file_chunk (address);
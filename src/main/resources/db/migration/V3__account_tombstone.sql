@@ -0,0 +1,5 @@
+-- Отметка удаления аккаунта: строки и содержимое удаляются в фоне
+ALTER TABLE account ADD COLUMN date_delete TIMESTAMP;
+
+-- Выборка помеченных аккаунтов фоновым удалением
+CREATE INDEX account_date_delete_idx ON account (date_delete) WHERE date_delete IS NOT NULL;
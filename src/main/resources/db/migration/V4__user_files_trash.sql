@@ -0,0 +1,5 @@
+-- Корзина: отметка перемещения файла, содержимое удаляется в фоне по истечении срока хранения
+ALTER TABLE user_files ADD COLUMN date_trash TIMESTAMP;
+
+-- Очистка корзины выбирает файлы с истекшим сроком хранения
+CREATE INDEX user_files_date_trash_idx ON user_files (date_trash) WHERE date_trash IS NOT NULL;
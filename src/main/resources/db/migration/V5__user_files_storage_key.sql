@@ -0,0 +1,9 @@
+-- Ключ содержимого в хранилище отделен от имени файла: переименование, перемещение
+-- и копирование меняют только строки. Существующие файлы лежат под своими именами
+ALTER TABLE user_files ADD COLUMN storage_key VARCHAR(255);
+
+UPDATE user_files SET storage_key = account || '/' || file_name
+WHERE storage_format IS NULL OR storage_format <> 'DEDUP';
+
+-- Содержимое удаляется, только когда на ключ не ссылается ни одна строка
+CREATE INDEX user_files_storage_key_idx ON user_files (storage_key) WHERE storage_key IS NOT NULL;
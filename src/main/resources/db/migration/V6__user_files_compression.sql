@@ -0,0 +1,2 @@
+-- Кодек сжатия содержимого перед шифрованием, NULL - содержимое не сжато
+ALTER TABLE user_files ADD COLUMN compression VARCHAR(16);
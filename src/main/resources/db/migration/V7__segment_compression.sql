@@ -0,0 +1,4 @@
+-- Содержимое сжимается посегментно: признак сжатия сегмента общего хранилища
+-- и кодек сессии загрузки по частям, NULL - сегменты сессии не сжимаются
+ALTER TABLE file_chunk ADD COLUMN compressed BOOLEAN NOT NULL DEFAULT FALSE;
+ALTER TABLE upload_session ADD COLUMN compression VARCHAR(16);
@@ -0,0 +1,10 @@
+-- Имя файла уникально в аккаунте, включая файлы в корзине: проверка имени в приложении
+-- не защищает от параллельных запросов. Строки, созданные такими запросами ранее,
+-- кроме первой, получают суффикс с идентификатором
+UPDATE user_files f SET file_name = left(f.file_name, 255 - length(' (' || f.id || ')')) || ' (' || f.id || ')'
+FROM (SELECT id, row_number() OVER (PARTITION BY account, file_name ORDER BY id) AS number FROM user_files) d
+WHERE f.id = d.id AND d.number > 1;
+
+-- Уникальный индекс с varchar_pattern_ops заменяет индекс фильтра по началу имени из V2
+CREATE UNIQUE INDEX user_files_account_name_key ON user_files (account, file_name varchar_pattern_ops);
+DROP INDEX IF EXISTS user_files_account_name_pattern_idx;
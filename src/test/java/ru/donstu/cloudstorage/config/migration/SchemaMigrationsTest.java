@@ -0,0 +1,163 @@
+package ru.donstu.cloudstorage.config.migration;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.flywaydb.core.Flyway;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Миграции схемы на встроенном PostgreSQL: обновление базы, созданной hbm2ddl до перехода
+ * на миграции, и планы частых запросов - каждый запрос должен использовать свой индекс из V2-V8
+ *
+ * @author v.solomasov
+ */
+public class SchemaMigrationsTest {
+
+    private static final String BASELINE_SCRIPT = "/db/migration/V1__initial_schema.sql";
+
+    private static EmbeddedPostgres postgres;
+
+    private DataSource dataSource;
+
+    @BeforeClass
+    public static void startDatabase() throws IOException {
+        postgres = EmbeddedPostgres.start();
+    }
+
+    @AfterClass
+    public static void stopDatabase() throws IOException {
+        postgres.close();
+    }
+
+    @Before
+    public void createDatabase() throws SQLException {
+        execute(postgres.getPostgresDatabase(), "DROP DATABASE IF EXISTS migrations", "CREATE DATABASE migrations");
+        dataSource = postgres.getDatabase("postgres", "migrations");
+    }
+
+    @After
+    public void dropDatabase() throws SQLException {
+        execute(postgres.getPostgresDatabase(), "DROP DATABASE migrations");
+    }
+
+    @Test
+    public void upgradesDatabaseCreatedByHbm2ddl() throws Exception {
+        execute(dataSource, readBaseline());
+        execute(dataSource,
+                "INSERT INTO account (id, date_create_account, email, name, password, role) "
+                        + "VALUES (1, now(), 'user@example.com', 'user', 'hash', 'ROLE_USER')",
+                "INSERT INTO user_files (id, account, date_upload, file_length, file_length_show, file_name, file_path) "
+                        + "VALUES (1, 1, now(), 3, 0.01, 'a\\b.txt', '/files/1'), (2, 1, now(), 3, 0.01, 'a\\b.txt', '/files/1')");
+
+        Flyway flyway = SchemaMigrations.create(dataSource);
+        flyway.migrate();
+        flyway.validate();
+
+        assertEquals("1", flyway.info().applied()[0].getVersion().getVersion());
+        assertEquals("0", queryString("SELECT credential_version FROM account WHERE id = 1"));
+        assertEquals("0", queryString("SELECT files_version FROM account WHERE id = 1"));
+        assertEquals(0L, Long.parseLong(queryString("SELECT count(*) FROM upload_session")));
+        assertEquals(0L, Long.parseLong(queryString("SELECT count(*) FROM file_chunk")));
+        assertEquals("50", queryString("SELECT increment_by FROM pg_sequences WHERE sequencename = 'file_chunk_seq'"));
+        assertEquals("1/a\\b.txt", queryString("SELECT storage_key FROM user_files WHERE id = 1"));
+        assertEquals("a\\b.txt", queryString("SELECT file_name FROM user_files WHERE id = 1"));
+        assertEquals("a\\b.txt (2)", queryString("SELECT file_name FROM user_files WHERE id = 2"));
+        try {
+            execute(dataSource, "UPDATE user_files SET file_name = 'a\\b.txt' WHERE id = 2");
+            fail("Повторное имя файла аккаунта принято");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("user_files_account_name_key"));
+        }
+    }
+
+    @Test
+    public void hotQueriesUseIndexes() throws Exception {
+        SchemaMigrations.create(dataSource).migrate();
+        execute(dataSource,
+                "INSERT INTO account (id, date_create_account, email, name, password, role) "
+                        + "SELECT a, now(), 'user' || a || '@example.com', 'user' || a, 'hash', 'ROLE_USER' "
+                        + "FROM generate_series(1, 100) a",
+                "INSERT INTO user_files (id, account, date_upload, file_length, file_length_show, file_name, file_path, storage_key) "
+                        + "SELECT f, f % 100 + 1, now() - f * interval '1 minute', f, 0.01, "
+                        + "(CASE WHEN f % 3 = 0 THEN 'docs/' ELSE 'img/' END) || f || '.txt', '/files/' || f, (f % 100 + 1) || '/' || f "
+                        + "FROM generate_series(1, 20000) f",
+                "ANALYZE");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("SET enable_seqscan = off");
+            assertPlan(statement, "account_name_key", "SELECT * FROM account WHERE name = 'user'");
+            assertPlan(statement, "account_email_key", "SELECT * FROM account WHERE email = 'user@example.com'");
+            assertPlan(statement, "account_date_delete_idx",
+                    "SELECT * FROM account WHERE date_delete IS NOT NULL ORDER BY date_delete LIMIT 10");
+            assertPlan(statement, "user_files_account_date_idx",
+                    "SELECT * FROM user_files WHERE account = 1 AND date_trash IS NULL "
+                            + "AND (date_upload, id) > ('2016-01-01', 10) ORDER BY date_upload, id LIMIT 20");
+            assertPlan(statement, "user_files_account_name_idx",
+                    "SELECT * FROM user_files WHERE account = 1 AND date_trash IS NULL "
+                            + "AND (file_name, id) > ('a', 10) ORDER BY file_name, id LIMIT 20");
+            assertPlan(statement, "user_files_account_name_key",
+                    "SELECT * FROM user_files WHERE account = 1 AND file_name LIKE 'docs/1%'");
+            assertPlan(statement, "user_files_storage_format_idx",
+                    "SELECT id FROM user_files WHERE storage_format = 'SEGMENTED'");
+            assertPlan(statement, "user_files_date_trash_idx",
+                    "SELECT * FROM user_files WHERE date_trash < now() ORDER BY date_trash LIMIT 100");
+            assertPlan(statement, "user_files_storage_key_idx",
+                    "SELECT DISTINCT storage_key FROM user_files WHERE storage_key IN ('1/a', '1/b')");
+            assertPlan(statement, "upload_session_date_create_idx",
+                    "SELECT * FROM upload_session WHERE date_create < now()");
+            assertPlan(statement, "upload_session_account_idx", "DELETE FROM upload_session WHERE account = 1");
+            assertPlan(statement, "blob_chunk_unreferenced_idx", "SELECT address FROM blob_chunk WHERE ref_count <= 0");
+            assertPlan(statement, "file_chunk_address_idx", "SELECT * FROM file_chunk WHERE address = 'abc'");
+        }
+    }
+
+    private void assertPlan(Statement statement, String index, String sql) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (ResultSet resultSet = statement.executeQuery("EXPLAIN " + sql)) {
+            while (resultSet.next()) {
+                plan.append(resultSet.getString(1)).append('\n');
+            }
+        }
+        assertTrue(String.format("План запроса %s не использует %s:%n%s", sql, index, plan), plan.indexOf(index) >= 0);
+    }
+
+    private String queryString(String sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+    }
+
+    private static void execute(DataSource dataSource, String... sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            for (String command : sql) {
+                statement.execute(command);
+            }
+        }
+    }
+
+    private static String readBaseline() throws IOException {
+        try (InputStream inputStream = SchemaMigrationsTest.class.getResourceAsStream(BASELINE_SCRIPT);
+             Scanner scanner = new Scanner(inputStream, StandardCharsets.UTF_8.name())) {
+            return scanner.useDelimiter("\\A").next();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package ru.donstu.cloudstorage.config.util;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import ru.donstu.cloudstorage.config.migration.SchemaMigrations;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.domain.userfiles.enums.StorageFormat;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+import static ru.donstu.cloudstorage.config.constant.Constants.PACKAGE_ENTITY;
+
+/**
+ * Число обращений к базе при импорте 1000 файлов в один аккаунт одной транзакцией, как в
+ * {@link ru.donstu.cloudstorage.service.userfiles.UserFilesService#saveStoredFiles}: идентификаторы
+ * выделяются диапазонами pooled-lo, вставки уходят пачками. Считаются выполнения запросов JDBC,
+ * пачка считается одним обращением. Для сравнения тот же импорт выполняется без пачек
+ *
+ * @author v.solomasov
+ */
+public class BulkImportStatementsTest {
+
+    private static final Logger logger = Logger.getLogger(BulkImportStatementsTest.class);
+
+    private static final int FILES = 1000;
+
+    private static final String BATCH_SIZE = "50";
+
+    private static final Set<String> EXECUTE_METHODS = new HashSet<>(Arrays.asList(
+            "execute", "executeQuery", "executeUpdate", "executeLargeUpdate", "executeBatch", "executeLargeBatch"));
+
+    private static EmbeddedPostgres postgres;
+
+    private final AtomicInteger statements = new AtomicInteger();
+
+    private DataSource dataSource;
+
+    @BeforeClass
+    public static void startDatabase() throws Exception {
+        postgres = EmbeddedPostgres.start();
+    }
+
+    @AfterClass
+    public static void stopDatabase() throws Exception {
+        postgres.close();
+    }
+
+    @Before
+    public void createDatabase() throws SQLException {
+        execute(postgres.getPostgresDatabase(), "DROP DATABASE IF EXISTS bulk_import", "CREATE DATABASE bulk_import");
+        DataSource database = postgres.getDatabase("postgres", "bulk_import");
+        SchemaMigrations.create(database).migrate();
+        execute(database, "INSERT INTO account (id, date_create_account, email, name, password, role, files_version) "
+                + "VALUES (1, now(), 'user@example.com', 'user', 'hash', 'ROLE_USER', 0)");
+        dataSource = countingDataSource(database);
+    }
+
+    @After
+    public void dropDatabase() throws SQLException {
+        execute(postgres.getPostgresDatabase(), "DROP DATABASE bulk_import");
+    }
+
+    @Test
+    public void batchedImportCutsStatementsByOrderOfMagnitude() {
+        int batched = importFiles(BATCH_SIZE);
+        execute(dataSource, "DELETE FROM user_files");
+        int unbatched = importFiles("0");
+        logger.info(String.format("Импорт %d файлов: %d обращений к базе с пачками по %s, %d без пачек", FILES, batched, BATCH_SIZE, unbatched));
+
+        assertTrue(String.format("Импорт без пачек: %d обращений", unbatched), unbatched > FILES);
+        assertTrue(String.format("Импорт с пачками: %d обращений", batched), batched * 10 <= unbatched);
+        assertEquals(String.valueOf(FILES), queryString("SELECT count(*) FROM user_files"));
+        assertEquals("2", queryString("SELECT files_version FROM account WHERE id = 1"));
+    }
+
+    /**
+     * Импорт файлов в новой фабрике EntityManager с заданным размером пачки
+     *
+     * @param batchSize
+     * @return число обращений к базе за транзакцию импорта
+     */
+    private int importFiles(String batchSize) {
+        EntityManagerFactory entityManagerFactory = createEntityManagerFactory(batchSize);
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            statements.set(0);
+            entityManager.getTransaction().begin();
+            Account account = entityManager.getReference(Account.class, 1L);
+            for (int i = 0; i < FILES; i++) {
+                entityManager.persist(createFile(account, i));
+            }
+            Account locked = entityManager.find(Account.class, 1L, LockModeType.PESSIMISTIC_WRITE);
+            locked.setFilesVersion(locked.getFilesVersion() + 1);
+            entityManager.getTransaction().commit();
+            return statements.get();
+        } finally {
+            entityManager.close();
+            entityManagerFactory.close();
+        }
+    }
+
+    private EntityManagerFactory createEntityManagerFactory(String batchSize) {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("hibernate.dialect", "org.hibernate.dialect.PostgreSQL9Dialect")
+                .withProperty("hibernate.format_sql", "false")
+                .withProperty("hibernate.show_sql", "false")
+                .withProperty("hibernate.hbm2ddl.auto", "validate")
+                .withProperty("hibernate.jdbc.batch_size", batchSize)
+                .withProperty("hibernate.cache.enabled", "false");
+        HibernateUtil hibernateUtil = new HibernateUtil();
+        setField(hibernateUtil, "environment", environment);
+        LocalContainerEntityManagerFactoryBean entityManagerFactory = new LocalContainerEntityManagerFactoryBean();
+        entityManagerFactory.setDataSource(dataSource);
+        entityManagerFactory.setPackagesToScan(PACKAGE_ENTITY);
+        entityManagerFactory.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        entityManagerFactory.setJpaProperties(hibernateUtil.getJpaProperties());
+        entityManagerFactory.afterPropertiesSet();
+        return entityManagerFactory.getObject();
+    }
+
+    private static UserFiles createFile(Account account, int index) {
+        UserFiles userFiles = new UserFiles();
+        userFiles.setAccount(account);
+        userFiles.setFileName(String.format("import/%04d.txt", index));
+        userFiles.setFileLength(1000L);
+        userFiles.setFileLengthShow(new BigDecimal("0.01"));
+        userFiles.setFilePath("1");
+        userFiles.setStorageKey("1/" + index);
+        userFiles.setDateUpload(Calendar.getInstance());
+        userFiles.setDataKey(new byte[16]);
+        userFiles.setStorageFormat(StorageFormat.SEGMENTED);
+        return userFiles;
+    }
+
+    /**
+     * Источник соединений, который считает выполнения запросов
+     *
+     * @param target
+     * @return
+     */
+    private DataSource countingDataSource(DataSource target) {
+        return proxy(DataSource.class, target, (method, result) ->
+                result instanceof Connection ? proxy(Connection.class, (Connection) result, (connectionMethod, statement) ->
+                        statement instanceof Statement ? proxy(statementType(statement), statement, (statementMethod, value) -> {
+                            if (EXECUTE_METHODS.contains(statementMethod)) {
+                                statements.incrementAndGet();
+                            }
+                            return value;
+                        }) : statement) : result);
+    }
+
+    private static Class<?> statementType(Object statement) {
+        for (Class<?> type : Arrays.asList(CallableStatement.class, PreparedStatement.class)) {
+            if (type.isInstance(statement)) {
+                return type;
+            }
+        }
+        return Statement.class;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<?> type, Object target, ResultHandler handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> {
+            try {
+                return handler.handle(method.getName(), method.invoke(target, args));
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        };
+        return (T) Proxy.newProxyInstance(BulkImportStatementsTest.class.getClassLoader(), new Class<?>[]{type}, invocationHandler);
+    }
+
+    /**
+     * Обработка результата вызова метода JDBC
+     */
+    private interface ResultHandler {
+
+        Object handle(String method, Object result);
+    }
+
+    private String queryString(String sql) {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getString(1);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void execute(DataSource dataSource, String... sql) {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            for (String query : sql) {
+                statement.execute(query);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
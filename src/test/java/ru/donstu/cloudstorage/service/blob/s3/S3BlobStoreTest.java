@@ -0,0 +1,557 @@
+package ru.donstu.cloudstorage.service.blob.s3;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.donstu.cloudstorage.service.blob.BlobOutputStream;
+import ru.donstu.cloudstorage.service.blob.BlobStat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+
+/**
+ * Хранилище S3 против локальной замены сервиса на com.sun.net.httpserver: запись одним запросом
+ * и составной загрузкой, чтение диапазонами, список и удаление, отмена загрузки и возврат
+ * буферов частей в общий пул
+ *
+ * @author v.solomasov
+ */
+public class S3BlobStoreTest {
+
+    private static final String BUCKET = "cloudstorage";
+
+    private static final int PART_SIZE = 64 * 1024;
+
+    private static final int CONCURRENCY = 2;
+
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private static final int PART_BUFFERS = 2;
+
+    private S3StandIn standIn;
+
+    private S3BlobStore blobStore;
+
+    @Before
+    public void setUp() throws IOException {
+        standIn = new S3StandIn();
+        blobStore = new S3BlobStore(standIn.getEndpoint(), "us-east-1", BUCKET, "access", "secret",
+                PART_SIZE, CONCURRENCY, BUFFER_SIZE, PART_BUFFERS);
+    }
+
+    @After
+    public void tearDown() {
+        blobStore.close();
+        standIn.stop();
+    }
+
+    @Test
+    public void smallObjectIsWrittenWithOneRequest() throws IOException {
+        byte[] content = randomBytes(1000);
+        write("1/small", content);
+
+        assertEquals(0, standIn.initiatedUploads.get());
+        assertArrayEquals(content, read("1/small", 0, Long.MAX_VALUE));
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), read("1/small", 100, 200));
+        assertEquals(0, read("1/small", 2000, 3000).length);
+        BlobStat stat = blobStore.stat("1/small");
+        assertEquals(content.length, stat.getLength());
+        assertTrue(stat.getLastModified() > 0);
+    }
+
+    @Test
+    public void largeObjectIsWrittenInParts() throws IOException {
+        byte[] content = randomBytes(PART_SIZE * 5 + 1234);
+        write("1/large", content);
+
+        assertEquals(1, standIn.initiatedUploads.get());
+        assertEquals(6, standIn.uploadedParts.get());
+        assertArrayEquals(content, read("1/large", 0, Long.MAX_VALUE));
+        long from = PART_SIZE - 10;
+        assertArrayEquals(Arrays.copyOfRange(content, (int) from, (int) from + PART_SIZE), read("1/large", from, from + PART_SIZE));
+        assertEquals(content.length, blobStore.stat("1/large").getLength());
+        assertTrue(standIn.uploads.isEmpty());
+    }
+
+    @Test
+    public void partBuffersReturnToPool() throws Exception {
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            List<byte[]> contents = new ArrayList<>();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                byte[] content = randomBytes(PART_SIZE * 4 + i);
+                contents.add(content);
+                String key = "2/" + i;
+                futures.add(writers.submit(() -> {
+                    write(key, content);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            for (int i = 0; i < contents.size(); i++) {
+                assertArrayEquals(contents.get(i), read("2/" + i, 0, Long.MAX_VALUE));
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+        Semaphore partBuffers = (Semaphore) getField(blobStore, "partBuffers");
+        Collection<?> freeBuffers = (Collection<?>) getField(blobStore, "freeBuffers");
+        assertEquals(PART_BUFFERS, partBuffers.availablePermits());
+        assertTrue(freeBuffers.size() <= PART_BUFFERS);
+    }
+
+    @Test
+    public void failedPartAbortsUpload() throws IOException {
+        standIn.failPart = 3;
+        BlobOutputStream outputStream = blobStore.put("1/failed");
+        try {
+            outputStream.write(randomBytes(PART_SIZE * 4));
+            outputStream.commit();
+            fail("Запись с отклоненной частью завершилась");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("1/failed"));
+        } finally {
+            outputStream.close();
+        }
+
+        assertEquals(1, standIn.abortedUploads.get());
+        assertTrue(standIn.uploads.isEmpty());
+        assertNull(blobStore.stat("1/failed"));
+        assertEquals(PART_BUFFERS, ((Semaphore) getField(blobStore, "partBuffers")).availablePermits());
+    }
+
+    @Test
+    public void closeWithoutCommitAbortsUpload() throws IOException {
+        try (BlobOutputStream outputStream = blobStore.put("1/cancelled")) {
+            outputStream.write(randomBytes(PART_SIZE * 2 + 10));
+        }
+
+        assertEquals(1, standIn.abortedUploads.get());
+        assertTrue(standIn.uploads.isEmpty());
+        assertNull(blobStore.stat("1/cancelled"));
+        try {
+            blobStore.get("1/cancelled", 0, 10);
+            fail("Прочитан отмененный объект");
+        } catch (NoSuchFileException e) {
+            assertEquals("1/cancelled", e.getMessage());
+        }
+    }
+
+    @Test
+    public void listAndDeleteByPrefix() throws IOException {
+        write("3/a", randomBytes(10));
+        write("3/b c", randomBytes(20));
+        write("3/d", randomBytes(30));
+        write("4/a", randomBytes(40));
+
+        List<String> keys = blobStore.list("3/").stream().map(BlobStat::getKey).collect(Collectors.toList());
+        assertEquals(Arrays.asList("3/a", "3/b c", "3/d"), keys);
+        blobStore.delete(Arrays.asList("3/a", "3/missing"));
+        assertNull(blobStore.stat("3/a"));
+        assertEquals(50, blobStore.deleteAll("3/"));
+        assertTrue(blobStore.list("3/").isEmpty());
+        assertEquals(1, blobStore.list("4/").size());
+        blobStore.delete("4/a");
+        assertTrue(standIn.objects.isEmpty());
+    }
+
+    private void write(String key, byte[] content) throws IOException {
+        try (BlobOutputStream outputStream = blobStore.put(key)) {
+            for (int offset = 0; offset < content.length; offset += BUFFER_SIZE) {
+                outputStream.write(content, offset, Math.min(BUFFER_SIZE, content.length - offset));
+            }
+            outputStream.commit();
+        }
+    }
+
+    private byte[] read(String key, long from, long to) throws IOException {
+        try (InputStream inputStream = blobStore.get(key, from, to)) {
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Замена S3 в памяти: одна корзина, адреса в стиле пути, подпись запросов не проверяется.
+     * Тело с посегментной подписью (aws-chunked) разбирается, ETag - MD5 содержимого, как у S3
+     */
+    private static class S3StandIn {
+
+        private static final String XMLNS = "http://s3.amazonaws.com/doc/2006-03-01/";
+
+        private static final Pattern CHUNK_HEADER = Pattern.compile("([0-9a-fA-F]+)(;.*)?");
+
+        private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+        private static final Pattern KEY = Pattern.compile("<Key>([^<]*)</Key>");
+
+        private final Map<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+
+        private final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+
+        private final AtomicInteger initiatedUploads = new AtomicInteger();
+
+        private final AtomicInteger uploadedParts = new AtomicInteger();
+
+        private final AtomicInteger abortedUploads = new AtomicInteger();
+
+        private final HttpServer server;
+
+        private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        private volatile int failPart;
+
+        private S3StandIn() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/", exchange -> {
+                try {
+                    handle(exchange);
+                } catch (RuntimeException e) {
+                    send(exchange, 500, error("InternalError", e.toString()));
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        private String getEndpoint() {
+            return "http://localhost:" + server.getAddress().getPort();
+        }
+
+        private void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String prefix = "/" + BUCKET;
+            if (!path.startsWith(prefix)) {
+                send(exchange, 404, error("NoSuchBucket", path));
+                return;
+            }
+            String key = path.length() > prefix.length() + 1 ? path.substring(prefix.length() + 1) : "";
+            String method = exchange.getRequestMethod();
+            if (key.isEmpty()) {
+                if (method.equals("GET")) {
+                    listObjects(exchange, query);
+                } else if (method.equals("POST") && query.containsKey("delete")) {
+                    deleteObjects(exchange);
+                } else {
+                    send(exchange, 400, error("InvalidRequest", method));
+                }
+                return;
+            }
+            switch (method) {
+                case "PUT":
+                    if (query.containsKey("uploadId")) {
+                        uploadPart(exchange, query);
+                    } else {
+                        putObject(exchange, key);
+                    }
+                    break;
+                case "POST":
+                    if (query.containsKey("uploads")) {
+                        String uploadId = UUID.randomUUID().toString();
+                        uploads.put(uploadId, new ConcurrentSkipListMap<>());
+                        initiatedUploads.incrementAndGet();
+                        send(exchange, 200, String.format("<InitiateMultipartUploadResult xmlns=\"%s\"><Bucket>%s</Bucket><Key>%s</Key>"
+                                + "<UploadId>%s</UploadId></InitiateMultipartUploadResult>", XMLNS, BUCKET, escape(key), uploadId));
+                    } else {
+                        completeUpload(exchange, key, query.get("uploadId"));
+                    }
+                    break;
+                case "DELETE":
+                    if (query.containsKey("uploadId")) {
+                        uploads.remove(query.get("uploadId"));
+                        abortedUploads.incrementAndGet();
+                    } else {
+                        objects.remove(key);
+                    }
+                    exchange.sendResponseHeaders(204, -1);
+                    break;
+                case "HEAD":
+                case "GET":
+                    getObject(exchange, key, method.equals("HEAD"));
+                    break;
+                default:
+                    send(exchange, 405, error("MethodNotAllowed", method));
+            }
+        }
+
+        private void putObject(HttpExchange exchange, String key) throws IOException {
+            byte[] content = readBody(exchange);
+            String etag = md5Hex(content);
+            objects.put(key, new StoredObject(content, etag));
+            exchange.getResponseHeaders().set("ETag", "\"" + etag + "\"");
+            exchange.sendResponseHeaders(200, -1);
+        }
+
+        private void uploadPart(HttpExchange exchange, Map<String, String> query) throws IOException {
+            byte[] content = readBody(exchange);
+            int partNumber = Integer.parseInt(query.get("partNumber"));
+            SortedMap<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+            if (parts == null) {
+                send(exchange, 404, error("NoSuchUpload", query.get("uploadId")));
+                return;
+            }
+            if (partNumber == failPart) {
+                send(exchange, 403, error("AccessDenied", "part " + partNumber));
+                return;
+            }
+            parts.put(partNumber, content);
+            uploadedParts.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", "\"" + md5Hex(content) + "\"");
+            exchange.sendResponseHeaders(200, -1);
+        }
+
+        private void completeUpload(HttpExchange exchange, String key, String uploadId) throws IOException {
+            String body = new String(readBody(exchange), StandardCharsets.UTF_8);
+            SortedMap<Integer, byte[]> parts = uploadId == null ? null : uploads.remove(uploadId);
+            if (parts == null) {
+                send(exchange, 404, error("NoSuchUpload", String.valueOf(uploadId)));
+                return;
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            Matcher matcher = PART_NUMBER.matcher(body);
+            int count = 0;
+            while (matcher.find()) {
+                content.write(parts.get(Integer.parseInt(matcher.group(1))));
+                count++;
+            }
+            String etag = md5Hex(content.toByteArray()) + "-" + count;
+            objects.put(key, new StoredObject(content.toByteArray(), etag));
+            send(exchange, 200, String.format("<CompleteMultipartUploadResult xmlns=\"%s\"><Bucket>%s</Bucket><Key>%s</Key>"
+                    + "<ETag>\"%s\"</ETag></CompleteMultipartUploadResult>", XMLNS, BUCKET, escape(key), etag));
+        }
+
+        private void getObject(HttpExchange exchange, String key, boolean head) throws IOException {
+            StoredObject object = objects.get(key);
+            if (object == null) {
+                if (head) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    send(exchange, 404, error("NoSuchKey", key));
+                }
+                return;
+            }
+            exchange.getResponseHeaders().set("ETag", "\"" + object.etag + "\"");
+            exchange.getResponseHeaders().set("Last-Modified", formatDate(object.lastModified));
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            if (head) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(object.content.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null) {
+                sendContent(exchange, 200, object.content);
+                return;
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            long from = Long.parseLong(bounds[0]);
+            long to = Math.min(Long.parseLong(bounds[1]), object.content.length - 1);
+            if (from >= object.content.length) {
+                send(exchange, 416, error("InvalidRange", range));
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", String.format("bytes %d-%d/%d", from, to, object.content.length));
+            sendContent(exchange, 206, Arrays.copyOfRange(object.content, (int) from, (int) to + 1));
+        }
+
+        private void listObjects(HttpExchange exchange, Map<String, String> query) throws IOException {
+            String prefix = query.getOrDefault("prefix", "");
+            boolean urlEncoding = "url".equals(query.get("encoding-type"));
+            StringBuilder contents = new StringBuilder();
+            for (Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+                if (entry.getKey().startsWith(prefix)) {
+                    String key = urlEncoding ? URLEncoder.encode(entry.getKey(), "UTF-8").replace("+", "%20") : entry.getKey();
+                    contents.append(String.format("<Contents><Key>%s</Key><LastModified>%s</LastModified><ETag>\"%s\"</ETag>"
+                                    + "<Size>%d</Size><StorageClass>STANDARD</StorageClass></Contents>",
+                            escape(key), formatIsoDate(entry.getValue().lastModified), entry.getValue().etag, entry.getValue().content.length));
+                }
+            }
+            send(exchange, 200, String.format("<ListBucketResult xmlns=\"%s\"><Name>%s</Name><Prefix>%s</Prefix><Marker></Marker>"
+                            + "<MaxKeys>1000</MaxKeys>%s<IsTruncated>false</IsTruncated>%s</ListBucketResult>",
+                    XMLNS, BUCKET, escape(prefix), urlEncoding ? "<EncodingType>url</EncodingType>" : "", contents));
+        }
+
+        private void deleteObjects(HttpExchange exchange) throws IOException {
+            Matcher matcher = KEY.matcher(new String(readBody(exchange), StandardCharsets.UTF_8));
+            while (matcher.find()) {
+                objects.remove(unescape(matcher.group(1)));
+            }
+            send(exchange, 200, String.format("<DeleteResult xmlns=\"%s\"></DeleteResult>", XMLNS));
+        }
+
+        /**
+         * Тело запроса, посегментная подпись aws-chunked снимается
+         *
+         * @param exchange
+         * @return
+         * @throws IOException
+         */
+        private static byte[] readBody(HttpExchange exchange) throws IOException {
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            String contentSha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+            if (contentSha256 == null || !contentSha256.startsWith("STREAMING-")) {
+                return body;
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            int position = 0;
+            while (true) {
+                int lineEnd = indexOfCrlf(body, position);
+                Matcher matcher = CHUNK_HEADER.matcher(new String(body, position, lineEnd - position, StandardCharsets.US_ASCII));
+                if (!matcher.matches()) {
+                    throw new IllegalStateException("Неверный заголовок сегмента aws-chunked");
+                }
+                int length = Integer.parseInt(matcher.group(1), 16);
+                if (length == 0) {
+                    return content.toByteArray();
+                }
+                content.write(body, lineEnd + 2, length);
+                position = lineEnd + 2 + length + 2;
+            }
+        }
+
+        private static int indexOfCrlf(byte[] data, int from) {
+            for (int i = from; i < data.length - 1; i++) {
+                if (data[i] == '\r' && data[i + 1] == '\n') {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("Тело aws-chunked обрезано");
+        }
+
+        private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+            Map<String, String> query = new HashMap<>();
+            if (rawQuery == null || rawQuery.isEmpty()) {
+                return query;
+            }
+            for (String parameter : rawQuery.split("&")) {
+                int separator = parameter.indexOf('=');
+                String name = URLDecoder.decode(separator < 0 ? parameter : parameter.substring(0, separator), "UTF-8");
+                query.put(name, separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            }
+            return query;
+        }
+
+        private static void send(HttpExchange exchange, int status, String xml) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/xml");
+            sendContent(exchange, status, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static void sendContent(HttpExchange exchange, int status, byte[] content) throws IOException {
+            exchange.sendResponseHeaders(status, content.length == 0 ? -1 : content.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(content);
+            }
+        }
+
+        private static String error(String code, String message) {
+            return String.format("<Error><Code>%s</Code><Message>%s</Message><RequestId>test</RequestId></Error>", code, escape(message));
+        }
+
+        private static String escape(String value) {
+            return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+        }
+
+        private static String unescape(String value) {
+            return value.replace("&quot;", "\"").replace("&gt;", ">").replace("&lt;", "<").replace("&amp;", "&");
+        }
+
+        private static String md5Hex(byte[] content) {
+            try {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String formatDate(Date date) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.format(date);
+        }
+
+        private static String formatIsoDate(Date date) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.format(date);
+        }
+
+        /**
+         * Объект корзины
+         */
+        private static class StoredObject {
+
+            private final byte[] content;
+
+            private final String etag;
+
+            private final Date lastModified = new Date();
+
+            private StoredObject(byte[] content, String etag) {
+                this.content = content;
+                this.etag = etag;
+            }
+        }
+    }
+}
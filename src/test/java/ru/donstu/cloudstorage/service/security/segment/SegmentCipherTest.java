@@ -0,0 +1,218 @@
+package ru.donstu.cloudstorage.service.security.segment;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import ru.donstu.cloudstorage.domain.userfiles.enums.CompressionCodec;
+import ru.donstu.cloudstorage.service.compression.CompressionServiceImpl;
+import ru.donstu.cloudstorage.service.security.cache.SegmentCache;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+import static ru.donstu.cloudstorage.service.security.segment.SegmentCipher.SEGMENT_SIZE;
+
+/**
+ * Сегментированный формат: повторная передача части шифруется новым nonce, сжатые сегменты
+ * читаются диапазонами без распаковки предыдущих, собранный по частям файл читается целиком и диапазонами
+ *
+ * @author v.solomasov
+ */
+public class SegmentCipherTest {
+
+    private static final int SEGMENTS_PER_CHUNK = 2;
+
+    private final SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+
+    private ExecutorService executor;
+
+    private SegmentCipher segmentCipher;
+
+    private Path file;
+
+    private Path packed;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(2);
+        segmentCipher = createSegmentCipher(executor);
+        file = Files.createTempFile("segments", ".upload");
+        packed = Files.createTempFile("segments", ".packed");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(packed);
+    }
+
+    @Test
+    public void retriedChunkUsesNewNonce() throws Exception {
+        byte[] plainText = randomBytes(SEGMENT_SIZE * 3 + 1000);
+        SegmentTrailer trailer = segmentCipher.createTrailer(plainText.length);
+        try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+            encryptChunk(channel, trailer, plainText, 0);
+            byte[] firstAttempt = readSegment(channel, trailer, 0);
+            encryptChunk(channel, trailer, plainText, 0);
+            assertFalse(Arrays.equals(firstAttempt, readSegment(channel, trailer, 0)));
+            encryptChunk(channel, trailer, plainText, 1);
+            trailer.write(channel);
+        }
+
+        assertArrayEquals(plainText, decrypt(file, 0, plainText.length));
+        assertArrayEquals(Arrays.copyOfRange(plainText, SEGMENT_SIZE + 10, SEGMENT_SIZE * 2 + 10),
+                decrypt(file, SEGMENT_SIZE + 10, SEGMENT_SIZE * 2 + 10));
+    }
+
+    @Test
+    public void compressedStreamIsReadByRange() throws Exception {
+        byte[] plainText = mixedBytes(SEGMENT_SIZE * 3 + 1000);
+        try (OutputStream outputStream = Files.newOutputStream(file)) {
+            segmentCipher.encrypt(new ByteArrayInputStream(plainText), outputStream, key, CompressionCodec.DEFLATE);
+        }
+
+        assertTrue(Files.size(file) < plainText.length * 3 / 4);
+        assertArrayEquals(plainText, decrypt(file, 0, plainText.length));
+        assertArrayEquals(Arrays.copyOfRange(plainText, SEGMENT_SIZE * 2 + 5, SEGMENT_SIZE * 3 + 500),
+                decrypt(file, SEGMENT_SIZE * 2 + 5, SEGMENT_SIZE * 3 + 500));
+    }
+
+    @Test
+    public void compressedChunksArePacked() throws Exception {
+        byte[] plainText = mixedBytes(SEGMENT_SIZE * 3 + 1000);
+        SegmentTrailer trailer = segmentCipher.createTrailer(plainText.length);
+        try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+            encryptChunk(channel, trailer, plainText, 1, CompressionCodec.DEFLATE_FAST);
+            encryptChunk(channel, trailer, plainText, 0, CompressionCodec.DEFLATE_FAST);
+            trailer.write(channel);
+            try (OutputStream outputStream = Files.newOutputStream(packed)) {
+                segmentCipher.pack(channel, trailer, outputStream);
+            }
+        }
+
+        assertTrue(Files.size(packed) < Files.size(file));
+        assertArrayEquals(plainText, decrypt(packed, 0, plainText.length));
+        assertArrayEquals(Arrays.copyOfRange(plainText, SEGMENT_SIZE - 7, SEGMENT_SIZE * 3 + 7),
+                decrypt(packed, SEGMENT_SIZE - 7, SEGMENT_SIZE * 3 + 7));
+    }
+
+    static SegmentCipher createSegmentCipher(ExecutorService executor) {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("crypto.segment.window", "4")
+                .withProperty("crypto.segment.cache_size", String.valueOf(8 * (SEGMENT_SIZE + SegmentTrailer.TAG_LENGTH)))
+                .withProperty("storage.dedup.secret", "test-secret");
+        environment.withProperty("compression.enabled", "true")
+                .withProperty("compression.sample_size", "65536")
+                .withProperty("compression.min_length", "512")
+                .withProperty("compression.max_ratio", "0.9");
+        CompressionServiceImpl compressionService = new CompressionServiceImpl();
+        setField(compressionService, "environment", environment);
+        compressionService.init();
+        SegmentCache segmentCache = new SegmentCache();
+        setField(segmentCache, "environment", environment);
+        segmentCache.init();
+        SegmentCipher segmentCipher = new SegmentCipher();
+        setField(segmentCipher, "environment", environment);
+        setField(segmentCipher, "cryptoExecutor", executor);
+        setField(segmentCipher, "segmentCache", segmentCache);
+        setField(segmentCipher, "compressionService", compressionService);
+        segmentCipher.init();
+        return segmentCipher;
+    }
+
+    private void encryptChunk(FileChannel channel, SegmentTrailer trailer, byte[] plainText, int chunk) throws Exception {
+        encryptChunk(channel, trailer, plainText, chunk, null);
+    }
+
+    private void encryptChunk(FileChannel channel, SegmentTrailer trailer, byte[] plainText, int chunk, CompressionCodec codec) throws Exception {
+        long first = (long) chunk * SEGMENTS_PER_CHUNK;
+        long end = Math.min(first + SEGMENTS_PER_CHUNK, trailer.getSegmentCount());
+        int from = (int) first * SEGMENT_SIZE;
+        int to = (int) Math.min(end * SEGMENT_SIZE, plainText.length);
+        segmentCipher.encryptSegments(new ByteArrayInputStream(plainText, from, to - from), channel, trailer, key, first, end, codec);
+    }
+
+    private byte[] readSegment(FileChannel channel, SegmentTrailer trailer, long index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(trailer.getSegmentCipherLength(index));
+        channel.read(buffer, trailer.getSegmentOffset(index));
+        return buffer.array();
+    }
+
+    private byte[] decrypt(Path path, long from, long to) throws IOException {
+        CipherTextSource source = new FileSource(path);
+        SegmentTrailer trailer = SegmentTrailer.read(source);
+        try (InputStream inputStream = segmentCipher.decrypt(source, trailer, key, from, to)) {
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    /**
+     * Текст со случайным сегментом посередине: сжимаются все сегменты, кроме одного
+     *
+     * @param length
+     * @return
+     */
+    private static byte[] mixedBytes(int length) {
+        byte[] bytes = new byte[length];
+        byte[] line = "строка журнала с повторяющимся содержимым\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = line[i % line.length];
+        }
+        byte[] random = randomBytes(SEGMENT_SIZE);
+        System.arraycopy(random, 0, bytes, SEGMENT_SIZE, SEGMENT_SIZE);
+        return bytes;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Шифротекст из локального файла
+     */
+    private static class FileSource implements CipherTextSource {
+
+        private final Path path;
+
+        private FileSource(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public long length() throws IOException {
+            return Files.size(path);
+        }
+
+        @Override
+        public InputStream open(long from, long to) throws IOException {
+            InputStream inputStream = Files.newInputStream(path);
+            IOUtils.skipFully(inputStream, from);
+            return new BoundedInputStream(inputStream, to - from);
+        }
+    }
+}
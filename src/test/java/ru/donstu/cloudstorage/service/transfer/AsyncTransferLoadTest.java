@@ -0,0 +1,282 @@
+package ru.donstu.cloudstorage.service.transfer;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+/**
+ * Нагрузочная проверка неблокирующей передачи: тысячи медленных клиентов одновременно загружают
+ * и скачивают тела через контейнер с несколькими потоками и небольшой пул передачи. Если бы передача
+ * удерживала поток на запрос, клиенты обслуживались бы по очереди и не уложились бы в отведенное время
+ *
+ * @author v.solomasov
+ */
+public class AsyncTransferLoadTest {
+
+    private static final int CONTAINER_THREADS = 4;
+
+    private static final int POOL_SIZE = 4;
+
+    private static final int CLIENTS = 1000;
+
+    private static final int PIECE = 1024;
+
+    private static final int UPLOAD_PIECES = 16;
+
+    private static final int DOWNLOAD_LENGTH = 64 * 1024;
+
+    private static final int READ_LENGTH = 4 * 1024;
+
+    private static final long TICK_MILLIS = 20;
+
+    private static final long TIME_LIMIT_MILLIS = 60_000;
+
+    private final AtomicInteger completedUploads = new AtomicInteger();
+
+    private final AtomicInteger closedSources = new AtomicInteger();
+
+    private ExecutorService transferExecutor;
+
+    private Tomcat tomcat;
+
+    private Path baseDir;
+
+    private int port;
+
+    @Before
+    public void setUp() throws IOException, LifecycleException {
+        transferExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(256), new ThreadPoolExecutor.CallerRunsPolicy());
+        AsyncTransfer asyncTransfer = new AsyncTransfer();
+        setField(asyncTransfer, "environment", new MockEnvironment().withProperty("transfer.async.timeout", "120000"));
+        setField(asyncTransfer, "transferExecutor", transferExecutor);
+        asyncTransfer.init();
+
+        baseDir = Files.createTempDirectory("tomcat");
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        Connector connector = tomcat.getConnector();
+        connector.setProperty("maxThreads", String.valueOf(CONTAINER_THREADS));
+        connector.setProperty("acceptCount", String.valueOf(CLIENTS));
+        connector.setProperty("socket.txBufSize", String.valueOf(8 * 1024));
+        Context context = tomcat.addContext("", baseDir.toString());
+        Wrapper wrapper = Tomcat.addServlet(context, "transfer", new TransferServlet(asyncTransfer));
+        wrapper.setAsyncSupported(true);
+        context.addServletMappingDecoded("/*", "transfer");
+        tomcat.start();
+        port = connector.getLocalPort();
+    }
+
+    @After
+    public void tearDown() throws IOException, LifecycleException {
+        tomcat.stop();
+        tomcat.destroy();
+        transferExecutor.shutdownNow();
+        FileUtils.deleteDirectory(baseDir.toFile());
+    }
+
+    @Test
+    public void slowClientsDoNotHoldThreads() throws Exception {
+        List<SlowClient> clients = new ArrayList<>(CLIENTS * 2);
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.add(new SlowClient(true));
+            clients.add(new SlowClient(false));
+        }
+        long started = System.currentTimeMillis();
+        boolean running = true;
+        while (running) {
+            assertTrue("Передача не уложилась в отведенное время", System.currentTimeMillis() - started < TIME_LIMIT_MILLIS);
+            running = false;
+            for (SlowClient client : clients) {
+                running |= client.tick();
+            }
+            Thread.sleep(TICK_MILLIS);
+        }
+
+        for (SlowClient client : clients) {
+            assertEquals(client.upload ? "HTTP/1.1 204" : "HTTP/1.1 200", client.getStatus());
+            if (!client.upload) {
+                assertEquals(DOWNLOAD_LENGTH, client.bodyLength);
+            }
+        }
+        assertEquals(CLIENTS, completedUploads.get());
+        assertEquals(CLIENTS, closedSources.get());
+    }
+
+    /**
+     * Загрузка принимает тело порциями, скачивание отдает тело заданной длины
+     */
+    private class TransferServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AsyncTransfer asyncTransfer;
+
+        private TransferServlet(AsyncTransfer asyncTransfer) {
+            this.asyncTransfer = asyncTransfer;
+        }
+
+        @Override
+        protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            asyncTransfer.receiveBody(request, response, Long.MAX_VALUE, new BodyHandler() {
+
+                private long received;
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) {
+                    received += length;
+                }
+
+                @Override
+                public void complete() {
+                    if (received == PIECE * UPLOAD_PIECES) {
+                        completedUploads.incrementAndGet();
+                        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                    } else {
+                        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    }
+                }
+
+                @Override
+                public void abort() {
+                }
+            });
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setContentLengthLong(DOWNLOAD_LENGTH);
+            asyncTransfer.sendBody(request, response, new InputStream() {
+
+                private int remaining = DOWNLOAD_LENGTH;
+
+                @Override
+                public int read() {
+                    return remaining-- > 0 ? 'x' : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (remaining == 0) {
+                        return -1;
+                    }
+                    int count = Math.min(len, remaining);
+                    remaining -= count;
+                    return count;
+                }
+
+                @Override
+                public void close() {
+                    closedSources.incrementAndGet();
+                }
+            });
+        }
+    }
+
+    /**
+     * Клиент, который за один такт отправляет или читает не больше одной небольшой порции
+     */
+    private class SlowClient {
+
+        private final boolean upload;
+
+        private final SocketChannel channel;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_LENGTH);
+
+        private final StringBuilder headers = new StringBuilder();
+
+        private int sentPieces;
+
+        private boolean headersRead;
+
+        private long bodyLength;
+
+        private boolean done;
+
+        private SlowClient(boolean upload) throws IOException {
+            this.upload = upload;
+            channel = SocketChannel.open();
+            channel.socket().setReceiveBufferSize(READ_LENGTH);
+            channel.connect(new InetSocketAddress("localhost", port));
+            channel.configureBlocking(false);
+            String request = upload
+                    ? String.format("PUT /upload HTTP/1.1\r\nHost: localhost\r\nContent-Length: %d\r\nConnection: close\r\n\r\n", PIECE * UPLOAD_PIECES)
+                    : "GET /download HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+            writeFully(request.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        /**
+         * @return true, пока передача не завершена
+         * @throws IOException
+         */
+        private boolean tick() throws IOException {
+            if (done) {
+                return false;
+            }
+            if (upload && sentPieces < UPLOAD_PIECES) {
+                writeFully(new byte[PIECE]);
+                sentPieces++;
+                return true;
+            }
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                done = true;
+                channel.close();
+                return false;
+            }
+            for (int i = 0; i < read; i++) {
+                if (headersRead) {
+                    bodyLength += read - i;
+                    break;
+                }
+                headers.append((char) readBuffer.get(i));
+                headersRead = headers.toString().endsWith("\r\n\r\n");
+            }
+            return true;
+        }
+
+        private String getStatus() {
+            return headers.length() < 12 ? headers.toString() : headers.substring(0, 12);
+        }
+
+        private void writeFully(byte[] data) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package ru.donstu.cloudstorage.service.transfer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import ru.donstu.cloudstorage.service.blob.BlobOutputStream;
+import ru.donstu.cloudstorage.service.blob.local.LocalBlobStore;
+import ru.donstu.cloudstorage.service.compression.CompressionServiceImpl;
+import ru.donstu.cloudstorage.service.security.cache.SegmentCache;
+import ru.donstu.cloudstorage.service.security.segment.CipherTextSource;
+import ru.donstu.cloudstorage.service.security.segment.EncryptionResult;
+import ru.donstu.cloudstorage.service.security.segment.SegmentCipher;
+import ru.donstu.cloudstorage.service.security.segment.SegmentOutputStream;
+import ru.donstu.cloudstorage.service.security.segment.SegmentTrailer;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+import static ru.donstu.cloudstorage.service.security.segment.SegmentCipher.SEGMENT_SIZE;
+
+/**
+ * Загрузка файла, который в несколько раз больше кучи: тело multipart принимается порциями,
+ * разбирается, шифруется и пишется в хранилище без накопления файла в памяти. Если бы файл
+ * целиком попадал в кучу хотя бы на одном шаге, загрузка завершилась бы OutOfMemoryError
+ *
+ * @author v.solomasov
+ */
+public class LargeUploadTest {
+
+    private static final long UPLOAD_LENGTH = 2048L * 1024 * 1024;
+
+    private static final int HEAP_RATIO = 4;
+
+    private static final int PIECE = 16 * 1024;
+
+    private static final String BOUNDARY = "large-upload-boundary";
+
+    private static final String FIELD_NAME = "file";
+
+    private static final String FILE_NAME = "large.bin";
+
+    private static final String STORAGE_KEY = "1/large";
+
+    private final SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+
+    private ExecutorService executor;
+
+    private SegmentCipher segmentCipher;
+
+    private LocalBlobStore blobStore;
+
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(2);
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("crypto.segment.window", "4")
+                .withProperty("crypto.segment.cache_size", String.valueOf(8 * (SEGMENT_SIZE + SegmentTrailer.TAG_LENGTH)))
+                .withProperty("storage.dedup.secret", "test-secret")
+                .withProperty("compression.enabled", "false")
+                .withProperty("compression.sample_size", "65536")
+                .withProperty("compression.min_length", "512")
+                .withProperty("compression.max_ratio", "0.9");
+        CompressionServiceImpl compressionService = new CompressionServiceImpl();
+        setField(compressionService, "environment", environment);
+        compressionService.init();
+        SegmentCache segmentCache = new SegmentCache();
+        setField(segmentCache, "environment", environment);
+        segmentCache.init();
+        segmentCipher = new SegmentCipher();
+        setField(segmentCipher, "environment", environment);
+        setField(segmentCipher, "cryptoExecutor", executor);
+        setField(segmentCipher, "segmentCache", segmentCache);
+        setField(segmentCipher, "compressionService", compressionService);
+        segmentCipher.init();
+        root = Files.createTempDirectory("large-upload");
+        blobStore = new LocalBlobStore(root, 64 * 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void uploadLargerThanHeap() throws Exception {
+        assumeTrue("Куча тестовой JVM слишком велика для проверки", Runtime.getRuntime().maxMemory() * HEAP_RATIO <= UPLOAD_LENGTH);
+        UploadHandler handler = new UploadHandler();
+        MultipartParser parser = new MultipartParser("multipart/form-data; boundary=" + BOUNDARY, FIELD_NAME, handler);
+
+        byte[] head = String.format("--%s\r\nContent-Disposition: form-data; name=\"%s\"; filename=\"%s\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n", BOUNDARY, FIELD_NAME, FILE_NAME).getBytes(StandardCharsets.ISO_8859_1);
+        parser.write(head, 0, head.length);
+        byte[] piece = new byte[PIECE];
+        for (long written = 0; written < UPLOAD_LENGTH; written += PIECE) {
+            fill(piece, written);
+            parser.write(piece, 0, PIECE);
+        }
+        byte[] tail = String.format("\r\n--%s--\r\n", BOUNDARY).getBytes(StandardCharsets.ISO_8859_1);
+        parser.write(tail, 0, tail.length);
+        parser.complete();
+
+        assertNotNull(handler.result);
+        assertEquals(1, handler.count);
+        assertEquals(UPLOAD_LENGTH, handler.result.getPlainLength());
+        long from = UPLOAD_LENGTH - SEGMENT_SIZE - 1000;
+        byte[] expected = new byte[SEGMENT_SIZE + 1000];
+        fill(expected, from);
+        assertArrayEquals(expected, decrypt(from, UPLOAD_LENGTH));
+    }
+
+    /**
+     * Содержимое файла - байты, зависящие от позиции, чтобы проверить расшифрованный диапазон
+     *
+     * @param buffer
+     * @param position
+     */
+    private static void fill(byte[] buffer, long position) {
+        for (int i = 0; i < buffer.length; i++) {
+            long index = position + i;
+            buffer[i] = (byte) (index ^ (index >>> 13));
+        }
+    }
+
+    private byte[] decrypt(long from, long to) throws IOException {
+        CipherTextSource source = new CipherTextSource() {
+
+            @Override
+            public long length() throws IOException {
+                return blobStore.stat(STORAGE_KEY).getLength();
+            }
+
+            @Override
+            public InputStream open(long from, long to) throws IOException {
+                return blobStore.get(STORAGE_KEY, from, to);
+            }
+        };
+        SegmentTrailer trailer = SegmentTrailer.read(source);
+        try (InputStream inputStream = segmentCipher.decrypt(source, trailer, key, from, to)) {
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    /**
+     * Файл из формы шифруется прямо в объект хранилища
+     */
+    private class UploadHandler implements FilePartHandler {
+
+        private EncryptionResult result;
+
+        private int count;
+
+        @Override
+        public ContentOutputStream open(String fileName, boolean empty) throws IOException {
+            BlobOutputStream blobStream = blobStore.put(STORAGE_KEY);
+            SegmentOutputStream<EncryptionResult> encryption;
+            try {
+                encryption = segmentCipher.openEncryption(blobStream, key, segment -> null);
+            } catch (Exception e) {
+                blobStream.close();
+                throw new IOException(e);
+            }
+            return new ContentOutputStream() {
+
+                @Override
+                public void write(int b) throws IOException {
+                    encryption.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    encryption.write(b, off, len);
+                }
+
+                @Override
+                public void commit() throws IOException {
+                    result = encryption.commit();
+                    blobStream.commit();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    encryption.close();
+                    blobStream.close();
+                }
+            };
+        }
+
+        @Override
+        public void complete(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+}
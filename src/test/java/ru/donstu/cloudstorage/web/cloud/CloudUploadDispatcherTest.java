@@ -0,0 +1,319 @@
+package ru.donstu.cloudstorage.web.cloud;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import ru.donstu.cloudstorage.config.WebAppConfiguration;
+import ru.donstu.cloudstorage.domain.account.entity.Account;
+import ru.donstu.cloudstorage.domain.userfiles.entity.UserFiles;
+import ru.donstu.cloudstorage.service.batch.BatchUploadService;
+import ru.donstu.cloudstorage.service.batch.BatchUploadServiceImpl;
+import ru.donstu.cloudstorage.service.security.SecurityService;
+import ru.donstu.cloudstorage.service.transfer.AsyncTransfer;
+import ru.donstu.cloudstorage.service.userfiles.StoreOutputStream;
+import ru.donstu.cloudstorage.service.userfiles.StoredFile;
+import ru.donstu.cloudstorage.service.userfiles.UserFilesService;
+import ru.donstu.cloudstorage.validator.FileValidator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static ru.donstu.cloudstorage.config.constant.Constants.MESSAGE_PROPERTY;
+import static ru.donstu.cloudstorage.config.constant.Constants.RESOURCES_PROPERTY;
+
+/**
+ * Загрузка файлов формой и пакетом через {@link DispatcherServlet} во встроенном контейнере.
+ * Тело multipart принимает сам контроллер через неблокирующую передачу, поэтому в контексте
+ * не должно быть {@link MultipartResolver}: диспетчер вычитал бы тело раньше, и файлы не сохранились бы.
+ * Сервисы аккаунта и файлов заменены заглушками, содержимое файлов запоминается в памяти
+ *
+ * @author v.solomasov
+ */
+public class CloudUploadDispatcherTest {
+
+    private static final String BOUNDARY = "dispatcher-upload-boundary";
+
+    private static final String FIELD_NAME = "file";
+
+    private static final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+
+    private static final List<String> savedNames = new CopyOnWriteArrayList<>();
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    private AnnotationConfigWebApplicationContext applicationContext;
+
+    private Tomcat tomcat;
+
+    private Path baseDir;
+
+    private int port;
+
+    @Before
+    public void setUp() throws IOException, LifecycleException {
+        contents.clear();
+        savedNames.clear();
+        applicationContext = new AnnotationConfigWebApplicationContext();
+        applicationContext.register(DispatcherConfiguration.class);
+
+        baseDir = Files.createTempDirectory("tomcat");
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        Context context = tomcat.addContext("", baseDir.toString());
+        Wrapper wrapper = Tomcat.addServlet(context, "dispatcher", new DispatcherServlet(applicationContext));
+        wrapper.setAsyncSupported(true);
+        wrapper.setLoadOnStartup(1);
+        context.addServletMappingDecoded("/", "dispatcher");
+        tomcat.start();
+        port = tomcat.getConnector().getLocalPort();
+    }
+
+    @After
+    public void tearDown() throws IOException, LifecycleException {
+        tomcat.stop();
+        tomcat.destroy();
+        applicationContext.close();
+        FileUtils.deleteDirectory(baseDir.toFile());
+    }
+
+    @Test
+    public void webConfigurationHasNoMultipartResolver() {
+        for (Method method : WebAppConfiguration.class.getDeclaredMethods()) {
+            assertFalse(String.format("Бин %s разбирает тело раньше контроллера", method.getName()),
+                    MultipartResolver.class.isAssignableFrom(method.getReturnType()));
+        }
+    }
+
+    @Test
+    public void saveStoresFormFiles() throws IOException {
+        HttpURLConnection connection = post("/cloud/save", "first.txt", "first content", "second.txt", "second content");
+
+        assertEquals(HttpURLConnection.HTTP_MOVED_TEMP, connection.getResponseCode());
+        assertTrue(connection.getHeaderField("Location").endsWith(CloudController.ROUTE_CLOUD));
+        assertNull("Сообщение об ошибке загрузки в сессии", connection.getHeaderField("Set-Cookie"));
+        assertEquals(2, savedNames.size());
+        assertArrayEquals("first content".getBytes(StandardCharsets.UTF_8), contents.get("first.txt"));
+        assertArrayEquals("second content".getBytes(StandardCharsets.UTF_8), contents.get("second.txt"));
+    }
+
+    @Test
+    public void saveReportsFormWithoutFile() throws IOException {
+        HttpURLConnection connection = post("/cloud/save", "", "");
+
+        assertEquals(HttpURLConnection.HTTP_MOVED_TEMP, connection.getResponseCode());
+        assertTrue(connection.getHeaderField("Location").endsWith(CloudController.ROUTE_CLOUD));
+        assertNotNull("Нет сообщения об ошибке загрузки в сессии", connection.getHeaderField("Set-Cookie"));
+        assertTrue(savedNames.isEmpty());
+    }
+
+    @Test
+    public void batchStoresFiles() throws IOException {
+        HttpURLConnection connection = post("/cloud/batch", "first.txt", "first content", "second.txt", "second content");
+
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        String json;
+        try (InputStream inputStream = connection.getInputStream()) {
+            json = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+        assertTrue(json, json.matches("\\[\\{\"fileName\":\"first.txt\",\"status\":\"CREATED\".*"
+                + "\\{\"fileName\":\"second.txt\",\"status\":\"CREATED\".*"));
+        assertEquals(2, savedNames.size());
+        assertArrayEquals("first content".getBytes(StandardCharsets.UTF_8), contents.get("first.txt"));
+        assertArrayEquals("second content".getBytes(StandardCharsets.UTF_8), contents.get("second.txt"));
+    }
+
+    /**
+     * Отправка формы с файлами
+     *
+     * @param path
+     * @param files имя и содержимое каждого файла по очереди
+     * @return
+     * @throws IOException
+     */
+    private HttpURLConnection post(String path, String... files) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < files.length; i += 2) {
+            body.write(String.format("--%s\r\nContent-Disposition: form-data; name=\"%s\"; filename=\"%s\"\r\n"
+                    + "Content-Type: text/plain\r\n\r\n%s\r\n", BOUNDARY, FIELD_NAME, files[i], files[i + 1]).getBytes(StandardCharsets.UTF_8));
+        }
+        body.write(String.format("--%s--\r\n", BOUNDARY).getBytes(StandardCharsets.UTF_8));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", "localhost", port, path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setInstanceFollowRedirects(false);
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        connection.setFixedLengthStreamingMode(body.size());
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            body.writeTo(outputStream);
+        }
+        return connection;
+    }
+
+    /**
+     * Контроллер, проверка и пакетная загрузка - настоящие, аккаунт и файлы - заглушки
+     */
+    @Configuration
+    @EnableWebMvc
+    @PropertySource({RESOURCES_PROPERTY, MESSAGE_PROPERTY})
+    static class DispatcherConfiguration {
+
+        @Bean
+        public CloudController cloudController() {
+            return new CloudController();
+        }
+
+        @Bean
+        public FileValidator fileValidator() {
+            return new FileValidator();
+        }
+
+        @Bean
+        public BatchUploadService batchUploadService() {
+            return new BatchUploadServiceImpl();
+        }
+
+        @Bean
+        public AsyncTransfer asyncTransfer() {
+            return new AsyncTransfer();
+        }
+
+        @Bean(destroyMethod = "shutdownNow")
+        public ExecutorService transferExecutor() {
+            return Executors.newFixedThreadPool(2);
+        }
+
+        @Bean(destroyMethod = "shutdownNow")
+        public ExecutorService uploadExecutor() {
+            return Executors.newFixedThreadPool(2);
+        }
+
+        @Bean
+        public SecurityService securityService() {
+            Account account = new Account();
+            account.setId(1L);
+            account.setName("user");
+            return stub(SecurityService.class, (method, args) -> "getLoggedAccount".equals(method) ? account : null);
+        }
+
+        @Bean
+        public UserFilesService userFilesService() {
+            return stub(UserFilesService.class, (method, args) -> {
+                switch (method) {
+                    case "checkQuota":
+                    case "isValidFileName":
+                        return true;
+                    case "checkUserFile":
+                        return false;
+                    case "findExistingFileNames":
+                        return Collections.emptySet();
+                    case "openStore":
+                        return openStore((String) args[1]);
+                    case "saveStoredFiles":
+                        for (Object storedFile : (List<?>) args[1]) {
+                            savedNames.add(((StoredFile) storedFile).getUserFiles().getFileName());
+                        }
+                        return Collections.emptyList();
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        /**
+         * Запись содержимого файла в память
+         *
+         * @param fileName
+         * @return
+         */
+        private static StoreOutputStream openStore(String fileName) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            return new StoreOutputStream() {
+
+                private StoredFile storedFile;
+
+                @Override
+                public void write(int b) {
+                    content.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    content.write(b, off, len);
+                }
+
+                @Override
+                public void commit() {
+                    UserFiles userFiles = new UserFiles();
+                    userFiles.setId(ids.incrementAndGet());
+                    userFiles.setFileName(fileName);
+                    userFiles.setFileLength((long) content.size());
+                    contents.put(fileName, content.toByteArray());
+                    storedFile = new StoredFile(userFiles, Collections.emptyList());
+                }
+
+                @Override
+                public StoredFile getStoredFile() {
+                    return storedFile;
+                }
+            };
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T stub(Class<T> type, StubHandler handler) {
+            InvocationHandler invocationHandler = (proxy, method, args) -> {
+                if (method.getDeclaringClass() == Object.class) {
+                    return "toString".equals(method.getName()) ? type.getSimpleName() : method.invoke(handler, args);
+                }
+                return handler.handle(method.getName(), args);
+            };
+            return (T) Proxy.newProxyInstance(CloudUploadDispatcherTest.class.getClassLoader(), new Class<?>[]{type}, invocationHandler);
+        }
+    }
+
+    /**
+     * Ответ заглушки по имени метода
+     */
+    private interface StubHandler {
+
+        Object handle(String method, Object[] args);
+    }
+}